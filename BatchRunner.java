@@ -0,0 +1,443 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// Non-interactive batch mode:
+//
+//   java Main batch encode <manifest> [options]     lines: carrier <TAB> payload <TAB> output
+//   java Main batch encode <carrier dir> --payload <file> --out <dir> [options]
+//   java Main batch decode <manifest> [options]     lines: carrier [<TAB> output]
+//   java Main batch decode <carrier dir> [--out <dir>] [options]
+//
+// Options: --threads n (default: cores), --io-threads n (default: 2 x threads),
+//          --header 64|128, --report <file> (default: stdout),
+//          --codec auto|huffman|deflate|lz|stored (default: auto, picked per payload),
+//          --password-file <file> (first line; payloads are encrypted with it, see PayloadCipher),
+//          --metrics <file> (stage latencies and counters in the Prometheus text format)
+//
+// Every job is pipelined read -> embed/extract -> write. Reads and writes run on the I/O pool,
+// embedding on the CPU pool, and at most threads + ioThreads jobs are in flight, so carriers
+// are decoded while others are being embedded or written out without unbounded memory.
+// A JPEG carrier with a JPEG output, or an uncompressed one (see MappedRaster) with an output in
+// its own format, is embedded in that format in one step; every other output must be a PNG,
+// since a lossy or palette format would not keep the payload.
+// One JSON object per job goes to the report, followed by a summary line with throughput.
+public class BatchRunner {
+    private static final String[] IMAGE_EXTENSIONS = {".png", ".bmp", ".jpg", ".jpeg", ".gif", ".tif", ".tiff", ".ppm", ".pam", ".rgb", ".rgba"};
+
+    static final class Job {
+        final int id;
+        final String carrier;
+        final String payload; // null for decode jobs
+        final String output;  // null when a decode job only reports
+
+        Job(int id, String carrier, String payload, String output) {
+            this.id = id;
+            this.carrier = carrier;
+            this.payload = payload;
+            this.output = output;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || !(args[0].equals("encode") || args[0].equals("decode"))) {
+            usage();
+            return;
+        }
+        boolean encode = args[0].equals("encode");
+        String source = args[1];
+        String payload = null;
+        String outDir = null;
+        String report = null;
+        String metricsFile = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int ioThreads = -1;
+        int headerBits = 64;
+        String codec = "auto";
+        String passwordFile = null;
+
+        for (int i = 2; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            if (value == null) throw new IllegalArgumentException("Missing value for " + args[i]);
+            switch (args[i]) {
+                case "--payload": payload = value; break;
+                case "--out": outDir = value; break;
+                case "--report": report = value; break;
+                case "--metrics": metricsFile = value; break;
+                case "--threads": threads = Integer.parseInt(value); break;
+                case "--io-threads": ioThreads = Integer.parseInt(value); break;
+                case "--header": headerBits = Integer.parseInt(value); break;
+                case "--codec": codec = value; break;
+                case "--password-file": passwordFile = value; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+            i++;
+        }
+        if (threads < 1) throw new IllegalArgumentException("--threads must be at least 1");
+        if (ioThreads < 1) ioThreads = threads * 2;
+        if (headerBits != 64 && headerBits != 128) {
+            throw new IllegalArgumentException("headerBits must be 64 or 128");
+        }
+        if (!codec.equalsIgnoreCase("auto")) Codecs.byName(codec);
+        // One key derivation for the whole batch; every payload still gets its own nonce
+        PayloadCipher.Passphrase passphrase = passwordFile == null ? null : readPassphrase(Paths.get(passwordFile));
+
+        List<Job> jobs = Files.isDirectory(Paths.get(source))
+            ? scanDirectory(Paths.get(source), encode, payload, outDir)
+            : readManifest(Paths.get(source), encode, outDir);
+
+        MetricsRegistry metrics = null;
+        if (metricsFile != null) {
+            metrics = new MetricsRegistry();
+            Instrumentation.install(metrics);
+        }
+
+        Writer out = report == null
+            ? new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+            : Files.newBufferedWriter(Paths.get(report), StandardCharsets.UTF_8);
+        try {
+            run(jobs, encode, headerBits, codec, passphrase, threads, ioThreads, out);
+        } finally {
+            if (report == null) out.flush(); else out.close();
+        }
+        if (metrics != null) {
+            Files.write(Paths.get(metricsFile), PrometheusExporter.render(metrics).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void usage() {
+        System.out.println("Usage: java Main batch encode <manifest | carrier dir --payload file --out dir> [options]");
+        System.out.println("       java Main batch decode <manifest | carrier dir> [--out dir] [options]");
+        System.out.println("Options: --threads n, --io-threads n, --header 64|128, --codec name, --password-file file,");
+        System.out.println("         --report file, --metrics file");
+    }
+
+    private static PayloadCipher.Passphrase readPassphrase(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || lines.get(0).isEmpty()) throw new IllegalArgumentException("No password in " + file);
+        return new PayloadCipher.Passphrase(lines.get(0).toCharArray());
+    }
+
+    // Runs all jobs and writes one report line per job plus a summary; returns the failure count
+    public static int run(List<Job> jobs, boolean encode, int headerBits, int threads, int ioThreads, Writer report) throws Exception {
+        return run(jobs, encode, headerBits, "auto", null, threads, ioThreads, report);
+    }
+
+    // codec: a Codecs name, or "auto" to pick one per payload; passphrase may be null
+    public static int run(List<Job> jobs, boolean encode, int headerBits, String codec, PayloadCipher.Passphrase passphrase,
+                          int threads, int ioThreads, Writer report) throws Exception {
+        ExecutorService cpu = Executors.newFixedThreadPool(threads);
+        ExecutorService io = Executors.newFixedThreadPool(ioThreads);
+        Semaphore inFlight = new Semaphore(threads + ioThreads);
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong payloadBytes = new AtomicLong();
+        AtomicLong carrierPixels = new AtomicLong();
+        long start = System.nanoTime();
+
+        try {
+            List<CompletableFuture<Void>> pending = new ArrayList<>();
+            for (Job job : jobs) {
+                inFlight.acquire();
+                Result result = new Result(job);
+                CompletableFuture<Void> f;
+                if (!encode) {
+                    f = CompletableFuture.supplyAsync(() -> extract(job, headerBits, passphrase, result), io)
+                        .thenAcceptAsync(bytes -> writePayload(job, bytes, result), io);
+                } else if (EncodeBinary.keepsFormat(job.carrier, job.output)) {
+                    f = CompletableFuture.runAsync(() -> embedInFormat(job, headerBits, codec, passphrase, result), cpu);
+                } else {
+                    f = CompletableFuture.supplyAsync(() -> readCarrier(job, result), io)
+                        .thenApplyAsync(image -> embed(job, image, headerBits, codec, passphrase, result), cpu)
+                        .thenAcceptAsync(image -> writeCarrier(job, image, result), io);
+                }
+                pending.add(f.whenComplete((v, e) -> {
+                    try {
+                        if (e != null) {
+                            failed.incrementAndGet();
+                            result.error = rootMessage(e);
+                            result.reason = rejectionReason(e);
+                        } else {
+                            payloadBytes.addAndGet(result.payloadBytes);
+                            carrierPixels.addAndGet(result.pixels);
+                        }
+                        writeLine(report, result.toJson());
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+            for (CompletableFuture<Void> f : pending) {
+                try {
+                    f.join();
+                } catch (RuntimeException e) {
+                    // already reported
+                }
+            }
+        } finally {
+            cpu.shutdown();
+            io.shutdown();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        CarrierCache cache = CarrierCache.shared();
+        writeLine(report, String.format(Locale.ROOT,
+            "{\"summary\":true,\"mode\":\"%s\",\"jobs\":%d,\"ok\":%d,\"failed\":%d,\"seconds\":%.3f," +
+            "\"jobsPerSecond\":%.2f,\"payloadMBPerSecond\":%.3f,\"megapixelsPerSecond\":%.2f," +
+            "\"cacheHits\":%d,\"cacheMisses\":%d,\"cacheEvictions\":%d}",
+            encode ? "encode" : "decode", jobs.size(), jobs.size() - failed.get(), failed.get(), seconds,
+            jobs.size() / seconds, payloadBytes.get() / 1e6 / seconds, carrierPixels.get() / 1e6 / seconds,
+            cache.hits(), cache.misses(), cache.evictions()));
+        return failed.get();
+    }
+
+    /* --------------------------- Stages --------------------------- */
+
+    private static BufferedImage readCarrier(Job job, Result result) {
+        EncodeBinary.requirePngOutput(job.output);
+        long t = System.nanoTime();
+        try {
+            // Template carriers shared by many jobs are decoded once
+            BufferedImage image = CarrierCache.shared().readImage(job.carrier);
+            if (image == null) throw new IOException("Unsupported image format: " + job.carrier);
+            result.pixels = (long) image.getWidth() * image.getHeight();
+            return image;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            result.readNanos = System.nanoTime() - t;
+        }
+    }
+
+    private static BufferedImage embed(Job job, BufferedImage image, int headerBits, String codec,
+                                       PayloadCipher.Passphrase passphrase, Result result) {
+        long t = System.nanoTime();
+        try {
+            BitBuffer bits = payloadBits(job, codec, passphrase, result);
+            CapacityPlanner.Plan plan = passphrase == null
+                ? CapacityPlanner.plan(image, bits.length(), headerBits, false)
+                : CapacityPlanner.scattered(image, bits.length(), headerBits, false, passphrase.scatterSeed());
+            result.plan = plan.toString();
+            return EncodeBinary.embed(image, bits, headerBits, plan);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            result.embedNanos = System.nanoTime() - t;
+        }
+    }
+
+    // Embeds straight into the carrier's own encoding; the write is part of the embed
+    private static void embedInFormat(Job job, int headerBits, String codec, PayloadCipher.Passphrase passphrase, Result result) {
+        long t = System.nanoTime();
+        try {
+            EncodeBinary.encodeInFormat(job.carrier, payloadBits(job, codec, passphrase, result), job.output, headerBits, passphrase);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            result.embedNanos = System.nanoTime() - t;
+        }
+    }
+
+    private static BitBuffer payloadBits(Job job, String codec, PayloadCipher.Passphrase passphrase, Result result) throws IOException {
+        byte[] payload = Files.readAllBytes(Paths.get(job.payload));
+        result.payloadBytes = payload.length;
+        return TextToBinary.toBits(payload, Codecs.select(codec, payload), passphrase);
+    }
+
+    private static void writeCarrier(Job job, BufferedImage image, Result result) {
+        long t = System.nanoTime();
+        try {
+            SteganographyHelper.writeImage(image, SteganographyHelper.getImageFormat(job.output), job.output);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            result.writeNanos = System.nanoTime() - t;
+        }
+    }
+
+    // The streaming decoder only reads the rows holding the payload, so read and extract are one stage
+    private static byte[] extract(Job job, int headerBits, PayloadCipher.Passphrase passphrase, Result result) {
+        long t = System.nanoTime();
+        try {
+            byte[] payload = BinaryToText.toBytes(CarrierCache.shared().decode(job.carrier, headerBits, passphrase), passphrase);
+            result.payloadBytes = payload.length;
+            return payload;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            result.readNanos = System.nanoTime() - t;
+        }
+    }
+
+    private static void writePayload(Job job, byte[] payload, Result result) {
+        if (job.output == null) return;
+        long t = System.nanoTime();
+        try {
+            Files.write(Paths.get(job.output), payload);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            result.writeNanos = System.nanoTime() - t;
+        }
+    }
+
+    /* --------------------------- Jobs ----------------------------- */
+
+    // Tab-separated lines; blank lines and lines starting with # are skipped
+    static List<Job> readManifest(Path manifest, boolean encode, String outDir) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            lineNumber++;
+            if (line.trim().isEmpty() || line.startsWith("#")) continue;
+            String[] fields = line.split("\t");
+            if (encode && fields.length != 3) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": expected carrier, payload and output");
+            }
+            if (!encode && fields.length > 2) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": expected carrier and optional output");
+            }
+            String output = fields.length > (encode ? 2 : 1) ? fields[encode ? 2 : 1]
+                : outDir == null ? null : payloadPath(fields[0], outDir);
+            jobs.add(new Job(jobs.size(), fields[0], encode ? fields[1] : null, output));
+        }
+        return jobs;
+    }
+
+    static List<Job> scanDirectory(Path dir, boolean encode, String payload, String outDir) throws IOException {
+        if (encode && (payload == null || outDir == null)) {
+            throw new IllegalArgumentException("Encoding a directory needs --payload and --out");
+        }
+        List<Path> carriers = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(p -> Files.isRegularFile(p) && isImage(p.getFileName().toString()))
+                .sorted()
+                .forEach(carriers::add);
+        }
+        if (outDir != null) Files.createDirectories(Paths.get(outDir));
+
+        List<Job> jobs = new ArrayList<>();
+        for (Path carrier : carriers) {
+            String output;
+            if (encode) {
+                output = Paths.get(outDir, baseName(carrier.getFileName().toString()) + ".png").toString();
+            } else {
+                output = outDir == null ? null : payloadPath(carrier.toString(), outDir);
+            }
+            jobs.add(new Job(jobs.size(), carrier.toString(), encode ? payload : null, output));
+        }
+        return jobs;
+    }
+
+    private static String payloadPath(String carrier, String outDir) {
+        return Paths.get(outDir, baseName(new File(carrier).getName()) + ".bin").toString();
+    }
+
+    static boolean isImage(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        for (String ext : IMAGE_EXTENSIONS) {
+            if (lower.endsWith(ext)) return true;
+        }
+        return false;
+    }
+
+    private static String baseName(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot <= 0 ? name : name.substring(0, dot);
+    }
+
+    /* -------------------------- Report ---------------------------- */
+
+    private static final class Result {
+        final Job job;
+        volatile long readNanos, embedNanos, writeNanos;
+        volatile long payloadBytes, pixels;
+        volatile String plan;
+        volatile String error;
+        volatile String reason;
+
+        Result(Job job) {
+            this.job = job;
+        }
+
+        String toJson() {
+            StringBuilder sb = new StringBuilder(256);
+            sb.append("{\"job\":").append(job.id)
+              .append(",\"carrier\":").append(quote(job.carrier))
+              .append(",\"output\":").append(job.output == null ? "null" : quote(job.output))
+              .append(",\"status\":").append(error == null ? "\"ok\"" : "\"error\"");
+            if (error != null) sb.append(",\"error\":").append(quote(error));
+            if (reason != null) sb.append(",\"reason\":").append(quote(reason));
+            sb.append(",\"payloadBytes\":").append(payloadBytes);
+            if (pixels > 0) sb.append(",\"pixels\":").append(pixels);
+            if (plan != null) sb.append(",\"plan\":").append(quote(plan));
+            sb.append(String.format(Locale.ROOT, ",\"readMs\":%.2f,\"embedMs\":%.2f,\"writeMs\":%.2f}",
+                readNanos / 1e6, embedNanos / 1e6, writeNanos / 1e6));
+            return sb.toString();
+        }
+    }
+
+    private static void writeLine(Writer report, String line) {
+        synchronized (report) {
+            try {
+                report.write(line);
+                report.write('\n');
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot write report: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private static String rootMessage(Throwable e) {
+        while (e.getCause() != null && (e instanceof CompletionException || e.getMessage() == null)) {
+            e = e.getCause();
+        }
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    }
+
+    // Which check rejected the carrier, when the failure was a decode rejection
+    private static String rejectionReason(Throwable e) {
+        for (; e != null; e = e.getCause()) {
+            if (e instanceof NoHiddenMessageException) return ((NoHiddenMessageException) e).getReason().name();
+        }
+        return null;
+    }
+
+    // JSON string literal
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -1,22 +1,89 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
 public class BinaryToText {
     public static String convert(String binary) {
+        BitBuffer bits;
         try {
-            // binary to Huffman first
-            if (binary.length() % 8 != 0) {
-                throw new RuntimeException("There is no hidden message");
+            bits = BitBuffer.fromBinaryString(binary);
+        } catch (Exception e) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, "not a binary string", e);
+        }
+        return convert(bits);
+    }
+
+    public static String convert(BitBuffer bits) {
+        return convert(bits, null);
+    }
+
+    // passphrase is only needed for encrypted payloads
+    public static String convert(BitBuffer bits, PayloadCipher.Passphrase passphrase) {
+        try {
+            // Current format carries its own version and codec
+            if (StegoContainer.isContainer(bits, 0)) {
+                return StegoContainer.unpack(bits, passphrase);
             }
-            
-            StringBuilder huffmanData = new StringBuilder();
-            for (int i = 0; i < binary.length(); i += 8) {
-                String byteStr = binary.substring(i, i + 8);
-                int charValue = Integer.parseInt(byteStr, 2);
-                huffmanData.append((char) charValue);
+
+            // Legacy format: binary to Huffman first
+            if (bits.length() % 8 != 0) {
+                throw Instrumentation.reject(NoHiddenMessageException.Reason.LENGTH_NOT_BYTE_ALIGNED, bits.length() + " bits");
             }
-            
+
+            byte[] bytes = bits.toByteArray();
+            StringBuilder huffmanData = new StringBuilder(bytes.length);
+            for (byte b : bytes) {
+                huffmanData.append((char) (b & 0xFF));
+            }
+
             // Now decompress using Huffman
-            return HuffmanCoding.decompress(huffmanData.toString());
+            long t = Instrumentation.start();
+            String text = HuffmanCoding.decompress(huffmanData.toString());
+            Instrumentation.stop(Metrics.Stage.DECOMPRESS, t);
+            Instrumentation.add(Metrics.Counter.PAYLOAD_BYTES_DECODED, text.length());
+            return text;
+        } catch (NoHiddenMessageException e) {
+            throw e;
+        } catch (Exception e) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, String.valueOf(e.getMessage()), e);
+        }
+    }
+
+    public static byte[] toBytes(BitBuffer bits) {
+        return toBytes(bits, null);
+    }
+
+    public static byte[] toBytes(BitBuffer bits, PayloadCipher.Passphrase passphrase) {
+        try {
+            if (StegoContainer.isContainer(bits, 0)) {
+                return StegoContainer.unpackBytes(bits, passphrase);
+            }
+            return convert(bits).getBytes(StandardCharsets.UTF_8);
+        } catch (NoHiddenMessageException e) {
+            throw e;
+        } catch (Exception e) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, String.valueOf(e.getMessage()), e);
+        }
+    }
+
+    // toBytes written to out as it is decoded. Payloads over maxBytes are rejected with
+    // PAYLOAD_TOO_LARGE, before any decompression when the container declares its length
+    public static void toStream(BitBuffer bits, PayloadCipher.Passphrase passphrase, long maxBytes, OutputStream out) throws IOException {
+        try {
+            if (StegoContainer.isContainer(bits, 0)) {
+                StegoContainer.unpack(bits, out, passphrase, maxBytes);
+                return;
+            }
+            // Legacy payloads spend a whole byte per code bit, so their text cannot outgrow them
+            byte[] text = convert(bits).getBytes(StandardCharsets.UTF_8);
+            if (text.length > maxBytes) {
+                throw Instrumentation.reject(NoHiddenMessageException.Reason.PAYLOAD_TOO_LARGE, text.length + " bytes, limit " + maxBytes);
+            }
+            out.write(text);
+        } catch (NoHiddenMessageException | IOException e) {
+            throw e;
         } catch (Exception e) {
-            throw new RuntimeException("There is no hidden message");
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, String.valueOf(e.getMessage()), e);
         }
     }
 }
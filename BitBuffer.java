@@ -0,0 +1,391 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+// Packed bit storage with a write cursor (length) and a read cursor (position).
+// Bits are stored MSB first inside each long, so bit i of the buffer is bit i of
+// the equivalent byte stream and toByteArray() is a straight copy.
+//
+// Buffers of -Dpixelvault.bitbuffer.offHeapBytes (default 128 MB) or more keep their words
+// off the heap in pages of direct memory, indexed by long, so multi-gigabit payloads neither
+// need one huge array nor get copied around by the GC, and growing one adds pages instead of
+// copying it. Direct memory is capped by -XX:MaxDirectMemorySize (by default the heap size)
+// and is released when the buffer is collected.
+public class BitBuffer {
+    private static final long MAX_BITS = (long) (Integer.MAX_VALUE - 8) << 6;
+    private static final long MAX_OFF_HEAP_BITS = Long.MAX_VALUE - 64;
+    private static final int PAGE_SHIFT = 24; // 2^24 words, 128 MB per page
+    static final long OFF_HEAP_BITS = Long.getLong("pixelvault.bitbuffer.offHeapBytes", 128L << 20) * 8;
+
+    private final long offHeapBits;
+    private final int pageShift;
+    private final int pageWords;
+    private long[] words;  // null when off-heap
+    private LongBuffer[] pages;
+    private long length;   // number of bits written
+    private long position; // next bit to read
+
+    public BitBuffer() {
+        this(1024);
+    }
+
+    public BitBuffer(long capacityBits) {
+        this(capacityBits, OFF_HEAP_BITS, PAGE_SHIFT);
+    }
+
+    // Tests move buffers off the heap with small pages, so page boundaries are cheap to reach
+    BitBuffer(long capacityBits, long offHeapBits, int pageShift) {
+        this.offHeapBits = offHeapBits;
+        this.pageShift = pageShift;
+        this.pageWords = 1 << pageShift;
+        capacityBits = Math.max(capacityBits, 64);
+        if (capacityBits >= offHeapBits) {
+            pages = new LongBuffer[0];
+            addPages(capacityBits);
+        } else {
+            words = new long[wordsFor(capacityBits)];
+        }
+    }
+
+    public static BitBuffer wrap(byte[] bytes) {
+        BitBuffer buffer = new BitBuffer((long) bytes.length * 8);
+        buffer.writeBytes(bytes, 0, bytes.length);
+        return buffer;
+    }
+
+    // length zero bits, to be filled in with setBits in any order
+    public static BitBuffer zeros(long length) {
+        BitBuffer buffer = new BitBuffer(length);
+        buffer.length = length;
+        return buffer;
+    }
+
+    public static BitBuffer fromBinaryString(String binary) {
+        BitBuffer buffer = new BitBuffer(binary.length());
+        for (int i = 0; i < binary.length(); i++) {
+            char c = binary.charAt(i);
+            if (c != '0' && c != '1') {
+                throw new IllegalArgumentException("Invalid binary digit '" + c + "' at index " + i);
+            }
+            buffer.writeBit(c - '0');
+        }
+        return buffer;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public long position() {
+        return position;
+    }
+
+    public void position(long newPosition) {
+        if (newPosition < 0 || newPosition > length) {
+            throw new IndexOutOfBoundsException("Position " + newPosition + " outside [0, " + length + "]");
+        }
+        position = newPosition;
+    }
+
+    public long remaining() {
+        return length - position;
+    }
+
+    public void rewind() {
+        position = 0;
+    }
+
+    public void clear() {
+        long used = (length + 63) >>> 6;
+        if (words != null) {
+            Arrays.fill(words, 0, (int) used, 0L);
+        } else {
+            for (long i = 0; i < used; i++) setWord(i, 0L);
+        }
+        length = 0;
+        position = 0;
+    }
+
+    /* -------------------------- Writing (appends at length) ------------------------- */
+
+    public void writeBit(int bit) {
+        ensureCapacity(length + 1);
+        if ((bit & 1) != 0) {
+            long idx = length >>> 6;
+            setWord(idx, word(idx) | 1L << (~length & 63));
+        }
+        length++;
+    }
+
+    // Appends the low `count` bits of value, most significant first
+    public void writeBits(long value, int count) {
+        if (count < 0 || count > 64) {
+            throw new IllegalArgumentException("count must be between 0 and 64");
+        }
+        if (count == 0) return;
+        ensureCapacity(length + count);
+        if (count < 64) value &= (1L << count) - 1;
+
+        long idx = length >>> 6;
+        int free = 64 - (int) (length & 63);
+        if (count <= free) {
+            setWord(idx, word(idx) | value << (free - count));
+        } else {
+            int spill = count - free;
+            setWord(idx, word(idx) | value >>> spill);
+            setWord(idx + 1, word(idx + 1) | value << (64 - spill));
+        }
+        length += count;
+    }
+
+    public void writeBytes(byte[] bytes, int offset, int len) {
+        ensureCapacity(length + (long) len * 8);
+        int i = offset;
+        int end = offset + len;
+        // Eight bytes per call while we can
+        for (; i + 8 <= end; i += 8) {
+            long v = 0;
+            for (int j = 0; j < 8; j++) v = (v << 8) | (bytes[i + j] & 0xFF);
+            writeBits(v, 64);
+        }
+        for (; i < end; i++) writeBits(bytes[i] & 0xFF, 8);
+    }
+
+    public void append(BitBuffer other) {
+        append(other, 0, other.length);
+    }
+
+    // Appends bits [from, to) of another buffer
+    public void append(BitBuffer other, long from, long to) {
+        other.checkRange(from, 0);
+        if (to < from || to > other.length) {
+            throw new IndexOutOfBoundsException("Bits [" + from + ", " + to + ") outside length " + other.length);
+        }
+        ensureCapacity(length + (to - from));
+        long i = from;
+        for (; i + 64 <= to; i += 64) writeBits(other.getBits(i, 64), 64);
+        int tail = (int) (to - i);
+        if (tail > 0) writeBits(other.getBits(i, tail), tail);
+    }
+
+    // Overwrites a bit that has already been written
+    public void setBit(long index, int bit) {
+        checkRange(index, 1);
+        long mask = 1L << (~index & 63);
+        long idx = index >>> 6;
+        setWord(idx, (bit & 1) != 0 ? word(idx) | mask : word(idx) & ~mask);
+    }
+
+    // Overwrites count bits that have already been written, first bit most significant
+    public void setBits(long index, long value, int count) {
+        if (count < 0 || count > 64) {
+            throw new IllegalArgumentException("count must be between 0 and 64");
+        }
+        if (count == 0) return;
+        checkRange(index, count);
+        long idx = index >>> 6;
+        int off = (int) (index & 63);
+        long v = value << (64 - count);            // left aligned
+        long mask = -1L << (64 - count);
+        setWord(idx, (word(idx) & ~(mask >>> off)) | (v >>> off));
+        if (off + count > 64) {
+            setWord(idx + 1, (word(idx + 1) & ~(mask << (64 - off))) | (v << (64 - off)));
+        }
+    }
+
+    /* -------------------------- Reading ------------------------- */
+
+    public BitBuffer slice(long from, long to) {
+        BitBuffer out = new BitBuffer(to - from);
+        out.append(this, from, to);
+        return out;
+    }
+
+    public int getBit(long index) {
+        checkRange(index, 1);
+        return (int) (word(index >>> 6) >>> (~index & 63)) & 1;
+    }
+
+    // Returns `count` bits starting at index as an unsigned value, first bit most significant
+    public long getBits(long index, int count) {
+        if (count < 0 || count > 64) {
+            throw new IllegalArgumentException("count must be between 0 and 64");
+        }
+        if (count == 0) return 0;
+        checkRange(index, count);
+        long idx = index >>> 6;
+        int off = (int) (index & 63);
+        long hi = word(idx) << off;
+        if (off + count > 64) {
+            hi |= word(idx + 1) >>> (64 - off);
+        }
+        return hi >>> (64 - count);
+    }
+
+    public int readBit() {
+        int bit = getBit(position);
+        position++;
+        return bit;
+    }
+
+    public long readBits(int count) {
+        long value = getBits(position, count);
+        position += count;
+        return value;
+    }
+
+    // Reads len whole bytes from the cursor, which need not be byte aligned
+    public void readBytes(byte[] dst, int offset, int len) {
+        checkRange(position, (long) len * 8);
+        int i = offset;
+        int end = offset + len;
+        for (; i + 8 <= end; i += 8) {
+            long v = readBits(64);
+            for (int j = 7; j >= 0; j--, v >>>= 8) dst[i + j] = (byte) v;
+        }
+        for (; i < end; i++) dst[i] = (byte) readBits(8);
+    }
+
+    // len bytes from bit index, without moving the cursor. Only the last byte may run past the
+    // end, and its missing bits read as zero, as in toByteArray
+    public void getBytes(long index, byte[] dst, int offset, int len) {
+        if (index < 0 || (len > 0 && index + (long) len * 8 - 8 >= length)) {
+            throw new IndexOutOfBoundsException("Bytes from bit " + index + " outside length " + length);
+        }
+        int i = offset;
+        int end = offset + len;
+        long at = index;
+        for (; i + 8 <= end && at + 64 <= length; i += 8, at += 64) {
+            long v = getBits(at, 64);
+            for (int j = 7; j >= 0; j--, v >>>= 8) dst[i + j] = (byte) v;
+        }
+        for (; i < end; i++, at += 8) {
+            int n = (int) Math.min(8, length - at);
+            dst[i] = (byte) (getBits(at, n) << (8 - n));
+        }
+    }
+
+    // Like readBits without moving the cursor; bits past the end read as zero
+    public long peekBits(int count) {
+        int available = (int) Math.min(count, length - position);
+        if (available <= 0) return 0;
+        return getBits(position, available) << (count - available);
+    }
+
+    public void skip(long bits) {
+        position(position + bits);
+    }
+
+    /* -------------------------- Conversion ------------------------- */
+
+    // Packs the bits into bytes; a trailing partial byte is padded with zeros
+    public byte[] toByteArray() {
+        long byteCount = (length + 7) >>> 3;
+        if (byteCount > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Bit buffer too large for a byte array: " + length + " bits");
+        }
+        byte[] out = new byte[(int) byteCount];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) (word(i >>> 3) >>> (56 - ((i & 7) << 3)));
+        }
+        return out;
+    }
+
+    public String toBinaryString() {
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Bit buffer too large for a String: " + length + " bits");
+        }
+        StringBuilder sb = new StringBuilder((int) length);
+        for (long i = 0; i < length; i++) sb.append((char) ('0' + getBit(i)));
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "BitBuffer[length=" + length + ", position=" + position + "]";
+    }
+
+    /* -------------------------- Internals ------------------------- */
+
+    private void checkRange(long index, long count) {
+        if (index < 0 || index + count > length) {
+            throw new IndexOutOfBoundsException("Bits [" + index + ", " + (index + count) + ") outside length " + length);
+        }
+    }
+
+    // Off-heap buffers never copy more than a page to grow; heap ones move off the heap once
+    // they get that big
+    private void ensureCapacity(long bits) {
+        if (words == null) {
+            if (bits > offHeapWords() << 6) addPages(bits);
+            return;
+        }
+        long capacity = (long) words.length << 6;
+        if (bits <= capacity) return;
+        long grown = Math.max(bits, Math.min(capacity * 2, MAX_BITS));
+        if (grown < offHeapBits) {
+            words = Arrays.copyOf(words, wordsFor(grown));
+            return;
+        }
+        long[] old = words;
+        words = null;
+        pages = new LongBuffer[0];
+        addPages(grown);
+        for (int page = 0; (long) page << pageShift < old.length; page++) {
+            int from = page << pageShift;
+            pages[page].put(0, old, from, Math.min(pageWords, old.length - from));
+        }
+    }
+
+    // A lone page grows by doubling up to a full page, so a small off-heap buffer does not cost
+    // a whole page; past that, full pages are added
+    private void addPages(long bits) {
+        if (bits > MAX_OFF_HEAP_BITS) {
+            throw new IllegalArgumentException("Bit buffer too large: " + bits + " bits");
+        }
+        long needed = (bits + 63) >>> 6;
+        if (pages.length <= 1) {
+            int size = pages.length == 0 ? 0 : pages[0].capacity();
+            if (size < pageWords) {
+                int grown = (int) Math.min(pageWords, Math.max(needed, size * 2L));
+                LongBuffer page = allocatePage(grown);
+                if (size > 0) page.put(0, pages[0], 0, size);
+                pages = new LongBuffer[]{page};
+                if (needed <= grown) return;
+            }
+        }
+        int from = pages.length;
+        pages = Arrays.copyOf(pages, (int) ((needed + pageWords - 1) >>> pageShift));
+        for (int i = from; i < pages.length; i++) pages[i] = allocatePage(pageWords);
+    }
+
+    // Words the pages hold; every page but a lone one is full
+    private long offHeapWords() {
+        return pages.length == 1 ? pages[0].capacity() : (long) pages.length << pageShift;
+    }
+
+    private static LongBuffer allocatePage(int words) {
+        return ByteBuffer.allocateDirect(words * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+
+    private long word(long idx) {
+        if (words != null) return words[(int) idx];
+        return pages[(int) (idx >>> pageShift)].get((int) idx & (pageWords - 1));
+    }
+
+    private void setWord(long idx, long value) {
+        if (words != null) {
+            words[(int) idx] = value;
+        } else {
+            pages[(int) (idx >>> pageShift)].put((int) idx & (pageWords - 1), value);
+        }
+    }
+
+    private static int wordsFor(long bits) {
+        if (bits > MAX_BITS) {
+            throw new IllegalArgumentException("Bit buffer too large: " + bits + " bits");
+        }
+        return (int) ((bits + 63) >>> 6);
+    }
+}
@@ -0,0 +1,125 @@
+import java.awt.image.BufferedImage;
+
+// Decides how a payload is laid out in a carrier.
+//
+// The length header is always written 1 LSB per R, G, B channel from pixel 0. Its top byte
+// records the payload layout: 0 is the original layout (1 LSB of R, G, B, straight after the
+// header, at most half the remaining capacity), anything else is 0x80 | alpha << 2 | (k - 1)
+// for k LSBs per channel starting at the first whole pixel after the header.
+//
+// MODE_SEALED (0x40) on either kind means a HeaderSeal follows the length header, and the
+// payload starts after the seal instead. Every plan made here is sealed.
+//
+// MODE_SCATTERED (0x20, explicit layouts only) means the payload pixels are spread over the
+// rest of the image in a keyed order (see PixelPermutation); the key is not in the carrier.
+public class CapacityPlanner {
+    static final int MODE_LEGACY = 0;
+    static final int MODE_EXPLICIT = 0x80;
+    static final int MODE_SEALED = 0x40;
+    static final int MODE_SCATTERED = 0x20;
+    static final int MODE_ALPHA = 0x04;
+    static final long MAX_LENGTH = (1L << 56) - 1; // the top byte of the length word is the mode
+
+    public static final class Plan {
+        public final LsbEngine.Layout layout; // payload layout; DEFAULT means the legacy layout
+        public final long pixels;             // pixels touched, header included
+
+        Plan(LsbEngine.Layout layout, long pixels) {
+            this.layout = layout;
+            this.pixels = pixels;
+        }
+
+        public boolean isLegacy() {
+            return layout.isDefault();
+        }
+
+        int modeByte() {
+            if (isLegacy()) return MODE_LEGACY | MODE_SEALED;
+            return MODE_EXPLICIT | MODE_SEALED | (layout.isScattered() ? MODE_SCATTERED : 0)
+                | (layout.alpha ? MODE_ALPHA : 0) | (layout.bitsPerChannel - 1);
+        }
+
+        @Override
+        public String toString() {
+            return isLegacy() ? "Plan[legacy 1-LSB RGB, " + pixels + " pixels]"
+                : "Plan[" + layout.bitsPerChannel + "-LSB " + (layout.alpha ? "RGBA" : "RGB") + (layout.isScattered() ? " scattered" : "")
+                    + ", " + pixels + " pixels]";
+        }
+    }
+
+    public static Plan plan(BufferedImage image, long payloadBits, int headerBits, boolean allowAlpha) {
+        return plan(image.getWidth(), image.getHeight(), image.getColorModel().hasAlpha(), payloadBits, headerBits, allowAlpha);
+    }
+
+    // Smallest bit depth that fits, then the fewest pixels at that depth
+    public static Plan plan(int width, int height, boolean hasAlpha, long payloadBits, int headerBits, boolean allowAlpha) {
+        long totalPixels = (long) width * height;
+        boolean alpha = allowAlpha && hasAlpha;
+
+        // The original layout still reads everywhere, so prefer it whenever it fits
+        long remainingBits = totalPixels * 3 - prefixBits(headerBits);
+        if (!alpha && payloadBits <= remainingBits / 2) {
+            return new Plan(LsbEngine.Layout.DEFAULT, (prefixBits(headerBits) + payloadBits + 2) / 3);
+        }
+
+        for (int k = 1; k <= 4; k++) {
+            Plan plan = fixed(width, height, hasAlpha, payloadBits, headerBits, k, alpha);
+            if (plan != null) return plan;
+        }
+        throw new IllegalArgumentException("Message too long for this image even at 4 bits per channel. Needed: " +
+            payloadBits + " bits, capacity: " + (totalPixels - headerPixels(prefixBits(headerBits))) * 4 * (alpha ? 4 : 3) + " bits");
+    }
+
+    public static Plan scattered(BufferedImage image, long payloadBits, int headerBits, boolean allowAlpha, long seed) {
+        return scattered(image.getWidth(), image.getHeight(), image.getColorModel().hasAlpha(), payloadBits, headerBits, allowAlpha, seed);
+    }
+
+    // Smallest bit depth that fits, its pixels spread over the whole image in the order the
+    // seed gives; never the legacy layout, which has no room to say it is scattered
+    public static Plan scattered(int width, int height, boolean hasAlpha, long payloadBits, int headerBits, boolean allowAlpha, long seed) {
+        boolean alpha = allowAlpha && hasAlpha;
+        for (int k = 1; k <= 4; k++) {
+            Plan plan = fixed(width, height, hasAlpha, payloadBits, headerBits, k, alpha);
+            if (plan != null) return new Plan(plan.layout.scattered((long) width * height, seed), plan.pixels);
+        }
+        throw new IllegalArgumentException("Message too long for this image even at 4 bits per channel. Needed: " +
+            payloadBits + " bits");
+    }
+
+    // An explicit layout with the given depth; null when the payload does not fit
+    public static Plan fixed(int width, int height, boolean hasAlpha, long payloadBits, int headerBits, int bitsPerChannel, boolean alpha) {
+        if (alpha && !hasAlpha) {
+            throw new IllegalArgumentException("Alpha embedding needs an image with an alpha channel");
+        }
+        LsbEngine.Layout layout = new LsbEngine.Layout(bitsPerChannel, alpha, headerPixels(prefixBits(headerBits)));
+        long pixels = layout.firstPixel + (payloadBits + layout.bitsPerPixel() - 1) / layout.bitsPerPixel();
+        return pixels <= (long) width * height ? new Plan(layout, pixels) : null;
+    }
+
+    // Layout recorded in a header's mode byte, in raster order even when isScattered(mode);
+    // null if the byte is not a valid mode
+    static LsbEngine.Layout layoutForMode(int mode, int headerBits) {
+        int prefix = isSealed(mode) ? prefixBits(headerBits) : headerBits;
+        mode &= ~MODE_SEALED;
+        if (mode == MODE_LEGACY) return LsbEngine.Layout.DEFAULT;
+        if ((mode & ~(MODE_EXPLICIT | MODE_SCATTERED | MODE_ALPHA | 3)) != 0 || (mode & MODE_EXPLICIT) == 0) return null;
+        return new LsbEngine.Layout((mode & 3) + 1, (mode & MODE_ALPHA) != 0, headerPixels(prefix));
+    }
+
+    static boolean isSealed(int mode) {
+        return (mode & MODE_SEALED) != 0;
+    }
+
+    static boolean isScattered(int mode) {
+        return (mode & MODE_EXPLICIT) != 0 && (mode & MODE_SCATTERED) != 0;
+    }
+
+    // 1-LSB bits in front of the payload of a sealed carrier: length header, then seal
+    static int prefixBits(int headerBits) {
+        return headerBits + HeaderSeal.BITS;
+    }
+
+    static long headerPixels(int headerBits) {
+        return (headerBits + 2) / 3;
+    }
+}
@@ -0,0 +1,248 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Keeps decoded carriers and decode results so repeated work on the same file skips image decoding.
+//
+// Entries are keyed by the SHA-256 of the file content alone, so a copy of a template under
+// another name still hits, whatever its mtime, and an edited file never does. Hashes are
+// remembered per (path, mtime, size), so a hit does not even reread the file. The cache is LRU, bounded by the
+// bytes of the rasters and payloads it holds; the shared instance defaults to a quarter of the
+// heap and is sized with -Dpixelvault.cache.bytes (0 turns it off). Hashing streams the file and
+// decoding reads it like an uncached decode would, so a miss never holds the whole file on the heap.
+public class CarrierCache {
+    private static final CarrierCache SHARED = new CarrierCache(
+        Long.getLong("pixelvault.cache.bytes", Runtime.getRuntime().maxMemory() / 4));
+    private static final int MAX_FINGERPRINTS = 10_000;
+    private static final long ENTRY_OVERHEAD = 64;
+
+    private final long maxBytes;
+    private long bytes;
+    private long hits, misses, evictions;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Path, Fingerprint> fingerprints = new LinkedHashMap<Path, Fingerprint>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Fingerprint> eldest) {
+            return size() > MAX_FINGERPRINTS;
+        }
+    };
+
+    private static final class Entry {
+        final Object value;
+        final long weight;
+
+        Entry(Object value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private static final class Fingerprint {
+        final long mtime;
+        final long size;
+        final String key;
+
+        Fingerprint(long mtime, long size, String key) {
+            this.mtime = mtime;
+            this.size = size;
+            this.key = key;
+        }
+    }
+
+    public CarrierCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static CarrierCache shared() {
+        return SHARED;
+    }
+
+    // The carrier, normalized for LsbEngine; always a private copy the caller may embed into.
+    // Null when the file is not an image ImageIO can read, like SteganographyHelper.readImage
+    public BufferedImage readImage(String path) throws IOException {
+        String key = cacheable(path) ? "image:" + key(Paths.get(path)) : null;
+        if (key == null) {
+            BufferedImage image = SteganographyHelper.readImage(path);
+            return image == null ? null : LsbEngine.normalize(image);
+        }
+        Object cached = get(key);
+        if (cached != null) return copy((BufferedImage) cached);
+
+        BufferedImage image = SteganographyHelper.readImage(path);
+        if (image == null) return null;
+        image = LsbEngine.normalize(image);
+        put(key, image, rasterBytes(image));
+        return copy(image);
+    }
+
+    // DecodeBinary.decodeBitsStreaming with the result (or the lack of a message) remembered.
+    // A miss decodes from the file like an uncached call, so only the payload rows are held
+    public BitBuffer decode(String path, int headerBits) throws Exception {
+        if (!cacheable(path)) return DecodeBinary.decodeBitsStreaming(path, headerBits);
+        String key = "decode" + headerBits + ":" + key(Paths.get(path));
+        Object cached = get(key);
+        if (cached instanceof NoHiddenMessageException) {
+            // Counted again, so rejection metrics match the decode requests that were made
+            NoHiddenMessageException e = (NoHiddenMessageException) cached;
+            throw Instrumentation.reject(e.getReason(), e.getDetail());
+        }
+        if (cached != null) return copy((BitBuffer) cached);
+
+        BitBuffer bits;
+        try {
+            bits = DecodeBinary.decodeBitsStreaming(path, headerBits);
+        } catch (NoHiddenMessageException e) {
+            put(key, e, 0);
+            throw e;
+        }
+        put(key, bits, (bits.length() + 7) / 8);
+        return copy(bits);
+    }
+
+    // Same for carriers that may be scattered with the passphrase's key. Unkeyed results are
+    // cached as usual; keyed ones never are, so nothing derived from a passphrase is kept
+    public BitBuffer decode(String path, int headerBits, PayloadCipher.Passphrase passphrase) throws Exception {
+        try {
+            return decode(path, headerBits);
+        } catch (NoHiddenMessageException e) {
+            if (passphrase == null || e.getReason() != NoHiddenMessageException.Reason.PASSWORD_REQUIRED) throw e;
+        }
+        return DecodeBinary.decodeBitsStreaming(path, headerBits, passphrase);
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        fingerprints.clear();
+        bytes = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CarrierCache[" + entries.size() + " entries, " + bytes + "/" + maxBytes + " bytes, hits " + hits +
+            ", misses " + misses + ", evictions " + evictions + "]";
+    }
+
+    /* -------------------------- Internals ------------------------- */
+
+    private synchronized Object get(String key) {
+        Entry e = entries.get(key);
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.value;
+    }
+
+    private synchronized void put(String key, Object value, long weight) {
+        weight += ENTRY_OVERHEAD;
+        if (weight > maxBytes) return; // would evict everything else and still not fit
+        Entry old = entries.put(key, new Entry(value, weight));
+        if (old != null) bytes -= old.weight;
+        bytes += weight;
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Entry eldest = it.next();
+            it.remove();
+            bytes -= eldest.weight;
+            evictions++;
+        }
+    }
+
+    // Mapped rasters are not cached: decoding one only reads a few pages, hashing it reads it all.
+    // Nor are files larger than the whole cache, which would be hashed only to be turned away
+    private boolean cacheable(String path) throws IOException {
+        if (maxBytes <= 0 || MappedRaster.isSupported(path)) return false;
+        return Files.size(Paths.get(path)) <= maxBytes;
+    }
+
+    // Content hash. Streams the file through the digest only when its (path, mtime, size) has
+    // not been hashed before
+    private String key(Path path) throws IOException {
+        Path absolute = path.toAbsolutePath().normalize();
+        BasicFileAttributes attrs = Files.readAttributes(absolute, BasicFileAttributes.class);
+        long mtime = attrs.lastModifiedTime().toMillis();
+        synchronized (this) {
+            Fingerprint f = fingerprints.get(absolute);
+            if (f != null && f.mtime == mtime && f.size == attrs.size()) return f.key;
+        }
+
+        String key = sha256(absolute);
+        synchronized (this) {
+            fingerprints.put(absolute, new Fingerprint(mtime, attrs.size(), key));
+        }
+        return key;
+    }
+
+    private static String sha256(Path file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (DigestInputStream in = new DigestInputStream(Files.newInputStream(file), md)) {
+            byte[] buf = new byte[1 << 16];
+            while (in.read(buf) != -1) { }
+        }
+        StringBuilder sb = new StringBuilder(64);
+        for (byte b : md.digest()) sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+
+    private static long rasterBytes(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    // Normalized images have a single compact bank, so a copy is one arraycopy
+    private static BufferedImage copy(BufferedImage image) {
+        WritableRaster raster = image.getRaster().createCompatibleWritableRaster();
+        DataBuffer src = image.getRaster().getDataBuffer();
+        DataBuffer dst = raster.getDataBuffer();
+        if (src instanceof DataBufferInt) {
+            int[] data = ((DataBufferInt) src).getData();
+            System.arraycopy(data, 0, ((DataBufferInt) dst).getData(), 0, data.length);
+        } else {
+            byte[] data = ((DataBufferByte) src).getData();
+            System.arraycopy(data, 0, ((DataBufferByte) dst).getData(), 0, data.length);
+        }
+        return new BufferedImage(image.getColorModel(), raster, image.isAlphaPremultiplied(), null);
+    }
+
+    private static BitBuffer copy(BitBuffer bits) {
+        BitBuffer out = new BitBuffer(bits.length());
+        out.append(bits);
+        return out;
+    }
+}
@@ -0,0 +1,205 @@
+import javax.imageio.ImageReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+// Tells which images carry a payload without extracting any:
+//
+//   java Main scan <dir | image>... [--header 64|128] [--threads n] [--recursive]
+//
+// Only the rows holding the length header and its seal are decoded, so a clean image whose
+// header fails the length or seal checks is rejected after at most 64 pixels. A header that
+// passes as one written before the seal existed (mode 0, no seal) also needs the first 50 bytes
+// of its payload looked at before the image counts as CLEAN or UNSEALED. One JSON object per
+// image goes to stdout, then a summary.
+public class CarrierScanner {
+    public enum Status {
+        SEALED,          // header and seal check out
+        UNSEALED,        // pre-seal header that passes the old length and text checks
+        CLEAN,           // no payload
+        UNREADABLE       // not an image, or it could not be read
+    }
+
+    public static final class Result {
+        public final Path file;
+        public final Status status;
+        public final long payloadBits;                    // 0 unless there is a payload
+        public final NoHiddenMessageException.Reason reason; // why it is CLEAN or UNREADABLE
+
+        Result(Path file, Status status, long payloadBits, NoHiddenMessageException.Reason reason) {
+            this.file = file;
+            this.status = status;
+            this.payloadBits = payloadBits;
+            this.reason = reason;
+        }
+
+        public boolean hasPayload() {
+            return status == Status.SEALED || status == Status.UNSEALED;
+        }
+
+        String toJson() {
+            StringBuilder sb = new StringBuilder(128);
+            sb.append("{\"file\":").append(BatchRunner.quote(file.toString()))
+              .append(",\"status\":\"").append(status.name().toLowerCase(Locale.ROOT)).append('"');
+            if (hasPayload()) sb.append(",\"payloadBits\":").append(payloadBits);
+            if (reason != null) sb.append(",\"reason\":\"").append(reason.name()).append('"');
+            return sb.append('}').toString();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> sources = new ArrayList<>();
+        int headerBits = 64;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean recursive = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--header": headerBits = Integer.parseInt(value(args, i++)); break;
+                case "--threads": threads = Integer.parseInt(value(args, i++)); break;
+                case "--recursive": recursive = true; break;
+                default: sources.add(args[i]);
+            }
+        }
+        if (sources.isEmpty()) {
+            System.out.println("Usage: java Main scan <dir | image>... [--header 64|128] [--threads n] [--recursive]");
+            return;
+        }
+
+        List<Path> files = new ArrayList<>();
+        for (String source : sources) files.addAll(images(Paths.get(source), recursive));
+
+        long start = System.nanoTime();
+        List<Result> results = scan(files, headerBits, threads);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        int carriers = 0;
+        for (Result r : results) {
+            if (r.hasPayload()) carriers++;
+            out.write(r.toJson());
+            out.write('\n');
+        }
+        out.write(String.format(Locale.ROOT, "{\"summary\":true,\"files\":%d,\"carriers\":%d,\"seconds\":%.3f,\"filesPerSecond\":%.1f}%n",
+            results.size(), carriers, seconds, results.size() / seconds));
+        out.flush();
+    }
+
+    // Results in the order of the files given
+    public static List<Result> scan(List<Path> files, int headerBits, int threads) throws InterruptedException {
+        if (headerBits != 64 && headerBits != 128) {
+            throw new IllegalArgumentException("headerBits must be 64 or 128");
+        }
+        if (threads < 1) throw new IllegalArgumentException("--threads must be at least 1");
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Result>> pending = new ArrayList<>(files.size());
+            for (Path file : files) pending.add(pool.submit(() -> scan(file, headerBits)));
+
+            List<Result> results = new ArrayList<>(files.size());
+            for (Future<Result> f : pending) {
+                try {
+                    results.add(f.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Never throws: a file that trips a decoder bug is reported UNREADABLE so the rest still scan
+    public static Result scan(Path file, int headerBits) {
+        try {
+            return classify(file, headerBits);
+        } catch (RuntimeException e) {
+            return new Result(file, Status.UNREADABLE, 0, NoHiddenMessageException.Reason.UNREADABLE_IMAGE);
+        }
+    }
+
+    private static Result classify(Path file, int headerBits) {
+        if (JpegCoefficients.isJpeg(file.toFile())) return scanJpeg(file, headerBits);
+        if (MappedRaster.isSupported(file)) return scanMapped(file, headerBits);
+        ImageReader reader;
+        try {
+            reader = SteganographyHelper.openReader(file.toString());
+        } catch (IOException e) {
+            return new Result(file, Status.UNREADABLE, 0, NoHiddenMessageException.Reason.UNREADABLE_IMAGE);
+        }
+        try {
+            DecodeBinary.Header header = DecodeBinary.probe(reader, headerBits);
+            return new Result(file, header.sealed ? Status.SEALED : Status.UNSEALED, header.length, null);
+        } catch (NoHiddenMessageException e) {
+            return rejected(file, e);
+        } finally {
+            try {
+                SteganographyHelper.closeReader(reader);
+            } catch (IOException e) {
+                // nothing was written, nothing to lose
+            }
+        }
+    }
+
+    // JPEG payloads live in the coefficients and are always sealed
+    private static Result scanJpeg(Path file, int headerBits) {
+        try {
+            return new Result(file, Status.SEALED, JpegEmbedder.probe(Files.readAllBytes(file), headerBits), null);
+        } catch (IOException e) {
+            return new Result(file, Status.UNREADABLE, 0, NoHiddenMessageException.Reason.UNREADABLE_IMAGE);
+        } catch (NoHiddenMessageException e) {
+            return rejected(file, e);
+        }
+    }
+
+    private static Result scanMapped(Path file, int headerBits) {
+        try (MappedRaster raster = MappedRaster.open(file, false)) {
+            DecodeBinary.Header header = DecodeBinary.probe(raster, headerBits);
+            return new Result(file, header.sealed ? Status.SEALED : Status.UNSEALED, header.length, null);
+        } catch (IOException e) {
+            return new Result(file, Status.UNREADABLE, 0, NoHiddenMessageException.Reason.UNREADABLE_IMAGE);
+        } catch (NoHiddenMessageException e) {
+            return rejected(file, e);
+        }
+    }
+
+    private static Result rejected(Path file, NoHiddenMessageException e) {
+        Status status = e.getReason() == NoHiddenMessageException.Reason.UNREADABLE_IMAGE ? Status.UNREADABLE : Status.CLEAN;
+        return new Result(file, status, 0, e.getReason());
+    }
+
+    // The file itself, or the images in a directory sorted by name
+    static List<Path> images(Path source, boolean recursive) throws IOException {
+        List<Path> images = new ArrayList<>();
+        if (!Files.isDirectory(source)) {
+            images.add(source);
+            return images;
+        }
+        try (Stream<Path> files = recursive ? Files.walk(source) : Files.list(source)) {
+            files.filter(p -> Files.isRegularFile(p) && BatchRunner.isImage(p.getFileName().toString()))
+                .sorted()
+                .forEach(images::add);
+        }
+        return images;
+    }
+
+    private static String value(String[] args, int i) {
+        if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + args[i]);
+        return args[i + 1];
+    }
+}
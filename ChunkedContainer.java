@@ -0,0 +1,267 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+
+// Container codec StegoContainer.CODEC_INDEXED: the payload split into blocks that are
+// compressed independently, with an index in front so any one block can be found, checked
+// and decoded without touching the others.
+//
+// Layout: [magic:32][version:8][codec:8][block size:32][block count:32]
+//         {[offset:64][compressed bytes:32][raw bytes:32][CRC32C of compressed bytes:32]}*
+//         [CRC32C of everything above:32]
+//         blocks, each [codec:8][PayloadCodec stream] padded to a byte; offsets count from the first
+//
+// Everything is byte aligned, so block CRCs are over plain bytes of the container.
+//
+// An encrypted payload (StegoContainer.CODEC_ENCRYPTED) wraps the whole container, index
+// included, so its blocks cannot be reached one at a time: readIndex and readBlock refuse it,
+// and it has to be decrypted with its password before blocks can be read from the result.
+public class ChunkedContainer {
+    static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+    static final int PREAMBLE_BITS = StegoContainer.HEADER_BITS + 32 + 32;
+    static final int ENTRY_BITS = 64 + 32 + 32 + 32;
+
+    // Where each block is and what it should check out as
+    public static final class Index {
+        public final int blockSize;
+        final long[] offsets;      // bytes, from dataStart
+        final int[] lengths;       // compressed bytes
+        final int[] rawLengths;
+        final int[] crcs;
+        final long dataStart;      // bit offset of the first block in the container
+
+        Index(int blockSize, long[] offsets, int[] lengths, int[] rawLengths, int[] crcs) {
+            this.blockSize = blockSize;
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.rawLengths = rawLengths;
+            this.crcs = crcs;
+            this.dataStart = indexBits(offsets.length);
+        }
+
+        public int blockCount() {
+            return offsets.length;
+        }
+
+        public long rawLength() {
+            long n = 0;
+            for (int len : rawLengths) n += len;
+            return n;
+        }
+
+        // Block holding the given byte of the unpacked payload
+        public int blockOf(long byteOffset) {
+            return (int) (byteOffset / blockSize);
+        }
+
+        // Container bits [blockStart, blockEnd) hold the block
+        long blockStart(int block) {
+            return dataStart + offsets[block] * 8;
+        }
+
+        long blockEnd(int block) {
+            return blockStart(block) + (long) lengths[block] * 8;
+        }
+
+        long end() {
+            int last = offsets.length - 1;
+            return last < 0 ? dataStart : blockEnd(last);
+        }
+    }
+
+    public static BitBuffer pack(byte[] data) {
+        return pack(data, DEFAULT_BLOCK_SIZE, Codecs.choose(data));
+    }
+
+    // Blocks are compressed concurrently on the common pool; any block the codec would grow
+    // is stored instead
+    public static BitBuffer pack(byte[] data, int blockSize, PayloadCodec codec) {
+        if (blockSize < 1) throw new IllegalArgumentException("blockSize must be positive");
+        long t = Instrumentation.start();
+        int count = (int) ((data.length + (long) blockSize - 1) / blockSize);
+        byte[][] blocks = new byte[count][];
+        IntStream.range(0, count).parallel().forEach(i -> {
+            int from = i * blockSize;
+            int length = Math.min(blockSize, data.length - from);
+            BitBuffer out = new BitBuffer((long) length * 8 + 48);
+            out.writeBits(codec.id(), 8);
+            codec.compress(data, from, length, out);
+            if (out.length() > (long) length * 8 + 40 && codec != Codecs.STORED) {
+                out = new BitBuffer((long) length * 8 + 40);
+                out.writeBits(Codecs.STORED.id(), 8);
+                Codecs.STORED.compress(data, from, length, out);
+            }
+            blocks[i] = out.toByteArray();
+        });
+
+        long dataBytes = 0;
+        for (byte[] b : blocks) dataBytes += b.length;
+        BitBuffer out = new BitBuffer(indexBits(count) + dataBytes * 8);
+        out.writeBits(StegoContainer.MAGIC, 32);
+        out.writeBits(StegoContainer.VERSION, 8);
+        out.writeBits(StegoContainer.CODEC_INDEXED, 8);
+        out.writeBits(blockSize, 32);
+        out.writeBits(count, 32);
+        long offset = 0;
+        for (int i = 0; i < count; i++) {
+            out.writeBits(offset, 64);
+            out.writeBits(blocks[i].length, 32);
+            out.writeBits(Math.min(blockSize, data.length - (long) i * blockSize), 32);
+            out.writeBits(crc(blocks[i], 0, blocks[i].length), 32);
+            offset += blocks[i].length;
+        }
+        out.writeBits(crc(out, 0, out.length()), 32);
+        for (byte[] b : blocks) out.writeBytes(b, 0, b.length);
+
+        Instrumentation.stop(Metrics.Stage.COMPRESS, t);
+        Instrumentation.add(Metrics.Counter.PAYLOAD_BYTES_ENCODED, data.length);
+        return out;
+    }
+
+    // Parses and checks the index of a container that starts at bit 0. The buffer may stop
+    // anywhere after the index; blocks are only looked at when they are read
+    public static Index readIndex(BitBuffer bits) {
+        checkIndexed(bits);
+        int blockSize = (int) bits.getBits(48, 32);
+        long count = bits.getBits(80, 32);
+        if (blockSize < 1 || count > (bits.length() - PREAMBLE_BITS) / ENTRY_BITS) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, "implausible block index");
+        }
+        long indexEnd = indexBits(count) - 32;
+        if (bits.length() < indexEnd + 32 || bits.getBits(indexEnd, 32) != crc(bits, 0, indexEnd)) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, "block index checksum mismatch");
+        }
+
+        int n = (int) count;
+        long[] offsets = new long[n];
+        int[] lengths = new int[n];
+        int[] rawLengths = new int[n];
+        int[] crcs = new int[n];
+        for (int i = 0; i < n; i++) {
+            long at = PREAMBLE_BITS + (long) i * ENTRY_BITS;
+            offsets[i] = bits.getBits(at, 64);
+            lengths[i] = (int) bits.getBits(at + 64, 32);
+            rawLengths[i] = (int) bits.getBits(at + 96, 32);
+            crcs[i] = (int) bits.getBits(at + 128, 32);
+        }
+        return new Index(blockSize, offsets, lengths, rawLengths, crcs);
+    }
+
+    // One block of the payload, checked against its CRC first
+    public static byte[] block(BitBuffer bits, Index index, int block) {
+        return decode(bits.slice(index.blockStart(block), index.blockEnd(block)), index, block);
+    }
+
+    // Blocks whose CRC does not match, checked concurrently; empty when the payload is intact
+    public static List<Integer> verify(BitBuffer bits, Index index) {
+        if (bits.length() < index.end()) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, "payload ends inside its blocks");
+        }
+        List<Integer> corrupt = new ArrayList<>();
+        IntStream.range(0, index.blockCount()).parallel()
+            .filter(i -> crc(bits, index.blockStart(i), index.blockEnd(i)) != (index.crcs[i] & 0xFFFFFFFFL))
+            .sorted()
+            .forEachOrdered(corrupt::add);
+        return corrupt;
+    }
+
+    // StegoContainer.unpack for this codec: decodes a few blocks per core at a time and
+    // writes them in order
+    static void unpack(BitBuffer bits, OutputStream out) throws IOException {
+        Index index = readIndex(bits);
+        if (bits.length() < index.end()) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, "payload ends inside its blocks");
+        }
+        int batch = ForkJoinPool.getCommonPoolParallelism() * 4;
+        for (int first = 0; first < index.blockCount(); first += batch) {
+            int from = first;
+            byte[][] decoded = new byte[Math.min(batch, index.blockCount() - first)][];
+            IntStream.range(0, decoded.length).parallel()
+                .forEach(i -> decoded[i] = block(bits, index, from + i));
+            for (byte[] b : decoded) out.write(b);
+        }
+    }
+
+    /* -------------------------- Carriers -------------------------- */
+
+    public static Index readIndex(String imgPath, int headerBits) throws IOException {
+        try (DecodeBinary.PayloadReader payload = DecodeBinary.PayloadReader.open(imgPath, headerBits)) {
+            return readIndex(payload);
+        }
+    }
+
+    // Decodes just the carrier rows down to the end of the requested block
+    public static byte[] readBlock(String imgPath, int headerBits, int block) throws IOException {
+        try (DecodeBinary.PayloadReader payload = DecodeBinary.PayloadReader.open(imgPath, headerBits)) {
+            Index index = readIndex(payload);
+            if (block < 0 || block >= index.blockCount()) {
+                throw new IndexOutOfBoundsException("Block " + block + " of " + index.blockCount());
+            }
+            if (index.blockEnd(block) > payload.header.length) {
+                throw Instrumentation.reject(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, "payload ends inside block " + block);
+            }
+            return decode(payload.read(index.blockStart(block), index.blockEnd(block)), index, block);
+        }
+    }
+
+    private static Index readIndex(DecodeBinary.PayloadReader payload) throws IOException {
+        long length = payload.header.length;
+        BitBuffer preamble = payload.read(0, Math.min(length, PREAMBLE_BITS));
+        checkIndexed(preamble);
+        return readIndex(payload.read(0, Math.min(length, indexBits(preamble.getBits(80, 32)))));
+    }
+
+    /* -------------------------- Internals ------------------------- */
+
+    // The preamble of an indexed container, or a clear refusal
+    private static void checkIndexed(BitBuffer bits) {
+        if (StegoContainer.isContainer(bits, 0) && bits.getBits(40, 8) == StegoContainer.CODEC_ENCRYPTED) {
+            throw new IllegalArgumentException("Payload is encrypted, index included; random access needs it decrypted with its password first");
+        }
+        if (bits.length() < PREAMBLE_BITS || !StegoContainer.isContainer(bits, 0)
+                || bits.getBits(40, 8) != StegoContainer.CODEC_INDEXED) {
+            throw new IllegalArgumentException("Not an indexed container");
+        }
+    }
+
+    private static byte[] decode(BitBuffer compressed, Index index, int block) {
+        byte[] bytes = compressed.toByteArray();
+        if (crc(bytes, 0, bytes.length) != (index.crcs[block] & 0xFFFFFFFFL)) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, "block " + block + " checksum mismatch");
+        }
+        int id = (int) compressed.readBits(8);
+        PayloadCodec codec = Codecs.byId(id);
+        if (codec == null) throw new IllegalArgumentException("Block " + block + " uses unsupported codec " + id);
+        byte[] raw = codec.decompress(compressed);
+        if (raw.length != index.rawLengths[block]) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, "block " + block + " has the wrong length");
+        }
+        return raw;
+    }
+
+    private static long indexBits(long count) {
+        return PREAMBLE_BITS + count * ENTRY_BITS + 32;
+    }
+
+    private static long crc(byte[] bytes, int from, int to) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, from, to - from);
+        return crc.getValue();
+    }
+
+    // Bits [from, to) of the buffer, both on byte boundaries
+    private static long crc(BitBuffer bits, long from, long to) {
+        CRC32C crc = new CRC32C();
+        byte[] chunk = new byte[8192];
+        for (long at = from; at < to; ) {
+            int n = (int) Math.min(chunk.length, (to - at) / 8);
+            for (int i = 0; i < n; i++, at += 8) chunk[i] = (byte) bits.getBits(at, 8);
+            crc.update(chunk, 0, n);
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,222 @@
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Registry of payload codecs, keyed by container codec byte and by name.
+//
+// Built in: huffman (3), stored (7), deflate (8) and lz (9). "auto" is not a codec but a
+// choice: compress a sample of the payload with each registered codec and keep the smallest.
+public class Codecs {
+    static final int SAMPLE_SLICES = 4;
+    static final int SAMPLE_SLICE_SIZE = 16 * 1024;
+
+    public static final PayloadCodec HUFFMAN = new Huffman();
+    public static final PayloadCodec STORED = new Stored();
+    public static final PayloadCodec DEFLATE = new Deflate();
+    public static final PayloadCodec LZ = new LzCodec();
+
+    private static final Map<Integer, PayloadCodec> BY_ID = new ConcurrentHashMap<>();
+    private static final Map<String, PayloadCodec> BY_NAME = new ConcurrentHashMap<>();
+    private static final List<PayloadCodec> ORDER = new ArrayList<>(); // auto prefers earlier ones on ties
+
+    static {
+        register(STORED);
+        register(LZ);
+        register(DEFLATE);
+        register(HUFFMAN);
+    }
+
+    public static synchronized void register(PayloadCodec codec) {
+        String name = codec.name().toLowerCase(Locale.ROOT);
+        if (codec.id() < 0 || codec.id() > 255) throw new IllegalArgumentException("Codec id must fit in a byte: " + codec.id());
+        if (isReserved(codec.id()) || BY_ID.containsKey(codec.id())) {
+            throw new IllegalArgumentException("Codec id " + codec.id() + " is already taken");
+        }
+        if (name.equals("auto") || BY_NAME.containsKey(name)) {
+            throw new IllegalArgumentException("Codec name " + name + " is already taken");
+        }
+        BY_ID.put(codec.id(), codec);
+        BY_NAME.put(name, codec);
+        ORDER.add(codec);
+    }
+
+    // Null when no codec has that id
+    public static PayloadCodec byId(int id) {
+        return BY_ID.get(id);
+    }
+
+    public static PayloadCodec byName(String name) {
+        PayloadCodec codec = BY_NAME.get(name.toLowerCase(Locale.ROOT));
+        if (codec == null) throw new IllegalArgumentException("Unknown codec " + name + ", expected auto or one of " + BY_NAME.keySet());
+        return codec;
+    }
+
+    // name may be "auto"
+    public static PayloadCodec select(String name, byte[] data) {
+        return name.equalsIgnoreCase("auto") ? choose(data) : byName(name);
+    }
+
+    // The codec giving the smallest stream for a sample of the data: all of it when small,
+    // otherwise a few evenly spaced slices
+    public static PayloadCodec choose(byte[] data) {
+        byte[] sample = data;
+        if (data.length > SAMPLE_SLICES * SAMPLE_SLICE_SIZE) {
+            sample = new byte[SAMPLE_SLICES * SAMPLE_SLICE_SIZE];
+            long stride = (data.length - SAMPLE_SLICE_SIZE) / (SAMPLE_SLICES - 1);
+            for (int i = 0; i < SAMPLE_SLICES; i++) {
+                System.arraycopy(data, (int) (i * stride), sample, i * SAMPLE_SLICE_SIZE, SAMPLE_SLICE_SIZE);
+            }
+        }
+
+        PayloadCodec best = null;
+        long bestBits = Long.MAX_VALUE;
+        List<PayloadCodec> codecs;
+        synchronized (Codecs.class) {
+            codecs = new ArrayList<>(ORDER);
+        }
+        for (PayloadCodec codec : codecs) {
+            BitBuffer out = new BitBuffer((long) sample.length * 8 + 64);
+            codec.compress(sample, 0, sample.length, out);
+            if (out.length() < bestBits) {
+                best = codec;
+                bestBits = out.length();
+            }
+        }
+        return best;
+    }
+
+    // Container codec bytes that are not PayloadCodec streams, retired ones included
+    private static boolean isReserved(int id) {
+        return id == StegoContainer.CODEC_HUFFMAN_TREE || id == StegoContainer.CODEC_HUFFMAN_CHARS
+            || id == StegoContainer.CODEC_HUFFMAN_BLOCKS || id == StegoContainer.CODEC_HUFFMAN_INDEXED
+            || id == StegoContainer.CODEC_INDEXED || id == StegoContainer.CODEC_ENCRYPTED || id == StegoContainer.CODEC_SHARD
+            || id == StegoContainer.CODEC_BLOCKS;
+    }
+
+    // A 32-bit length field of an untrusted stream
+    static long readLength(BitBuffer in, String what) {
+        if (in.remaining() < 32) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, what + " stream ends inside its length");
+        }
+        return in.readBits(32);
+    }
+
+    // declaredLength of a stream that starts with [length:32], as every built-in one does
+    static long leadingLength(BitBuffer in) {
+        return in.remaining() < 32 ? -1 : in.getBits(in.position(), 32);
+    }
+
+    // Rejects a length field over what the rest of the stream could produce, before anything
+    // is allocated for it
+    static int checkedLength(long length, long limit, String what) {
+        if (length > limit || length > Integer.MAX_VALUE - 8) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, what + " length " + length + " over the bound of " + limit);
+        }
+        return (int) length;
+    }
+
+    /* -------------------------- Built-in codecs -------------------------- */
+
+    // HuffmanCoding's byte format: order-0, fast, no dictionary
+    private static final class Huffman implements PayloadCodec {
+        public int id() { return StegoContainer.CODEC_HUFFMAN; }
+        public String name() { return "huffman"; }
+
+        public void compress(byte[] data, int offset, int length, BitBuffer out) {
+            HuffmanCoding.compress(data, offset, length, out);
+        }
+
+        public byte[] decompress(BitBuffer in) {
+            return HuffmanCoding.decompressBytes(in);
+        }
+
+        public long declaredLength(BitBuffer in) {
+            return leadingLength(in);
+        }
+    }
+
+    // [length:32][bytes]; what auto falls back to for data that does not compress
+    private static final class Stored implements PayloadCodec {
+        public int id() { return StegoContainer.CODEC_STORED; }
+        public String name() { return "stored"; }
+
+        public void compress(byte[] data, int offset, int length, BitBuffer out) {
+            out.writeBits(length, 32);
+            out.writeBytes(data, offset, length);
+        }
+
+        public byte[] decompress(BitBuffer in) {
+            long length = readLength(in, "stored");
+            byte[] data = new byte[checkedLength(length, in.remaining() / 8, "stored")];
+            in.readBytes(data, 0, data.length);
+            return data;
+        }
+
+        // A length the stream cannot hold is left for decompress to reject as corrupt
+        public long declaredLength(BitBuffer in) {
+            long length = leadingLength(in);
+            return length > (in.remaining() - 32) / 8 ? -1 : length;
+        }
+    }
+
+    // [length:32][deflated length:32][raw deflate stream]. Deflaters and Inflaters hold native
+    // buffers that are slow to set up, so each thread keeps one of each and resets it
+    private static final class Deflate implements PayloadCodec {
+        private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+        private static final int MAX_DEFLATE_RATIO = 1032; // 258-byte matches at 2 bits each
+
+        public int id() { return StegoContainer.CODEC_DEFLATE; }
+        public String name() { return "deflate"; }
+
+        public void compress(byte[] data, int offset, int length, BitBuffer out) {
+            Deflater deflater = DEFLATER.get();
+            deflater.reset();
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream(Math.max(64, length / 2));
+            byte[] chunk = new byte[1 << 16];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                deflated.write(chunk, 0, n);
+            }
+            out.writeBits(length, 32);
+            out.writeBits(deflated.size(), 32);
+            out.writeBytes(deflated.toByteArray(), 0, deflated.size());
+        }
+
+        public byte[] decompress(BitBuffer in) {
+            long length = readLength(in, "deflate");
+            long deflatedLength = readLength(in, "deflated");
+            byte[] deflated = new byte[checkedLength(deflatedLength, in.remaining() / 8, "deflated")];
+            byte[] data = new byte[checkedLength(length, deflatedLength * MAX_DEFLATE_RATIO, "inflated")];
+            in.readBytes(deflated, 0, deflated.length);
+
+            Inflater inflater = INFLATER.get();
+            inflater.reset();
+            inflater.setInput(deflated);
+            try {
+                int n = 0;
+                while (n < data.length) {
+                    int r = inflater.inflate(data, n, data.length - n);
+                    if (r == 0 && (inflater.finished() || inflater.needsInput())) break;
+                    n += r;
+                }
+                if (n != data.length) throw new IllegalArgumentException("Corrupt deflate stream");
+            } catch (DataFormatException e) {
+                throw new IllegalArgumentException("Corrupt deflate stream", e);
+            }
+            return data;
+        }
+
+        public long declaredLength(BitBuffer in) {
+            return leadingLength(in);
+        }
+    }
+}
@@ -1,153 +1,483 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import javax.imageio.ImageReader;
 import java.awt.image.BufferedImage;
-import java.math.BigInteger;
 
 public class DecodeBinary {
+    // How much of an unsealed payload is looked at before trusting its header
+    private static final long PROBE_BITS = 50 * 8;
+    // Carrier pixels decoded at a time when a scattered payload is read stripe by stripe
+    private static final int STRIPE_PIXELS = 1 << 20;
 
     public static String decode(String imgPath, int headerBits) throws Exception {
+        return decodeBits(imgPath, headerBits).toBinaryString();
+    }
+
+    public static byte[] decodeBytes(String imgPath, int headerBits) throws Exception {
+        return decodeBits(imgPath, headerBits).toByteArray();
+    }
+
+    public static BitBuffer decodeBits(String imgPath, int headerBits) throws Exception {
+        return decodeBits(imgPath, headerBits, null);
+    }
+
+    // The passphrase is only needed for scattered payloads. JPEGs are read in the coefficient
+    // domain (see JpegEmbedder), uncompressed rasters through a mapping (see MappedRaster)
+    public static BitBuffer decodeBits(String imgPath, int headerBits, PayloadCipher.Passphrase passphrase) throws Exception {
+        if (JpegEmbedder.isJpeg(imgPath)) return JpegEmbedder.decodeBits(imgPath, headerBits, passphrase);
+        if (MappedRaster.isSupported(imgPath)) return decodeMapped(imgPath, headerBits, passphrase);
+        BufferedImage image;
         try {
-            BufferedImage image = SteganographyHelper.readImage(imgPath);
-
-            // Calculate maximum possible bits in the image
-            long maxPossibleBits = (long) image.getWidth() * image.getHeight() * 3; // 3 bits per pixel (R,G,B)
-            
-            // Check if image can even hold the header
-            if (maxPossibleBits < headerBits) {
-                throw new RuntimeException("There is no hidden message");
+            image = SteganographyHelper.readImage(imgPath);
+        } catch (Exception e) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.UNREADABLE_IMAGE, imgPath + ": " + e.getMessage(), e);
+        }
+        return decodeBits(image, headerBits, passphrase);
+    }
+
+    public static BitBuffer decodeBits(BufferedImage image, int headerBits) {
+        return decodeBits(image, headerBits, null);
+    }
+
+    // Every failure surfaces as a NoHiddenMessageException whose reason says which check failed
+    public static BitBuffer decodeBits(BufferedImage image, int headerBits, PayloadCipher.Passphrase passphrase) {
+        if (image == null) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.UNREADABLE_IMAGE, "not a supported image");
+        }
+
+        // Header validation only touches the first headerBits / 3 pixels
+        image = LsbEngine.normalize(image);
+        Header header = readHeader(image, headerBits, LsbEngine.capacity(image), passphrase);
+        return extractPayload(image, headerBits, header);
+    }
+
+    // Streaming variant: decodes only the rows that hold header + payload, so a small
+    // message in a huge image never materializes the full raster
+    public static BitBuffer decodeBitsStreaming(String imgPath, int headerBits) throws Exception {
+        return decodeBitsStreaming(imgPath, headerBits, null);
+    }
+
+    // Scattered payloads in PNG files are read a stripe of rows at a time instead
+    public static BitBuffer decodeBitsStreaming(String imgPath, int headerBits, PayloadCipher.Passphrase passphrase) throws Exception {
+        if (JpegEmbedder.isJpeg(imgPath)) return JpegEmbedder.decodeBits(imgPath, headerBits, passphrase);
+        if (MappedRaster.isSupported(imgPath)) return decodeMapped(imgPath, headerBits, passphrase);
+        ImageReader reader;
+        try {
+            reader = SteganographyHelper.openReader(imgPath);
+        } catch (Exception e) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.UNREADABLE_IMAGE, imgPath + ": " + e.getMessage(), e);
+        }
+        try {
+            return decodeBitsStreaming(reader, headerBits, passphrase, new File(imgPath));
+        } finally {
+            SteganographyHelper.closeReader(reader);
+        }
+    }
+
+    // Same, on a reader the caller owns (e.g. one over a request body)
+    public static BitBuffer decodeBitsStreaming(ImageReader reader, int headerBits) {
+        return decodeBitsStreaming(reader, headerBits, null, null);
+    }
+
+    public static BitBuffer decodeBitsStreaming(ImageReader reader, int headerBits, PayloadCipher.Passphrase passphrase) {
+        return decodeBitsStreaming(reader, headerBits, passphrase, null);
+    }
+
+    // file is where the reader's image came from, if anywhere
+    private static BitBuffer decodeBitsStreaming(ImageReader reader, int headerBits, PayloadCipher.Passphrase passphrase, File file) {
+        try {
+            int width = reader.getWidth(0);
+            long capacity = (long) width * reader.getHeight(0) * 3;
+
+            BufferedImage top = readPrefix(reader, headerBits);
+            Header header = readHeader(top, headerBits, capacity, passphrase);
+            requireKey(header);
+            if (header.scattered && file != null && PngRowReader.isSupported(file)) {
+                return extractScattered(file, header);
             }
 
-            // Read all bits sequentially from R, G, B channels (matching EncodeBinary)
-            StringBuilder allBits = new StringBuilder();
-            long totalBitsRead = 0;
-
-            outerLoop:
-            for (int y = 0; y < image.getHeight(); y++) {
-                for (int x = 0; x < image.getWidth(); x++) {
-                    int rgb = image.getRGB(x, y);
-                    int r = (rgb >> 16) & 0xFF;
-                    int g = (rgb >> 8) & 0xFF;
-                    int b = rgb & 0xFF;
-
-                    // Read R, G, B in order (matching encode logic)
-                    allBits.append(r & 1);
-                    totalBitsRead++;
-                    
-                    allBits.append(g & 1);
-                    totalBitsRead++;
-                    
-                    allBits.append(b & 1);
-                    totalBitsRead++;
-
-                    // Check if we have read at least the header
-                    if (totalBitsRead >= headerBits) {
-                        // Parse header to get message length
-                        String headerBinary = allBits.substring(0, headerBits);
-                        long messageBitLength = Long.parseLong(headerBinary, 2);
-                        
-                        // Check if we have read enough for header + message
-                        long totalNeededBits = headerBits + messageBitLength;
-                        if (totalBitsRead >= totalNeededBits) {
-                            break outerLoop;
-                        }
-                    }
-                }
+            int payloadRows = rowsFor(header.endPixel(), width);
+            if (payloadRows > top.getHeight()) {
+                top = LsbEngine.normalize(SteganographyHelper.readTopRows(reader, payloadRows));
             }
+            return extractPayload(top, headerBits, header);
+        } catch (NoHiddenMessageException e) {
+            throw e;
+        } catch (Exception e) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.UNREADABLE_IMAGE, String.valueOf(e.getMessage()), e);
+        }
+    }
+
+    // Uncompressed rasters: only the pages holding the header and payload are ever read. Headers
+    // from before the seal still go through the top rows, to be checked like any other
+    private static BitBuffer decodeMapped(String imgPath, int headerBits, PayloadCipher.Passphrase passphrase) {
+        try (MappedRaster raster = MappedRaster.open(Paths.get(imgPath), false)) {
+            BufferedImage top = readPrefix(raster, headerBits);
+            Header header = readHeader(top, headerBits, raster.pixels() * 3, passphrase);
+            requireKey(header);
+            if (header.sealed) return extractPayload(raster, header);
+
+            int payloadRows = rowsFor(header.endPixel(), raster.width);
+            if (payloadRows > top.getHeight()) top = raster.readTopRows(payloadRows);
+            return extractPayload(top, headerBits, header);
+        } catch (NoHiddenMessageException e) {
+            throw e;
+        } catch (Exception e) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.UNREADABLE_IMAGE, imgPath + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Straight from the mapping by long slot index, so neither payload nor carrier is bound by
+    // array sizes, and only the payload's own pixels are read, scattered or not
+    private static BitBuffer extractPayload(MappedRaster raster, Header header) {
+        long t = Instrumentation.start();
+        long from = header.layout.isDefault() ? header.prefixBits : 0;
+        BitBuffer message = new BitBuffer(header.length);
+        raster.extract(header.layout, from, from + header.length, message);
+        Instrumentation.stop(Metrics.Stage.BIT_EXTRACT, t);
+        Instrumentation.add(Metrics.Counter.BITS_EXTRACTED, header.length);
+        checkScattered(header, message);
+        return message;
+    }
+
+    private static BufferedImage readPrefix(MappedRaster raster, int headerBits) {
+        long prefixPixels = CapacityPlanner.headerPixels(CapacityPlanner.prefixBits(headerBits));
+        return raster.readTopRows(rowsFor(Math.min(prefixPixels, raster.pixels()), raster.width));
+    }
+
+    // Just the rows holding the length header and seal (64 pixels at most), normalized
+    static BufferedImage readPrefix(ImageReader reader, int headerBits) throws IOException {
+        int width = reader.getWidth(0);
+        long pixels = (long) width * reader.getHeight(0);
+        long prefixPixels = CapacityPlanner.headerPixels(CapacityPlanner.prefixBits(headerBits));
+        return LsbEngine.normalize(SteganographyHelper.readTopRows(reader, rowsFor(Math.min(prefixPixels, pixels), width)));
+    }
+
+    // Rows holding pixels [0, pixels), at least one
+    private static int rowsFor(long pixels, int width) {
+        return (int) Math.max(1, (pixels + width - 1) / width);
+    }
+
+    // Checks unsealed payloads, then extracts exactly the payload slot range
+    private static BitBuffer extractPayload(BufferedImage image, int headerBits, Header header) {
+        requireKey(header);
+        // Legacy payloads continue in the slot after the header (and seal), explicit layouts
+        // number their slots from their own first pixel
+        long from = header.layout.isDefault() ? header.prefixBits : 0;
+        long messageBitLength = header.length;
+
+        if (!header.sealed) checkUnsealed(image, header);
 
-            // Extract header and parse message length
-            if (allBits.length() < headerBits) {
-                throw new RuntimeException("There is no hidden message");
+        // Only the pixels holding the payload are read, nothing past header.endPixel
+        long t = Instrumentation.start();
+        BitBuffer message = new BitBuffer(messageBitLength);
+        LsbEngine.extractParallel(image, header.layout, from, from + messageBitLength, message);
+        Instrumentation.stop(Metrics.Stage.BIT_EXTRACT, t);
+        Instrumentation.add(Metrics.Counter.BITS_EXTRACTED, messageBitLength);
+        checkScattered(header, message);
+        return message;
+    }
+
+    // A scattered payload straight from a PNG, one stripe of rows at a time, so neither the
+    // raster nor anything but the payload is held. Reading rows counts as extraction here
+    private static BitBuffer extractScattered(File png, Header header) throws IOException {
+        long t = Instrumentation.start();
+        BitBuffer message = BitBuffer.zeros(header.length);
+        try (PngRowReader rows = new PngRowReader(png)) {
+            int width = rows.getWidth();
+            int stripeRows = Math.max(1, STRIPE_PIXELS / width);
+            int[] stripe = new int[stripeRows * width];
+            for (int y = 0; y < rows.getHeight(); y += stripeRows) {
+                int n = Math.min(stripeRows, rows.getHeight() - y);
+                for (int r = 0; r < n; r++) rows.readRow(stripe, r * width);
+                LsbEngine.extractStripe(stripe, n * width, (long) y * width, header.layout, header.length, message);
             }
-            
-            String headerBinary = allBits.substring(0, headerBits);
-            long messageBitLength;
-            
+        }
+        Instrumentation.stop(Metrics.Stage.BIT_EXTRACT, t);
+        Instrumentation.add(Metrics.Counter.IMAGES_READ, 1);
+        Instrumentation.add(Metrics.Counter.BITS_EXTRACTED, header.length);
+        checkScattered(header, message);
+        return message;
+    }
+
+    // Scattered payloads are read with a key the carrier cannot check
+    private static void requireKey(Header header) {
+        if (header.scattered && !header.layout.isScattered()) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.PASSWORD_REQUIRED, "payload pixels are scattered with a key");
+        }
+    }
+
+    // Only containers are ever scattered; anything else was gathered in the wrong order
+    private static void checkScattered(Header header, BitBuffer message) {
+        if (header.scattered && !StegoContainer.isContainer(message, 0)) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.BAD_PASSWORD, "scattered payload does not gather into a container");
+        }
+    }
+
+    // A sealed header has been checksummed, so whatever follows is the payload. Unsealed ones
+    // are only trusted once the start of the payload looks like a container or text
+    private static void checkUnsealed(BufferedImage image, Header header) {
+        long from = header.layout.isDefault() ? header.prefixBits : 0;
+        long probeBits = Math.min(header.length, PROBE_BITS);
+        BitBuffer probe = new BitBuffer(probeBits);
+        LsbEngine.extract(image, header.layout, from, from + probeBits, probe);
+        if (!StegoContainer.isContainer(probe, 0) && !looksLikeLegacyText(probe, 0, header.length)) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.NOT_TEXT,
+                "payload is neither a container nor legacy text");
+        }
+    }
+
+    // Validates a carrier from its top rows only: the header and its seal, or for headers
+    // written before the seal the first PROBE_BITS of the payload. Never extracts the payload
+    static Header probe(ImageReader reader, int headerBits) {
+        try {
+            return new PayloadReader(reader, headerBits).header;
+        } catch (NoHiddenMessageException e) {
+            throw e;
+        } catch (Exception e) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.UNREADABLE_IMAGE, String.valueOf(e.getMessage()), e);
+        }
+    }
+
+    // Same, for a mapped raster
+    static Header probe(MappedRaster raster, int headerBits) {
+        BufferedImage top = readPrefix(raster, headerBits);
+        Header header = readHeader(top, headerBits, raster.pixels() * 3);
+        if (!header.sealed) {
+            int rows = rowsFor(header.endPixel(Math.min(header.length, PROBE_BITS)), raster.width);
+            if (rows > top.getHeight()) top = raster.readTopRows(rows);
+            checkUnsealed(top, header);
+        }
+        return header;
+    }
+
+    // Random access to a carrier's payload: rows are only decoded down to the furthest
+    // payload bit asked for, so reading the start of a large payload stays cheap
+    static final class PayloadReader implements AutoCloseable {
+        final Header header;
+        private final ImageReader reader;
+        private final int width;
+        private BufferedImage top;
+
+        private PayloadReader(ImageReader reader, int headerBits) throws IOException {
+            this.reader = reader;
+            this.width = reader.getWidth(0);
+            this.top = readPrefix(reader, headerBits);
+            this.header = readHeader(top, headerBits, (long) width * reader.getHeight(0) * 3);
+            if (!header.sealed) {
+                ensureRows(header.endPixel(Math.min(header.length, PROBE_BITS)));
+                checkUnsealed(top, header);
+            }
+        }
+
+        static PayloadReader open(String imgPath, int headerBits) {
+            ImageReader reader;
             try {
-                // Use BigInteger to safely parse large binary strings
-                BigInteger headerValue = new BigInteger(headerBinary, 2);
-                
-                // Check if the value is within reasonable bounds for a message length
-                // Maximum reasonable message length is Long.MAX_VALUE
-                if (headerValue.compareTo(BigInteger.valueOf(Long.MAX_VALUE)) > 0) {
-                    throw new RuntimeException("There is no hidden message");
-                }
-                
-                // Check if it's negative (which shouldn't happen with unsigned interpretation)
-                if (headerValue.compareTo(BigInteger.ZERO) <= 0) {
-                    throw new RuntimeException("There is no hidden message");
+                reader = SteganographyHelper.openReader(imgPath);
+            } catch (Exception e) {
+                throw Instrumentation.reject(NoHiddenMessageException.Reason.UNREADABLE_IMAGE, imgPath + ": " + e.getMessage(), e);
+            }
+            try {
+                return new PayloadReader(reader, headerBits);
+            } catch (Exception e) {
+                try {
+                    SteganographyHelper.closeReader(reader);
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
                 }
-                
-                messageBitLength = headerValue.longValue();
-            } catch (NumberFormatException e) {
-                throw new RuntimeException("There is no hidden message");
+                if (e instanceof NoHiddenMessageException) throw (NoHiddenMessageException) e;
+                throw Instrumentation.reject(NoHiddenMessageException.Reason.UNREADABLE_IMAGE, String.valueOf(e.getMessage()), e);
+            }
+        }
+
+        // Payload bits [from, to)
+        BitBuffer read(long from, long to) throws IOException {
+            if (from < 0 || to < from || to > header.length) {
+                throw new IndexOutOfBoundsException("Bits [" + from + ", " + to + ") outside payload of " + header.length);
+            }
+            requireKey(header);
+            ensureRows(header.endPixel(to));
+            long start = header.layout.isDefault() ? header.prefixBits : 0;
+            BitBuffer out = new BitBuffer(to - from);
+            LsbEngine.extractParallel(top, header.layout, start + from, start + to, out);
+            return out;
+        }
+
+        private void ensureRows(long pixels) throws IOException {
+            int rows = rowsFor(pixels, width);
+            if (rows > top.getHeight()) top = LsbEngine.normalize(SteganographyHelper.readTopRows(reader, rows));
+        }
+
+        @Override
+        public void close() throws IOException {
+            SteganographyHelper.closeReader(reader);
+        }
+    }
+
+    // A validated length header: payload length in bits and where the payload lives
+    static final class Header {
+        final long length;
+        final LsbEngine.Layout layout; // scattered only when the key was given
+        final boolean sealed;
+        final int prefixBits;          // length header plus seal, if any
+        final boolean scattered;
+        final long imagePixels;
+
+        Header(long length, LsbEngine.Layout layout, boolean sealed, int prefixBits, boolean scattered, long imagePixels) {
+            this.length = length;
+            this.layout = layout;
+            this.sealed = sealed;
+            this.prefixBits = prefixBits;
+            this.scattered = scattered;
+            this.imagePixels = imagePixels;
+        }
+
+        // One past the last pixel the payload touches
+        long endPixel() {
+            return endPixel(length);
+        }
+
+        // One past the last pixel holding the first payloadBits of the payload
+        long endPixel(long payloadBits) {
+            if (scattered) return imagePixels;
+            if (layout.isDefault()) return (prefixBits + payloadBits + 2) / 3;
+            return layout.firstPixel + (payloadBits + layout.bitsPerPixel() - 1) / layout.bitsPerPixel();
+        }
+    }
+
+    // Reads just the length header from the top of a normalized image and validates it
+    // against the full image capacity; -1 when the image cannot hold a message of that length
+    public static long readMessageLength(BufferedImage image, int headerBits, long maxPossibleBits) {
+        try {
+            return readHeader(image, headerBits, maxPossibleBits).length;
+        } catch (NoHiddenMessageException e) {
+            return -1;
+        }
+    }
+
+    // maxPossibleBits is the 1-LSB RGB capacity of the whole image, which may be taller than
+    // the rows passed in; throws when the header does not describe a message this image can hold
+    static Header readHeader(BufferedImage image, int headerBits, long maxPossibleBits) {
+        return readHeader(image, headerBits, maxPossibleBits, null);
+    }
+
+    // With a passphrase, a scattered layout comes back keyed and ready to extract
+    static Header readHeader(BufferedImage image, int headerBits, long maxPossibleBits, PayloadCipher.Passphrase passphrase) {
+        long t = Instrumentation.start();
+        try {
+            return parseHeader(image, headerBits, maxPossibleBits, passphrase);
+        } finally {
+            Instrumentation.stop(Metrics.Stage.HEADER_READ, t);
+        }
+    }
+
+    private static Header parseHeader(BufferedImage image, int headerBits, long maxPossibleBits, PayloadCipher.Passphrase passphrase) {
+        // Check if image can even hold the header
+        if (maxPossibleBits < headerBits || LsbEngine.capacity(image) < headerBits) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.IMAGE_TOO_SMALL,
+                "image holds " + maxPossibleBits + " bits, header needs " + headerBits);
+        }
+
+        BitBuffer bits = new BitBuffer(headerBits);
+        LsbEngine.extract(image, 0, headerBits, bits);
+        long raw = readLength(bits, headerBits);
+
+        int mode = (int) (raw >>> 56);
+        LsbEngine.Layout layout = CapacityPlanner.layoutForMode(mode, headerBits);
+        if (layout == null) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.UNKNOWN_MODE, "mode byte 0x" + Integer.toHexString(mode));
+        }
+
+        // The seal sits in the same top rows, so checking it costs no extra image reading
+        boolean sealed = CapacityPlanner.isSealed(mode);
+        boolean scattered = CapacityPlanner.isScattered(mode);
+        if (scattered && !sealed) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.UNKNOWN_MODE, "scattered layouts are always sealed");
+        }
+        int prefixBits = headerBits;
+        if (sealed) {
+            prefixBits = CapacityPlanner.prefixBits(headerBits);
+            if (maxPossibleBits < prefixBits || LsbEngine.capacity(image) < prefixBits) {
+                throw Instrumentation.reject(NoHiddenMessageException.Reason.IMAGE_TOO_SMALL,
+                    "image holds " + maxPossibleBits + " bits, sealed header needs " + prefixBits);
             }
-            
-            // Validate message length - check for reasonable bounds
-            if (messageBitLength <= 0) {
-                throw new RuntimeException("There is no hidden message");
+            LsbEngine.extract(image, headerBits, prefixBits, bits);
+            String mismatch = HeaderSeal.check(bits, headerBits);
+            if (mismatch != null) {
+                throw Instrumentation.reject(NoHiddenMessageException.Reason.BAD_SEAL, mismatch);
             }
-            
+        }
+        long messageBitLength = raw & CapacityPlanner.MAX_LENGTH;
+
+        // Validate message length - check for reasonable bounds
+        if (messageBitLength <= 0) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.EMPTY_PAYLOAD, null);
+        }
+
+        // Additional validation: check if binary length is divisible by 8 (valid for text)
+        if (messageBitLength % 8 != 0) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.LENGTH_NOT_BYTE_ALIGNED, messageBitLength + " bits");
+        }
+
+        if (layout.isDefault()) {
             // Check if message length is impossibly large for this image
-            long remainingBits = maxPossibleBits - headerBits;
+            long remainingBits = maxPossibleBits - prefixBits;
             if (messageBitLength > remainingBits) {
-                throw new RuntimeException("There is no hidden message");
+                throw Instrumentation.reject(NoHiddenMessageException.Reason.LENGTH_EXCEEDS_CAPACITY,
+                    messageBitLength + " bits, image holds " + remainingBits);
             }
-            
+
             // Check if message length is suspiciously large (likely random data)
             // A reasonable text message should be much smaller than the image capacity
             if (messageBitLength > remainingBits / 2) {
-                throw new RuntimeException("There is no hidden message");
-            }
-            
-            // Extract message binary (skip header)
-            long totalExpectedBits = headerBits + messageBitLength;
-            if (allBits.length() < totalExpectedBits) {
-                throw new RuntimeException("There is no hidden message");
+                throw Instrumentation.reject(NoHiddenMessageException.Reason.LENGTH_EXCEEDS_HALF_CAPACITY,
+                    messageBitLength + " bits, image holds " + remainingBits);
             }
-            
-            // Use long arithmetic for the substring bounds
-            int startIndex = headerBits;
-            int endIndex = (int)(headerBits + messageBitLength);
-            
-            // Check if the message length exceeds Integer.MAX_VALUE for substring operations
-            if (messageBitLength > Integer.MAX_VALUE - headerBits) {
-                throw new RuntimeException("Message too large for current implementation. Message length: " + messageBitLength);
+        } else {
+            // Explicit layouts were planned against the real capacity, so hold them to it
+            if (layout.alpha && !image.getColorModel().hasAlpha()) {
+                throw Instrumentation.reject(NoHiddenMessageException.Reason.NO_ALPHA_CHANNEL, null);
             }
-            
-            String messageBinary = allBits.substring(startIndex, endIndex);
-            
-            // Additional validation: check if binary length is divisible by 8 (valid for text)
-            if (messageBinary.length() % 8 != 0) {
-                throw new RuntimeException("There is no hidden message");
+            long capacity = (maxPossibleBits / 3 - layout.firstPixel) * layout.bitsPerPixel();
+            if (messageBitLength > capacity) {
+                throw Instrumentation.reject(NoHiddenMessageException.Reason.LENGTH_EXCEEDS_CAPACITY,
+                    messageBitLength + " bits, layout holds " + capacity);
             }
-            
-            // Basic sanity check: ensure some portion of the decoded bytes represent printable characters
-            int printableCount = 0;
-            int totalBytes = messageBinary.length() / 8;
-            
-            for (int i = 0; i < Math.min(totalBytes, 50); i++) { // Check first 50 characters or all if less
-                String byteStr = messageBinary.substring(i * 8, (i + 1) * 8);
-                int charValue = Integer.parseInt(byteStr, 2);
-                
-                // Count printable ASCII characters (32-126) and common whitespace
-                if ((charValue >= 32 && charValue <= 126) || charValue == 9 || charValue == 10 || charValue == 13) {
-                    printableCount++;
-                }
+        }
+        // The key is only worth deriving for a header that has passed every other check
+        if (scattered && passphrase != null) layout = layout.scattered(maxPossibleBits / 3, passphrase.scatterSeed());
+        return new Header(messageBitLength, layout, sealed, prefixBits, scattered, maxPossibleBits / 3);
+    }
+
+    // Basic sanity check: ensure some portion of the decoded bytes represent printable characters
+    static boolean looksLikeLegacyText(BitBuffer bits, long offset, long messageBitLength) {
+        int printableCount = 0;
+        long totalBytes = messageBitLength / 8;
+        int checkedBytes = (int) Math.min(totalBytes, 50); // Check first 50 characters or all if less
+
+        for (int i = 0; i < checkedBytes; i++) {
+            int charValue = (int) bits.getBits(offset + i * 8L, 8);
+
+            // Count printable ASCII characters (32-126) and common whitespace
+            if ((charValue >= 32 && charValue <= 126) || charValue == 9 || charValue == 10 || charValue == 13) {
+                printableCount++;
             }
-            
-            // If less than 70% of checked characters are printable, it's likely not a real message
-            int checkedBytes = Math.min(totalBytes, 50);
-            if (checkedBytes > 0 && (double)printableCount / checkedBytes < 0.7) {
-                throw new RuntimeException("There is no hidden message");
+        }
+
+        // If less than 70% of checked characters are printable, it's likely not a real message
+        return checkedBytes == 0 || (double) printableCount / checkedBytes >= 0.7;
+    }
+
+    // Parse the fixed-width header into its last 64 bits (mode byte + length). Any 64-bit value
+    // can come back, so padding above them that is not zero is rejected here
+    static long readLength(BitBuffer bits, int headerBits) {
+        for (int i = 0; i + 64 < headerBits; i += 64) {
+            if (bits.getBits(i, 64) != 0) {
+                throw Instrumentation.reject(NoHiddenMessageException.Reason.HEADER_PADDING, "at bit " + i);
             }
-            
-            return messageBinary;
-            
-        } catch (RuntimeException e) {
-            // Re-throw our custom "no hidden message" exceptions
-            throw e;
-        } catch (Exception e) {
-            // Any other unexpected exception means no hidden message
-            throw new RuntimeException("There is no hidden message");
         }
+        return bits.getBits(headerBits - 64, 64);
     }
 }
 
@@ -171,4 +501,4 @@ public class DecodeBinary {
 
 //         return binaryData.toString();
 //     }
-// }
\ No newline at end of file
+// }
@@ -1,71 +1,215 @@
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.function.Consumer;
 
 public class EncodeBinary {
 
     public static void encode(String imgPath, String binaryData, String outputPath, int headerBits) throws Exception {
+        encode(imgPath, BitBuffer.fromBinaryString(binaryData), outputPath, headerBits);
+    }
+
+    public static void encode(String imgPath, byte[] data, String outputPath, int headerBits) throws Exception {
+        encode(imgPath, BitBuffer.wrap(data), outputPath, headerBits);
+    }
+
+    // A JPEG carrier written out as a JPEG keeps its coefficients, and an uncompressed one
+    // written out in its own format keeps its bytes; the payload goes into them
+    public static void encode(String imgPath, BitBuffer data, String outputPath, int headerBits) throws Exception {
+        encode(imgPath, data, outputPath, headerBits, null);
+    }
+
+    // plan may be null to let CapacityPlanner choose. Plans lay out pixels, so a JPEG carrier that
+    // would stay a JPEG is refused one rather than re-encoded and its payload lost
+    public static void encode(String imgPath, BitBuffer data, String outputPath, int headerBits, CapacityPlanner.Plan plan) throws Exception {
+        if (JpegEmbedder.isJpegName(outputPath) && JpegEmbedder.isJpeg(imgPath)) {
+            if (plan != null) {
+                throw new IllegalArgumentException("A pixel plan cannot be applied to JPEG coefficients; write the output as a PNG");
+            }
+            JpegEmbedder.encode(imgPath, data, outputPath, headerBits, null);
+            return;
+        }
+        if (MappedRaster.keepsFormat(imgPath, outputPath)) {
+            encodeInPlace(imgPath, outputPath, raster -> embed(raster, data, headerBits,
+                plan != null ? plan : CapacityPlanner.plan(raster.width, raster.height, raster.alpha, data.length(), headerBits, false)));
+            return;
+        }
+        requirePngOutput(outputPath);
+        BufferedImage source = SteganographyHelper.readImage(imgPath);
+        BufferedImage image = plan == null ? embed(source, data, headerBits) : embed(source, data, headerBits, plan);
+
+        String format = SteganographyHelper.getImageFormat(outputPath);
+        SteganographyHelper.writeImage(image, format, outputPath);
+    }
+
+    // Whether the carrier's own encoding can hold the payload when written to outputPath: a
+    // JPEG kept as a JPEG, or an uncompressed raster kept in its format
+    static boolean keepsFormat(String imgPath, String outputPath) {
+        return JpegEmbedder.isJpegName(outputPath) && JpegEmbedder.isJpeg(imgPath) || MappedRaster.keepsFormat(imgPath, outputPath);
+    }
+
+    // For carriers keepsFormat accepts; scattered with a passphrase, as embed does for pixels
+    static void encodeInFormat(String imgPath, BitBuffer data, String outputPath, int headerBits,
+                               PayloadCipher.Passphrase passphrase) throws IOException {
+        if (JpegEmbedder.isJpegName(outputPath)) {
+            JpegEmbedder.encode(imgPath, data, outputPath, headerBits, passphrase);
+        } else {
+            encodeInPlace(imgPath, data, outputPath, headerBits, passphrase);
+        }
+    }
+
+    // Embedded pixels written anywhere else must go to a PNG: a lossy or palette format would
+    // not keep the payload
+    static void requirePngOutput(String outputPath) {
+        String format = SteganographyHelper.getImageFormat(outputPath);
+        if (!format.equalsIgnoreCase("png")) {
+            throw new IllegalArgumentException("Cannot write " + outputPath + ": a " + format + " output would not keep the payload, use .png");
+        }
+    }
+
+    // Uncompressed carriers (see MappedRaster) are copied to outputPath, unless they are the
+    // same file, and embedded there in place: only the pages holding the payload are written
+    public static void encodeInPlace(String imgPath, BitBuffer data, String outputPath, int headerBits,
+                                     PayloadCipher.Passphrase passphrase) throws IOException {
+        encodeInPlace(imgPath, outputPath, raster -> embed(raster, data, headerBits, passphrase));
+    }
+
+    private static void encodeInPlace(String imgPath, String outputPath, Consumer<MappedRaster> embedding) throws IOException {
+        Path carrier = Paths.get(imgPath);
+        Path output = Paths.get(outputPath);
+        if (!Files.exists(output) || !Files.isSameFile(carrier, output)) {
+            Files.copy(carrier, output, StandardCopyOption.REPLACE_EXISTING);
+        }
+        long t = Instrumentation.start();
+        try (MappedRaster raster = MappedRaster.open(output, true)) {
+            embedding.accept(raster);
+        }
+        Instrumentation.stop(Metrics.Stage.IMAGE_WRITE, t);
+        Instrumentation.add(Metrics.Counter.IMAGES_WRITTEN, 1);
+    }
+
+    // Same layout as embedding into a BufferedImage, written straight into the mapped file
+    public static void embed(MappedRaster raster, BitBuffer data, int headerBits, PayloadCipher.Passphrase passphrase) {
+        long messageLength = data.length();
+        CapacityPlanner.Plan plan = passphrase == null
+            ? CapacityPlanner.plan(raster.width, raster.height, raster.alpha, messageLength, headerBits, false)
+            : CapacityPlanner.scattered(raster.width, raster.height, raster.alpha, messageLength, headerBits, false, passphrase.scatterSeed());
+        embed(raster, data, headerBits, plan);
+    }
+
+    public static void embed(MappedRaster raster, BitBuffer data, int headerBits, CapacityPlanner.Plan plan) {
         if (headerBits != 64 && headerBits != 128) {
             throw new IllegalArgumentException("headerBits must be 64 or 128");
         }
+        long messageLength = data.length();
+        if (messageLength > CapacityPlanner.MAX_LENGTH) {
+            throw new IllegalArgumentException("Message too long. Max length: " + CapacityPlanner.MAX_LENGTH + ", Actual length: " + messageLength);
+        }
+        if (plan.layout.alpha && !raster.alpha) {
+            throw new IllegalArgumentException("Alpha embedding needs an image with an alpha channel");
+        }
+        long capacity = Math.max(0, raster.pixels() - plan.layout.firstPixel) * plan.layout.bitsPerPixel();
+        if (!plan.isLegacy() && messageLength > capacity) {
+            throw new IllegalArgumentException("Message too long for this image. Capacity: " +
+                capacity + " bits, needed: " + messageLength + " bits");
+        }
+
+        BitBuffer header = new BitBuffer(CapacityPlanner.prefixBits(headerBits));
+        writeHeader(header, messageLength, headerBits, plan.modeByte());
+        long prefixBits = header.length();
+        long slots = plan.isLegacy() ? prefixBits + messageLength : prefixBits;
+        if (raster.pixels() * 3 < slots) {
+            throw new IllegalArgumentException("Message too long for this image. Capacity: " +
+                raster.pixels() * 3 + " bits, needed: " + slots + " bits");
+        }
+
+        long t = Instrumentation.start();
+        raster.embed(LsbEngine.Layout.DEFAULT, header::getBits, 0, prefixBits);
+        if (plan.isLegacy()) {
+            // The payload carries on in the slot after the header
+            raster.embed(LsbEngine.Layout.DEFAULT, (i, n) -> data.getBits(i - prefixBits, n), prefixBits, prefixBits + messageLength);
+        } else {
+            raster.embed(plan.layout, data::getBits, 0, messageLength);
+        }
+        Instrumentation.stop(Metrics.Stage.BIT_EMBED, t);
+        Instrumentation.add(Metrics.Counter.BITS_EMBEDDED, prefixBits + messageLength);
+    }
 
-        BufferedImage image = SteganographyHelper.readImage(imgPath);
+    // Embeds header + data and returns the stego image (the input itself when it is already normalized).
+    // The layout comes from CapacityPlanner: 1 LSB per channel when it fits, more only when needed.
+    public static BufferedImage embed(BufferedImage image, BitBuffer data, int headerBits) {
+        return embed(image, data, headerBits, CapacityPlanner.plan(image, data.length(), headerBits, false));
+    }
+
+    // With a passphrase the payload pixels are also scattered over the image in a keyed order
+    public static BufferedImage embed(BufferedImage image, BitBuffer data, int headerBits, PayloadCipher.Passphrase passphrase) {
+        if (passphrase == null) return embed(image, data, headerBits);
+        return embed(image, data, headerBits, CapacityPlanner.scattered(image, data.length(), headerBits, false, passphrase.scatterSeed()));
+    }
+
+    public static BufferedImage embed(BufferedImage image, BitBuffer data, int headerBits, CapacityPlanner.Plan plan) {
+        if (headerBits != 64 && headerBits != 128) {
+            throw new IllegalArgumentException("headerBits must be 64 or 128");
+        }
 
         // Create header: binary representation of message length
-        long messageLength = binaryData.length();
+        long messageLength = data.length();
         
         // Validate that message length can fit in the header using BigInteger
         BigInteger maxLengthBI = BigInteger.ONE.shiftLeft(headerBits).subtract(BigInteger.ONE); // 2^headerBits - 1
         BigInteger messageLengthBI = BigInteger.valueOf(messageLength);
         
-        if (messageLengthBI.compareTo(maxLengthBI) > 0) {
+        if (messageLengthBI.compareTo(maxLengthBI) > 0 || messageLength > CapacityPlanner.MAX_LENGTH) {
             throw new IllegalArgumentException("Message too long for " + headerBits + "-bit header. " +
-                "Max length: " + maxLengthBI + ", Actual length: " + messageLength);
+                "Max length: " + CapacityPlanner.MAX_LENGTH + ", Actual length: " + messageLength);
         }
-        
-        String headerBinary = bigIntToFixedBinary(messageLengthBI, headerBits);
-
-        // Combine header + message
-        String fullData = headerBinary + binaryData;
-
-        long dataIndex = 0;
-        outerLoop:
-        for (int y = 0; y < image.getHeight(); y++) {
-            for (int x = 0; x < image.getWidth(); x++) {
-                if (dataIndex >= fullData.length()) break outerLoop;
-
-                int rgb = image.getRGB(x, y);
-                int r = (rgb >> 16) & 0xFF;
-                int g = (rgb >> 8) & 0xFF;
-                int b = rgb & 0xFF;
-
-                // Modify LSBs in R, G, B in order
-                if (dataIndex < fullData.length()) {
-                    r = (r & 0xFE) | (fullData.charAt((int)dataIndex) - '0');
-                    dataIndex++;
-                }
-                if (dataIndex < fullData.length()) {
-                    g = (g & 0xFE) | (fullData.charAt((int)dataIndex) - '0');
-                    dataIndex++;
-                }
-                if (dataIndex < fullData.length()) {
-                    b = (b & 0xFE) | (fullData.charAt((int)dataIndex) - '0');
-                    dataIndex++;
-                }
-
-                rgb = (r << 16) | (g << 8) | b;
-                image.setRGB(x, y, rgb);
+
+        BitBuffer header = new BitBuffer(CapacityPlanner.prefixBits(headerBits));
+        writeHeader(header, messageLength, headerBits, plan.modeByte());
+
+        // Work on the raster's backing array directly, in row stripes across cores for large payloads
+        image = LsbEngine.normalize(image);
+        long t = Instrumentation.start();
+        if (plan.isLegacy()) {
+            // Combine header + message
+            BitBuffer fullData = new BitBuffer(header.length() + messageLength);
+            fullData.append(header);
+            fullData.append(data);
+            if (fullData.length() > LsbEngine.capacity(image)) {
+                throw new IllegalArgumentException("Message too long for this image. Capacity: " +
+                    LsbEngine.capacity(image) + " bits, needed: " + fullData.length() + " bits");
+            }
+            LsbEngine.embedParallel(image, fullData, 0, fullData.length());
+        } else {
+            long capacity = LsbEngine.capacity(image, plan.layout);
+            if (messageLength > capacity || LsbEngine.capacity(image) < header.length()) {
+                throw new IllegalArgumentException("Message too long for this image. Capacity: " +
+                    capacity + " bits, needed: " + messageLength + " bits");
             }
+            LsbEngine.embed(image, header, 0, header.length());
+            LsbEngine.embedParallel(image, plan.layout, data, 0, messageLength);
         }
+        Instrumentation.stop(Metrics.Stage.BIT_EMBED, t);
+        Instrumentation.add(Metrics.Counter.BITS_EMBEDDED, header.length() + messageLength);
+        return image;
+    }
 
-        String format = SteganographyHelper.getImageFormat(outputPath);
-        SteganographyHelper.writeImage(image, format, outputPath);
+    // Helper: write the message length as a fixed-width big-endian header
+    static void writeHeader(BitBuffer out, long messageLength, int headerBits) {
+        writeHeader(out, messageLength, headerBits, CapacityPlanner.MODE_LEGACY);
     }
 
-    // Helper: convert BigInteger to fixed-width binary string
-    private static String bigIntToFixedBinary(BigInteger value, int width) {
-        String s = value.toString(2);
-        if (s.length() > width) throw new IllegalArgumentException("Message too long for header size");
-        return "0".repeat(width - s.length()) + s;
+    // The top byte of the last 64 bits carries the layout mode (see CapacityPlanner);
+    // sealed modes get their HeaderSeal appended
+    static void writeHeader(BitBuffer out, long messageLength, int headerBits, int mode) {
+        // A long never needs more than 64 bits, so wider headers are zero padded
+        for (int i = 64; i < headerBits; i += 64) out.writeBits(0L, 64);
+        out.writeBits((long) mode << 56 | messageLength, 64);
+        if (CapacityPlanner.isSealed(mode)) HeaderSeal.write(out, headerBits);
     }
 }
 
@@ -98,4 +242,4 @@ public class EncodeBinary {
 //         String format = SteganographyHelper.getImageFormat(outputPath);
 //         SteganographyHelper.writeImage(image, format, outputPath);
 //     }
-// }
\ No newline at end of file
+// }
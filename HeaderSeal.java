@@ -0,0 +1,42 @@
+import java.util.zip.CRC32C;
+
+// Written straight after the length header when its mode byte has CapacityPlanner.MODE_SEALED,
+// 1 LSB per R, G, B channel like the header itself:
+//
+//   [magic:16 "PV"][version:8][reserved:8][CRC32C of length header + magic + version + reserved:32]
+//
+// An image without a payload passes the mode, magic and checksum checks by chance about once
+// in 2^50, so carriers are told apart from clean images by their first 64 pixels, whatever the
+// payload is. Headers written before the seal existed (mode flag clear) still decode.
+public class HeaderSeal {
+    static final int BITS = 64;
+    static final int MAGIC = 0x5056; // "PV"
+    static final int VERSION = 1;
+
+    // Appends the seal for the headerBits length header that ends the buffer
+    static void write(BitBuffer out, int headerBits) {
+        long start = out.length() - headerBits;
+        out.writeBits(MAGIC, 16);
+        out.writeBits(VERSION, 8);
+        out.writeBits(0, 8);
+        out.writeBits(crc(out, start, headerBits + 32), 32);
+    }
+
+    // Why the seal starting at bits[headerBits] does not match the header before it; null when it does
+    static String check(BitBuffer bits, int headerBits) {
+        if (bits.getBits(headerBits, 16) != MAGIC) return "bad magic";
+        long crc = bits.getBits(headerBits + 32, 32);
+        if (crc != crc(bits, 0, headerBits + 32)) return "header checksum mismatch";
+        int version = (int) bits.getBits(headerBits + 16, 8);
+        if (version != VERSION) return "unsupported seal version " + version;
+        return null;
+    }
+
+    private static long crc(BitBuffer bits, long from, int count) {
+        byte[] bytes = new byte[count / 8];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) bits.getBits(from + i * 8L, 8);
+        CRC32C crc = new CRC32C();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+}
@@ -66,6 +66,240 @@ public class HuffmanCoding {
         return result.toString();
     }
 
+    static final int MAX_CODE_LENGTH = 24;
+    static final int TABLE_BITS = 11;
+
+    // Byte-oriented canonical format:
+    // [byte count:32][code lengths][codes]
+    // Code lengths are either dense ([1][length:5] x 256) or sparse
+    // ([0][distinct symbols - 1:8]{[symbol:8][length:5]}*), whichever is shorter.
+    public static void compress(byte[] data, BitBuffer out) {
+        compress(data, data.length, out);
+    }
+
+    // Compresses data[0, length)
+    public static void compress(byte[] data, int length, BitBuffer out) {
+        compress(data, 0, length, out);
+    }
+
+    public static void compress(byte[] data, int offset, int length, BitBuffer out) {
+        out.writeBits(length, 32);
+        if (length == 0) return;
+
+        int[] freq = new int[256];
+        for (int i = offset; i < offset + length; i++) freq[data[i] & 0xFF]++;
+
+        // Distinct symbols in ascending order, as canonical codes require
+        int n = 0;
+        for (int f : freq) if (f > 0) n++;
+        int[] symbols = new int[n];
+        int[] counts = new int[n];
+        for (int c = 0, k = 0; c < 256; c++) {
+            if (freq[c] > 0) {
+                symbols[k] = c;
+                counts[k++] = freq[c];
+            }
+        }
+        int[] lengths = codeLengths(counts);
+        int[] codes = canonicalCodes(lengths);
+
+        if (n * 13 + 8 < 256 * 5) {
+            out.writeBit(0);
+            out.writeBits(n - 1, 8);
+            for (int i = 0; i < n; i++) {
+                out.writeBits(symbols[i], 8);
+                out.writeBits(lengths[i], 5);
+            }
+        } else {
+            out.writeBit(1);
+            int[] dense = new int[256];
+            for (int i = 0; i < n; i++) dense[symbols[i]] = lengths[i];
+            for (int len : dense) out.writeBits(len, 5);
+        }
+
+        // Flat code table indexed by symbol
+        int[] codeOf = new int[256];
+        int[] lengthOf = new int[256];
+        for (int i = 0; i < n; i++) {
+            codeOf[symbols[i]] = codes[i];
+            lengthOf[symbols[i]] = lengths[i];
+        }
+        for (int i = offset; i < offset + length; i++) {
+            int c = data[i] & 0xFF;
+            out.writeBits(codeOf[c], lengthOf[c]);
+        }
+    }
+
+    // Reads a stream written by compress(byte[], BitBuffer) from the buffer's position
+    public static byte[] decompressBytes(BitBuffer in) {
+        long count = Codecs.readLength(in, "huffman");
+        if (count == 0) return new byte[0];
+
+        int[] symbols;
+        int[] lengths;
+        if (in.readBit() == 0) {
+            int n = (int) in.readBits(8) + 1;
+            symbols = new int[n];
+            lengths = new int[n];
+            for (int i = 0; i < n; i++) {
+                symbols[i] = (int) in.readBits(8);
+                lengths[i] = (int) in.readBits(5);
+                if (i > 0 && symbols[i] <= symbols[i - 1]) throw new IllegalArgumentException("Corrupt Huffman stream");
+            }
+        } else {
+            int[] dense = new int[256];
+            int n = 0;
+            for (int c = 0; c < 256; c++) {
+                dense[c] = (int) in.readBits(5);
+                if (dense[c] > 0) n++;
+            }
+            symbols = new int[n];
+            lengths = new int[n];
+            for (int c = 0, k = 0; c < 256; c++) {
+                if (dense[c] > 0) {
+                    symbols[k] = c;
+                    lengths[k++] = dense[c];
+                }
+            }
+        }
+        CanonicalDecoder decoder = new CanonicalDecoder(symbols, lengths);
+
+        // Every symbol takes at least one bit
+        byte[] result = new byte[Codecs.checkedLength(count, in.remaining(), "huffman")];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) decoder.next(in);
+        }
+        return result;
+    }
+
+    // Decodes canonical codes with one table probe for codes up to TABLE_BITS long,
+    // falling back to a per-length search for the rare longer codes
+    static class CanonicalDecoder {
+        final int tableBits;
+        final int[] table;          // (symbol << 5) | length, 0 when the code is longer than tableBits
+        final int maxLength;
+        final int[] firstCode;      // first canonical code of each length
+        final int[] firstIndex;     // index into sorted of that code
+        final int[] lengthCount;
+        final int[] sorted;         // symbols ordered by (length, symbol)
+
+        CanonicalDecoder(int[] symbols, int[] lengths) {
+            int max = 0;
+            for (int len : lengths) {
+                if (len <= 0 || len > MAX_CODE_LENGTH) throw new IllegalArgumentException("Corrupt Huffman stream");
+                max = Math.max(max, len);
+            }
+            maxLength = max;
+
+            lengthCount = new int[max + 1];
+            for (int len : lengths) lengthCount[len]++;
+
+            firstCode = new int[max + 2];
+            firstIndex = new int[max + 2];
+            int code = 0;
+            int index = 0;
+            for (int len = 1; len <= max; len++) {
+                firstCode[len] = code;
+                firstIndex[len] = index;
+                code = (code + lengthCount[len]) << 1;
+                index += lengthCount[len];
+            }
+            // Over-subscribed code lengths cannot come from a real Huffman tree
+            if (code > (2 << max)) throw new IllegalArgumentException("Corrupt Huffman stream");
+
+            sorted = new int[symbols.length];
+            int[] next = firstIndex.clone();
+            int[] codes = canonicalCodes(lengths);
+
+            tableBits = Math.min(TABLE_BITS, max);
+            table = new int[1 << tableBits];
+            for (int i = 0; i < symbols.length; i++) {
+                int len = lengths[i];
+                sorted[next[len]++] = symbols[i];
+                if (len <= tableBits) {
+                    int base = codes[i] << (tableBits - len);
+                    int entry = (symbols[i] << 5) | len;
+                    Arrays.fill(table, base, base + (1 << (tableBits - len)), entry);
+                }
+            }
+        }
+
+        int next(BitBuffer in) {
+            int peek = (int) in.peekBits(tableBits);
+            int entry = table[peek];
+            if (entry != 0) {
+                in.skip(entry & 31);
+                return entry >>> 5;
+            }
+
+            // Long code: keep extending the table prefix one bit at a time
+            long pos = in.position();
+            int code = peek;
+            for (int len = tableBits + 1; len <= maxLength; len++) {
+                code = (code << 1) | in.getBit(pos + len - 1);
+                int offset = code - firstCode[len];
+                if (offset >= 0 && offset < lengthCount[len]) {
+                    in.skip(len);
+                    return sorted[firstIndex[len] + offset];
+                }
+            }
+            throw new IllegalArgumentException("Corrupt Huffman stream");
+        }
+    }
+
+    // Huffman code lengths for the given counts, limited to MAX_CODE_LENGTH
+    static int[] codeLengths(int[] counts) {
+        int n = counts.length;
+        int[] lengths = new int[n];
+        if (n == 1) {
+            lengths[0] = 1;
+            return lengths;
+        }
+
+        int[] weights = counts.clone();
+        while (true) {
+            PriorityQueue<Node> pq = new PriorityQueue<>((a, b) -> a.freq - b.freq);
+            for (int i = 0; i < n; i++) pq.offer(new Node((char) i, weights[i]));
+            while (pq.size() > 1) {
+                Node left = pq.poll();
+                Node right = pq.poll();
+                pq.offer(new Node('\0', left.freq + right.freq, left, right));
+            }
+            if (assignLengths(pq.peek(), 0, lengths) <= MAX_CODE_LENGTH) return lengths;
+
+            // Too deep: flatten the distribution and rebuild
+            for (int i = 0; i < n; i++) weights[i] = (weights[i] + 1) >>> 1;
+        }
+    }
+
+    // Leaf ch holds the symbol index here; returns the deepest leaf
+    static int assignLengths(Node n, int depth, int[] lengths) {
+        if (n.left == null && n.right == null) {
+            lengths[n.ch] = depth;
+            return depth;
+        }
+        return Math.max(assignLengths(n.left, depth + 1, lengths), assignLengths(n.right, depth + 1, lengths));
+    }
+
+    // Canonical codes for lengths listed in ascending symbol order (same scheme as DEFLATE)
+    static int[] canonicalCodes(int[] lengths) {
+        int max = 0;
+        for (int len : lengths) max = Math.max(max, len);
+        int[] lengthCount = new int[max + 1];
+        for (int len : lengths) lengthCount[len]++;
+
+        int[] nextCode = new int[max + 1];
+        int code = 0;
+        for (int len = 1; len <= max; len++) {
+            code = (code + lengthCount[len - 1]) << 1;
+            nextCode[len] = code;
+        }
+
+        int[] codes = new int[lengths.length];
+        for (int i = 0; i < lengths.length; i++) codes[i] = nextCode[lengths[i]]++;
+        return codes;
+    }
+
     static void generateCodes(Node n, String code, Map<Character, String> codes) {
         if (n == null) return;
         if (n.left == null && n.right == null) {
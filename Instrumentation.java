@@ -0,0 +1,45 @@
+// Where the pipeline reports to. With no Metrics installed every hook is a volatile read and
+// a branch; nothing is timed or allocated.
+//
+//     long t = Instrumentation.start();
+//     ... stage ...
+//     Instrumentation.stop(Metrics.Stage.BIT_EXTRACT, t);
+public final class Instrumentation {
+    private static volatile Metrics metrics;
+
+    private Instrumentation() {}
+
+    // null turns instrumentation off
+    public static void install(Metrics m) {
+        metrics = m;
+    }
+
+    public static Metrics installed() {
+        return metrics;
+    }
+
+    static long start() {
+        return metrics == null ? 0 : System.nanoTime();
+    }
+
+    static void stop(Metrics.Stage stage, long start) {
+        Metrics m = metrics;
+        if (m != null && start != 0) m.record(stage, System.nanoTime() - start);
+    }
+
+    static void add(Metrics.Counter counter, long delta) {
+        Metrics m = metrics;
+        if (m != null) m.add(counter, delta);
+    }
+
+    // Records the rejection and returns the exception for the caller to throw
+    static NoHiddenMessageException reject(NoHiddenMessageException.Reason reason, String detail) {
+        return reject(reason, detail, null);
+    }
+
+    static NoHiddenMessageException reject(NoHiddenMessageException.Reason reason, String detail, Throwable cause) {
+        Metrics m = metrics;
+        if (m != null) m.rejected(reason);
+        return new NoHiddenMessageException(reason, detail, cause);
+    }
+}
@@ -0,0 +1,478 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// The quantized DCT coefficients of a baseline JPEG, entropy decoded but not transformed, and
+// the file around them. write() Huffman codes the (possibly changed) coefficients again with the
+// file's own tables and copies every other segment verbatim, so a JPEG comes back bit for bit
+// when nothing was changed.
+//
+// Supports 8-bit baseline and extended sequential Huffman JPEGs (SOF0, SOF1), interleaved or not,
+// any sampling factors, with restart intervals. Progressive, lossless and arithmetic coded files
+// are rejected.
+public class JpegCoefficients {
+    private static final int[] SOI = {0xFF, 0xD8};
+
+    // One colour component; its blocks are stored row by row, 64 zigzag-ordered coefficients each
+    static final class Component {
+        final int id;
+        final int h;
+        final int v;
+        int base;            // offset of block 0 in coefficients
+        int stride;          // blocks per stored row
+        int codedWide;       // blocks per row that the scans code
+        int codedHigh;
+
+        Component(int id, int h, int v) {
+            this.id = id;
+            this.h = h;
+            this.v = v;
+        }
+
+        int offset(int blockRow, int blockColumn) {
+            return base + (blockRow * stride + blockColumn) * 64;
+        }
+    }
+
+    // Canonical Huffman table as in DHT: codes by symbol for writing, a 9-bit lookup plus
+    // maxcode/valptr (ITU T.81 F.2.2.3) for reading
+    static final class HuffmanTable {
+        private static final int LOOKUP_BITS = 9;
+        final int[] code = new int[256];
+        final byte[] size = new byte[256];
+        final short[] lookup = new short[1 << LOOKUP_BITS]; // length << 8 | symbol, 0 when longer
+        final int[] maxCode = new int[18];
+        final int[] valPtr = new int[17];
+        final int[] minCode = new int[17];
+        final byte[] values;
+
+        HuffmanTable(int[] counts, byte[] values) {
+            this.values = values;
+            int c = 0;
+            int k = 0;
+            for (int len = 1; len <= 16; len++) {
+                valPtr[len] = k;
+                minCode[len] = c;
+                for (int i = 0; i < counts[len]; i++, k++, c++) {
+                    int symbol = values[k] & 0xFF;
+                    code[symbol] = c;
+                    size[symbol] = (byte) len;
+                    if (len <= LOOKUP_BITS) {
+                        int shift = LOOKUP_BITS - len;
+                        for (int j = 0; j < 1 << shift; j++) lookup[(c << shift) | j] = (short) (len << 8 | symbol);
+                    }
+                }
+                maxCode[len] = counts[len] == 0 ? -1 : c - 1;
+                c <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+    }
+
+    // The entropy coded data of one SOS, with the tables in force when it was read
+    private static final class Scan {
+        final Component[] components;
+        final HuffmanTable[] dc;
+        final HuffmanTable[] ac;
+        final int restartInterval;
+
+        Scan(Component[] components, HuffmanTable[] dc, HuffmanTable[] ac, int restartInterval) {
+            this.components = components;
+            this.dc = dc;
+            this.ac = ac;
+            this.restartInterval = restartInterval;
+        }
+    }
+
+    final List<Component> components = new ArrayList<>();
+    short[] coefficients;
+    int width;
+    int height;
+    private int hMax = 1;
+    private int vMax = 1;
+    private final List<Object> parts = new ArrayList<>(); // byte[] copied as is, or a Scan to code
+
+    public static boolean isJpeg(File file) {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            return in.read() == SOI[0] && in.read() == SOI[1] && in.read() == 0xFF;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static boolean isJpeg(byte[] data) {
+        return data.length > 2 && (data[0] & 0xFF) == SOI[0] && (data[1] & 0xFF) == SOI[1] && (data[2] & 0xFF) == 0xFF;
+    }
+
+    public static JpegCoefficients read(byte[] data) {
+        if (!isJpeg(data)) throw new IllegalArgumentException("Not a JPEG file");
+        JpegCoefficients jpeg = new JpegCoefficients();
+        try {
+            jpeg.parse(data);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated JPEG", e);
+        }
+        return jpeg;
+    }
+
+    public byte[] write() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(coefficients.length / 4 + 1024);
+        for (Object part : parts) {
+            if (part instanceof byte[]) {
+                out.write((byte[]) part, 0, ((byte[]) part).length);
+            } else {
+                encodeScan((Scan) part, out);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /* -------------------------- Parsing --------------------------- */
+
+    private void parse(byte[] data) {
+        HuffmanTable[] dcTables = new HuffmanTable[4];
+        HuffmanTable[] acTables = new HuffmanTable[4];
+        int restartInterval = 0;
+        boolean frame = false;
+        parts.add(new byte[]{(byte) 0xFF, (byte) 0xD8});
+        int pos = 2;
+
+        while (true) {
+            int start = pos;
+            if ((data[pos] & 0xFF) != 0xFF) throw new IllegalArgumentException("Expected a marker at byte " + pos);
+            while ((data[pos] & 0xFF) == 0xFF) pos++; // fill bytes
+            int marker = data[pos++] & 0xFF;
+            if (marker == 0xD9) {
+                parts.add(Arrays.copyOfRange(data, start, data.length)); // EOI and anything after it
+                break;
+            }
+            int length = u16(data, pos);
+            int end = pos + length;
+            byte[] segment = Arrays.copyOfRange(data, start, end);
+
+            switch (marker) {
+                case 0xC0:
+                case 0xC1:
+                    if (frame) throw new IllegalArgumentException("JPEG has more than one frame");
+                    parseFrame(data, pos + 2);
+                    frame = true;
+                    break;
+                case 0xC4:
+                    for (int p = pos + 2; p < end; ) {
+                        int tc = (data[p] & 0xFF) >> 4;
+                        int th = data[p] & 0x0F;
+                        int[] counts = new int[17];
+                        int total = 0;
+                        for (int i = 1; i <= 16; i++) total += counts[i] = data[p + i] & 0xFF;
+                        byte[] values = Arrays.copyOfRange(data, p + 17, p + 17 + total);
+                        if (th > 3 || tc > 1 || total > 256) throw new IllegalArgumentException("Bad Huffman table");
+                        (tc == 0 ? dcTables : acTables)[th] = new HuffmanTable(counts, values);
+                        p += 17 + total;
+                    }
+                    break;
+                case 0xDD:
+                    restartInterval = u16(data, pos + 2);
+                    break;
+                case 0xDA:
+                    if (!frame) throw new IllegalArgumentException("Scan before frame header");
+                    int n = data[pos + 2] & 0xFF;
+                    Component[] scanComponents = new Component[n];
+                    HuffmanTable[] dc = new HuffmanTable[n];
+                    HuffmanTable[] ac = new HuffmanTable[n];
+                    for (int i = 0; i < n; i++) {
+                        int id = data[pos + 3 + i * 2] & 0xFF;
+                        int tables = data[pos + 4 + i * 2] & 0xFF;
+                        scanComponents[i] = component(id);
+                        dc[i] = dcTables[tables >> 4 & 3];
+                        ac[i] = acTables[tables & 3];
+                        if (dc[i] == null || ac[i] == null) throw new IllegalArgumentException("Scan uses an undefined Huffman table");
+                    }
+                    Scan scan = new Scan(scanComponents, dc, ac, restartInterval);
+                    codedArea(scan);
+                    parts.add(segment);
+                    parts.add(scan);
+                    pos = decodeScan(scan, data, end);
+                    continue;
+                default:
+                    if (marker >= 0xC2 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                        throw new IllegalArgumentException("Only baseline and extended sequential Huffman JPEGs are supported");
+                    }
+                    if (marker == 0xCC) throw new IllegalArgumentException("Arithmetic coded JPEGs are not supported");
+            }
+            parts.add(segment);
+            pos = end;
+        }
+        if (!frame) throw new IllegalArgumentException("JPEG has no frame header");
+    }
+
+    private void parseFrame(byte[] data, int p) {
+        if ((data[p] & 0xFF) != 8) throw new IllegalArgumentException("Only 8-bit JPEGs are supported");
+        height = u16(data, p + 1);
+        width = u16(data, p + 3);
+        int n = data[p + 5] & 0xFF;
+        if (width == 0 || height == 0) throw new IllegalArgumentException("JPEG without dimensions in its frame header");
+        for (int i = 0; i < n; i++) {
+            int q = p + 6 + i * 3;
+            Component c = new Component(data[q] & 0xFF, (data[q + 1] & 0xFF) >> 4, data[q + 1] & 0x0F);
+            if (c.h < 1 || c.h > 4 || c.v < 1 || c.v > 4) throw new IllegalArgumentException("Bad sampling factors");
+            components.add(c);
+            hMax = Math.max(hMax, c.h);
+            vMax = Math.max(vMax, c.v);
+        }
+        // Stored at the size of the MCU grid, which covers every block any scan can code
+        long total = 0;
+        for (Component c : components) {
+            c.stride = mcusWide() * c.h;
+            c.base = (int) total;
+            total += (long) c.stride * mcusHigh() * c.v * 64;
+        }
+        if (total > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("JPEG too large");
+        coefficients = new short[(int) total];
+    }
+
+    // Blocks a scan codes: the whole MCU grid when interleaved, just the image area otherwise
+    private void codedArea(Scan scan) {
+        for (Component c : scan.components) {
+            if (scan.components.length > 1) {
+                c.codedWide = mcusWide() * c.h;
+                c.codedHigh = mcusHigh() * c.v;
+            } else {
+                c.codedWide = ((width * c.h + hMax - 1) / hMax + 7) / 8;
+                c.codedHigh = ((height * c.v + vMax - 1) / vMax + 7) / 8;
+            }
+        }
+    }
+
+    private int mcusWide() {
+        return (width + 8 * hMax - 1) / (8 * hMax);
+    }
+
+    private int mcusHigh() {
+        return (height + 8 * vMax - 1) / (8 * vMax);
+    }
+
+    private Component component(int id) {
+        for (Component c : components) if (c.id == id) return c;
+        throw new IllegalArgumentException("Scan names unknown component " + id);
+    }
+
+    // Decodes the entropy coded data starting at pos; returns where the next marker starts
+    private int decodeScan(Scan scan, byte[] data, int pos) {
+        BitReader in = new BitReader(data, pos);
+        int[] predictors = new int[scan.components.length];
+        int mcus = mcuCount(scan);
+        for (int m = 0; m < mcus; m++) {
+            if (scan.restartInterval > 0 && m > 0 && m % scan.restartInterval == 0) {
+                in.restart();
+                Arrays.fill(predictors, 0);
+            }
+            forEachBlock(scan, m, (i, offset) -> {
+                Component c = scan.components[i];
+                int s = in.decode(scan.dc[i]);
+                predictors[i] += in.receiveExtend(s);
+                coefficients[offset] = (short) predictors[i];
+                for (int k = 1; k < 64; ) {
+                    int rs = in.decode(scan.ac[i]);
+                    int r = rs >> 4;
+                    s = rs & 15;
+                    if (s == 0) {
+                        if (r != 15) break;
+                        k += 16;
+                        continue;
+                    }
+                    k += r;
+                    if (k > 63) throw new IllegalArgumentException("Corrupt JPEG: coefficient past the block in component " + c.id);
+                    coefficients[offset + k++] = (short) in.receiveExtend(s);
+                }
+            });
+        }
+        return in.nextMarker();
+    }
+
+    private void encodeScan(Scan scan, ByteArrayOutputStream sink) {
+        BitWriter out = new BitWriter(sink);
+        int[] predictors = new int[scan.components.length];
+        int mcus = mcuCount(scan);
+        int restarts = 0;
+        for (int m = 0; m < mcus; m++) {
+            if (scan.restartInterval > 0 && m > 0 && m % scan.restartInterval == 0) {
+                out.pad();
+                sink.write(0xFF);
+                sink.write(0xD0 + (restarts++ & 7));
+                Arrays.fill(predictors, 0);
+            }
+            forEachBlock(scan, m, (i, offset) -> {
+                int dc = coefficients[offset];
+                encodeValue(out, scan.dc[i], 0, dc - predictors[i]);
+                predictors[i] = dc;
+                int run = 0;
+                for (int k = 1; k < 64; k++) {
+                    int v = coefficients[offset + k];
+                    if (v == 0) {
+                        run++;
+                        continue;
+                    }
+                    for (; run > 15; run -= 16) out.code(scan.ac[i], 0xF0);
+                    encodeValue(out, scan.ac[i], run, v);
+                    run = 0;
+                }
+                if (run > 0) out.code(scan.ac[i], 0x00);
+            });
+        }
+        out.pad();
+    }
+
+    // Huffman symbol (run << 4 | size) then size bits of the value, negatives as value - 1
+    private static void encodeValue(BitWriter out, HuffmanTable table, int run, int value) {
+        int magnitude = Math.abs(value);
+        int size = magnitude == 0 ? 0 : 32 - Integer.numberOfLeadingZeros(magnitude);
+        out.code(table, run << 4 | size);
+        if (size > 0) out.bits(value < 0 ? value - 1 : value, size);
+    }
+
+    private interface BlockVisitor {
+        void visit(int scanComponent, int offset);
+    }
+
+    private int mcuCount(Scan scan) {
+        if (scan.components.length > 1) return mcusWide() * mcusHigh();
+        Component c = scan.components[0];
+        return c.codedWide * c.codedHigh;
+    }
+
+    // The blocks of MCU m in coding order
+    private void forEachBlock(Scan scan, int m, BlockVisitor visitor) {
+        if (scan.components.length == 1) {
+            Component c = scan.components[0];
+            visitor.visit(0, c.offset(m / c.codedWide, m % c.codedWide));
+            return;
+        }
+        int mx = m % mcusWide();
+        int my = m / mcusWide();
+        for (int i = 0; i < scan.components.length; i++) {
+            Component c = scan.components[i];
+            for (int y = 0; y < c.v; y++) {
+                for (int x = 0; x < c.h; x++) visitor.visit(i, c.offset(my * c.v + y, mx * c.h + x));
+            }
+        }
+    }
+
+    private static int u16(byte[] b, int i) {
+        return (b[i] & 0xFF) << 8 | (b[i + 1] & 0xFF);
+    }
+
+    /* -------------------------- Bit streams ----------------------- */
+
+    // Reads entropy coded bytes, undoing 0xFF00 stuffing; a marker reads as zero bits and is not passed
+    private static final class BitReader {
+        final byte[] data;
+        int pos;
+        long acc;
+        int bits;
+
+        BitReader(byte[] data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+
+        private void fill() {
+            while (bits <= 56) {
+                int b = 0;
+                if (pos < data.length) {
+                    b = data[pos] & 0xFF;
+                    if (b != 0xFF) {
+                        pos++;
+                    } else if (pos + 1 < data.length && data[pos + 1] == 0) {
+                        pos += 2;
+                    } else {
+                        b = 0; // marker
+                    }
+                }
+                acc = acc << 8 | b;
+                bits += 8;
+            }
+        }
+
+        int decode(HuffmanTable table) {
+            if (bits < 16) fill();
+            int peek = (int) (acc >>> (bits - HuffmanTable.LOOKUP_BITS)) & ((1 << HuffmanTable.LOOKUP_BITS) - 1);
+            int hit = table.lookup[peek];
+            if (hit != 0) {
+                bits -= hit >> 8;
+                return hit & 0xFF;
+            }
+            int code = 0;
+            for (int len = 1; len <= 16; len++) {
+                code = code << 1 | (int) (acc >>> --bits) & 1;
+                if (code <= table.maxCode[len]) return table.values[table.valPtr[len] + code - table.minCode[len]] & 0xFF;
+            }
+            throw new IllegalArgumentException("Corrupt JPEG: bad Huffman code");
+        }
+
+        int receiveExtend(int s) {
+            if (s == 0) return 0;
+            if (s > 16) throw new IllegalArgumentException("Corrupt JPEG: value size " + s);
+            if (bits < s) fill();
+            int v = (int) (acc >>> (bits - s)) & ((1 << s) - 1);
+            bits -= s;
+            return v < 1 << (s - 1) ? v - (1 << s) + 1 : v;
+        }
+
+        // Drops the padding bits and steps over the RSTn marker
+        void restart() {
+            acc = 0;
+            bits = 0;
+            pos = nextMarker();
+            int marker = pos + 1 < data.length ? data[pos + 1] & 0xFF : -1;
+            if (marker < 0xD0 || marker > 0xD7) throw new IllegalArgumentException("Corrupt JPEG: missing restart marker");
+            pos += 2;
+        }
+
+        int nextMarker() {
+            int p = pos;
+            while (p + 1 < data.length && ((data[p] & 0xFF) != 0xFF || data[p + 1] == 0 || (data[p + 1] & 0xFF) == 0xFF)) p++;
+            if (p + 1 >= data.length) throw new IllegalArgumentException("Truncated JPEG");
+            return p;
+        }
+    }
+
+    // Writes entropy coded bytes with 0xFF00 stuffing
+    private static final class BitWriter {
+        final ByteArrayOutputStream out;
+        long acc;
+        int bits;
+
+        BitWriter(ByteArrayOutputStream out) {
+            this.out = out;
+        }
+
+        void code(HuffmanTable table, int symbol) {
+            int size = table.size[symbol];
+            if (size == 0) {
+                throw new IllegalArgumentException("JPEG Huffman table has no code for symbol 0x" + Integer.toHexString(symbol));
+            }
+            bits(table.code[symbol], size);
+        }
+
+        void bits(int value, int count) {
+            acc = acc << count | (value & ((1L << count) - 1));
+            bits += count;
+            while (bits >= 8) {
+                int b = (int) (acc >>> (bits - 8)) & 0xFF;
+                out.write(b);
+                if (b == 0xFF) out.write(0);
+                bits -= 8;
+            }
+        }
+
+        // Fills the last byte with 1 bits
+        void pad() {
+            if (bits > 0) bits(0x7F, 8 - bits);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+
+// Hides payloads in the quantized DCT coefficients of a baseline JPEG, so a JPEG carrier comes
+// out as a JPEG of nearly the same size instead of a PNG ten times larger.
+//
+// A slot is an AC coefficient whose magnitude is 2 or more, and it carries one bit in the low
+// bit of that magnitude. Flipping it keeps the magnitude at 2 or more and in the same JPEG
+// size category, so the set of slots survives embedding and every Huffman symbol stays the
+// same: only the extra bits after them change, and the file is re-coded with its own tables.
+//
+// Slots are numbered component by component, block by block, in zigzag order. The length
+// header and HeaderSeal go in the first slots, with mode MODE_EXPLICIT | MODE_SEALED (1 bit
+// per slot, no alpha), the payload in the slots after them: in order, or with a passphrase,
+// in the order PixelPermutation gives and MODE_SCATTERED set, as for pixels.
+public class JpegEmbedder {
+    public static void encode(String jpegPath, BitBuffer data, String outputPath, int headerBits,
+                              PayloadCipher.Passphrase passphrase) throws IOException {
+        byte[] jpeg = Files.readAllBytes(Paths.get(jpegPath));
+        byte[] out = embed(jpeg, data, headerBits, passphrase);
+        long t = Instrumentation.start();
+        Files.write(Paths.get(outputPath), out);
+        Instrumentation.stop(Metrics.Stage.IMAGE_WRITE, t);
+        Instrumentation.add(Metrics.Counter.IMAGES_WRITTEN, 1);
+    }
+
+    // The JPEG with header + data in its coefficients
+    public static byte[] embed(byte[] jpeg, BitBuffer data, int headerBits, PayloadCipher.Passphrase passphrase) {
+        if (headerBits != 64 && headerBits != 128) {
+            throw new IllegalArgumentException("headerBits must be 64 or 128");
+        }
+        JpegCoefficients coefficients = read(jpeg);
+        int[] slots = slots(coefficients);
+        int prefixBits = CapacityPlanner.prefixBits(headerBits);
+        long messageLength = data.length();
+        if (messageLength > Math.max(0, slots.length - prefixBits) || messageLength > CapacityPlanner.MAX_LENGTH) {
+            throw new IllegalArgumentException("Message too long for this JPEG. Capacity: " +
+                Math.max(0, slots.length - prefixBits) + " bits, needed: " + messageLength + " bits");
+        }
+
+        int mode = CapacityPlanner.MODE_EXPLICIT | CapacityPlanner.MODE_SEALED
+            | (passphrase != null ? CapacityPlanner.MODE_SCATTERED : 0);
+        BitBuffer header = new BitBuffer(prefixBits);
+        EncodeBinary.writeHeader(header, messageLength, headerBits, mode);
+
+        long t = Instrumentation.start();
+        short[] c = coefficients.coefficients;
+        for (int i = 0; i < prefixBits; i++) set(c, slots[i], (int) header.getBits(i, 1));
+        PixelPermutation scatter = scatter(slots.length - prefixBits, passphrase);
+        for (long i = 0; i < messageLength; i++) {
+            long slot = prefixBits + (scatter == null ? i : scatter.map(i));
+            set(c, slots[(int) slot], (int) data.getBits(i, 1));
+        }
+        Instrumentation.stop(Metrics.Stage.BIT_EMBED, t);
+        Instrumentation.add(Metrics.Counter.BITS_EMBEDDED, prefixBits + messageLength);
+        return coefficients.write();
+    }
+
+    // Payload bits the JPEG can hold
+    public static long capacity(byte[] jpeg, int headerBits) {
+        return Math.max(0, slots(read(jpeg)).length - CapacityPlanner.prefixBits(headerBits));
+    }
+
+    public static BitBuffer decodeBits(String jpegPath, int headerBits, PayloadCipher.Passphrase passphrase) throws IOException {
+        return decodeBits(Files.readAllBytes(Paths.get(jpegPath)), headerBits, passphrase);
+    }
+
+    // Rejections are the same as for pixel carriers; a JPEG this class cannot parse is unreadable
+    public static BitBuffer decodeBits(byte[] jpeg, int headerBits, PayloadCipher.Passphrase passphrase) {
+        JpegCoefficients coefficients = readCarrier(jpeg);
+        int[] slots = slots(coefficients);
+        short[] c = coefficients.coefficients;
+        long raw = readHeader(c, slots, headerBits);
+        long length = raw & CapacityPlanner.MAX_LENGTH;
+        int prefixBits = CapacityPlanner.prefixBits(headerBits);
+        boolean scattered = CapacityPlanner.isScattered((int) (raw >>> 56));
+        if (scattered && passphrase == null) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.PASSWORD_REQUIRED, "payload coefficients are scattered with a key");
+        }
+
+        long t = Instrumentation.start();
+        BitBuffer message = new BitBuffer(length);
+        PixelPermutation scatter = scattered ? scatter(slots.length - prefixBits, passphrase) : null;
+        for (long i = 0; i < length; i++) {
+            long slot = prefixBits + (scatter == null ? i : scatter.map(i));
+            message.writeBits(Math.abs(c[slots[(int) slot]]) & 1, 1);
+        }
+        Instrumentation.stop(Metrics.Stage.BIT_EXTRACT, t);
+        Instrumentation.add(Metrics.Counter.BITS_EXTRACTED, length);
+        if (scattered && !StegoContainer.isContainer(message, 0)) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.BAD_PASSWORD, "scattered payload does not gather into a container");
+        }
+        return message;
+    }
+
+    // Payload bits in the JPEG, checking only the header and seal
+    static long probe(byte[] jpeg, int headerBits) {
+        JpegCoefficients coefficients = readCarrier(jpeg);
+        return readHeader(coefficients.coefficients, slots(coefficients), headerBits) & CapacityPlanner.MAX_LENGTH;
+    }
+
+    static boolean isJpeg(String path) {
+        return JpegCoefficients.isJpeg(new File(path));
+    }
+
+    // Whether an output path asks for a JPEG
+    static boolean isJpegName(String path) {
+        String format = SteganographyHelper.getImageFormat(path).toLowerCase(Locale.ROOT);
+        return format.equals("jpg") || format.equals("jpeg");
+    }
+
+    /* -------------------------- Internals ------------------------- */
+
+    private static JpegCoefficients read(byte[] jpeg) {
+        long t = Instrumentation.start();
+        JpegCoefficients coefficients = JpegCoefficients.read(jpeg);
+        Instrumentation.stop(Metrics.Stage.IMAGE_READ, t);
+        Instrumentation.add(Metrics.Counter.IMAGES_READ, 1);
+        return coefficients;
+    }
+
+    private static JpegCoefficients readCarrier(byte[] jpeg) {
+        try {
+            return read(jpeg);
+        } catch (IllegalArgumentException e) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.UNREADABLE_IMAGE, e.getMessage(), e);
+        }
+    }
+
+    // The length word (mode byte and length) once it passes the checks DecodeBinary makes of a pixel header
+    private static long readHeader(short[] c, int[] slots, int headerBits) {
+        int prefixBits = CapacityPlanner.prefixBits(headerBits);
+        if (slots.length < prefixBits) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.IMAGE_TOO_SMALL,
+                "JPEG holds " + slots.length + " bits, sealed header needs " + prefixBits);
+        }
+        BitBuffer prefix = new BitBuffer(prefixBits);
+        for (int i = 0; i < prefixBits; i++) prefix.writeBits(Math.abs(c[slots[i]]) & 1, 1);
+        long raw = DecodeBinary.readLength(prefix, headerBits);
+
+        int mode = (int) (raw >>> 56) & ~CapacityPlanner.MODE_SCATTERED;
+        if (mode != (CapacityPlanner.MODE_EXPLICIT | CapacityPlanner.MODE_SEALED)) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.UNKNOWN_MODE, "mode byte 0x" + Integer.toHexString((int) (raw >>> 56)));
+        }
+        String mismatch = HeaderSeal.check(prefix, headerBits);
+        if (mismatch != null) throw Instrumentation.reject(NoHiddenMessageException.Reason.BAD_SEAL, mismatch);
+
+        long length = raw & CapacityPlanner.MAX_LENGTH;
+        if (length <= 0) throw Instrumentation.reject(NoHiddenMessageException.Reason.EMPTY_PAYLOAD, null);
+        if (length % 8 != 0) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.LENGTH_NOT_BYTE_ALIGNED, length + " bits");
+        }
+        if (length > slots.length - prefixBits) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.LENGTH_EXCEEDS_CAPACITY,
+                length + " bits, JPEG holds " + (slots.length - prefixBits));
+        }
+        return raw;
+    }
+
+    // Indexes into coefficients of every slot, in slot order
+    private static int[] slots(JpegCoefficients jpeg) {
+        short[] c = jpeg.coefficients;
+        int[] slots = new int[Math.max(16, c.length / 16)];
+        int n = 0;
+        for (JpegCoefficients.Component component : jpeg.components) {
+            for (int by = 0; by < component.codedHigh; by++) {
+                for (int bx = 0; bx < component.codedWide; bx++) {
+                    int offset = component.offset(by, bx);
+                    for (int k = offset + 1; k < offset + 64; k++) {
+                        if (c[k] < 2 && c[k] > -2) continue;
+                        if (n == slots.length) slots = Arrays.copyOf(slots, n * 2);
+                        slots[n++] = k;
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(slots, n);
+    }
+
+    private static PixelPermutation scatter(long size, PayloadCipher.Passphrase passphrase) {
+        return passphrase == null || size < 1 ? null : new PixelPermutation(size, passphrase.scatterSeed());
+    }
+
+    private static void set(short[] c, int index, int bit) {
+        int v = c[index];
+        int magnitude = (Math.abs(v) & ~1) | bit;
+        c[index] = (short) (v < 0 ? -magnitude : magnitude);
+    }
+}
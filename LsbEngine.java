@@ -0,0 +1,522 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// LSB embedding that works on the raster's backing array instead of getRGB/setRGB.
+//
+// By default bit slot i of an image is the LSB of channel (i % 3) of pixel (i / 3), channels
+// in R, G, B order and pixels in raster order - the layout EncodeBinary has always used.
+// A Layout can widen that to k LSBs per channel, add the alpha channel and start at a later
+// pixel; each pixel then carries k * channels slots, channel by channel, high bit first.
+// A scattered Layout also moves payload pixel i to firstPixel + scatter.map(i).
+public class LsbEngine {
+    private static final int GROUP_PIXELS = 21; // 21 pixels * 3 bits = 63 bits per BitBuffer access
+    private static final int GROUP_BITS = GROUP_PIXELS * 3;
+
+    // Spread 3 payload bits (R, G, B from high to low) onto the channel LSBs of a packed int pixel
+    private static final int[] SPREAD = new int[8];
+    static {
+        for (int v = 0; v < 8; v++) {
+            SPREAD[v] = ((v >> 2) & 1) << 16 | ((v >> 1) & 1) << 8 | (v & 1);
+        }
+    }
+    private static final int LSB_MASK = 0x010101;
+
+    // Below this many bits a single thread is faster than forking
+    static final long PARALLEL_THRESHOLD_BITS = 1L << 22;
+    private static final long MIN_STRIPE_BITS = 1L << 20;
+
+    // Random access to payload bits; BitBuffer::getBits is one
+    interface BitSource {
+        long getBits(long index, int count);
+    }
+
+    // Returns an image whose pixels sit in a compact int[] (TYPE_INT_RGB / TYPE_INT_ARGB) or
+    // byte[] (TYPE_3BYTE_BGR). Anything else is converted once, keeping the exact RGB values.
+    public static BufferedImage normalize(BufferedImage image) {
+        if (isCompact(image)) return image;
+
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage out = new BufferedImage(w, h, type);
+        int[] pixels = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < h; y++) {
+            image.getRGB(0, y, w, 1, pixels, y * w, w);
+        }
+        return out;
+    }
+
+    // How payload bits are laid out in the pixels
+    public static final class Layout {
+        public static final Layout DEFAULT = new Layout(1, false, 0);
+
+        public final int bitsPerChannel;     // 1 to 4
+        public final boolean alpha;          // also use the alpha channel
+        public final long firstPixel;        // slot 0 is in this pixel
+        public final PixelPermutation scatter; // payload pixel order past firstPixel; null for raster order
+
+        public Layout(int bitsPerChannel, boolean alpha, long firstPixel) {
+            this(bitsPerChannel, alpha, firstPixel, null);
+        }
+
+        public Layout(int bitsPerChannel, boolean alpha, long firstPixel, PixelPermutation scatter) {
+            if (bitsPerChannel < 1 || bitsPerChannel > 4) {
+                throw new IllegalArgumentException("bitsPerChannel must be between 1 and 4");
+            }
+            if (firstPixel < 0) throw new IllegalArgumentException("firstPixel must not be negative");
+            this.bitsPerChannel = bitsPerChannel;
+            this.alpha = alpha;
+            this.firstPixel = firstPixel;
+            this.scatter = scatter;
+        }
+
+        // The same layout over all pixels from firstPixel to the end of an image of the given size
+        public Layout scattered(long imagePixels, long seed) {
+            return new Layout(bitsPerChannel, alpha, firstPixel, new PixelPermutation(imagePixels - firstPixel, seed));
+        }
+
+        public boolean isScattered() {
+            return scatter != null;
+        }
+
+        // Pixel holding payload pixel i
+        long pixel(long i) {
+            return firstPixel + (scatter == null ? i : scatter.map(i));
+        }
+
+        public int channels() {
+            return alpha ? 4 : 3;
+        }
+
+        public int bitsPerPixel() {
+            return bitsPerChannel * channels();
+        }
+
+        boolean isDefault() {
+            return bitsPerChannel == 1 && !alpha && firstPixel == 0 && scatter == null;
+        }
+    }
+
+    public static long capacity(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight() * 3;
+    }
+
+    public static long capacity(BufferedImage image, Layout layout) {
+        return Math.max(0, (long) image.getWidth() * image.getHeight() - layout.firstPixel) * layout.bitsPerPixel();
+    }
+
+    // Writes bits [from, to) of the buffer into bit slots [from, to) of a normalized image
+    public static void embed(BufferedImage image, BitBuffer bits, long from, long to) {
+        embed(image, Layout.DEFAULT, bits, from, to);
+    }
+
+    public static void embed(BufferedImage image, Layout layout, BitBuffer bits, long from, long to) {
+        checkRange(image, layout, from, to);
+        boolean bytes = image.getType() == BufferedImage.TYPE_3BYTE_BGR;
+        if (!layout.isDefault()) {
+            embedLayout(image, layout, bits, from, to);
+        } else if (bytes) {
+            embedBytes(data(image), bits, from, to);
+        } else {
+            embedInts(pixels(image), bits, from, to);
+        }
+    }
+
+    // Appends bit slots [from, to) of a normalized image to the buffer
+    public static void extract(BufferedImage image, long from, long to, BitBuffer out) {
+        extract(image, Layout.DEFAULT, from, to, out);
+    }
+
+    public static void extract(BufferedImage image, Layout layout, long from, long to, BitBuffer out) {
+        checkRange(image, layout, from, to);
+        boolean bytes = image.getType() == BufferedImage.TYPE_3BYTE_BGR;
+        if (!layout.isDefault()) {
+            extractLayout(image, layout, from, to, out);
+        } else if (bytes) {
+            extractBytes(data(image), from, to, out);
+        } else {
+            extractInts(pixels(image), from, to, out);
+        }
+    }
+
+    // Same result as embed(), with row stripes filled concurrently on the pool
+    public static void embedParallel(BufferedImage image, BitBuffer bits, long from, long to) {
+        embedParallel(image, Layout.DEFAULT, bits, from, to, ForkJoinPool.commonPool());
+    }
+
+    public static void embedParallel(BufferedImage image, Layout layout, BitBuffer bits, long from, long to) {
+        embedParallel(image, layout, bits, from, to, ForkJoinPool.commonPool());
+    }
+
+    public static void embedParallel(BufferedImage image, Layout layout, BitBuffer bits, long from, long to, ForkJoinPool pool) {
+        checkRange(image, layout, from, to);
+        if (to - from < PARALLEL_THRESHOLD_BITS) {
+            embed(image, layout, bits, from, to);
+            return;
+        }
+        long stripeBits = stripeBits(image, layout);
+        pool.invoke(new StripeTask(image, layout, bits, null, from / stripeBits, stripeBits, from, to));
+    }
+
+    // Same result as extract(); stripes are read concurrently and appended in order
+    public static void extractParallel(BufferedImage image, long from, long to, BitBuffer out) {
+        extractParallel(image, Layout.DEFAULT, from, to, out, ForkJoinPool.commonPool());
+    }
+
+    public static void extractParallel(BufferedImage image, Layout layout, long from, long to, BitBuffer out) {
+        extractParallel(image, layout, from, to, out, ForkJoinPool.commonPool());
+    }
+
+    public static void extractParallel(BufferedImage image, Layout layout, long from, long to, BitBuffer out, ForkJoinPool pool) {
+        checkRange(image, layout, from, to);
+        if (to - from < PARALLEL_THRESHOLD_BITS) {
+            extract(image, layout, from, to, out);
+            return;
+        }
+        long stripeBits = stripeBits(image, layout);
+        long firstStripe = from / stripeBits;
+        BitBuffer[] stripes = new BitBuffer[(int) ((to - 1) / stripeBits - firstStripe + 1)];
+        pool.invoke(new StripeTask(image, layout, null, stripes, firstStripe, stripeBits, from, to));
+        for (BitBuffer stripe : stripes) out.append(stripe);
+    }
+
+    // Splits [from, to) on stripe boundaries (whole pixels) until each task covers one stripe
+    private static class StripeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final BufferedImage image;
+        final Layout layout;
+        final BitBuffer source;      // embed from here when set
+        final BitBuffer[] stripes;   // otherwise extract into stripes[stripe - baseStripe]
+        final long baseStripe;
+        final long stripeBits;
+        final long from;
+        final long to;
+
+        StripeTask(BufferedImage image, Layout layout, BitBuffer source, BitBuffer[] stripes, long baseStripe, long stripeBits, long from, long to) {
+            this.image = image;
+            this.layout = layout;
+            this.source = source;
+            this.stripes = stripes;
+            this.baseStripe = baseStripe;
+            this.stripeBits = stripeBits;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            long firstStripe = from / stripeBits;
+            long lastStripe = (to - 1) / stripeBits;
+
+            if (firstStripe == lastStripe) {
+                if (source != null) {
+                    embed(image, layout, source, from, to);
+                } else {
+                    BitBuffer out = new BitBuffer(to - from);
+                    extract(image, layout, from, to, out);
+                    stripes[(int) (firstStripe - baseStripe)] = out;
+                }
+                return;
+            }
+
+            long mid = (firstStripe + (lastStripe - firstStripe + 1) / 2) * stripeBits;
+            invokeAll(new StripeTask(image, layout, source, stripes, baseStripe, stripeBits, from, mid),
+                      new StripeTask(image, layout, source, stripes, baseStripe, stripeBits, mid, to));
+        }
+    }
+
+    /* -------------------------- Packed int pixels (0xAARRGGBB) ------------------------- */
+
+    private static void embedInts(int[] pixels, BitBuffer bits, long from, long to) {
+        long slot = from;
+        // Unaligned head, one slot at a time
+        for (; slot < to && slot % 3 != 0; slot++) setIntSlot(pixels, slot, bits.getBit(slot));
+
+        int p = (int) (slot / 3);
+        for (; slot + GROUP_BITS <= to; slot += GROUP_BITS) {
+            long word = bits.getBits(slot, GROUP_BITS);
+            for (int shift = GROUP_BITS - 3; shift >= 0; shift -= 3, p++) {
+                pixels[p] = (pixels[p] & ~LSB_MASK) | SPREAD[(int) (word >>> shift) & 7];
+            }
+        }
+        for (; slot + 3 <= to; slot += 3, p++) {
+            pixels[p] = (pixels[p] & ~LSB_MASK) | SPREAD[(int) bits.getBits(slot, 3)];
+        }
+
+        // Partial last pixel only touches the channels that carry data
+        for (; slot < to; slot++) setIntSlot(pixels, slot, bits.getBit(slot));
+    }
+
+    private static void extractInts(int[] pixels, long from, long to, BitBuffer out) {
+        long slot = from;
+        for (; slot < to && slot % 3 != 0; slot++) out.writeBit(getIntSlot(pixels, slot));
+
+        int p = (int) (slot / 3);
+        for (; slot + GROUP_BITS <= to; slot += GROUP_BITS) {
+            long word = 0;
+            for (int i = 0; i < GROUP_PIXELS; i++, p++) {
+                int px = pixels[p];
+                word = (word << 3) | ((px >> 14) & 4) | ((px >> 7) & 2) | (px & 1);
+            }
+            out.writeBits(word, GROUP_BITS);
+        }
+        for (; slot < to; slot++) out.writeBit(getIntSlot(pixels, slot));
+    }
+
+    private static void setIntSlot(int[] pixels, long slot, int bit) {
+        int p = (int) (slot / 3);
+        int shift = 16 - 8 * (int) (slot % 3);
+        pixels[p] = (pixels[p] & ~(1 << shift)) | ((bit & 1) << shift);
+    }
+
+    private static int getIntSlot(int[] pixels, long slot) {
+        return (pixels[(int) (slot / 3)] >> (16 - 8 * (int) (slot % 3))) & 1;
+    }
+
+    /* -------------------------- Interleaved bytes (B, G, R) ------------------------- */
+
+    // Slot order is R, G, B but memory order is B, G, R, so slot s lives at byte 3p + 2 - s % 3
+    private static int byteIndex(long slot) {
+        return (int) (slot - slot % 3 + 2 - slot % 3);
+    }
+
+    private static void embedBytes(byte[] data, BitBuffer bits, long from, long to) {
+        long slot = from;
+        for (; slot < to && slot % 3 != 0; slot++) setByteSlot(data, slot, bits.getBit(slot));
+
+        int i = (int) slot; // byte index of the pixel's B sample
+        for (; slot + GROUP_BITS <= to; slot += GROUP_BITS) {
+            long word = bits.getBits(slot, GROUP_BITS);
+            for (int shift = GROUP_BITS - 3; shift >= 0; shift -= 3, i += 3) {
+                int v = (int) (word >>> shift);
+                data[i] = (byte) ((data[i] & 0xFE) | (v & 1));
+                data[i + 1] = (byte) ((data[i + 1] & 0xFE) | ((v >> 1) & 1));
+                data[i + 2] = (byte) ((data[i + 2] & 0xFE) | ((v >> 2) & 1));
+            }
+        }
+        for (; slot < to; slot++) setByteSlot(data, slot, bits.getBit(slot));
+    }
+
+    private static void extractBytes(byte[] data, long from, long to, BitBuffer out) {
+        long slot = from;
+        for (; slot < to && slot % 3 != 0; slot++) out.writeBit(data[byteIndex(slot)]);
+
+        int i = (int) slot;
+        for (; slot + GROUP_BITS <= to; slot += GROUP_BITS) {
+            long word = 0;
+            for (int k = 0; k < GROUP_PIXELS; k++, i += 3) {
+                word = (word << 3) | ((data[i + 2] & 1) << 2) | ((data[i + 1] & 1) << 1) | (data[i] & 1);
+            }
+            out.writeBits(word, GROUP_BITS);
+        }
+        for (; slot < to; slot++) out.writeBit(data[byteIndex(slot)]);
+    }
+
+    private static void setByteSlot(byte[] data, long slot, int bit) {
+        int i = byteIndex(slot);
+        data[i] = (byte) ((data[i] & 0xFE) | (bit & 1));
+    }
+
+    /* -------------------------- Any layout, one pixel at a time ------------------------- */
+
+    // Channel positions in slot order (R, G, B, A): bit shift inside a packed int pixel
+    private static final int[] INT_SHIFT = {16, 8, 0, 24};
+
+    private static void embedLayout(BufferedImage image, Layout layout, BitBuffer bits, long from, long to) {
+        int k = layout.bitsPerChannel;
+        int channels = layout.channels();
+        int bpp = layout.bitsPerPixel();
+        int valueMask = (1 << k) - 1;
+        boolean bytes = image.getType() == BufferedImage.TYPE_3BYTE_BGR;
+        int[] pixels = bytes ? null : pixels(image);
+        byte[] data = bytes ? data(image) : null;
+
+        int pixelMask = 0;
+        for (int c = 0; c < channels; c++) pixelMask |= valueMask << INT_SHIFT[c];
+
+        long slot = from;
+        for (; slot < to && slot % bpp != 0; slot++) setLayoutSlot(pixels, data, layout, slot, bits.getBit(slot));
+
+        for (long payloadPixel = slot / bpp; slot + bpp <= to; slot += bpp, payloadPixel++) {
+            long p = layout.pixel(payloadPixel);
+            int v = (int) bits.getBits(slot, bpp);
+            if (bytes) {
+                int i = (int) p * 3;
+                for (int c = 0; c < 3; c++) {
+                    int sample = (v >>> ((2 - c) * k)) & valueMask;
+                    data[i + 2 - c] = (byte) ((data[i + 2 - c] & ~valueMask) | sample);
+                }
+            } else {
+                int spread = 0;
+                for (int c = 0; c < channels; c++) {
+                    spread |= ((v >>> ((channels - 1 - c) * k)) & valueMask) << INT_SHIFT[c];
+                }
+                pixels[(int) p] = (pixels[(int) p] & ~pixelMask) | spread;
+            }
+        }
+        for (; slot < to; slot++) setLayoutSlot(pixels, data, layout, slot, bits.getBit(slot));
+    }
+
+    private static void extractLayout(BufferedImage image, Layout layout, long from, long to, BitBuffer out) {
+        int k = layout.bitsPerChannel;
+        int channels = layout.channels();
+        int bpp = layout.bitsPerPixel();
+        int valueMask = (1 << k) - 1;
+        boolean bytes = image.getType() == BufferedImage.TYPE_3BYTE_BGR;
+        int[] pixels = bytes ? null : pixels(image);
+        byte[] data = bytes ? data(image) : null;
+
+        long slot = from;
+        for (; slot < to && slot % bpp != 0; slot++) out.writeBit(getLayoutSlot(pixels, data, layout, slot));
+
+        for (long payloadPixel = slot / bpp; slot + bpp <= to; slot += bpp, payloadPixel++) {
+            long p = layout.pixel(payloadPixel);
+            int v = 0;
+            if (bytes) {
+                int i = (int) p * 3;
+                for (int c = 0; c < 3; c++) v = (v << k) | (data[i + 2 - c] & valueMask);
+            } else {
+                int px = pixels[(int) p];
+                for (int c = 0; c < channels; c++) v = (v << k) | ((px >>> INT_SHIFT[c]) & valueMask);
+            }
+            out.writeBits(v, bpp);
+        }
+        for (; slot < to; slot++) out.writeBit(getLayoutSlot(pixels, data, layout, slot));
+    }
+
+    private static void setLayoutSlot(int[] pixels, byte[] data, Layout layout, long slot, int bit) {
+        int bpp = layout.bitsPerPixel();
+        int p = (int) layout.pixel(slot / bpp);
+        int o = (int) (slot % bpp);
+        int c = o / layout.bitsPerChannel;
+        int shift = layout.bitsPerChannel - 1 - o % layout.bitsPerChannel;
+        if (data != null) {
+            int i = p * 3 + 2 - c;
+            data[i] = (byte) ((data[i] & ~(1 << shift)) | ((bit & 1) << shift));
+        } else {
+            shift += INT_SHIFT[c];
+            pixels[p] = (pixels[p] & ~(1 << shift)) | ((bit & 1) << shift);
+        }
+    }
+
+    private static int getLayoutSlot(int[] pixels, byte[] data, Layout layout, long slot) {
+        int bpp = layout.bitsPerPixel();
+        int p = (int) layout.pixel(slot / bpp);
+        int o = (int) (slot % bpp);
+        int c = o / layout.bitsPerChannel;
+        int shift = layout.bitsPerChannel - 1 - o % layout.bitsPerChannel;
+        if (data != null) return (data[p * 3 + 2 - c] >> shift) & 1;
+        return (pixels[p] >>> (shift + INT_SHIFT[c])) & 1;
+    }
+
+    /* -------------------------- Scattered layouts, a stripe at a time ------------------------- */
+
+    // stripe holds carrier pixels [stripeStart, stripeStart + count) as 0xAARRGGBB. Each of them
+    // finds its payload bits through the inverse permutation, so stripes can come in any order
+    // and only one stripe of the carrier is ever needed. Pixels past the payload are left alone
+    static void embedStripe(int[] stripe, int count, long stripeStart, Layout layout, BitSource bits, long length) {
+        int bpp = layout.bitsPerPixel();
+        for (long q = Math.max(stripeStart, layout.firstPixel); q < stripeStart + count; q++) {
+            long slot = layout.scatter.unmap(q - layout.firstPixel) * bpp;
+            if (slot >= length) continue;
+            int n = (int) Math.min(bpp, length - slot);
+            int mask = pixelMask(layout, n);
+            int spread = spread(layout, (int) bits.getBits(slot, n) << (bpp - n));
+            int i = (int) (q - stripeStart);
+            stripe[i] = (stripe[i] & ~mask) | (spread & mask);
+        }
+    }
+
+    // Writes the payload bits held by the stripe's pixels into out, which is length bits long
+    static void extractStripe(int[] stripe, int count, long stripeStart, Layout layout, long length, BitBuffer out) {
+        int bpp = layout.bitsPerPixel();
+        for (long q = Math.max(stripeStart, layout.firstPixel); q < stripeStart + count; q++) {
+            long slot = layout.scatter.unmap(q - layout.firstPixel) * bpp;
+            if (slot >= length) continue;
+            int n = (int) Math.min(bpp, length - slot);
+            out.setBits(slot, gather(layout, stripe[(int) (q - stripeStart)]) >>> (bpp - n), n);
+        }
+    }
+
+    // bitsPerPixel payload bits, high bit first, onto the channel LSBs of a packed int pixel
+    private static int spread(Layout layout, int v) {
+        int k = layout.bitsPerChannel;
+        int channels = layout.channels();
+        int valueMask = (1 << k) - 1;
+        int spread = 0;
+        for (int c = 0; c < channels; c++) spread |= ((v >>> ((channels - 1 - c) * k)) & valueMask) << INT_SHIFT[c];
+        return spread;
+    }
+
+    private static int gather(Layout layout, int px) {
+        int k = layout.bitsPerChannel;
+        int valueMask = (1 << k) - 1;
+        int v = 0;
+        for (int c = 0; c < layout.channels(); c++) v = (v << k) | ((px >>> INT_SHIFT[c]) & valueMask);
+        return v;
+    }
+
+    // Pixel bits holding the first n slots of a pixel
+    private static int pixelMask(Layout layout, int n) {
+        int k = layout.bitsPerChannel;
+        int mask = 0;
+        for (int o = 0; o < n; o++) mask |= 1 << (INT_SHIFT[o / k] + k - 1 - o % k);
+        return mask;
+    }
+
+    /* -------------------------- Internals ------------------------- */
+
+    static boolean isCompact(BufferedImage image) {
+        Raster raster = image.getRaster();
+        if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0) return false;
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                return ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == image.getWidth()
+                    && raster.getDataBuffer().getOffset() == 0;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride() == image.getWidth() * 3
+                    && raster.getDataBuffer().getOffset() == 0;
+            default:
+                return false;
+        }
+    }
+
+    // Whole rows' worth of slots adding up to at least MIN_STRIPE_BITS; always whole pixels,
+    // so no two stripes touch the same pixel
+    private static long stripeBits(BufferedImage image, Layout layout) {
+        long rowBits = (long) image.getWidth() * layout.bitsPerPixel();
+        return Math.max(1, MIN_STRIPE_BITS / rowBits) * rowBits;
+    }
+
+    static int[] pixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    static byte[] data(BufferedImage image) {
+        return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    }
+
+    private static void checkRange(BufferedImage image, Layout layout, long from, long to) {
+        if (!isCompact(image)) {
+            throw new IllegalArgumentException("Image must be normalized first");
+        }
+        if (layout.alpha && image.getType() != BufferedImage.TYPE_INT_ARGB) {
+            throw new IllegalArgumentException("Alpha embedding needs an image with an alpha channel");
+        }
+        if (layout.isScattered() && layout.scatter.size() != (long) image.getWidth() * image.getHeight() - layout.firstPixel) {
+            throw new IllegalArgumentException("Scattered layout was made for a different image size");
+        }
+        long capacity = capacity(image, layout);
+        if (from < 0 || to < from || to > capacity) {
+            throw new IllegalArgumentException("Bit range [" + from + ", " + to + ") outside image capacity " + capacity);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+// Byte-oriented LZ77 in the style of LZ4: no entropy coding, so it is the fastest codec that
+// still removes repeats, which Huffman (order-0) cannot.
+//
+// Stream: [length:32][compressed length:32][sequences]. A sequence is a token byte (literal
+// count in the high nibble, match length - 4 in the low one, 15 meaning more length bytes
+// follow, each adding up to 255), the literals, then a 2-byte little-endian match offset and
+// any extra match length bytes. The last sequence has literals only.
+public class LzCodec implements PayloadCodec {
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 14;
+    private static final int MAX_RATIO = 255; // bytes out per packed byte: a match length extension byte
+
+    public int id() {
+        return StegoContainer.CODEC_LZ;
+    }
+
+    public String name() {
+        return "lz";
+    }
+
+    public void compress(byte[] data, int offset, int length, BitBuffer out) {
+        byte[] packed = new byte[length + length / 255 + 16];
+        int n = compress(data, offset, length, packed);
+        out.writeBits(length, 32);
+        out.writeBits(n, 32);
+        out.writeBytes(packed, 0, n);
+    }
+
+    public byte[] decompress(BitBuffer in) {
+        // Check the lengths before trusting them with an allocation
+        long length = Codecs.readLength(in, "lz");
+        long packedLength = Codecs.readLength(in, "lz packed");
+        byte[] packed = new byte[Codecs.checkedLength(packedLength, in.remaining() / 8, "lz packed")];
+        byte[] data = new byte[Codecs.checkedLength(length, packedLength * MAX_RATIO, "lz")];
+        in.readBytes(packed, 0, packed.length);
+        decompress(packed, data);
+        return data;
+    }
+
+    public long declaredLength(BitBuffer in) {
+        return Codecs.leadingLength(in);
+    }
+
+    // Returns the bytes written to dst
+    static int compress(byte[] src, int offset, int length, byte[] dst) {
+        int[] table = new int[1 << HASH_BITS]; // position + 1 of the last 4 bytes with that hash
+        int end = offset + length;
+        int anchor = offset;
+        int ip = offset;
+        int op = 0;
+
+        while (ip + MIN_MATCH <= end) {
+            int sequence = read32(src, ip);
+            int h = (sequence * 0x9E3779B1) >>> (32 - HASH_BITS);
+            int ref = table[h] - 1;
+            table[h] = ip + 1;
+            if (ref < offset || ip - ref > MAX_OFFSET || read32(src, ref) != sequence) {
+                ip++;
+                continue;
+            }
+
+            int match = MIN_MATCH;
+            while (ip + match < end && src[ref + match] == src[ip + match]) match++;
+            op = sequence(src, anchor, ip - anchor, ip - ref, match, dst, op);
+            ip += match;
+            anchor = ip;
+        }
+        return sequence(src, anchor, end - anchor, 0, 0, dst, op);
+    }
+
+    static void decompress(byte[] src, byte[] dst) {
+        int ip = 0;
+        int op = 0;
+        try {
+            while (true) {
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (op == dst.length) break;
+
+                int distance = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+                ip += 2;
+                int match = (token & 15) + MIN_MATCH;
+                if ((token & 15) == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        match += b;
+                    } while (b == 255);
+                }
+                if (distance == 0 || distance > op || op + match > dst.length) {
+                    throw new IllegalArgumentException("Corrupt LZ stream");
+                }
+                // Byte by byte: a match may overlap the bytes it is producing
+                for (int i = 0; i < match; i++, op++) dst[op] = dst[op - distance];
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Corrupt LZ stream", e);
+        }
+        if (ip != src.length) throw new IllegalArgumentException("Corrupt LZ stream");
+    }
+
+    // Writes one sequence; match == 0 writes the closing literals-only sequence
+    private static int sequence(byte[] src, int from, int literals, int distance, int match, byte[] dst, int op) {
+        int extra = match == 0 ? 0 : match - MIN_MATCH;
+        dst[op++] = (byte) (Math.min(literals, 15) << 4 | Math.min(extra, 15));
+        op = length(literals, dst, op);
+        System.arraycopy(src, from, dst, op, literals);
+        op += literals;
+        if (match == 0) return op;
+
+        dst[op++] = (byte) distance;
+        dst[op++] = (byte) (distance >>> 8);
+        return length(extra, dst, op);
+    }
+
+    // Continuation bytes for a nibble that overflowed
+    private static int length(int value, byte[] dst, int op) {
+        if (value < 15) return op;
+        value -= 15;
+        for (; value >= 255; value -= 255) dst[op++] = (byte) 255;
+        dst[op++] = (byte) value;
+        return op;
+    }
+
+    private static int read32(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | b[i + 3] << 24;
+    }
+}
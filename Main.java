@@ -1,7 +1,24 @@
+import java.awt.image.BufferedImage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Scanner;
 
 public class Main {
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("batch")) {
+            BatchRunner.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("serve")) {
+            StegoServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("scan")) {
+            CarrierScanner.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         Scanner sc = new Scanner(System.in);
         while (true) {
             System.out.println("\nyour secrets are safe here\n");
@@ -21,15 +38,36 @@ public class Main {
                     String imgPath = sc.nextLine();
                     System.out.print("Enter secret text: ");
                     String secret = sc.nextLine();
-                    String binaryData = TextToBinary.convert(secret);
+                    PayloadCipher.Passphrase passphrase = readPassphrase(sc, "Password (blank for none): ");
+                    byte[] secretBytes = secret.getBytes(StandardCharsets.UTF_8);
+                    BitBuffer binaryData = TextToBinary.toBits(secretBytes, Codecs.choose(secretBytes), passphrase);
                     System.out.print("File name: ");
                     String fileName = sc.nextLine().trim();
-                    if (!fileName.toLowerCase().endsWith(".png")) {
+                    // A JPEG carrier may stay a JPEG and an uncompressed one keep its format (embedded
+                    // in place when the name is the carrier's own); anything else is saved as PNG
+                    boolean jpeg = JpegEmbedder.isJpegName(fileName) && JpegEmbedder.isJpeg(imgPath);
+                    boolean mapped = MappedRaster.keepsFormat(imgPath, fileName);
+                    if (!jpeg && !mapped && !fileName.toLowerCase().endsWith(".png")) {
                         fileName += ".png";
                     }
-                    String outputPath = "C:\\Users\\HP\\Downloads\\" + fileName;
+                    // Saved next to the carrier unless a full path was given
+                    String outputPath = Paths.get(imgPath).toAbsolutePath().resolveSibling(fileName).toString();
                     int headerBits = 64; // this is for msg len bits
-                    EncodeBinary.encode(imgPath, binaryData, outputPath, headerBits);
+                    if (jpeg) {
+                        JpegEmbedder.encode(imgPath, binaryData, outputPath, headerBits, passphrase);
+                        System.out.println("Image saved to: " + outputPath);
+                        break;
+                    }
+                    if (mapped) {
+                        EncodeBinary.encodeInPlace(imgPath, binaryData, outputPath, headerBits, passphrase);
+                        System.out.println("Image saved to: " + outputPath);
+                        break;
+                    }
+                    // Encoding several messages into one template only decodes it once
+                    BufferedImage carrier = CarrierCache.shared().readImage(imgPath);
+                    if (carrier == null) throw new IllegalArgumentException("Unsupported image: " + imgPath);
+                    EncodeBinary.embed(carrier, binaryData, headerBits, passphrase);
+                    SteganographyHelper.writeImage(carrier, SteganographyHelper.getImageFormat(outputPath), outputPath);
                     System.out.println("Image saved to: " + outputPath);
                     break;
                 case 2: // 5 page doc also working
@@ -38,12 +76,28 @@ public class Main {
 
                     headerBits = 64;
                     try {
-                        String decodedBinary = DecodeBinary.decode(decodeImgPath, headerBits);
+                        PayloadCipher.Passphrase decodePassphrase = null;
+                        BitBuffer decodedBinary;
+                        try {
+                            decodedBinary = CarrierCache.shared().decode(decodeImgPath, headerBits);
+                        } catch (NoHiddenMessageException e) {
+                            if (e.getReason() != NoHiddenMessageException.Reason.PASSWORD_REQUIRED) throw e;
+                            // Scattered: the password is needed to find the payload at all
+                            decodePassphrase = readPassphrase(sc, "Password: ");
+                            decodedBinary = CarrierCache.shared().decode(decodeImgPath, headerBits, decodePassphrase);
+                        }
                         // System.out.println("Decoded binary length: " + decodedBinary.length());
                         // System.out.println("Decoded binary (first 64 chars): " + decodedBinary.substring(0, Math.min(64, decodedBinary.length())));
                         
-                        String decodedText = BinaryToText.convert(decodedBinary);
+                        if (decodePassphrase == null && PayloadCipher.isEncrypted(decodedBinary)) {
+                            decodePassphrase = readPassphrase(sc, "Password: ");
+                        }
+                        String decodedText = BinaryToText.convert(decodedBinary, decodePassphrase);
                         System.out.println("Decoded text: " + decodedText);
+                    } catch (NoHiddenMessageException e) {
+                        boolean locked = e.getReason() == NoHiddenMessageException.Reason.BAD_PASSWORD
+                            || e.getReason() == NoHiddenMessageException.Reason.PASSWORD_REQUIRED;
+                        System.out.println(locked ? "Wrong password" : "There is no hidden message");
                     } catch (RuntimeException e) {
                         if (e.getMessage() != null && e.getMessage().equals("There is no hidden message")) {
                             System.out.println("There is no hidden message");
@@ -78,4 +132,16 @@ public class Main {
             }
         }
     }
+
+    // Not echoed when there is a console; blank means none
+    private static PayloadCipher.Passphrase readPassphrase(Scanner sc, String prompt) {
+        char[] password;
+        if (System.console() != null) {
+            password = System.console().readPassword(prompt);
+        } else {
+            System.out.print(prompt);
+            password = sc.nextLine().toCharArray();
+        }
+        return password == null || password.length == 0 ? null : new PayloadCipher.Passphrase(password);
+    }
 }
@@ -0,0 +1,383 @@
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// An uncompressed 8-bit raster file whose pixels are used in place through a memory mapping,
+// so embedding into it writes only the pages holding the payload and reading a payload only
+// faults in those pages; the rest of the file is never read or rewritten.
+//
+// Handles 24-bit and 32-bit BI_RGB BMPs (the fourth byte is padding, not alpha), binary PPMs
+// (P6) and PAMs (P7, RGB or RGB_ALPHA) with a maxval of 255, and raw interleaved RGB/RGBA
+// dumps named like capture_1920x1080.rgb / .rgba, since they have no header to say their size.
+// Use isSupported() first; other files go through ImageIO as before.
+//
+// Pixels are numbered in raster order from the top-left whatever the row order on disk, and
+// bit slots follow LsbEngine's layouts, so a carrier embedded here decodes like any other.
+public class MappedRaster implements AutoCloseable {
+    private static final long MAP_REGION = 1L << 30;
+    private static final int HEADER_BYTES = 4096;
+    private static final Pattern RAW_SIZE = Pattern.compile("(\\d+)x(\\d+)");
+
+    // Channel positions inside a pixel on disk, in slot order (R, G, B, A)
+    private static final int[] BGR = {2, 1, 0};
+    private static final int[] RGB = {0, 1, 2};
+    private static final int[] RGBA = {0, 1, 2, 3};
+
+    final int width;
+    final int height;
+    final boolean alpha;
+    private final long dataOffset;     // first byte of the first row on disk
+    private final long stride;         // bytes per row on disk, padding included
+    private final int bytesPerPixel;
+    private final boolean bottomUp;
+    private final int[] channelOffset;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] regions;
+    private final boolean writable;
+    private boolean dirty;
+
+    // Where the pixels are in a file, from its header
+    private static final class Geometry {
+        final int width;
+        final int height;
+        final boolean alpha;
+        final long dataOffset;
+        final long stride;
+        final int bytesPerPixel;
+        final boolean bottomUp;
+        final int[] channelOffset;
+
+        Geometry(int width, int height, boolean alpha, long dataOffset, long stride, int bytesPerPixel, boolean bottomUp, int[] channelOffset) {
+            this.width = width;
+            this.height = height;
+            this.alpha = alpha;
+            this.dataOffset = dataOffset;
+            this.stride = stride;
+            this.bytesPerPixel = bytesPerPixel;
+            this.bottomUp = bottomUp;
+            this.channelOffset = channelOffset;
+        }
+    }
+
+    private MappedRaster(FileChannel channel, Geometry g, boolean writable) throws IOException {
+        this.width = g.width;
+        this.height = g.height;
+        this.alpha = g.alpha;
+        this.dataOffset = g.dataOffset;
+        this.stride = g.stride;
+        this.bytesPerPixel = g.bytesPerPixel;
+        this.bottomUp = g.bottomUp;
+        this.channelOffset = g.channelOffset;
+        this.channel = channel;
+        this.writable = writable;
+
+        // Mapping only reserves address space; pages are read when first touched
+        long size = stride * height;
+        regions = new MappedByteBuffer[(int) ((size + MAP_REGION - 1) / MAP_REGION)];
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        for (int i = 0; i < regions.length; i++) {
+            long at = i * MAP_REGION;
+            regions[i] = channel.map(mode, dataOffset + at, Math.min(MAP_REGION, size - at));
+        }
+    }
+
+    // Writable mappings write through to the file; nothing else is ever written to it
+    public static MappedRaster open(Path path, boolean writable) throws IOException {
+        FileChannel channel = writable
+            ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+            : FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new MappedRaster(channel, geometry(path, channel), writable);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // True when the file is a raster this class can map
+    public static boolean isSupported(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            geometry(path, channel);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    public static boolean isSupported(String path) {
+        return isSupported(Path.of(path));
+    }
+
+    // Whether an output path names the same kind of file as a mappable carrier, so the
+    // carrier can be copied there and embedded in place instead of re-encoded
+    static boolean keepsFormat(String carrier, String output) {
+        String ext = extension(output);
+        return !ext.isEmpty() && ext.equals(extension(carrier)) && isSupported(carrier);
+    }
+
+    public long pixels() {
+        return (long) width * height;
+    }
+
+    // Row y (0 is the top) into dst[offset, offset + width) as 0xAARRGGBB, opaque without alpha
+    public void readRow(int y, int[] dst, int offset) {
+        byte[] row = new byte[width * bytesPerPixel];
+        read(rowOffset(y), row);
+        int r = channelOffset[0], g = channelOffset[1], b = channelOffset[2];
+        for (int x = 0, i = 0; x < width; x++, i += bytesPerPixel) {
+            int a = alpha ? row[i + channelOffset[3]] & 0xFF : 0xFF;
+            dst[offset + x] = a << 24 | (row[i + r] & 0xFF) << 16 | (row[i + g] & 0xFF) << 8 | (row[i + b] & 0xFF);
+        }
+    }
+
+    // The top rows as a normalized image (see LsbEngine.normalize)
+    public BufferedImage readTopRows(int rows) {
+        long t = Instrumentation.start();
+        BufferedImage image = new BufferedImage(width, rows, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        int[] pixels = LsbEngine.pixels(image);
+        for (int y = 0; y < rows; y++) readRow(y, pixels, y * width);
+        Instrumentation.stop(Metrics.Stage.IMAGE_READ, t);
+        Instrumentation.add(Metrics.Counter.IMAGES_READ, 1);
+        return image;
+    }
+
+    // Writes bits [from, to) into bit slots [from, to) of the layout, straight into the file.
+    // Bytes whose bits already match are not written, so their pages stay clean
+    public void embed(LsbEngine.Layout layout, LsbEngine.BitSource bits, long from, long to) {
+        if (!writable) throw new IllegalStateException("Raster is mapped read-only");
+        if (layout.alpha && !alpha) throw new IllegalArgumentException("Alpha embedding needs an image with an alpha channel");
+        int k = layout.bitsPerChannel;
+        int channels = layout.channels();
+        int bpp = layout.bitsPerPixel();
+        int valueMask = (1 << k) - 1;
+        for (long slot = from; slot < to; ) {
+            int o = (int) (slot % bpp);
+            int n = (int) Math.min(bpp - o, to - slot);
+            // The pixel's bpp-bit value, with only slots [o, o + n) of it meaningful
+            int v = (int) bits.getBits(slot, n) << (bpp - o - n);
+            long p = layout.pixel(slot / bpp);
+            if (p >= pixels()) throw new IndexOutOfBoundsException("Slot " + slot + " is past the last pixel");
+            long at = pixelOffset(p);
+            for (int c = o / k; c <= (o + n - 1) / k; c++) {
+                int lo = Math.max(o, c * k);
+                int hi = Math.min(o + n, (c + 1) * k);
+                int mask = ((1 << (hi - lo)) - 1) << (k - (hi - c * k));
+                int sample = (v >>> ((channels - 1 - c) * k)) & valueMask;
+                long i = at + channelOffset[c];
+                byte old = get(i);
+                byte b = (byte) ((old & ~mask) | (sample & mask));
+                if (b != old) put(i, b);
+            }
+            slot += n;
+        }
+    }
+
+    // Appends bit slots [from, to) of the layout to out; a scattered payload only faults in the
+    // pages its pixels are on
+    public void extract(LsbEngine.Layout layout, long from, long to, BitBuffer out) {
+        if (layout.alpha && !alpha) throw new IllegalArgumentException("Alpha embedding needs an image with an alpha channel");
+        int k = layout.bitsPerChannel;
+        int bpp = layout.bitsPerPixel();
+        int valueMask = (1 << k) - 1;
+        for (long slot = from; slot < to; ) {
+            int o = (int) (slot % bpp);
+            int n = (int) Math.min(bpp - o, to - slot);
+            long p = layout.pixel(slot / bpp);
+            if (p >= pixels()) throw new IndexOutOfBoundsException("Slot " + slot + " is past the last pixel");
+            long at = pixelOffset(p);
+            int v = 0;
+            for (int c = 0; c < layout.channels(); c++) v = (v << k) | (get(at + channelOffset[c]) & valueMask);
+            out.writeBits((v >>> (bpp - o - n)) & ((1 << n) - 1), n);
+            slot += n;
+        }
+    }
+
+    // Flushes written pages to the file
+    @Override
+    public void close() throws IOException {
+        try {
+            if (dirty) {
+                for (MappedByteBuffer region : regions) region.force();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /* -------------------------- Internals ------------------------- */
+
+    private long rowOffset(int y) {
+        return (bottomUp ? height - 1 - y : y) * stride;
+    }
+
+    private long pixelOffset(long p) {
+        return rowOffset((int) (p / width)) + (p % width) * bytesPerPixel;
+    }
+
+    private byte get(long at) {
+        return regions[(int) (at / MAP_REGION)].get((int) (at % MAP_REGION));
+    }
+
+    private void put(long at, byte b) {
+        regions[(int) (at / MAP_REGION)].put((int) (at % MAP_REGION), b);
+        dirty = true;
+    }
+
+    // dst.length bytes from at, across region boundaries
+    private void read(long at, byte[] dst) {
+        int done = 0;
+        while (done < dst.length) {
+            long pos = at + done;
+            int region = (int) (pos / MAP_REGION);
+            int index = (int) (pos % MAP_REGION);
+            int n = Math.min(dst.length - done, regions[region].capacity() - index);
+            regions[region].get(index, dst, done, n);
+            done += n;
+        }
+    }
+
+    private static Geometry geometry(Path path, FileChannel channel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate((int) Math.min(HEADER_BYTES, channel.size()));
+        while (head.hasRemaining() && channel.read(head, head.position()) > 0) {
+            // fill
+        }
+        byte[] h = head.array();
+        Geometry g;
+        if (h.length >= 2 && h[0] == 'B' && h[1] == 'M') {
+            g = bmp(h);
+        } else if (h.length >= 3 && h[0] == 'P' && h[1] == '6' && isSpace(h[2])) {
+            g = ppm(h);
+        } else if (h.length >= 3 && h[0] == 'P' && h[1] == '7' && h[2] == '\n') {
+            g = pam(h);
+        } else {
+            g = raw(path);
+        }
+        if (g.width < 1 || g.height < 1) throw new IOException("Bad raster size " + g.width + "x" + g.height);
+        if ((long) g.width * g.bytesPerPixel > g.stride) throw new IOException("Rows overlap");
+        if (channel.size() < g.dataOffset + g.stride * g.height) throw new IOException("Truncated raster");
+        return g;
+    }
+
+    private static Geometry bmp(byte[] h) throws IOException {
+        if (h.length < 54) throw new IOException("Truncated BMP header");
+        long dataOffset = le32(h, 10) & 0xFFFFFFFFL;
+        int headerSize = le32(h, 14);
+        if (headerSize < 40) throw new IOException("Only BMPs with a BITMAPINFOHEADER or later can be mapped");
+        int width = le32(h, 18);
+        int height = le32(h, 22);
+        int bitCount = le16(h, 28);
+        int compression = le32(h, 30);
+        if ((bitCount != 24 && bitCount != 32) || compression != 0) {
+            throw new IOException("Only uncompressed 24 and 32-bit BMPs can be mapped");
+        }
+        boolean bottomUp = height > 0;
+        height = Math.abs(height);
+        int bytesPerPixel = bitCount / 8;
+        long stride = ((long) width * bitCount + 31) / 32 * 4;
+        return new Geometry(width, height, false, dataOffset, stride, bytesPerPixel, bottomUp, BGR);
+    }
+
+    private static Geometry ppm(byte[] h) throws IOException {
+        int[] pos = {2};
+        int width = netpbmInt(h, pos);
+        int height = netpbmInt(h, pos);
+        int maxval = netpbmInt(h, pos);
+        if (maxval != 255) throw new IOException("Only PPMs with a maxval of 255 can be mapped");
+        // Exactly one whitespace byte ends the header
+        if (pos[0] >= h.length || !isSpace(h[pos[0]])) throw new IOException("Bad PPM header");
+        return new Geometry(width, height, false, pos[0] + 1, (long) width * 3, 3, false, RGB);
+    }
+
+    private static Geometry pam(byte[] h) throws IOException {
+        int width = -1, height = -1, depth = -1, maxval = -1;
+        String tupleType = null;
+        int start = 3;
+        while (true) {
+            int end = start;
+            while (end < h.length && h[end] != '\n') end++;
+            if (end == h.length) throw new IOException("PAM header has no ENDHDR");
+            String line = new String(h, start, end - start, StandardCharsets.US_ASCII).trim();
+            start = end + 1;
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            if (line.equals("ENDHDR")) break;
+            String[] field = line.split("\\s+", 2);
+            if (field.length < 2) throw new IOException("Bad PAM header line: " + line);
+            switch (field[0]) {
+                case "WIDTH": width = Integer.parseInt(field[1]); break;
+                case "HEIGHT": height = Integer.parseInt(field[1]); break;
+                case "DEPTH": depth = Integer.parseInt(field[1]); break;
+                case "MAXVAL": maxval = Integer.parseInt(field[1]); break;
+                case "TUPLTYPE": tupleType = tupleType == null ? field[1] : tupleType + " " + field[1]; break;
+                default: throw new IOException("Unknown PAM header field: " + field[0]);
+            }
+        }
+        if (maxval != 255) throw new IOException("Only PAMs with a maxval of 255 can be mapped");
+        boolean alpha = depth == 4;
+        if ((depth != 3 && depth != 4) || (tupleType != null && !tupleType.equals(alpha ? "RGB_ALPHA" : "RGB"))) {
+            throw new IOException("Only RGB and RGB_ALPHA PAMs can be mapped");
+        }
+        return new Geometry(width, height, alpha, start, (long) width * depth, depth, false, alpha ? RGBA : RGB);
+    }
+
+    // The last WxH in the file name gives the size
+    private static Geometry raw(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        String ext = extension(name);
+        if (!ext.equals("rgb") && !ext.equals("rgba")) throw new IOException("Not a raster this class can map");
+        Matcher m = RAW_SIZE.matcher(name);
+        String w = null, hgt = null;
+        while (m.find()) {
+            w = m.group(1);
+            hgt = m.group(2);
+        }
+        if (w == null) throw new IOException("Raw raster names need their size, as in name_640x480." + ext);
+        boolean alpha = ext.equals("rgba");
+        int width = Integer.parseInt(w);
+        int bytesPerPixel = alpha ? 4 : 3;
+        return new Geometry(width, Integer.parseInt(hgt), alpha, 0, (long) width * bytesPerPixel, bytesPerPixel, false, alpha ? RGBA : RGB);
+    }
+
+    // Next decimal field of a netpbm header, skipping whitespace and comments
+    private static int netpbmInt(byte[] h, int[] pos) throws IOException {
+        int i = pos[0];
+        while (i < h.length && (isSpace(h[i]) || h[i] == '#')) {
+            if (h[i] == '#') {
+                while (i < h.length && h[i] != '\n') i++;
+            } else {
+                i++;
+            }
+        }
+        long v = 0;
+        int digits = 0;
+        for (; i < h.length && h[i] >= '0' && h[i] <= '9' && digits < 10; i++, digits++) v = v * 10 + (h[i] - '0');
+        if (digits == 0 || v > Integer.MAX_VALUE) throw new IOException("Bad netpbm header");
+        pos[0] = i;
+        return (int) v;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == 0x0B || b == '\f';
+    }
+
+    private static String extension(String path) {
+        String name = Path.of(path).getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot == -1 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private static int le32(byte[] b, int off) {
+        return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+    }
+
+    private static int le16(byte[] b, int off) {
+        return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8;
+    }
+}
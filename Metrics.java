@@ -0,0 +1,30 @@
+// Receives pipeline measurements. Install an implementation with Instrumentation.install;
+// none is installed by default. Implementations are called from many threads at once.
+public interface Metrics {
+    enum Stage {
+        IMAGE_READ,      // decoding a carrier (or its top rows) from a file or stream
+        HEADER_READ,     // reading and validating the length header
+        BIT_EXTRACT,     // copying payload bits out of the raster
+        BIT_EMBED,       // writing header + payload bits into the raster
+        COMPRESS,        // building the container
+        ENCRYPT,         // sealing the container in a PayloadCipher envelope
+        DECRYPT,         // opening the envelope, key derivation included when not cached
+        DECOMPRESS,      // unpacking the container or a legacy payload
+        IMAGE_WRITE      // encoding the stego image to a file
+    }
+
+    enum Counter {
+        IMAGES_READ,
+        IMAGES_WRITTEN,
+        PAYLOAD_BYTES_ENCODED,
+        PAYLOAD_BYTES_DECODED,
+        BITS_EMBEDDED,
+        BITS_EXTRACTED
+    }
+
+    void record(Stage stage, long nanos);
+
+    void add(Counter counter, long delta);
+
+    void rejected(NoHiddenMessageException.Reason reason);
+}
@@ -0,0 +1,84 @@
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// In-memory Metrics: a latency histogram per stage, a total per counter and per rejection reason.
+// Everything is LongAdder based, so recording never blocks.
+public class MetricsRegistry implements Metrics {
+    // Histogram upper bounds in seconds, Prometheus style (cumulative, plus +Inf)
+    static final double[] BUCKETS = {0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30};
+    private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+    static {
+        for (int i = 0; i < BUCKETS.length; i++) BUCKET_NANOS[i] = Math.round(BUCKETS[i] * 1e9);
+    }
+
+    private final Map<Stage, Histogram> stages = new EnumMap<>(Stage.class);
+    private final Map<Counter, LongAdder> counters = new EnumMap<>(Counter.class);
+    private final Map<NoHiddenMessageException.Reason, LongAdder> rejections = new EnumMap<>(NoHiddenMessageException.Reason.class);
+
+    public MetricsRegistry() {
+        for (Stage s : Stage.values()) stages.put(s, new Histogram());
+        for (Counter c : Counter.values()) counters.put(c, new LongAdder());
+        for (NoHiddenMessageException.Reason r : NoHiddenMessageException.Reason.values()) rejections.put(r, new LongAdder());
+    }
+
+    @Override
+    public void record(Stage stage, long nanos) {
+        stages.get(stage).record(nanos);
+    }
+
+    @Override
+    public void add(Counter counter, long delta) {
+        counters.get(counter).add(delta);
+    }
+
+    @Override
+    public void rejected(NoHiddenMessageException.Reason reason) {
+        rejections.get(reason).increment();
+    }
+
+    public Histogram histogram(Stage stage) {
+        return stages.get(stage);
+    }
+
+    public long count(Counter counter) {
+        return counters.get(counter).sum();
+    }
+
+    public long rejections(NoHiddenMessageException.Reason reason) {
+        return rejections.get(reason).sum();
+    }
+
+    public static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1]; // last is +Inf
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            int i = 0;
+            while (i < BUCKET_NANOS.length && nanos > BUCKET_NANOS[i]) i++;
+            buckets[i].increment();
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public double sumSeconds() {
+            return sumNanos.sum() / 1e9;
+        }
+
+        // Observations at or below BUCKETS[i] (i == BUCKETS.length for +Inf)
+        public long cumulative(int i) {
+            long n = 0;
+            for (int b = 0; b <= i; b++) n += buckets[b].sum();
+            return n;
+        }
+    }
+}
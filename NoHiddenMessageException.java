@@ -0,0 +1,50 @@
+// "There is no hidden message", plus why. getMessage() stays the text users have always seen;
+// getReason() and getDetail() say which check rejected the image.
+public class NoHiddenMessageException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public enum Reason {
+        UNREADABLE_IMAGE,              // not an image, or the file could not be read
+        IMAGE_TOO_SMALL,               // fewer pixels than the length header needs
+        HEADER_PADDING,                // the zero bits above a 64-bit length are not zero
+        UNKNOWN_MODE,                  // mode byte is not a layout CapacityPlanner writes
+        BAD_SEAL,                      // HeaderSeal magic, version or CRC32C does not match
+        EMPTY_PAYLOAD,                 // length is zero
+        LENGTH_NOT_BYTE_ALIGNED,       // length is not a whole number of bytes
+        LENGTH_EXCEEDS_CAPACITY,       // length does not fit in the image
+        LENGTH_EXCEEDS_HALF_CAPACITY,  // legacy layout never fills more than half the image
+        NO_ALPHA_CHANNEL,              // layout needs alpha, image has none
+        NOT_TEXT,                      // legacy payload does not look like text
+        CORRUPT_PAYLOAD,               // payload could not be decompressed
+        PASSWORD_REQUIRED,             // payload is encrypted and no password was given
+        BAD_PASSWORD,                  // encrypted payload does not authenticate with the password given
+        TOO_FEW_SHARDS,                // fewer intact shards of a sharded payload than it needs
+        PAYLOAD_TOO_LARGE              // payload decodes to more bytes than the caller accepts
+    }
+
+    private final Reason reason;
+    private final String detail;
+
+    public NoHiddenMessageException(Reason reason, String detail) {
+        this(reason, detail, null);
+    }
+
+    public NoHiddenMessageException(Reason reason, String detail, Throwable cause) {
+        super("There is no hidden message", cause);
+        this.reason = reason;
+        this.detail = detail;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    public String getDetail() {
+        return detail;
+    }
+
+    @Override
+    public String toString() {
+        return "NoHiddenMessageException[" + reason + (detail != null ? ": " + detail : "") + "]";
+    }
+}
@@ -0,0 +1,299 @@
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// Optional encryption stage between compression and embedding. The packed container is
+// encrypted with an AEAD cipher under a 256-bit key derived from a password (PBKDF2-HMAC-SHA256)
+// and wrapped in an outer container with codec StegoContainer.CODEC_ENCRYPTED:
+//
+//   [magic:32][version:8][codec:8][cipher:8][PBKDF2 iterations:32][salt:128][nonce:96]
+//   [ciphertext bytes:32][ciphertext of the inner container][tag:128]
+//
+// Everything before the ciphertext is authenticated too, so a changed iteration count or salt
+// fails like a wrong password does. Without the password the envelope tells a reader only
+// that there is a payload and how long it is.
+//
+// One tag covers the whole ciphertext and decrypting it takes the ciphertext and the plaintext
+// as byte arrays, so containers over MAX_CIPHERTEXT_BYTES less the tag are refused up front
+// rather than written as envelopes nothing could open.
+//
+// New envelopes use ChaCha20-Poly1305: on Java 17 it runs several times faster than AES-GCM
+// on the same core, AES-NI or not. AES-GCM envelopes decode as well.
+public class PayloadCipher {
+    enum Algorithm {
+        AES_GCM(1, "AES/GCM/NoPadding", "AES"),
+        CHACHA20_POLY1305(2, "ChaCha20-Poly1305", "ChaCha20");
+
+        final int id;
+        final String transformation;
+        final String keyAlgorithm;
+        // Cipher.getInstance goes through the provider lookup every time; init with a new nonce is
+        // cheap. One per thread and direction
+        private final ThreadLocal<Cipher> encryptors;
+        private final ThreadLocal<Cipher> decryptors;
+
+        Algorithm(int id, String transformation, String keyAlgorithm) {
+            this.id = id;
+            this.transformation = transformation;
+            this.keyAlgorithm = keyAlgorithm;
+            this.encryptors = ThreadLocal.withInitial(this::newCipher);
+            this.decryptors = ThreadLocal.withInitial(this::newCipher);
+        }
+
+        // This thread's cipher, ready for the message. ChaCha20 will not be initialised twice in a
+        // row with the same key and nonce, even to decrypt, so reading the same envelope again
+        // gets a fresh instance
+        Cipher cipher(int mode, byte[] key, byte[] nonce, byte[] aad) throws GeneralSecurityException {
+            ThreadLocal<Cipher> local = mode == Cipher.ENCRYPT_MODE ? encryptors : decryptors;
+            Cipher c = local.get();
+            try {
+                init(c, mode, key, nonce, aad);
+            } catch (InvalidKeyException e) {
+                c = newCipher();
+                init(c, mode, key, nonce, aad);
+                local.set(c);
+            }
+            return c;
+        }
+
+        Cipher newCipher() {
+            try {
+                return Cipher.getInstance(transformation);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(transformation + " is not available", e);
+            }
+        }
+
+        void init(Cipher c, int mode, byte[] key, byte[] nonce, byte[] aad) throws GeneralSecurityException {
+            c.init(mode, new SecretKeySpec(key, keyAlgorithm),
+                this == AES_GCM ? new GCMParameterSpec(TAG_BYTES * 8, nonce) : new IvParameterSpec(nonce));
+            c.updateAAD(aad);
+        }
+
+        static Algorithm byId(int id) {
+            for (Algorithm a : values()) if (a.id == id) return a;
+            return null;
+        }
+    }
+
+    static final Algorithm DEFAULT_ALGORITHM = Algorithm.CHACHA20_POLY1305;
+    static final int DEFAULT_ITERATIONS = 600_000;
+    static final int MIN_ITERATIONS = 1_000;
+    static final int MAX_ITERATIONS = 10_000_000; // envelopes are untrusted; bounds the time a bad one can cost
+    static final int SALT_BYTES = 16;
+    static final int NONCE_BYTES = 12;
+    static final int TAG_BYTES = 16;
+    static final long MAX_CIPHERTEXT_BYTES = Integer.MAX_VALUE - 8; // the largest array the VM hands out
+    static final int ENVELOPE_BITS = StegoContainer.HEADER_BITS + 8 + 32 + SALT_BYTES * 8 + NONCE_BYTES * 8 + 32;
+    private static final int CHUNK = 1 << 16;
+    private static final byte[] SCATTER_SALT = "PixelVault scatter v1".getBytes(StandardCharsets.US_ASCII);
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // A password and the keys derived from it. Deriving is deliberately slow, so a Passphrase
+    // derives one encryption key (with its own random salt, nonces stay per message) and keeps
+    // the keys it derives for decryption. Share one across a batch.
+    public static final class Passphrase {
+        private final char[] password;
+        private final int iterations;
+        private final Map<String, byte[]> keys = new ConcurrentHashMap<>();
+        private byte[] salt;
+        private long scatterSeed;
+        private boolean scatterSeeded;
+
+        public Passphrase(char[] password) {
+            this(password, DEFAULT_ITERATIONS);
+        }
+
+        public Passphrase(char[] password, int iterations) {
+            if (password.length == 0) throw new IllegalArgumentException("Password must not be empty");
+            if (iterations < MIN_ITERATIONS || iterations > MAX_ITERATIONS) {
+                throw new IllegalArgumentException("iterations must be between " + MIN_ITERATIONS + " and " + MAX_ITERATIONS);
+            }
+            this.password = password.clone();
+            this.iterations = iterations;
+        }
+
+        // Salt of the key new envelopes are encrypted with
+        synchronized byte[] salt() {
+            if (salt == null) {
+                salt = new byte[SALT_BYTES];
+                RANDOM.nextBytes(salt);
+            }
+            return salt;
+        }
+
+        byte[] key(byte[] salt, int iterations) {
+            String id = iterations + ":" + Arrays.toString(salt);
+            return keys.computeIfAbsent(id, k -> derive(password, salt, iterations, 32));
+        }
+
+        // Seed for a key-derived pixel order. It has to be known before any payload bit is read,
+        // so it comes from the password alone (fixed salt); it decides where bits go, not what
+        // they say, which stays up to the encryption key
+        public synchronized long scatterSeed() {
+            if (!scatterSeeded) {
+                byte[] b = derive(password, SCATTER_SALT, iterations, 8);
+                for (byte x : b) scatterSeed = scatterSeed << 8 | (x & 0xFF);
+                scatterSeeded = true;
+            }
+            return scatterSeed;
+        }
+    }
+
+    // The envelope for a packed container
+    public static BitBuffer encrypt(BitBuffer container, Passphrase passphrase) {
+        return encrypt(container, passphrase, DEFAULT_ALGORITHM);
+    }
+
+    static BitBuffer encrypt(BitBuffer container, Passphrase passphrase, Algorithm algorithm) {
+        long t = Instrumentation.start();
+        // The container is read a chunk at a time, never copied whole
+        long plainBytes = (container.length() + 7) >>> 3;
+        requireDecryptable(plainBytes);
+        byte[] nonce = new byte[NONCE_BYTES];
+        RANDOM.nextBytes(nonce);
+        BitBuffer out = new BitBuffer(ENVELOPE_BITS + (plainBytes + TAG_BYTES) * 8);
+        writePreamble(out, algorithm, passphrase, nonce, plainBytes + TAG_BYTES);
+
+        try {
+            Cipher cipher = algorithm.cipher(Cipher.ENCRYPT_MODE, passphrase.key(passphrase.salt(), passphrase.iterations), nonce, out.toByteArray());
+            byte[] plain = new byte[(int) Math.min(CHUNK, plainBytes)];
+            byte[] chunk = new byte[CHUNK + TAG_BYTES];
+            for (long off = 0; off < plainBytes; off += CHUNK) {
+                int len = (int) Math.min(CHUNK, plainBytes - off);
+                container.getBytes(off * 8, plain, 0, len);
+                int n = cipher.update(plain, 0, len, chunk, 0);
+                out.writeBytes(chunk, 0, n);
+            }
+            int n = cipher.doFinal(chunk, 0);
+            out.writeBytes(chunk, 0, n);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(algorithm.transformation + " encryption failed", e);
+        }
+        Instrumentation.stop(Metrics.Stage.ENCRYPT, t);
+        return out;
+    }
+
+    // Streaming variant for a container of containerBytes bytes: the envelope is produced as it is
+    // read, so the container never has to be in memory. envelopeBits gives the stream's length
+    public static InputStream encrypt(InputStream container, long containerBytes, Passphrase passphrase) {
+        requireDecryptable(containerBytes);
+        byte[] nonce = new byte[NONCE_BYTES];
+        RANDOM.nextBytes(nonce);
+        BitBuffer preamble = new BitBuffer(ENVELOPE_BITS);
+        writePreamble(preamble, DEFAULT_ALGORITHM, passphrase, nonce, containerBytes + TAG_BYTES);
+        byte[] aad = preamble.toByteArray();
+
+        // Its own cipher: the stream outlives this call and may be read on another thread
+        Cipher cipher = DEFAULT_ALGORITHM.newCipher();
+        try {
+            DEFAULT_ALGORITHM.init(cipher, Cipher.ENCRYPT_MODE, passphrase.key(passphrase.salt(), passphrase.iterations), nonce, aad);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(DEFAULT_ALGORITHM.transformation + " encryption failed", e);
+        }
+        return new SequenceInputStream(new ByteArrayInputStream(aad), new CipherInputStream(container, cipher));
+    }
+
+    public static long envelopeBits(long containerBytes) {
+        return ENVELOPE_BITS + (containerBytes + TAG_BYTES) * 8;
+    }
+
+    // The container inside an envelope starting at bit 0. Neither cipher releases plaintext before
+    // the tag checks out, so the ciphertext is decrypted in one go
+    public static BitBuffer decrypt(BitBuffer envelope, Passphrase passphrase) {
+        if (envelope.length() < ENVELOPE_BITS || envelope.getBits(40, 8) != StegoContainer.CODEC_ENCRYPTED) {
+            throw new IllegalArgumentException("Not an encrypted container");
+        }
+        if (passphrase == null) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.PASSWORD_REQUIRED, "payload is encrypted");
+        }
+        long t = Instrumentation.start();
+        envelope.position(StegoContainer.HEADER_BITS);
+        int id = (int) envelope.readBits(8);
+        Algorithm algorithm = Algorithm.byId(id);
+        if (algorithm == null) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, "unsupported cipher " + id);
+        }
+        long iterations = envelope.readBits(32);
+        byte[] salt = new byte[SALT_BYTES];
+        envelope.readBytes(salt, 0, SALT_BYTES);
+        byte[] nonce = new byte[NONCE_BYTES];
+        envelope.readBytes(nonce, 0, NONCE_BYTES);
+        long length = envelope.readBits(32);
+        if (iterations < MIN_ITERATIONS || iterations > MAX_ITERATIONS) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, "implausible key derivation cost " + iterations);
+        }
+        if (length < TAG_BYTES || length > envelope.remaining() / 8) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, "ciphertext runs past the payload");
+        }
+        if (length > MAX_CIPHERTEXT_BYTES) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, "ciphertext of " + length + " bytes is too large to decrypt");
+        }
+        byte[] aad = envelope.slice(0, ENVELOPE_BITS).toByteArray();
+        byte[] ciphertext = new byte[(int) length];
+        envelope.readBytes(ciphertext, 0, ciphertext.length);
+
+        byte[] plain;
+        try {
+            plain = algorithm.cipher(Cipher.DECRYPT_MODE, passphrase.key(salt, (int) iterations), nonce, aad).doFinal(ciphertext);
+        } catch (AEADBadTagException e) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.BAD_PASSWORD, "wrong password or tampered payload", e);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(algorithm.transformation + " decryption failed", e);
+        }
+        Instrumentation.stop(Metrics.Stage.DECRYPT, t);
+        return BitBuffer.wrap(plain);
+    }
+
+    public static boolean isEncrypted(BitBuffer bits) {
+        return StegoContainer.isContainer(bits, 0) && bits.getBits(40, 8) == StegoContainer.CODEC_ENCRYPTED;
+    }
+
+    /* -------------------------- Internals ------------------------- */
+
+    // Before anything is allocated or written: decrypt() could never open a larger envelope
+    private static void requireDecryptable(long containerBytes) {
+        if (containerBytes > MAX_CIPHERTEXT_BYTES - TAG_BYTES) {
+            throw new IllegalArgumentException("Payload too large to encrypt: " + containerBytes
+                + " bytes, at most " + (MAX_CIPHERTEXT_BYTES - TAG_BYTES));
+        }
+    }
+
+    private static void writePreamble(BitBuffer out, Algorithm algorithm, Passphrase passphrase, byte[] nonce, long ciphertextBytes) {
+        out.writeBits(StegoContainer.MAGIC, 32);
+        out.writeBits(StegoContainer.VERSION, 8);
+        out.writeBits(StegoContainer.CODEC_ENCRYPTED, 8);
+        out.writeBits(algorithm.id, 8);
+        out.writeBits(passphrase.iterations, 32);
+        out.writeBytes(passphrase.salt(), 0, SALT_BYTES);
+        out.writeBytes(nonce, 0, NONCE_BYTES);
+        out.writeBits(ciphertextBytes, 32);
+    }
+
+    private static byte[] derive(char[] password, byte[] salt, int iterations, int bytes) {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, bytes * 8);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2 is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+// A compression stage for container payloads. Its id is the container codec byte, so a
+// payload names the codec it needs; register new ones with Codecs.register.
+//
+// Streams must be self-delimiting: decompress reads exactly what compress wrote, starting at
+// the buffer's position, and leaves the position just past it.
+public interface PayloadCodec {
+    int id();
+
+    String name();
+
+    // Appends the stream for data[offset, offset + length)
+    void compress(byte[] data, int offset, int length, BitBuffer out);
+
+    byte[] decompress(BitBuffer in);
+
+    // Bytes the stream at the buffer's position says it decodes to, read without decoding it or
+    // moving the position; -1 when the format does not say up front
+    default long declaredLength(BitBuffer in) {
+        return -1;
+    }
+}
@@ -0,0 +1,79 @@
+// Keyed bijection on [0, size): where payload pixel i goes in a scattered layout.
+//
+// A balanced Feistel network over the smallest even number of bits that covers size, cycle
+// walked to stay inside it: map() re-applies the network until the result is below size. The
+// network's domain is less than 4 x size, so that averages under 4 passes. map and unmap are
+// both O(1) and need no tables, so any payload pixel can be placed or found without the others,
+// which is what lets scattered payloads be embedded and extracted in parallel or stripe by stripe.
+public class PixelPermutation {
+    private static final int ROUNDS = 6;
+
+    private final long size;
+    private final int halfBits;
+    private final long halfMask;
+    private final long[] keys = new long[ROUNDS];
+
+    public PixelPermutation(long size, long seed) {
+        if (size < 1) throw new IllegalArgumentException("size must be positive");
+        int bits = Math.max(2, 64 - Long.numberOfLeadingZeros(size - 1));
+        halfBits = (bits + 1) / 2;
+        halfMask = (1L << halfBits) - 1;
+        for (int i = 0; i < ROUNDS; i++) keys[i] = mix(seed += 0x9E3779B97F4A7C15L);
+        this.size = size;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public long map(long index) {
+        checkIndex(index);
+        long x = index;
+        do {
+            x = forward(x);
+        } while (x >= size);
+        return x;
+    }
+
+    public long unmap(long position) {
+        checkIndex(position);
+        long x = position;
+        do {
+            x = backward(x);
+        } while (x >= size);
+        return x;
+    }
+
+    private long forward(long x) {
+        long l = x >>> halfBits;
+        long r = x & halfMask;
+        for (int i = 0; i < ROUNDS; i++) {
+            long t = l ^ (mix(r ^ keys[i]) & halfMask);
+            l = r;
+            r = t;
+        }
+        return l << halfBits | r;
+    }
+
+    private long backward(long x) {
+        long l = x >>> halfBits;
+        long r = x & halfMask;
+        for (int i = ROUNDS - 1; i >= 0; i--) {
+            long t = r ^ (mix(l ^ keys[i]) & halfMask);
+            r = l;
+            l = t;
+        }
+        return l << halfBits | r;
+    }
+
+    // SplitMix64's finalizer: every input bit affects every output bit
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private void checkIndex(long index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Pixel " + index + " of " + size);
+    }
+}
@@ -0,0 +1,259 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Reads a PNG one scanline at a time without ever holding the whole raster.
+// Handles the layouts this tool writes and most cameras/editors produce: 8-bit RGB or
+// RGBA, non-interlaced. Use isSupported() first and fall back to ImageIO for the rest.
+public class PngRowReader implements AutoCloseable {
+    static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private final DataInputStream in;
+    private final Inflater inflater; // native memory until end()
+    private final InputStream pixels;
+    private final int width;
+    private final int height;
+    private final boolean alpha;
+    private final int bytesPerPixel;
+    private byte[] row;
+    private byte[] prev;
+    private int rowsRead;
+
+    // Idat state
+    private int chunkRemaining;
+    private boolean idatDone;
+
+    public PngRowReader(File file) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            byte[] sig = new byte[8];
+            in.readFully(sig);
+            if (!Arrays.equals(sig, SIGNATURE)) throw new IOException("Not a PNG file");
+
+            int[] header = readHeader(in);
+            width = header[0];
+            height = header[1];
+            alpha = header[3] == 6;
+            if (header[2] != 8 || (header[3] != 2 && header[3] != 6) || header[4] != 0) {
+                throw new IOException("Only 8-bit, non-interlaced RGB/RGBA PNGs can be streamed");
+            }
+            bytesPerPixel = alpha ? 4 : 3;
+            row = new byte[width * bytesPerPixel];
+            prev = new byte[row.length];
+
+            skipToIdat();
+            inflater = new Inflater();
+            pixels = new InflaterInputStream(new IdatStream(), inflater, 1 << 16);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    // True when the file is a PNG this reader can stream
+    public static boolean isSupported(File file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] sig = new byte[8];
+            in.readFully(sig);
+            if (!Arrays.equals(sig, SIGNATURE)) return false;
+            int[] header = readHeader(in);
+            return header[2] == 8 && (header[3] == 2 || header[3] == 6) && header[4] == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean hasAlpha() {
+        return alpha;
+    }
+
+    // Decodes the next scanline into dst[offset, offset + width) as 0xAARRGGBB
+    public void readRow(int[] dst, int offset) throws IOException {
+        if (rowsRead >= height) throw new EOFException("All rows have been read");
+        int filter = pixels.read();
+        if (filter < 0) throw new EOFException("Truncated PNG image data");
+        readFully(pixels, row);
+        unfilter(filter);
+
+        if (alpha) {
+            for (int x = 0, i = 0; x < width; x++, i += 4) {
+                dst[offset + x] = (row[i + 3] & 0xFF) << 24 | (row[i] & 0xFF) << 16 | (row[i + 1] & 0xFF) << 8 | (row[i + 2] & 0xFF);
+            }
+        } else {
+            for (int x = 0, i = 0; x < width; x++, i += 3) {
+                dst[offset + x] = 0xFF000000 | (row[i] & 0xFF) << 16 | (row[i + 1] & 0xFF) << 8 | (row[i + 2] & 0xFF);
+            }
+        }
+
+        byte[] t = prev;
+        prev = row;
+        row = t;
+        rowsRead++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            inflater.end();
+        } finally {
+            in.close();
+        }
+    }
+
+    /* -------------------------- Internals ------------------------- */
+
+    // {width, height, bit depth, colour type, interlace}
+    private static int[] readHeader(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        int type = in.readInt();
+        if (type != chunkType("IHDR") || length != 13) throw new IOException("Missing IHDR chunk");
+        int w = in.readInt();
+        int h = in.readInt();
+        int depth = in.readUnsignedByte();
+        int colourType = in.readUnsignedByte();
+        in.readUnsignedByte(); // compression
+        in.readUnsignedByte(); // filter method
+        int interlace = in.readUnsignedByte();
+        in.readInt(); // crc
+        if (w <= 0 || h <= 0) throw new IOException("Invalid PNG dimensions");
+        return new int[]{w, h, depth, colourType, interlace};
+    }
+
+    // Skips ancillary chunks up to the first IDAT and leaves the stream at its data. A PLTE
+    // before it is only a suggested palette for the truecolour types streamed here
+    private void skipToIdat() throws IOException {
+        while (true) {
+            int length = in.readInt();
+            int type = in.readInt();
+            if (type == chunkType("IDAT")) {
+                chunkRemaining = length;
+                return;
+            }
+            if (type == chunkType("IEND")) {
+                throw new IOException("PNG has no streamable image data");
+            }
+            skipFully(in, length + 4L);
+        }
+    }
+
+    private void unfilter(int filter) throws IOException {
+        int bpp = bytesPerPixel;
+        switch (filter) {
+            case 0: // None
+                break;
+            case 1: // Sub
+                for (int i = bpp; i < row.length; i++) row[i] += row[i - bpp];
+                break;
+            case 2: // Up
+                for (int i = 0; i < row.length; i++) row[i] += prev[i];
+                break;
+            case 3: // Average
+                for (int i = 0; i < row.length; i++) {
+                    int left = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                    row[i] += (byte) ((left + (prev[i] & 0xFF)) >>> 1);
+                }
+                break;
+            case 4: // Paeth
+                for (int i = 0; i < row.length; i++) {
+                    int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                    int b = prev[i] & 0xFF;
+                    int c = i >= bpp ? prev[i - bpp] & 0xFF : 0;
+                    row[i] += (byte) paeth(a, b, c);
+                }
+                break;
+            default:
+                throw new IOException("Invalid PNG filter type " + filter);
+        }
+    }
+
+    static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+
+    static int chunkType(String name) {
+        return name.charAt(0) << 24 | name.charAt(1) << 16 | name.charAt(2) << 8 | name.charAt(3);
+    }
+
+    private static void readFully(InputStream s, byte[] b) throws IOException {
+        int n = 0;
+        while (n < b.length) {
+            int r = s.read(b, n, b.length - n);
+            if (r < 0) throw new EOFException("Truncated PNG image data");
+            n += r;
+        }
+    }
+
+    private static void skipFully(DataInputStream s, long n) throws IOException {
+        while (n > 0) {
+            long skipped = s.skip(n);
+            if (skipped <= 0) {
+                if (s.read() < 0) throw new EOFException("Truncated PNG chunk");
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    // Concatenated data of consecutive IDAT chunks, checking each chunk's CRC
+    private class IdatStream extends InputStream {
+        private final CRC32 crc = new CRC32();
+        private boolean started;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!started) {
+                crc.update(new byte[]{'I', 'D', 'A', 'T'});
+                started = true;
+            }
+            while (chunkRemaining == 0) {
+                if (idatDone) return -1;
+                nextChunk();
+            }
+            int n = in.read(b, off, Math.min(len, chunkRemaining));
+            if (n < 0) throw new EOFException("Truncated PNG image data");
+            crc.update(b, off, n);
+            chunkRemaining -= n;
+            return n;
+        }
+
+        private void nextChunk() throws IOException {
+            if ((int) crc.getValue() != in.readInt()) throw new IOException("PNG IDAT CRC mismatch");
+            int length = in.readInt();
+            int type = in.readInt();
+            if (type != chunkType("IDAT")) {
+                idatDone = true;
+                return;
+            }
+            crc.reset();
+            crc.update(new byte[]{'I', 'D', 'A', 'T'});
+            chunkRemaining = length;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Writes an 8-bit RGB/RGBA PNG one scanline at a time, so the full raster never has to be in memory.
+//
+// Rows are gathered into blocks of about BLOCK_BYTES that are filtered and deflated on the common
+// pool, pigz style: each block is a raw deflate stream ended with a sync flush (the last one
+// finished), primed with the last 32 KB of the block before it, so the blocks concatenate into one
+// zlib stream that compresses almost as well as a serial one. Each block becomes an IDAT chunk,
+// written in order straight to a channel. At most `threads` blocks are in flight, so at most
+// that many Deflaters are ever made; they are reset between blocks and ended on close.
+//
+// The defaults come from -Dpixelvault.png.level (0-9), -Dpixelvault.png.filter (a Filter name)
+// and -Dpixelvault.png.threads. The default level is 3: on noisy carriers, whose LSBs never
+// repeat, the lazy matching of levels 4 and up takes about three times as long and saves nothing.
+public class PngRowWriter implements AutoCloseable {
+    static final int BLOCK_BYTES = 1 << 20;
+    private static final int WINDOW = 32 * 1024;
+
+    public static final int DEFAULT_LEVEL = Integer.getInteger("pixelvault.png.level", 3);
+    public static final Filter DEFAULT_FILTER = filterOrPaeth(System.getProperty("pixelvault.png.filter"));
+    public static final int DEFAULT_THREADS =
+        Integer.getInteger("pixelvault.png.threads", ForkJoinPool.getCommonPoolParallelism() + 1);
+
+    // PNG filter applied to every scanline. ADAPTIVE picks, per row, the filter whose output has
+    // the smallest sum of absolute values, as libpng does; it costs five filter passes per row
+    public enum Filter {
+        NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE
+    }
+
+    // PAETH when the name is missing or not a Filter, as Integer.getInteger does for the other
+    // properties: a bad value must not fail the class initializer, and every later use with it
+    static Filter filterOrPaeth(String name) {
+        if (name != null) {
+            try {
+                return Filter.valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                // unknown name
+            }
+        }
+        return Filter.PAETH;
+    }
+
+    private final WritableByteChannel out;
+    private final int width;
+    private final int height;
+    private final boolean alpha;
+    private final int bytesPerPixel;
+    private final int rowBytes;
+    private final int level;
+    private final Filter filter;
+    private final int threads;
+    private final int blockRows;
+
+    private byte[] block;        // raw rows of the block being filled
+    private int blockFill;       // rows in it
+    private byte[] prevRow;      // raw last row of the previous block
+    private int rowsWritten;
+    private CompletableFuture<byte[]> lastFiltered = CompletableFuture.completedFuture(new byte[0]);
+    private final ArrayDeque<CompletableFuture<Block>> inFlight = new ArrayDeque<>();
+    private final ConcurrentLinkedQueue<Deflater> idleDeflaters = new ConcurrentLinkedQueue<>();
+    private long adler = 1;
+    private boolean first = true;
+
+    // A deflated block, and the Adler-32 of what went into it
+    private static final class Block {
+        final byte[] deflated;
+        final long adler;
+        final long rawLength;
+
+        Block(byte[] deflated, long adler, long rawLength) {
+            this.deflated = deflated;
+            this.adler = adler;
+            this.rawLength = rawLength;
+        }
+    }
+
+    public PngRowWriter(File file, int width, int height, boolean alpha) throws IOException {
+        this(file, width, height, alpha, DEFAULT_LEVEL, DEFAULT_FILTER, DEFAULT_THREADS);
+    }
+
+    public PngRowWriter(File file, int width, int height, boolean alpha, int level, Filter filter, int threads) throws IOException {
+        this(FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING),
+            width, height, alpha, level, filter, threads);
+    }
+
+    // The stream is closed along with the writer
+    public PngRowWriter(OutputStream stream, int width, int height, boolean alpha) throws IOException {
+        this(Channels.newChannel(stream), width, height, alpha, DEFAULT_LEVEL, DEFAULT_FILTER, DEFAULT_THREADS);
+    }
+
+    private PngRowWriter(WritableByteChannel out, int width, int height, boolean alpha, int level, Filter filter, int threads) throws IOException {
+        if (level < 0 || level > 9) throw new IllegalArgumentException("level must be between 0 and 9");
+        if (threads < 1) throw new IllegalArgumentException("threads must be positive");
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        this.alpha = alpha;
+        this.level = level;
+        this.filter = filter;
+        this.threads = threads;
+        bytesPerPixel = alpha ? 4 : 3;
+        rowBytes = width * bytesPerPixel;
+        blockRows = Math.max(1, Math.min(height, BLOCK_BYTES / Math.max(1, rowBytes)));
+        block = new byte[blockRows * rowBytes];
+        prevRow = new byte[rowBytes];
+
+        try {
+            ByteBuffer signature = ByteBuffer.wrap(PngRowReader.SIGNATURE);
+            while (signature.hasRemaining()) out.write(signature);
+            byte[] header = new byte[13];
+            putInt(header, 0, width);
+            putInt(header, 4, height);
+            header[8] = 8;                       // bit depth
+            header[9] = (byte) (alpha ? 6 : 2);  // colour type
+            writeChunk(out, "IHDR", header);
+        } catch (IOException | RuntimeException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    // Writes an image with the default settings; normalized ones (see LsbEngine.normalize) are
+    // read straight from their backing arrays
+    public static void write(BufferedImage image, File file) throws IOException {
+        write(image, file, DEFAULT_LEVEL, DEFAULT_FILTER, DEFAULT_THREADS);
+    }
+
+    public static void write(BufferedImage image, File file, int level, Filter filter, int threads) throws IOException {
+        try (PngRowWriter writer = new PngRowWriter(file, image.getWidth(), image.getHeight(),
+                image.getColorModel().hasAlpha(), level, filter, threads)) {
+            writer.writeImage(image);
+        }
+    }
+
+    public static void write(BufferedImage image, OutputStream stream) throws IOException {
+        try (PngRowWriter writer = new PngRowWriter(stream, image.getWidth(), image.getHeight(), image.getColorModel().hasAlpha())) {
+            writer.writeImage(image);
+        }
+    }
+
+    // Writes src[offset, offset + width) (0xAARRGGBB) as the next scanline
+    public void writeRow(int[] src, int offset) throws IOException {
+        if (rowsWritten >= height) throw new IOException("All rows have been written");
+        int i = blockFill * rowBytes;
+        if (alpha) {
+            for (int x = 0; x < width; x++, i += 4) {
+                int p = src[offset + x];
+                block[i] = (byte) (p >> 16);
+                block[i + 1] = (byte) (p >> 8);
+                block[i + 2] = (byte) p;
+                block[i + 3] = (byte) (p >>> 24);
+            }
+        } else {
+            for (int x = 0; x < width; x++, i += 3) {
+                int p = src[offset + x];
+                block[i] = (byte) (p >> 16);
+                block[i + 1] = (byte) (p >> 8);
+                block[i + 2] = (byte) p;
+            }
+        }
+        rowsWritten++;
+        if (++blockFill == blockRows || rowsWritten == height) submit();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rowsWritten != height) {
+                throw new IOException("Only " + rowsWritten + " of " + height + " rows were written");
+            }
+            while (!inFlight.isEmpty()) writeBlock();
+            writeChunk(out, "IEND", new byte[0]);
+        } finally {
+            try {
+                // After a failure, blocks still in flight hand their Deflaters back when they finish
+                for (CompletableFuture<Block> b : inFlight) b.handle((block, e) -> null).join();
+                for (Deflater deflater; (deflater = idleDeflaters.poll()) != null; ) deflater.end();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /* -------------------------- Internals ------------------------- */
+
+    private void writeImage(BufferedImage image) throws IOException {
+        int w = image.getWidth();
+        boolean compact = LsbEngine.isCompact(image);
+        if (compact && image.getType() != BufferedImage.TYPE_3BYTE_BGR) {
+            int[] pixels = LsbEngine.pixels(image);
+            for (int y = 0; y < image.getHeight(); y++) writeRow(pixels, y * w);
+        } else if (compact) {
+            byte[] data = LsbEngine.data(image);
+            int[] row = new int[w];
+            for (int y = 0, i = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < w; x++, i += 3) row[x] = (data[i + 2] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | (data[i] & 0xFF);
+                writeRow(row, 0);
+            }
+        } else {
+            int[] row = new int[w];
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.getRGB(0, y, w, 1, row, 0, w);
+                writeRow(row, 0);
+            }
+        }
+    }
+
+    // Hands the filled block to the pool and starts a new one. Filtering only needs the raw row
+    // above, so blocks filter in parallel; deflating also waits for the block before's filtered
+    // bytes, which are its dictionary
+    private void submit() throws IOException {
+        byte[] raw = block;
+        int rows = blockFill;
+        byte[] above = prevRow;
+        boolean last = rowsWritten == height;
+        prevRow = new byte[rowBytes];
+        System.arraycopy(raw, (rows - 1) * rowBytes, prevRow, 0, rowBytes);
+        block = last ? null : new byte[blockRows * rowBytes];
+        blockFill = 0;
+
+        CompletableFuture<byte[]> filtered = threads == 1
+            ? CompletableFuture.completedFuture(filterRows(raw, rows, above))
+            : CompletableFuture.supplyAsync(() -> filterRows(raw, rows, above));
+        CompletableFuture<Block> deflated = threads == 1
+            ? CompletableFuture.completedFuture(deflate(filtered.join(), lastFiltered.join(), last))
+            : filtered.thenCombineAsync(lastFiltered, (data, dictionary) -> deflate(data, dictionary, last));
+        lastFiltered = filtered;
+        inFlight.add(deflated);
+        while (inFlight.size() >= threads) writeBlock();
+    }
+
+    private byte[] filterRows(byte[] raw, int rows, byte[] above) {
+        byte[] filtered = new byte[rows * (rowBytes + 1)];
+        byte[] scratch = filter == Filter.ADAPTIVE ? new byte[rowBytes] : null;
+        for (int r = 0; r < rows; r++) {
+            int from = r * rowBytes;
+            byte[] prev = r == 0 ? above : raw;
+            int prevFrom = r == 0 ? 0 : from - rowBytes;
+            int to = r * (rowBytes + 1);
+            if (filter != Filter.ADAPTIVE) {
+                filtered[to] = (byte) filter.ordinal();
+                filterRow(filter.ordinal(), raw, from, prev, prevFrom, filtered, to + 1);
+                continue;
+            }
+            long best = Long.MAX_VALUE;
+            for (int type = 0; type <= 4; type++) {
+                filterRow(type, raw, from, prev, prevFrom, scratch, 0);
+                long sum = 0;
+                for (byte b : scratch) sum += Math.abs(b);
+                if (sum < best) {
+                    best = sum;
+                    filtered[to] = (byte) type;
+                    System.arraycopy(scratch, 0, filtered, to + 1, rowBytes);
+                }
+            }
+        }
+        return filtered;
+    }
+
+    // One loop per filter type, so the per-byte work has no branches on the type
+    private void filterRow(int type, byte[] row, int from, byte[] prev, int prevFrom, byte[] dst, int to) {
+        int bpp = bytesPerPixel;
+        int n = rowBytes;
+        switch (type) {
+            case 0:
+                System.arraycopy(row, from, dst, to, n);
+                break;
+            case 1:
+                System.arraycopy(row, from, dst, to, Math.min(bpp, n));
+                for (int i = bpp; i < n; i++) dst[to + i] = (byte) (row[from + i] - row[from + i - bpp]);
+                break;
+            case 2:
+                for (int i = 0; i < n; i++) dst[to + i] = (byte) (row[from + i] - prev[prevFrom + i]);
+                break;
+            case 3:
+                for (int i = 0; i < Math.min(bpp, n); i++) dst[to + i] = (byte) (row[from + i] - ((prev[prevFrom + i] & 0xFF) >>> 1));
+                for (int i = bpp; i < n; i++) {
+                    dst[to + i] = (byte) (row[from + i] - (((row[from + i - bpp] & 0xFF) + (prev[prevFrom + i] & 0xFF)) >>> 1));
+                }
+                break;
+            default:
+                // Paeth with a = c = 0 predicts b
+                for (int i = 0; i < Math.min(bpp, n); i++) dst[to + i] = (byte) (row[from + i] - prev[prevFrom + i]);
+                for (int i = bpp; i < n; i++) {
+                    int predictor = PngRowReader.paeth(row[from + i - bpp] & 0xFF, prev[prevFrom + i] & 0xFF, prev[prevFrom + i - bpp] & 0xFF);
+                    dst[to + i] = (byte) (row[from + i] - predictor);
+                }
+        }
+    }
+
+    private Block deflate(byte[] data, byte[] dictionary, boolean last) {
+        Deflater deflater = idleDeflaters.poll();
+        if (deflater == null) deflater = new Deflater(level, true);
+        try {
+            if (dictionary.length > 0) {
+                int n = Math.min(WINDOW, dictionary.length);
+                deflater.setDictionary(dictionary, dictionary.length - n, n);
+            }
+            deflater.setInput(data);
+            byte[] buffer = new byte[data.length + (data.length >>> 8) + 64];
+            int length = 0;
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    if (length == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    length += deflater.deflate(buffer, length, buffer.length - length);
+                }
+            } else {
+                // A sync flush is only complete once it leaves room to spare in the buffer
+                while (true) {
+                    length += deflater.deflate(buffer, length, buffer.length - length, Deflater.SYNC_FLUSH);
+                    if (length < buffer.length) break;
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+            Adler32 checksum = new Adler32();
+            checksum.update(data);
+            return new Block(Arrays.copyOf(buffer, length), checksum.getValue(), data.length);
+        } finally {
+            // Forgets the dictionary too, so the next block can set its own
+            deflater.reset();
+            idleDeflaters.offer(deflater);
+        }
+    }
+
+    // Writes the oldest block as an IDAT chunk; the first also carries the zlib header and the
+    // last the Adler-32 of the whole stream
+    private void writeBlock() throws IOException {
+        Block b;
+        try {
+            b = inFlight.remove().join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+        adler = adlerCombine(adler, b.adler, b.rawLength);
+        boolean last = inFlight.isEmpty() && rowsWritten == height;
+        ByteBuffer data = ByteBuffer.allocate((first ? 2 : 0) + b.deflated.length + (last ? 4 : 0));
+        if (first) data.put((byte) 0x78).put((byte) (level < 2 ? 0x01 : level < 6 ? 0x5E : level == 6 ? 0x9C : 0xDA));
+        data.put(b.deflated);
+        if (last) data.putInt((int) adler);
+        first = false;
+        writeChunk(out, "IDAT", data.array());
+    }
+
+    // zlib's adler32_combine: the checksum of a + b from those of a and b
+    static long adlerCombine(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = rem * sum1 % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= base << 1) sum2 -= base << 1;
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | sum2 << 16;
+    }
+
+    static void writeChunk(WritableByteChannel out, String type, byte[] data) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+        ByteBuffer head = ByteBuffer.allocate(8).putInt(data.length).put(typeBytes);
+        head.flip();
+        ByteBuffer tail = ByteBuffer.allocate(4).putInt((int) crc.getValue());
+        tail.flip();
+        for (ByteBuffer part : new ByteBuffer[]{head, ByteBuffer.wrap(data), tail}) {
+            while (part.hasRemaining()) out.write(part);
+        }
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+}
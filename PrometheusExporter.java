@@ -0,0 +1,42 @@
+import java.util.Locale;
+
+// Renders a MetricsRegistry in the Prometheus text exposition format (version 0.0.4).
+public class PrometheusExporter {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    public static String render(MetricsRegistry registry) {
+        StringBuilder sb = new StringBuilder(4096);
+
+        sb.append("# HELP pixelvault_stage_seconds Time spent per pipeline stage.\n");
+        sb.append("# TYPE pixelvault_stage_seconds histogram\n");
+        for (Metrics.Stage stage : Metrics.Stage.values()) {
+            MetricsRegistry.Histogram h = registry.histogram(stage);
+            String label = "stage=\"" + stage.name().toLowerCase(Locale.ROOT) + "\"";
+            for (int i = 0; i <= MetricsRegistry.BUCKETS.length; i++) {
+                String le = i < MetricsRegistry.BUCKETS.length ? number(MetricsRegistry.BUCKETS[i]) : "+Inf";
+                sb.append("pixelvault_stage_seconds_bucket{").append(label).append(",le=\"").append(le).append("\"} ")
+                  .append(h.cumulative(i)).append('\n');
+            }
+            sb.append("pixelvault_stage_seconds_sum{").append(label).append("} ").append(number(h.sumSeconds())).append('\n');
+            sb.append("pixelvault_stage_seconds_count{").append(label).append("} ").append(h.count()).append('\n');
+        }
+
+        for (Metrics.Counter counter : Metrics.Counter.values()) {
+            String name = "pixelvault_" + counter.name().toLowerCase(Locale.ROOT) + "_total";
+            sb.append("# TYPE ").append(name).append(" counter\n");
+            sb.append(name).append(' ').append(registry.count(counter)).append('\n');
+        }
+
+        sb.append("# HELP pixelvault_rejections_total Images decoded without finding a message, by reason.\n");
+        sb.append("# TYPE pixelvault_rejections_total counter\n");
+        for (NoHiddenMessageException.Reason reason : NoHiddenMessageException.Reason.values()) {
+            sb.append("pixelvault_rejections_total{reason=\"").append(reason.name().toLowerCase(Locale.ROOT)).append("\"} ")
+              .append(registry.rejections(reason)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String number(double v) {
+        return String.format(Locale.ROOT, "%s", v);
+    }
+}
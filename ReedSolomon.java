@@ -0,0 +1,193 @@
+import java.util.stream.IntStream;
+
+// Systematic Reed-Solomon erasure code over GF(2^8): dataShards equal-length shards plus
+// parityShards parity shards, any dataShards of which rebuild the rest.
+//
+// The coding matrix is a Vandermonde matrix made systematic by multiplying it with the inverse
+// of its top square, so the first dataShards rows are the identity and every square submatrix
+// of rows stays invertible. Large shards are coded in slices across cores.
+public class ReedSolomon {
+    public static final int MAX_SHARDS = 256;
+    // Shard headers count data shards in a byte
+    public static final int MAX_DATA_SHARDS = 255;
+    private static final int SLICE = 64 * 1024;
+
+    private static final byte[] EXP = new byte[510];
+    private static final int[] LOG = new int[256];
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = EXP[i + 255] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) x ^= 0x11D;
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) MUL[a][b] = EXP[LOG[a] + LOG[b]];
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    private final byte[][] matrix; // (data + parity) x data
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || dataShards > MAX_DATA_SHARDS || parityShards < 0 || dataShards + parityShards > MAX_SHARDS) {
+            throw new IllegalArgumentException("Need 1 to " + MAX_DATA_SHARDS + " data shards and at most " + MAX_SHARDS + " shards in all");
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        int n = dataShards + parityShards;
+        byte[][] vandermonde = new byte[n][dataShards];
+        for (int r = 0; r < n; r++) {
+            for (int c = 0; c < dataShards; c++) vandermonde[r][c] = power(r, c);
+        }
+        byte[][] top = new byte[dataShards][];
+        System.arraycopy(vandermonde, 0, top, 0, dataShards);
+        matrix = multiply(vandermonde, invert(top));
+    }
+
+    public int dataShards() {
+        return dataShards;
+    }
+
+    public int parityShards() {
+        return parityShards;
+    }
+
+    // Fills shards[dataShards, dataShards + parityShards) from the data shards; all are length bytes
+    public void encodeParity(byte[][] shards, int length) {
+        byte[][] rows = new byte[parityShards][];
+        byte[][] outputs = new byte[parityShards][];
+        for (int p = 0; p < parityShards; p++) {
+            rows[p] = matrix[dataShards + p];
+            outputs[p] = shards[dataShards + p];
+        }
+        byte[][] inputs = new byte[dataShards][];
+        System.arraycopy(shards, 0, inputs, 0, dataShards);
+        code(rows, inputs, outputs, length);
+    }
+
+    // Rebuilds every shard not marked present from any dataShards that are. Missing shards may
+    // be null and are allocated; all shards are length bytes
+    public void reconstruct(byte[][] shards, boolean[] present, int length) {
+        int n = dataShards + parityShards;
+        int[] have = new int[dataShards];
+        int count = 0;
+        for (int i = 0; i < n && count < dataShards; i++) {
+            if (present[i]) have[count++] = i;
+        }
+        if (count < dataShards) {
+            throw new IllegalArgumentException("Need " + dataShards + " shards to rebuild, have " + count);
+        }
+
+        byte[][] sub = new byte[dataShards][];
+        byte[][] inputs = new byte[dataShards][];
+        for (int i = 0; i < dataShards; i++) {
+            sub[i] = matrix[have[i]];
+            inputs[i] = shards[have[i]];
+        }
+        byte[][] decode = invert(sub);
+
+        int missingData = 0;
+        for (int d = 0; d < dataShards; d++) if (!present[d]) missingData++;
+        byte[][] rows = new byte[missingData][];
+        byte[][] outputs = new byte[missingData][];
+        for (int d = 0, m = 0; d < dataShards; d++) {
+            if (present[d]) continue;
+            if (shards[d] == null) shards[d] = new byte[length];
+            rows[m] = decode[d];
+            outputs[m++] = shards[d];
+        }
+        code(rows, inputs, outputs, length);
+
+        // Parity from the (now complete) data, as when encoding
+        int missingParity = 0;
+        for (int p = dataShards; p < n; p++) if (!present[p]) missingParity++;
+        if (missingParity == 0) return;
+        rows = new byte[missingParity][];
+        outputs = new byte[missingParity][];
+        for (int p = dataShards, m = 0; p < n; p++) {
+            if (present[p]) continue;
+            if (shards[p] == null) shards[p] = new byte[length];
+            rows[m] = matrix[p];
+            outputs[m++] = shards[p];
+        }
+        inputs = new byte[dataShards][];
+        System.arraycopy(shards, 0, inputs, 0, dataShards);
+        code(rows, inputs, outputs, length);
+    }
+
+    /* -------------------------- Internals ------------------------- */
+
+    // outputs[o] = sum over i of rows[o][i] * inputs[i], byte by byte
+    private static void code(byte[][] rows, byte[][] inputs, byte[][] outputs, int length) {
+        if (rows.length == 0) return;
+        int slices = (length + SLICE - 1) / SLICE;
+        IntStream.range(0, slices).parallel().forEach(s -> {
+            int from = s * SLICE;
+            int to = Math.min(length, from + SLICE);
+            for (int o = 0; o < rows.length; o++) {
+                byte[] out = outputs[o];
+                for (int i = 0; i < inputs.length; i++) {
+                    byte[] mul = MUL[rows[o][i] & 0xFF];
+                    byte[] in = inputs[i];
+                    if (i == 0) {
+                        for (int j = from; j < to; j++) out[j] = mul[in[j] & 0xFF];
+                    } else {
+                        for (int j = from; j < to; j++) out[j] ^= mul[in[j] & 0xFF];
+                    }
+                }
+            }
+        });
+    }
+
+    private static byte power(int a, int n) {
+        if (n == 0) return 1;
+        if (a == 0) return 0;
+        return EXP[LOG[a] * n % 255];
+    }
+
+    private static byte[][] multiply(byte[][] a, byte[][] b) {
+        byte[][] out = new byte[a.length][b[0].length];
+        for (int r = 0; r < a.length; r++) {
+            for (int c = 0; c < b[0].length; c++) {
+                int v = 0;
+                for (int i = 0; i < b.length; i++) v ^= MUL[a[r][i] & 0xFF][b[i][c] & 0xFF];
+                out[r][c] = (byte) v;
+            }
+        }
+        return out;
+    }
+
+    // Gauss-Jordan elimination on a copy
+    private static byte[][] invert(byte[][] m) {
+        int n = m.length;
+        byte[][] work = new byte[n][2 * n];
+        for (int r = 0; r < n; r++) {
+            System.arraycopy(m[r], 0, work[r], 0, n);
+            work[r][n + r] = 1;
+        }
+        for (int c = 0; c < n; c++) {
+            int pivot = c;
+            while (pivot < n && work[pivot][c] == 0) pivot++;
+            if (pivot == n) throw new IllegalStateException("Singular matrix");
+            byte[] t = work[c];
+            work[c] = work[pivot];
+            work[pivot] = t;
+
+            byte[] scale = MUL[EXP[255 - LOG[work[c][c] & 0xFF]] & 0xFF];
+            for (int j = 0; j < 2 * n; j++) work[c][j] = scale[work[c][j] & 0xFF];
+            for (int r = 0; r < n; r++) {
+                if (r == c || work[r][c] == 0) continue;
+                byte[] factor = MUL[work[r][c] & 0xFF];
+                for (int j = 0; j < 2 * n; j++) work[r][j] ^= factor[work[c][j] & 0xFF];
+            }
+        }
+        byte[][] out = new byte[n][n];
+        for (int r = 0; r < n; r++) System.arraycopy(work[r], n, out[r], 0, n);
+        return out;
+    }
+}
@@ -0,0 +1,227 @@
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+
+// One payload spread over several carrier images, with Reed-Solomon parity so that any
+// dataShards of the images rebuild it.
+//
+// The payload is packed (and encrypted) once as an ordinary container; its bytes are cut into
+// dataShards equal shards, parityShards more are computed, and each shard is embedded in its own
+// carrier as a container with codec StegoContainer.CODEC_SHARD:
+//
+// Layout: [magic:32][version:8][codec:8][set id:64][index:8][data shards:8][parity shards:8]
+//         [container bytes:64][shard bytes:32][CRC32C of shard bytes:32][CRC32C of everything above:32]
+//         [shard bytes]
+//
+// A shard whose CRCs do not match counts as missing, like an image that is gone.
+public class ShardedPayload {
+    static final int SHARD_HEADER_BITS = StegoContainer.HEADER_BITS + 64 + 8 + 8 + 8 + 64 + 32 + 32 + 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // A parsed shard
+    static final class Shard {
+        final long setId;
+        final int index;
+        final int dataShards;
+        final int parityShards;
+        final long containerBytes;
+        final byte[] bytes;
+
+        Shard(long setId, int index, int dataShards, int parityShards, long containerBytes, byte[] bytes) {
+            this.setId = setId;
+            this.index = index;
+            this.dataShards = dataShards;
+            this.parityShards = parityShards;
+            this.containerBytes = containerBytes;
+            this.bytes = bytes;
+        }
+    }
+
+    // A container cut into dataShards + parityShards shard payloads, in index order
+    public static List<BitBuffer> split(BitBuffer container, int dataShards, int parityShards) {
+        ReedSolomon rs = new ReedSolomon(dataShards, parityShards);
+        byte[] bytes = container.toByteArray();
+        long shardLength = Math.max(1, ((long) bytes.length + dataShards - 1) / dataShards);
+        if (shardLength > Integer.MAX_VALUE) throw new IllegalArgumentException("Shards over 2 GiB; use more of them");
+        int length = (int) shardLength;
+
+        byte[][] shards = new byte[dataShards + parityShards][];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new byte[length];
+            if (i < dataShards && (long) i * length < bytes.length) {
+                System.arraycopy(bytes, i * length, shards[i], 0, Math.min(length, bytes.length - i * length));
+            }
+        }
+        rs.encodeParity(shards, length);
+
+        long setId = RANDOM.nextLong();
+        List<BitBuffer> out = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            out.add(write(new Shard(setId, i, dataShards, parityShards, bytes.length, shards[i])));
+        }
+        return out;
+    }
+
+    // The container again, from shard payloads of one set in any order. Shards that are not
+    // intact, and those of other sets, are ignored; the set with the most shards wins
+    public static BitBuffer join(List<BitBuffer> payloads) {
+        Map<Long, List<Shard>> sets = new HashMap<>();
+        for (BitBuffer payload : payloads) {
+            Shard shard = payload == null ? null : read(payload);
+            if (shard != null) sets.computeIfAbsent(shard.setId, id -> new ArrayList<>()).add(shard);
+        }
+        List<Shard> set = null;
+        for (List<Shard> candidate : sets.values()) {
+            if (set == null || candidate.size() > set.size()) set = candidate;
+        }
+        if (set == null) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.TOO_FEW_SHARDS, "no intact shards");
+        }
+
+        Shard first = set.get(0);
+        int n = first.dataShards + first.parityShards;
+        byte[][] shards = new byte[n][];
+        boolean[] present = new boolean[n];
+        int count = 0;
+        for (Shard shard : set) {
+            if (shard.dataShards != first.dataShards || shard.parityShards != first.parityShards
+                    || shard.containerBytes != first.containerBytes || shard.bytes.length != first.bytes.length) {
+                throw Instrumentation.reject(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, "shards of set disagree on its shape");
+            }
+            if (present[shard.index]) continue;
+            shards[shard.index] = shard.bytes;
+            present[shard.index] = true;
+            count++;
+        }
+        if (count < first.dataShards) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.TOO_FEW_SHARDS,
+                count + " intact shards of " + n + ", " + first.dataShards + " needed");
+        }
+
+        int length = first.bytes.length;
+        new ReedSolomon(first.dataShards, first.parityShards).reconstruct(shards, present, length);
+
+        BitBuffer container = new BitBuffer(first.containerBytes * 8);
+        for (int i = 0; i < first.dataShards; i++) {
+            long from = (long) i * length;
+            if (from >= first.containerBytes) break;
+            container.writeBytes(shards[i], 0, (int) Math.min(length, first.containerBytes - from));
+        }
+        return container;
+    }
+
+    /* -------------------------- Carriers -------------------------- */
+
+    // Embeds the payload across the carriers, the last parityShards of them holding parity, and
+    // writes carrier i to outputs[i]. Carriers are embedded and written concurrently. With a
+    // passphrase the container is encrypted before it is split, and every shard is scattered.
+    // Carriers go through the same format dispatch as EncodeBinary.encode: outputs that do not
+    // keep the carrier's format must be PNGs, and are checked before anything is written
+    public static void encode(byte[] payload, List<String> carriers, List<String> outputs, int parityShards, int headerBits,
+                              PayloadCodec codec, PayloadCipher.Passphrase passphrase) {
+        if (carriers.size() != outputs.size()) throw new IllegalArgumentException("Need one output per carrier");
+        boolean[] inFormat = new boolean[carriers.size()];
+        for (int i = 0; i < inFormat.length; i++) {
+            inFormat[i] = EncodeBinary.keepsFormat(carriers.get(i), outputs.get(i));
+            if (!inFormat[i]) EncodeBinary.requirePngOutput(outputs.get(i));
+        }
+        List<BitBuffer> shards = split(StegoContainer.pack(payload, codec, passphrase), carriers.size() - parityShards, parityShards);
+        IntStream.range(0, shards.size()).parallel().forEach(i -> {
+            try {
+                String output = outputs.get(i);
+                if (inFormat[i]) {
+                    EncodeBinary.encodeInFormat(carriers.get(i), shards.get(i), output, headerBits, passphrase);
+                    return;
+                }
+                BufferedImage image = CarrierCache.shared().readImage(carriers.get(i));
+                if (image == null) throw new IllegalArgumentException("Unsupported image: " + carriers.get(i));
+                image = EncodeBinary.embed(image, shards.get(i), headerBits, passphrase);
+                SteganographyHelper.writeImage(image, "png", output);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    // Decodes the images concurrently and rebuilds the payload from whichever of them hold an
+    // intact shard; the rest (unreadable, no message, damaged) count as missing
+    public static byte[] decode(List<String> images, int headerBits, PayloadCipher.Passphrase passphrase) {
+        BitBuffer[] payloads = new BitBuffer[images.size()];
+        IntStream.range(0, payloads.length).parallel().forEach(i -> {
+            try {
+                payloads[i] = CarrierCache.shared().decode(images.get(i), headerBits, passphrase);
+            } catch (NoHiddenMessageException e) {
+                // The whole set shares one password
+                if (e.getReason() == NoHiddenMessageException.Reason.PASSWORD_REQUIRED
+                        || e.getReason() == NoHiddenMessageException.Reason.BAD_PASSWORD) {
+                    throw e;
+                }
+            } catch (Exception e) {
+                // Missing, like an image that was never passed
+            }
+        });
+        return StegoContainer.unpackBytes(join(Arrays.asList(payloads)), passphrase);
+    }
+
+    /* -------------------------- Internals ------------------------- */
+
+    private static BitBuffer write(Shard shard) {
+        BitBuffer out = new BitBuffer(SHARD_HEADER_BITS + (long) shard.bytes.length * 8);
+        out.writeBits(StegoContainer.MAGIC, 32);
+        out.writeBits(StegoContainer.VERSION, 8);
+        out.writeBits(StegoContainer.CODEC_SHARD, 8);
+        out.writeBits(shard.setId, 64);
+        out.writeBits(shard.index, 8);
+        out.writeBits(shard.dataShards, 8);
+        out.writeBits(shard.parityShards, 8);
+        out.writeBits(shard.containerBytes, 64);
+        out.writeBits(shard.bytes.length, 32);
+        out.writeBits(crc(shard.bytes), 32);
+        out.writeBits(crc(out.toByteArray()), 32);
+        out.writeBytes(shard.bytes, 0, shard.bytes.length);
+        return out;
+    }
+
+    // Null unless the payload is an intact shard
+    static Shard read(BitBuffer payload) {
+        if (!isShard(payload) || payload.length() < SHARD_HEADER_BITS) return null;
+        byte[] header = new byte[(SHARD_HEADER_BITS - 32) / 8];
+        for (int i = 0; i < header.length; i++) header[i] = (byte) payload.getBits(i * 8L, 8);
+        if (payload.getBits(SHARD_HEADER_BITS - 32, 32) != crc(header)) return null;
+
+        payload.position(StegoContainer.HEADER_BITS);
+        long setId = payload.readBits(64);
+        int index = (int) payload.readBits(8);
+        int dataShards = (int) payload.readBits(8);
+        int parityShards = (int) payload.readBits(8);
+        long containerBytes = payload.readBits(64);
+        long length = payload.readBits(32);
+        long shardCrc = payload.readBits(32);
+        if (dataShards < 1 || index >= dataShards + parityShards || dataShards + parityShards > ReedSolomon.MAX_SHARDS
+                || payload.length() - SHARD_HEADER_BITS < length * 8 || containerBytes > length * dataShards) {
+            return null;
+        }
+        byte[] bytes = new byte[(int) length];
+        payload.position(SHARD_HEADER_BITS);
+        payload.readBytes(bytes, 0, bytes.length);
+        return crc(bytes) == shardCrc ? new Shard(setId, index, dataShards, parityShards, containerBytes, bytes) : null;
+    }
+
+    public static boolean isShard(BitBuffer payload) {
+        return StegoContainer.isContainer(payload, 0) && payload.getBits(40, 8) == StegoContainer.CODEC_SHARD;
+    }
+
+    private static long crc(byte[] bytes) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+}
@@ -1,20 +1,162 @@
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import org.w3c.dom.Node;
 
 public class SteganographyHelper {
 
+    // Uncompressed rasters ImageIO may not know (see MappedRaster) are read through a mapping
     public static BufferedImage readImage(String path) throws IOException {
-        return ImageIO.read(new File(path));
+        if (MappedRaster.isSupported(path)) {
+            try (MappedRaster raster = MappedRaster.open(Paths.get(path), false)) {
+                return raster.readTopRows(raster.height);
+            }
+        }
+        long t = Instrumentation.start();
+        BufferedImage image = ImageIO.read(new File(path));
+        Instrumentation.stop(Metrics.Stage.IMAGE_READ, t);
+        if (image != null) Instrumentation.add(Metrics.Counter.IMAGES_READ, 1);
+        return image;
     }
 
+    // PNGs of normalized rasters go through PngRowWriter, which deflates on all cores. Throws
+    // when ImageIO has no writer for the format, or none that takes the image's type
     public static void writeImage(BufferedImage image, String format, String outputPath) throws IOException {
-        ImageIO.write(image, format, new File(outputPath));
+        long t = Instrumentation.start();
+        if (format.equalsIgnoreCase("png") && LsbEngine.isCompact(image)) {
+            PngRowWriter.write(image, new File(outputPath));
+        } else if (!ImageIO.write(image, format, new File(outputPath))) {
+            throw new IOException("Cannot write a " + format + " image" + (image.getColorModel().hasAlpha() ? " with alpha" : "") + ": " + outputPath);
+        }
+        Instrumentation.stop(Metrics.Stage.IMAGE_WRITE, t);
+        Instrumentation.add(Metrics.Counter.IMAGES_WRITTEN, 1);
     }
 
     public static String getImageFormat(String filename) {
         int dotIndex = filename.lastIndexOf('.');
         return (dotIndex == -1) ? "png" : filename.substring(dotIndex + 1);
     }
+
+    // Reader positioned on the first image; release it with closeReader
+    public static ImageReader openReader(String path) throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(new File(path));
+        if (in == null) throw new IOException("Cannot open " + path);
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            in.close();
+            throw new IOException("Unsupported image format: " + path);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(in, true, true);
+        return reader;
+    }
+
+    // Reader over a stream, e.g. an HTTP request body; closeReader does not close the stream itself
+    public static ImageReader openReader(InputStream stream) throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(stream);
+        if (in == null) throw new IOException("Cannot read image stream");
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            in.close();
+            throw new IOException("Unsupported image format");
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(in, true, true);
+        return reader;
+    }
+
+    public static void closeReader(ImageReader reader) throws IOException {
+        Object input = reader.getInput();
+        reader.dispose();
+        if (input instanceof ImageInputStream) ((ImageInputStream) input).close();
+    }
+
+    // Decodes only rows [0, rows) of the first image. Readers that report progress (PNG, JPEG)
+    // are aborted as soon as those rows are complete, so the rest of the file is never inflated.
+    public static BufferedImage readTopRows(ImageReader reader, int rows) throws IOException {
+        long t = Instrumentation.start();
+        BufferedImage image = readRegion(reader, rows);
+        Instrumentation.stop(Metrics.Stage.IMAGE_READ, t);
+        Instrumentation.add(Metrics.Counter.IMAGES_READ, 1);
+        return image;
+    }
+
+    private static BufferedImage readRegion(ImageReader reader, int rows) throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(0, 0, reader.getWidth(0), rows));
+        if (!isSinglePass(reader)) return reader.read(0, param);
+
+        TopRowsListener listener = new TopRowsListener(rows);
+        reader.addIIOReadUpdateListener(listener);
+        try {
+            return reader.read(0, param);
+        } finally {
+            reader.removeIIOReadUpdateListener(listener);
+        }
+    }
+
+    // Interlaced PNGs and progressive JPEGs only have final pixel values after their last
+    // pass, so aborting early is only safe for single-pass images
+    private static boolean isSinglePass(ImageReader reader) {
+        try {
+            IIOMetadata metadata = reader.getImageMetadata(0);
+            if (metadata == null || !metadata.isStandardMetadataFormatSupported()) return false;
+            Node root = metadata.getAsTree(IIOMetadataFormatImpl.standardMetadataFormatName);
+            for (Node n = root.getFirstChild(); n != null; n = n.getNextSibling()) {
+                if (!n.getNodeName().equals("Compression")) continue;
+                for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+                    if (c.getNodeName().equals("NumProgressiveScans")) {
+                        Node value = c.getAttributes().getNamedItem("value");
+                        return value != null && value.getNodeValue().equals("1");
+                    }
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static class TopRowsListener implements IIOReadUpdateListener {
+        private final int rows;
+
+        TopRowsListener(int rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public void passStarted(ImageReader source, BufferedImage theImage, int pass, int minPass, int maxPass,
+                                int minX, int minY, int periodX, int periodY, int[] bands) {}
+
+        @Override
+        public void imageUpdate(ImageReader source, BufferedImage theImage, int minX, int minY, int width, int height,
+                                int periodX, int periodY, int[] bands) {
+            if (minY + height * periodY >= rows) source.abort();
+        }
+
+        @Override
+        public void passComplete(ImageReader source, BufferedImage theImage) {}
+
+        @Override
+        public void thumbnailPassStarted(ImageReader source, BufferedImage theThumbnail, int pass, int minPass,
+                                         int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {}
+
+        @Override
+        public void thumbnailUpdate(ImageReader source, BufferedImage theThumbnail, int minX, int minY, int width,
+                                    int height, int periodX, int periodY, int[] bands) {}
+
+        @Override
+        public void thumbnailPassComplete(ImageReader source, BufferedImage theThumbnail) {}
+    }
 }
@@ -0,0 +1,263 @@
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Versioned payload format embedded after the length header.
+//
+// Layout: [magic:32 "PXLV"][version:8][codec:8][codec stream][zero padding to a byte]
+//
+// The codec byte names a PayloadCodec (see Codecs) or one of the block formats below.
+// Payloads over INDEXED_THRESHOLD are packed as CODEC_INDEXED (see ChunkedContainer), so a
+// single block of them can be read back without decoding the rest.
+//
+// Legacy payloads are the ASCII '0'/'1'/'|' characters of HuffmanCoding.compress(String),
+// so their first byte is always 0x30, 0x31 or 0x7C and can never match the magic.
+public class StegoContainer {
+    static final int MAGIC = 0x50584C56; // "PXLV"
+    static final int VERSION = 1;
+    static final int CODEC_HUFFMAN_TREE = 1;      // retired, never written or read; kept so the id is not reused
+    static final int CODEC_HUFFMAN_CHARS = 2;     // retired, never written or read; kept so the id is not reused
+    static final int CODEC_HUFFMAN = 3;           // bytes, canonical code lengths
+    static final int CODEC_HUFFMAN_BLOCKS = 4;    // bytes, CODEC_HUFFMAN blocks ended by an empty block; read, no longer written
+    static final int CODEC_HUFFMAN_INDEXED = 5;   // retired, never written or read; kept so the id is not reused
+    static final int CODEC_INDEXED = 6;           // bytes, blocks tagged with their codec behind a CRC32C checked index
+    static final int CODEC_STORED = 7;            // bytes, uncompressed
+    static final int CODEC_DEFLATE = 8;           // bytes, raw deflate
+    static final int CODEC_LZ = 9;                // bytes, LzCodec
+    static final int CODEC_ENCRYPTED = 10;        // another container, encrypted (see PayloadCipher)
+    static final int CODEC_SHARD = 11;            // one erasure-coded shard of another container (see ShardedPayload)
+    static final int CODEC_BLOCKS = 12;           // bytes, [codec:8] then blocks of that PayloadCodec ended by an empty block
+
+    static final int HEADER_BITS = 32 + 8 + 8;
+    static final int STREAM_BLOCK_SIZE = 1 << 20;
+    static final int INDEXED_THRESHOLD = 4 * ChunkedContainer.DEFAULT_BLOCK_SIZE;
+
+    public static BitBuffer pack(String text) {
+        return pack(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Compressed with whichever codec does best on a sample of the data
+    public static BitBuffer pack(byte[] data) {
+        return pack(data, Codecs.choose(data));
+    }
+
+    // Encrypted when a passphrase is given
+    public static BitBuffer pack(byte[] data, PayloadCodec codec, PayloadCipher.Passphrase passphrase) {
+        BitBuffer container = pack(data, codec);
+        return passphrase == null ? container : PayloadCipher.encrypt(container, passphrase);
+    }
+
+    public static BitBuffer pack(byte[] data, PayloadCodec codec) {
+        if (data.length > INDEXED_THRESHOLD) return ChunkedContainer.pack(data, ChunkedContainer.DEFAULT_BLOCK_SIZE, codec);
+        long t = Instrumentation.start();
+        BitBuffer out = new BitBuffer(HEADER_BITS + (long) data.length * 8);
+        out.writeBits(MAGIC, 32);
+        out.writeBits(VERSION, 8);
+        out.writeBits(codec.id(), 8);
+        codec.compress(data, 0, data.length, out);
+
+        // Keep the payload a whole number of bytes
+        int pad = (int) ((8 - (out.length() & 7)) & 7);
+        out.writeBits(0, pad);
+        Instrumentation.stop(Metrics.Stage.COMPRESS, t);
+        Instrumentation.add(Metrics.Counter.PAYLOAD_BYTES_ENCODED, data.length);
+        return out;
+    }
+
+    // Streaming variant: compresses the input one block at a time and writes the container
+    // to out as bytes, so the payload never has to fit in memory. Returns the bits written.
+    public static long pack(InputStream in, OutputStream out) throws IOException {
+        return pack(in, out, null);
+    }
+
+    // codec may be null to pick the one Codecs.choose prefers for the first block
+    public static long pack(InputStream in, OutputStream out, PayloadCodec codec) throws IOException {
+        long t = Instrumentation.start();
+        byte[] block = new byte[STREAM_BLOCK_SIZE];
+        int n = in.readNBytes(block, 0, block.length);
+        if (codec == null) codec = Codecs.choose(n == block.length ? block : Arrays.copyOf(block, n));
+
+        BitBuffer pending = new BitBuffer();
+        pending.writeBits(MAGIC, 32);
+        pending.writeBits(VERSION, 8);
+        pending.writeBits(CODEC_BLOCKS, 8);
+        pending.writeBits(codec.id(), 8);
+
+        long bytesWritten = 0;
+        long payloadBytes = 0;
+        while (true) {
+            codec.compress(block, 0, n, pending);
+            payloadBytes += n;
+
+            // Hand whole bytes to the output, keep the unfinished one
+            long whole = pending.length() >>> 3;
+            out.write(pending.toByteArray(), 0, (int) whole);
+            bytesWritten += whole;
+            BitBuffer rest = new BitBuffer(64);
+            rest.append(pending, whole * 8, pending.length());
+            pending = rest;
+
+            // The empty block just written ends the stream
+            if (n == 0) break;
+            n = in.readNBytes(block, 0, block.length);
+        }
+
+        if (pending.length() > 0) {
+            out.write(pending.toByteArray());
+            bytesWritten++;
+        }
+        // Reading the input is part of the stage here; it cannot be told apart from compression
+        Instrumentation.stop(Metrics.Stage.COMPRESS, t);
+        Instrumentation.add(Metrics.Counter.PAYLOAD_BYTES_ENCODED, payloadBytes);
+        return bytesWritten * 8;
+    }
+
+    public static String unpack(BitBuffer bits) {
+        return unpack(bits, (PayloadCipher.Passphrase) null);
+    }
+
+    public static String unpack(BitBuffer bits, PayloadCipher.Passphrase passphrase) {
+        return new String(unpackBytes(bits, passphrase), StandardCharsets.UTF_8);
+    }
+
+    public static byte[] unpackBytes(BitBuffer bits) {
+        return unpackBytes(bits, null);
+    }
+
+    public static byte[] unpackBytes(BitBuffer bits, PayloadCipher.Passphrase passphrase) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            unpack(bits, out, passphrase);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    // Writes the decoded payload to out; block streams are written one block at a time
+    public static void unpack(BitBuffer bits, OutputStream out) throws IOException {
+        unpack(bits, out, null);
+    }
+
+    // passphrase may be null; encrypted payloads are then rejected with PASSWORD_REQUIRED
+    public static void unpack(BitBuffer bits, OutputStream out, PayloadCipher.Passphrase passphrase) throws IOException {
+        unpack(bits, out, passphrase, Long.MAX_VALUE);
+    }
+
+    // Payloads that decode to more than maxBytes are rejected with PAYLOAD_TOO_LARGE: before
+    // anything is decompressed when the codec declares its length, otherwise once the output
+    // passes the limit
+    public static void unpack(BitBuffer bits, OutputStream out, PayloadCipher.Passphrase passphrase, long maxBytes) throws IOException {
+        if (!isContainer(bits, 0)) {
+            throw new IllegalArgumentException("Not a container payload");
+        }
+        bits.position(32);
+        int version = (int) bits.readBits(8);
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported container version: " + version);
+        }
+        int codec = (int) bits.readBits(8);
+        if (codec == CODEC_ENCRYPTED) {
+            unpack(PayloadCipher.decrypt(bits, passphrase), out, null, maxBytes);
+            return;
+        }
+        long declared = declaredLength(bits);
+        if (declared > maxBytes) {
+            throw Instrumentation.reject(NoHiddenMessageException.Reason.PAYLOAD_TOO_LARGE, declared + " bytes, limit " + maxBytes);
+        }
+        bits.position(HEADER_BITS);
+        long t = Instrumentation.start();
+        CountingStream counted = new CountingStream(out, maxBytes);
+        out = counted;
+        switch (codec) {
+            case CODEC_INDEXED:
+                ChunkedContainer.unpack(bits, out);
+                break;
+            case CODEC_HUFFMAN_BLOCKS:
+                unpackBlocks(bits, Codecs.HUFFMAN, counted);
+                break;
+            case CODEC_BLOCKS:
+                int id = (int) bits.readBits(8);
+                PayloadCodec blockCodec = Codecs.byId(id);
+                if (blockCodec == null) throw new IllegalArgumentException("Unsupported block codec: " + id);
+                unpackBlocks(bits, blockCodec, counted);
+                break;
+            case CODEC_SHARD:
+                throw new IllegalArgumentException("Payload is one shard of a set; decode the set with ShardedPayload");
+            default:
+                PayloadCodec payloadCodec = Codecs.byId(codec);
+                if (payloadCodec == null) throw new IllegalArgumentException("Unsupported codec: " + codec);
+                out.write(payloadCodec.decompress(bits));
+        }
+        Instrumentation.stop(Metrics.Stage.DECOMPRESS, t);
+        Instrumentation.add(Metrics.Counter.PAYLOAD_BYTES_DECODED, counted.count);
+    }
+
+    // Bytes an unencrypted container says it decodes to, from its codec stream or block index,
+    // without decompressing anything; -1 when the codec does not say up front
+    public static long declaredLength(BitBuffer bits) {
+        if (!isContainer(bits, 0)) return -1;
+        int codec = (int) bits.getBits(40, 8);
+        if (codec == CODEC_INDEXED) return ChunkedContainer.readIndex(bits).rawLength();
+        PayloadCodec payloadCodec = Codecs.byId(codec);
+        if (payloadCodec == null) return -1;
+        long position = bits.position();
+        bits.position(HEADER_BITS);
+        try {
+            return payloadCodec.declaredLength(bits);
+        } finally {
+            bits.position(position);
+        }
+    }
+
+    // Blocks up to the empty one that ends them; each is checked against the limit before it
+    // is decompressed
+    private static void unpackBlocks(BitBuffer bits, PayloadCodec codec, CountingStream out) throws IOException {
+        while (true) {
+            out.check(codec.declaredLength(bits));
+            byte[] block = codec.decompress(bits);
+            if (block.length == 0) return;
+            out.write(block);
+        }
+    }
+
+    public static boolean isContainer(BitBuffer bits, long offset) {
+        return bits.length() - offset >= HEADER_BITS && bits.getBits(offset, 32) == MAGIC;
+    }
+
+    // Counts what passes through and rejects output past the limit
+    private static final class CountingStream extends FilterOutputStream {
+        final long limit;
+        long count;
+
+        CountingStream(OutputStream out, long limit) {
+            super(out);
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            check(len);
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            check(1);
+            out.write(b);
+            count++;
+        }
+
+        void check(long len) {
+            if (count + len > limit) {
+                throw Instrumentation.reject(NoHiddenMessageException.Reason.PAYLOAD_TOO_LARGE, "over " + limit + " bytes");
+            }
+        }
+    }
+}
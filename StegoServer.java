@@ -0,0 +1,499 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import javax.imageio.ImageReader;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Embedded HTTP service so browsers do not have to run the codec themselves:
+//
+//   POST /api/encode?header=64&payloadLength=N   body: N payload bytes, then the carrier image
+//        [&codec=auto|huffman|deflate|lz|stored]  -> image/png
+//   POST /api/decode?header=64                   body: stego image -> application/octet-stream
+//   POST /api/capacity?header=64                 body: image -> JSON (only the image header is read)
+//   GET  /api/health                             -> JSON
+//   GET  /metrics                                -> stage latencies, counters and rejection
+//                                                   reasons in the Prometheus text format
+//   GET  /...                                    static files from --web (the Web/ frontend)
+//
+// Encode and decode take an optional X-PixelVault-Password request header: the payload is
+// encrypted with it (see PayloadCipher), and encrypted payloads need it to decode. It is a
+// header rather than a query parameter so it stays out of access logs.
+//
+// Encode and decode read their whole request before taking a job permit, so a slow upload holds
+// none: the payload into memory, the image into a temporary file of at most 4 bytes per
+// --max-pixels pixel (413 past that). The PNG is then deflated straight into the response and a
+// decoded payload is written out as it is decompressed. Payloads over --max-payload bytes get 413:
+// on encode before any of them is read, on decode before any of them is decompressed when the
+// container declares its length (codecs that do not get cut off at the limit). A decode that
+// fails once its 200 has gone out drops the connection without ending the body, so the client
+// sees a broken transfer rather than a short payload.
+//
+// Each request gets its own thread; the CPU work of encode and decode also needs one of
+// --max-jobs permits and gets 503 if none frees up within a few seconds.
+//
+// Listens on loopback only unless --bind names another address.
+//
+//   java Main serve [--port 8080] [--bind 127.0.0.1] [--web Web] [--max-jobs cores]
+//                   [--max-pixels 100000000] [--max-payload 67108864]
+public class StegoServer {
+    private static final long PERMIT_WAIT_SECONDS = 5;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    final Semaphore jobs;
+    private final long maxPixels;
+    private final long maxImageBytes;
+    private final long maxPayloadBytes;
+    private final Path webRoot;
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
+    public StegoServer(InetSocketAddress address, int maxJobs, long maxPixels, long maxPayloadBytes, Path webRoot) throws IOException {
+        this.jobs = new Semaphore(maxJobs);
+        this.maxPixels = maxPixels;
+        // An uncompressed 32-bit raster of maxPixels, plus room for its headers
+        this.maxImageBytes = Math.min(maxPixels, Long.MAX_VALUE / 8) * 4 + (1 << 20);
+        this.maxPayloadBytes = maxPayloadBytes;
+        this.webRoot = webRoot == null ? null : webRoot.toAbsolutePath().normalize();
+        executor = perRequestExecutor();
+        Instrumentation.install(metrics);
+
+        server = HttpServer.create(address, 0);
+        server.createContext("/api/encode", ex -> handle(ex, "POST", this::encode));
+        server.createContext("/api/decode", ex -> handle(ex, "POST", this::decode));
+        server.createContext("/api/capacity", ex -> handle(ex, "POST", (e, permit) -> capacity(e)));
+        server.createContext("/api/health", ex -> handle(ex, "GET",
+            (e, permit) -> sendJson(e, 200, "{\"status\":\"ok\",\"availableJobs\":" + jobs.availablePermits() + "}")));
+        server.createContext("/metrics", ex -> handle(ex, "GET", (e, permit) -> metrics(e)));
+        server.createContext("/", ex -> handle(ex, "GET", (e, permit) -> staticFile(e)));
+        server.setExecutor(executor);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = 8080;
+        InetAddress bind = InetAddress.getLoopbackAddress();
+        int maxJobs = Runtime.getRuntime().availableProcessors();
+        long maxPixels = 100_000_000L;
+        long maxPayload = 64L << 20;
+        Path web = Files.isDirectory(Paths.get("Web")) ? Paths.get("Web") : null;
+
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + args[i]);
+            switch (args[i]) {
+                case "--port": port = Integer.parseInt(args[i + 1]); break;
+                case "--bind": bind = InetAddress.getByName(args[i + 1]); break;
+                case "--web": web = Paths.get(args[i + 1]); break;
+                case "--max-jobs": maxJobs = Integer.parseInt(args[i + 1]); break;
+                case "--max-pixels": maxPixels = Long.parseLong(args[i + 1]); break;
+                case "--max-payload": maxPayload = Long.parseLong(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (maxJobs < 1) throw new IllegalArgumentException("--max-jobs must be at least 1");
+        if (maxPayload < 0 || maxPayload > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("--max-payload must be between 0 and " + (Integer.MAX_VALUE - 8));
+        }
+
+        StegoServer server = new StegoServer(new InetSocketAddress(bind, port), maxJobs, maxPixels, maxPayload, web);
+        server.start();
+        System.out.println("Listening on http://" + bind.getHostAddress() + ":" + server.port() + "/");
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    // Virtual thread per request where the runtime has them (Java 21+), otherwise a cached
+    // pool: handlers mostly block on socket I/O, and the job semaphore bounds the CPU work
+    private static ExecutorService perRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "stego-http");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /* -------------------------- Handlers -------------------------- */
+
+    private interface Handler {
+        void handle(HttpExchange exchange, Permit permit) throws Exception;
+    }
+
+    // One of the --max-jobs permits. Heavy handlers take it once their request is read, for the
+    // CPU work only; handle() gives it back when the request is done
+    private final class Permit {
+        private boolean held;
+
+        // false once 503 has been sent because none freed up in time
+        boolean acquire(HttpExchange exchange) throws InterruptedException {
+            if (!jobs.tryAcquire(PERMIT_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendError(exchange, 503, "Server busy");
+                return false;
+            }
+            held = true;
+            return true;
+        }
+
+        void release() {
+            if (held) jobs.release();
+            held = false;
+        }
+    }
+
+    private void handle(HttpExchange exchange, String method, Handler handler) throws IOException {
+        boolean aborted = false;
+        Permit permit = new Permit();
+        try {
+            if (!exchange.getRequestMethod().equalsIgnoreCase(method)) {
+                exchange.getResponseHeaders().set("Allow", method);
+                sendError(exchange, 405, "Use " + method);
+                return;
+            }
+            handler.handle(exchange, permit);
+        } catch (ResponseAborted e) {
+            // Thrown out of the handler, the server closes the connection without the last chunk
+            aborted = true;
+            throw e;
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendError(exchange, 503, "Server shutting down");
+        } catch (NoHiddenMessageException e) {
+            if (e.getReason() == NoHiddenMessageException.Reason.PAYLOAD_TOO_LARGE) {
+                sendError(exchange, 413, "Payload too large: " + e.getDetail(), e.getReason().name());
+            } else {
+                sendError(exchange, 422, e.getMessage(), e.getReason().name());
+            }
+        } catch (Exception e) {
+            String message = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            sendError(exchange, e instanceof IOException ? 400 : 422, message);
+        } finally {
+            permit.release();
+            if (!aborted) exchange.close();
+        }
+    }
+
+    private void encode(HttpExchange exchange, Permit permit) throws Exception {
+        Map<String, String> query = query(exchange);
+        int headerBits = headerBits(query);
+        String codec = query.getOrDefault("codec", "auto");
+        if (!codec.equalsIgnoreCase("auto")) Codecs.byName(codec);
+        long payloadLength = Long.parseLong(required(query, "payloadLength"));
+        if (payloadLength < 0) throw new IllegalArgumentException("payloadLength out of range");
+        if (payloadLength > maxPayloadBytes) {
+            sendError(exchange, 413, "Payload too large: " + payloadLength + " bytes, limit " + maxPayloadBytes);
+            return;
+        }
+
+        InputStream body = new BufferedInputStream(exchange.getRequestBody(), 1 << 16);
+        byte[] payload = readFully(body, (int) payloadLength);
+        Path carrier = spool(exchange, body);
+        if (carrier == null) return;
+        try {
+            if (!permit.acquire(exchange)) return;
+            BufferedImage image;
+            ImageReader reader = SteganographyHelper.openReader(carrier.toString());
+            try {
+                checkSize(reader);
+                long t = Instrumentation.start();
+                image = reader.read(0);
+                Instrumentation.stop(Metrics.Stage.IMAGE_READ, t);
+                Instrumentation.add(Metrics.Counter.IMAGES_READ, 1);
+            } finally {
+                SteganographyHelper.closeReader(reader);
+            }
+
+            PayloadCipher.Passphrase passphrase = passphrase(exchange);
+            image = EncodeBinary.embed(image, TextToBinary.toBits(payload, Codecs.select(codec, payload), passphrase), headerBits, passphrase);
+
+            exchange.getResponseHeaders().set("Content-Type", "image/png");
+            exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"encoded-image.png\"");
+            exchange.sendResponseHeaders(200, 0); // chunked
+            long t = Instrumentation.start();
+            try (OutputStream out = new BufferedOutputStream(exchange.getResponseBody(), 1 << 16)) {
+                PngRowWriter.write(image, out);
+            }
+            Instrumentation.stop(Metrics.Stage.IMAGE_WRITE, t);
+            Instrumentation.add(Metrics.Counter.IMAGES_WRITTEN, 1);
+        } finally {
+            Files.deleteIfExists(carrier);
+        }
+    }
+
+    private void decode(HttpExchange exchange, Permit permit) throws Exception {
+        int headerBits = headerBits(query(exchange));
+        Path image = spool(exchange, exchange.getRequestBody());
+        if (image == null) return;
+        try {
+            if (!permit.acquire(exchange)) return;
+            // One passphrase for both, so its key is derived once
+            PayloadCipher.Passphrase passphrase = passphrase(exchange);
+            BitBuffer bits;
+            ImageReader reader = SteganographyHelper.openReader(image.toString());
+            try {
+                checkSize(reader);
+                // Only the rows holding the payload are decoded
+                bits = DecodeBinary.decodeBitsStreaming(reader, headerBits, passphrase);
+            } finally {
+                SteganographyHelper.closeReader(reader);
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            ResponseStream out = new ResponseStream(exchange);
+            try {
+                BinaryToText.toStream(bits, passphrase, maxPayloadBytes, out);
+            } catch (Exception e) {
+                // Too late for an error status once part of the payload is out
+                if (out.started()) throw new ResponseAborted(e);
+                throw e;
+            }
+            out.finish();
+        } finally {
+            Files.deleteIfExists(image);
+        }
+    }
+
+    private void capacity(HttpExchange exchange) throws Exception {
+        int headerBits = headerBits(query(exchange));
+        int width, height;
+        boolean alpha;
+        ImageReader reader = SteganographyHelper.openReader(new BufferedInputStream(exchange.getRequestBody(), 1 << 16));
+        try {
+            width = reader.getWidth(0);
+            height = reader.getHeight(0);
+            alpha = reader.getImageTypes(0).next().getColorModel().hasAlpha();
+        } finally {
+            SteganographyHelper.closeReader(reader);
+        }
+
+        long pixels = (long) width * height;
+        int prefixBits = CapacityPlanner.prefixBits(headerBits);
+        long legacyBits = Math.max(0, (pixels * 3 - prefixBits) / 2);
+        long maxBits = Math.max(0, (pixels - CapacityPlanner.headerPixels(prefixBits)) * 4 * 3);
+        sendJson(exchange, 200, String.format(Locale.ROOT,
+            "{\"width\":%d,\"height\":%d,\"alpha\":%b,\"capacityBits\":%d,\"legacyPayloadBits\":%d,\"maxPayloadBits\":%d}",
+            width, height, alpha, pixels * 3, legacyBits, maxBits));
+    }
+
+    private void metrics(HttpExchange exchange) throws IOException {
+        byte[] body = PrometheusExporter.render(metrics).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", PrometheusExporter.CONTENT_TYPE);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private void staticFile(HttpExchange exchange) throws IOException {
+        if (webRoot == null) {
+            sendError(exchange, 404, "Not found");
+            return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        if (path.endsWith("/")) path += "index.html";
+        Path file = webRoot.resolve(path.substring(1)).normalize();
+        if (!file.startsWith(webRoot) || !Files.isRegularFile(file)) {
+            sendError(exchange, 404, "Not found");
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", contentType(file.getFileName().toString()));
+        exchange.sendResponseHeaders(200, Files.size(file));
+        try (OutputStream out = exchange.getResponseBody()) {
+            Files.copy(file, out);
+        }
+    }
+
+    /* -------------------------- Helpers --------------------------- */
+
+    // Rejects huge carriers from the image header, before any pixels are decoded
+    private void checkSize(ImageReader reader) throws IOException {
+        long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+        if (pixels > maxPixels) {
+            throw new IllegalArgumentException("Image too large: " + pixels + " pixels, limit " + maxPixels);
+        }
+    }
+
+    private static int headerBits(Map<String, String> query) {
+        int headerBits = Integer.parseInt(query.getOrDefault("header", "64"));
+        if (headerBits != 64 && headerBits != 128) {
+            throw new IllegalArgumentException("headerBits must be 64 or 128");
+        }
+        return headerBits;
+    }
+
+    // Per request: the server keeps neither passwords nor the keys derived from them
+    private static PayloadCipher.Passphrase passphrase(HttpExchange exchange) {
+        String password = exchange.getRequestHeaders().getFirst("X-PixelVault-Password");
+        return password == null || password.isEmpty() ? null : new PayloadCipher.Passphrase(password.toCharArray());
+    }
+
+    private static String required(Map<String, String> query, String name) {
+        String value = query.get(name);
+        if (value == null) throw new IllegalArgumentException("Missing query parameter " + name);
+        return value;
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null) return params;
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    // readNBytes buffers in small chunks as bytes arrive, so a client that claims a long
+    // payload and sends a short one never gets the whole length allocated
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = in.readNBytes(length);
+        if (data.length < length) throw new IllegalArgumentException("Request body ended inside the payload");
+        return data;
+    }
+
+    // The rest of a request body in a temporary file, or null once 413 has been sent because it
+    // passed maxImageBytes
+    private Path spool(HttpExchange exchange, InputStream body) throws IOException {
+        Path file = Files.createTempFile("pixelvault-upload", null);
+        boolean kept = false;
+        try {
+            try (OutputStream out = Files.newOutputStream(file)) {
+                byte[] buffer = new byte[1 << 16];
+                long total = 0;
+                for (int n; (n = body.read(buffer)) >= 0; ) {
+                    total += n;
+                    if (total > maxImageBytes) {
+                        sendError(exchange, 413, "Image too large: over " + maxImageBytes + " bytes");
+                        return null;
+                    }
+                    out.write(buffer, 0, n);
+                }
+            }
+            kept = true;
+            return file;
+        } finally {
+            if (!kept) Files.deleteIfExists(file);
+        }
+    }
+
+    // A chunked 200 response that only starts with the first byte written, so a payload
+    // rejected before then still gets its own status
+    private static final class ResponseStream extends OutputStream {
+        private final HttpExchange exchange;
+        private OutputStream body;
+
+        ResponseStream(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            start().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) start().write(b, off, len);
+        }
+
+        boolean started() {
+            return body != null;
+        }
+
+        void finish() throws IOException {
+            if (body == null) {
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                body.close();
+            }
+        }
+
+        private OutputStream start() throws IOException {
+            if (body == null) {
+                exchange.sendResponseHeaders(200, 0); // chunked
+                body = exchange.getResponseBody();
+            }
+            return body;
+        }
+    }
+
+    // A response that failed after its status went out and must not end like a complete one
+    private static final class ResponseAborted extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ResponseAborted(Exception cause) {
+            super("Response aborted: " + cause.getMessage(), cause);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) {
+        sendError(exchange, status, message, null);
+    }
+
+    // reason is the NoHiddenMessageException.Reason name when a decode was rejected
+    private static void sendError(HttpExchange exchange, int status, String message, String reason) {
+        try {
+            sendJson(exchange, status, "{\"error\":" + BatchRunner.quote(message) +
+                (reason != null ? ",\"reason\":" + BatchRunner.quote(reason) : "") + "}");
+        } catch (IOException e) {
+            // Response already started or client gone; nothing more to tell it
+        }
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String contentType(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        if (lower.endsWith(".html")) return "text/html; charset=utf-8";
+        if (lower.endsWith(".js")) return "text/javascript; charset=utf-8";
+        if (lower.endsWith(".css")) return "text/css; charset=utf-8";
+        if (lower.endsWith(".png")) return "image/png";
+        if (lower.endsWith(".svg")) return "image/svg+xml";
+        return "application/octet-stream";
+    }
+}
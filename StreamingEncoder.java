@@ -0,0 +1,228 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Encodes payloads that do not fit in memory into carriers that do not need to either.
+//
+// The payload is compressed block by block into a temporary file (its compressed length has to
+// be known before the header can be written), then the carrier is streamed through in row
+// stripes: read rows, embed their share of the bitstream, write them to the output PNG.
+// Streaming carriers must be 8-bit RGB/RGBA non-interlaced PNGs; other formats are decoded
+// up front and only the payload and output side stream.
+//
+// With a passphrase the payload is scattered, so any stripe may need bits from anywhere in it:
+// the encrypted envelope goes to a second temporary file that is memory mapped instead.
+public class StreamingEncoder {
+    private static final long STRIPE_BITS = 1L << 22;
+    private static final int READ_CHUNK = 1 << 16;
+    private static final long MAP_REGION = 1L << 30;
+
+    public static void encode(InputStream payload, String imgPath, String outputPath, int headerBits) throws Exception {
+        encode(payload, imgPath, outputPath, headerBits, null);
+    }
+
+    // With a passphrase the container is encrypted and its pixels scattered with the key
+    public static void encode(InputStream payload, String imgPath, String outputPath, int headerBits,
+                              PayloadCipher.Passphrase passphrase) throws Exception {
+        if (headerBits != 64 && headerBits != 128) {
+            throw new IllegalArgumentException("headerBits must be 64 or 128");
+        }
+        if (!SteganographyHelper.getImageFormat(outputPath).equalsIgnoreCase("png")) {
+            throw new IllegalArgumentException("Streaming output must be a PNG file");
+        }
+
+        Path compressed = Files.createTempFile("pixelvault", ".bin");
+        try {
+            long messageLength;
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(compressed), 1 << 16)) {
+                messageLength = StegoContainer.pack(payload, out);
+            }
+
+            if (passphrase == null) {
+                try (InputStream bits = new BufferedInputStream(Files.newInputStream(compressed), 1 << 16)) {
+                    embedRows(bits, messageLength, headerBits, new File(imgPath), new File(outputPath));
+                }
+            } else {
+                embedScattered(compressed, messageLength / 8, headerBits, passphrase, new File(imgPath), new File(outputPath));
+            }
+        } finally {
+            Files.deleteIfExists(compressed);
+        }
+    }
+
+    private static void embedScattered(Path container, long containerBytes, int headerBits, PayloadCipher.Passphrase passphrase,
+                                       File carrier, File output) throws Exception {
+        Path encrypted = Files.createTempFile("pixelvault", ".enc");
+        try {
+            try (InputStream bits = new BufferedInputStream(Files.newInputStream(container), 1 << 16)) {
+                Files.copy(PayloadCipher.encrypt(bits, containerBytes, passphrase), encrypted, StandardCopyOption.REPLACE_EXISTING);
+            }
+            long messageLength = PayloadCipher.envelopeBits(containerBytes);
+
+            try (FileChannel channel = FileChannel.open(encrypted, StandardOpenOption.READ);
+                 RowSource source = RowSource.open(carrier)) {
+                // One mapping can only cover 2 GiB, so large envelopes are mapped a region at a time
+                MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((channel.size() + MAP_REGION - 1) / MAP_REGION)];
+                for (int i = 0; i < regions.length; i++) {
+                    long at = i * MAP_REGION;
+                    regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, at, Math.min(MAP_REGION, channel.size() - at));
+                }
+                LsbEngine.BitSource bits = (index, count) -> {
+                    long first = index >>> 3;
+                    int shift = (int) (index & 7);
+                    int bytes = (shift + count + 7) / 8;
+                    long v = 0;
+                    for (int i = 0; i < bytes; i++) {
+                        long at = first + i;
+                        v = v << 8 | (regions[(int) (at / MAP_REGION)].get((int) (at % MAP_REGION)) & 0xFF);
+                    }
+                    return (v >>> (bytes * 8 - shift - count)) & ((1L << count) - 1);
+                };
+
+                int width = source.width();
+                int height = source.height();
+                CapacityPlanner.Plan plan = CapacityPlanner.scattered(width, height, source.hasAlpha(), messageLength, headerBits,
+                    false, passphrase.scatterSeed());
+                BitBuffer header = new BitBuffer(CapacityPlanner.prefixBits(headerBits));
+                EncodeBinary.writeHeader(header, messageLength, headerBits, plan.modeByte());
+
+                long headerRows = (CapacityPlanner.headerPixels((int) header.length()) + width - 1) / width;
+                int stripeRows = (int) Math.min(height, Math.max(headerRows, Math.max(1, STRIPE_BITS / (width * 3L))));
+                BufferedImage stripe = new BufferedImage(width, stripeRows,
+                    source.hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+                int[] pixels = ((DataBufferInt) stripe.getRaster().getDataBuffer()).getData();
+
+                try (PngRowWriter writer = new PngRowWriter(output, width, height, source.hasAlpha())) {
+                    for (int y = 0; y < height; y += stripeRows) {
+                        int rows = Math.min(stripeRows, height - y);
+                        source.readRows(pixels, rows);
+                        if (y == 0) LsbEngine.embed(stripe, header, 0, header.length());
+                        LsbEngine.embedStripe(pixels, rows * width, (long) y * width, plan.layout, bits, messageLength);
+                        for (int r = 0; r < rows; r++) writer.writeRow(pixels, r * width);
+                    }
+                }
+            }
+        } finally {
+            Files.deleteIfExists(encrypted);
+        }
+    }
+
+    private static void embedRows(InputStream payload, long messageLength, int headerBits, File carrier, File output) throws Exception {
+        try (RowSource source = RowSource.open(carrier)) {
+            int width = source.width();
+            int height = source.height();
+            if (messageLength > CapacityPlanner.MAX_LENGTH) {
+                throw new IllegalArgumentException("Message too long for " + headerBits + "-bit header");
+            }
+            CapacityPlanner.Plan plan = CapacityPlanner.plan(width, height, source.hasAlpha(), messageLength, headerBits, false);
+
+            BitBuffer header = new BitBuffer(CapacityPlanner.prefixBits(headerBits));
+            EncodeBinary.writeHeader(header, messageLength, headerBits, plan.modeByte());
+            InputStream bits = payload;
+            if (plan.isLegacy()) {
+                // The payload continues in the slot right after the header
+                bits = new SequenceInputStream(new ByteArrayInputStream(header.toByteArray()), payload);
+            }
+            long totalBits = plan.isLegacy() ? header.length() + messageLength : messageLength;
+            long pixelsPerRow = width;
+
+            // The first stripe has to hold the whole header
+            long headerRows = (CapacityPlanner.headerPixels((int) header.length()) + width - 1) / width;
+            int stripeRows = (int) Math.min(height, Math.max(headerRows, Math.max(1, STRIPE_BITS / (width * 3L))));
+            BufferedImage stripe = new BufferedImage(width, stripeRows,
+                source.hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            int[] pixels = ((DataBufferInt) stripe.getRaster().getDataBuffer()).getData();
+
+            BitBuffer pending = new BitBuffer();
+            byte[] chunk = new byte[READ_CHUNK];
+            long embedded = 0;
+
+            try (PngRowWriter writer = new PngRowWriter(output, width, height, source.hasAlpha())) {
+                for (int y = 0; y < height; y += stripeRows) {
+                    int rows = Math.min(stripeRows, height - y);
+                    source.readRows(pixels, rows);
+
+                    // This stripe's share of the bitstream. Legacy: slot 0 of the stripe is slot
+                    // y * width * 3 of the image. Explicit: the header goes in at 1 LSB, the
+                    // payload from the stripe's first pixel past it at the planned depth
+                    LsbEngine.Layout layout = LsbEngine.Layout.DEFAULT;
+                    long slots = (long) rows * width * 3;
+                    if (!plan.isLegacy()) {
+                        long firstPixel = Math.max(0, plan.layout.firstPixel - y * pixelsPerRow);
+                        if (y == 0) LsbEngine.embed(stripe, header, 0, header.length());
+                        layout = new LsbEngine.Layout(plan.layout.bitsPerChannel, plan.layout.alpha, firstPixel);
+                        slots = Math.max(0, rows * pixelsPerRow - firstPixel) * layout.bitsPerPixel();
+                    }
+                    long want = Math.min(slots, totalBits - embedded);
+                    if (want > 0) {
+                        while (pending.length() < want) {
+                            int n = bits.read(chunk);
+                            if (n < 0) throw new IOException("Payload ended early");
+                            pending.writeBytes(chunk, 0, n);
+                        }
+                        LsbEngine.embed(stripe, layout, pending, 0, want);
+                        BitBuffer rest = new BitBuffer(pending.length() - want);
+                        rest.append(pending, want, pending.length());
+                        pending = rest;
+                        embedded += want;
+                    }
+
+                    for (int r = 0; r < rows; r++) writer.writeRow(pixels, r * width);
+                }
+            }
+        }
+    }
+
+    // Carrier rows, top to bottom, as 0xAARRGGBB
+    private abstract static class RowSource implements AutoCloseable {
+        abstract int width();
+        abstract int height();
+        abstract boolean hasAlpha();
+        abstract void readRows(int[] dst, int rows) throws IOException;
+
+        @Override
+        public void close() throws IOException {}
+
+        static RowSource open(File file) throws IOException {
+            if (PngRowReader.isSupported(file)) {
+                PngRowReader png = new PngRowReader(file);
+                return new RowSource() {
+                    int width() { return png.getWidth(); }
+                    int height() { return png.getHeight(); }
+                    boolean hasAlpha() { return png.hasAlpha(); }
+                    void readRows(int[] dst, int rows) throws IOException {
+                        for (int r = 0; r < rows; r++) png.readRow(dst, r * png.getWidth());
+                    }
+                    @Override
+                    public void close() throws IOException { png.close(); }
+                };
+            }
+
+            BufferedImage image = SteganographyHelper.readImage(file.getPath());
+            if (image == null) throw new IOException("Unsupported image format: " + file);
+            return new RowSource() {
+                int next;
+                int width() { return image.getWidth(); }
+                int height() { return image.getHeight(); }
+                boolean hasAlpha() { return image.getColorModel().hasAlpha(); }
+                void readRows(int[] dst, int rows) {
+                    image.getRGB(0, next, image.getWidth(), rows, dst, 0, image.getWidth());
+                    next += rows;
+                }
+            };
+        }
+    }
+}
@@ -1,13 +1,34 @@
 public class TextToBinary {
     public static String convert(String text) {
-        // Get Huffman compressed format
+        return toBits(text).toBinaryString();
+    }
+
+    public static BitBuffer toBits(String text) {
+        // Huffman compress straight into a versioned binary container
+        return StegoContainer.pack(text);
+    }
+
+    // Arbitrary data, e.g. the contents of a file
+    public static BitBuffer toBits(byte[] data) {
+        return StegoContainer.pack(data);
+    }
+
+    public static BitBuffer toBits(byte[] data, PayloadCodec codec) {
+        return StegoContainer.pack(data, codec);
+    }
+
+    // Encrypted when a passphrase is given
+    public static BitBuffer toBits(byte[] data, PayloadCodec codec, PayloadCipher.Passphrase passphrase) {
+        return StegoContainer.pack(data, codec, passphrase);
+    }
+
+    // Pre-container format: each character of the '0'/'1' Huffman string packed as 8 bits
+    public static BitBuffer toLegacyBits(String text) {
         String huffmanData = HuffmanCoding.compress(text);
-        
-        // Convert to pure binary for steganography
-        StringBuilder binaryResult = new StringBuilder();
-        for (char c : huffmanData.toCharArray()) {
-            binaryResult.append(String.format("%8s", Integer.toBinaryString(c)).replace(' ', '0'));
+        BitBuffer bits = new BitBuffer((long) huffmanData.length() * 8);
+        for (int i = 0; i < huffmanData.length(); i++) {
+            bits.writeBits(huffmanData.charAt(i), 8);
         }
-        return binaryResult.toString();
+        return bits;
     }
 }
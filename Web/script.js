@@ -432,8 +432,37 @@ class SteganographyApp {
         this.huffmanTreeData = null;
         this.imageCapacity = null;
         this.textSize = null;
+        this.serverAvailable = false;
         
         this.initEventListeners();
+        this.detectServer();
+    }
+
+    // When the page is served by the Java server (java Main serve), encoding and decoding run
+    // there so the browser never has to hold the raster; opened as a plain file, it stays local
+    async detectServer() {
+        if (location.protocol === 'file:') return;
+        try {
+            const res = await fetch('/api/health');
+            this.serverAvailable = res.ok;
+        } catch (err) {
+            this.serverAvailable = false;
+        }
+        console.log('[Main] Server codec available:', this.serverAvailable);
+    }
+
+    async serverRequest(path, body) {
+        const res = await fetch(path, { method: 'POST', body });
+        if (!res.ok) {
+            let message = res.statusText;
+            try {
+                message = (await res.json()).error || message;
+            } catch (err) {
+                // not JSON
+            }
+            throw new Error(message);
+        }
+        return res;
     }
 
     initEventListeners() {
@@ -502,6 +531,10 @@ class SteganographyApp {
             return;
         }
 
+        if (this.serverAvailable) {
+            return this.encodeOnServer(imageInput.files[0], messageInput.value, headerBits);
+        }
+
         try {
             const img = await this.loadImage(imageInput.files[0]);
             const capacity = calculateCapacity(img.width, img.height);
@@ -562,6 +595,28 @@ class SteganographyApp {
         }
     }
     
+    async encodeOnServer(file, message, headerBits) {
+        try {
+            // Body is the UTF-8 payload followed by the carrier file
+            const payload = new TextEncoder().encode(message);
+            const res = await this.serverRequest(
+                `/api/encode?header=${headerBits}&payloadLength=${payload.length}`, new Blob([payload, file]));
+            if (this.encodedImageUrl && this.encodedImageUrl.startsWith('blob:')) {
+                URL.revokeObjectURL(this.encodedImageUrl);
+            }
+            this.encodedImageUrl = URL.createObjectURL(await res.blob());
+
+            const preview = document.getElementById('encoded-preview');
+            preview.innerHTML = `<img src="${this.encodedImageUrl}" alt="Encoded">`;
+            document.getElementById('download-btn').disabled = false;
+
+            this.showAlert('Message encoded successfully!', 'success', 'encode-alert');
+        } catch (err) {
+            console.error('[Main] Server encode error:', err);
+            this.showAlert('Failed to encode message: ' + err.message, 'error', 'encode-alert');
+        }
+    }
+
     loadImageFromURL(url) {
         return new Promise((resolve, reject) => {
             const img = new Image();
@@ -581,14 +636,20 @@ class SteganographyApp {
         }
 
         try {
-            const img = await this.loadImage(imageInput.files[0]);
-
-            console.log('[Main] Decoding from image...');
-            const imageData = imageToImageData(img);
-            const binaryData = decodeFromImage(imageData, headerBits);
-
-            console.log('[Main] Converting binary to text...');
-            const message = binaryToText(binaryData);
+            let message;
+            if (this.serverAvailable) {
+                const res = await this.serverRequest(`/api/decode?header=${headerBits}`, imageInput.files[0]);
+                message = new TextDecoder().decode(await res.arrayBuffer());
+            } else {
+                const img = await this.loadImage(imageInput.files[0]);
+
+                console.log('[Main] Decoding from image...');
+                const imageData = imageToImageData(img);
+                const binaryData = decodeFromImage(imageData, headerBits);
+
+                console.log('[Main] Converting binary to text...');
+                message = binaryToText(binaryData);
+            }
 
             console.log('[Main] Decoded message:', message);
 
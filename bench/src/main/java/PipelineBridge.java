@@ -0,0 +1,114 @@
+import pixelvault.bench.Pipeline;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+// Unnamed-package side of pixelvault.bench.Pipeline; every method is a straight call into the core.
+public class PipelineBridge implements Pipeline {
+    @Override
+    public Object huffmanCompress(byte[] data) {
+        BitBuffer out = new BitBuffer();
+        HuffmanCoding.compress(data, out);
+        return out;
+    }
+
+    @Override
+    public byte[] huffmanDecompress(Object compressed) {
+        BitBuffer in = (BitBuffer) compressed;
+        in.rewind();
+        return HuffmanCoding.decompressBytes(in);
+    }
+
+    @Override
+    public String huffmanCompress(String text) {
+        return HuffmanCoding.compress(text);
+    }
+
+    @Override
+    public String huffmanDecompress(String compressed) {
+        return HuffmanCoding.decompress(compressed);
+    }
+
+    @Override
+    public String textToBinary(String text) {
+        return TextToBinary.convert(text);
+    }
+
+    @Override
+    public String binaryToText(String binary) {
+        return BinaryToText.convert(binary);
+    }
+
+    @Override
+    public Object toBits(byte[] payload) {
+        return TextToBinary.toBits(payload);
+    }
+
+    @Override
+    public byte[] toBytes(Object bits) {
+        return BinaryToText.toBytes((BitBuffer) bits);
+    }
+
+    @Override
+    public BufferedImage embed(BufferedImage carrier, Object bits, int headerBits) {
+        return EncodeBinary.embed(carrier, (BitBuffer) bits, headerBits);
+    }
+
+    @Override
+    public Object decodeBits(BufferedImage image, int headerBits) {
+        return DecodeBinary.decodeBits(image, headerBits);
+    }
+
+    @Override
+    public void encode(String carrierPath, Object bits, String outputPath, int headerBits) throws Exception {
+        EncodeBinary.encode(carrierPath, (BitBuffer) bits, outputPath, headerBits);
+    }
+
+    @Override
+    public String decode(String imagePath, int headerBits) throws Exception {
+        return DecodeBinary.decode(imagePath, headerBits);
+    }
+
+    @Override
+    public long capacity(BufferedImage image) {
+        return LsbEngine.capacity(image);
+    }
+
+    @Override
+    public void embedRaster(BufferedImage image, Object bits, long from, long to) {
+        LsbEngine.embed(image, (BitBuffer) bits, from, to);
+    }
+
+    @Override
+    public void extractRaster(BufferedImage image, long from, long to, Object out) {
+        LsbEngine.extract(image, from, to, (BitBuffer) out);
+    }
+
+    @Override
+    public Object newBits(long capacity) {
+        return new BitBuffer(capacity);
+    }
+
+    @Override
+    public Object randomBits(long count, long seed) {
+        Random random = new Random(seed);
+        BitBuffer bits = new BitBuffer(count);
+        for (long i = 0; i < count; i += 64) bits.writeBits(random.nextLong(), (int) Math.min(64, count - i));
+        return bits;
+    }
+
+    @Override
+    public long length(Object bits) {
+        return ((BitBuffer) bits).length();
+    }
+
+    @Override
+    public int getBit(Object bits, long index) {
+        return ((BitBuffer) bits).getBit(index);
+    }
+
+    @Override
+    public void writeBit(Object bits, int bit) {
+        ((BitBuffer) bits).writeBit(bit);
+    }
+}
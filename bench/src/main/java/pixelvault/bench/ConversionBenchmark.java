@@ -0,0 +1,52 @@
+package pixelvault.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// TextToBinary / BinaryToText: the '0'/'1' String API and the BitBuffer API the encoder uses.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class ConversionBenchmark {
+    private static final Pipeline P = Pipeline.INSTANCE;
+
+    @Param({"1KB", "1MB"})
+    public String payload;
+
+    private String text;
+    private String binary;
+    private byte[] bytes;
+    private Object bits;
+
+    @Setup
+    public void setup() {
+        bytes = Workloads.text((int) Workloads.parseSize(payload), 42);
+        text = Workloads.textString(bytes.length, 42);
+        binary = P.textToBinary(text);
+        bits = P.toBits(bytes);
+    }
+
+    @Benchmark
+    public String textToBinary() {
+        return P.textToBinary(text);
+    }
+
+    @Benchmark
+    public String binaryToText() {
+        return P.binaryToText(binary);
+    }
+
+    @Benchmark
+    public Object textToBits() {
+        return P.toBits(bytes);
+    }
+
+    @Benchmark
+    public byte[] bitsToBytes() {
+        return P.toBytes(bits);
+    }
+}
@@ -0,0 +1,73 @@
+package pixelvault.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+// EncodeBinary / DecodeBinary end to end: in memory (embed, extract) and file to file (encode,
+// decode, which include PNG decoding and deflating). Scenarios pair a carrier with a payload
+// it can hold; random-noise carriers so PNG sizes are worst case.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class EncodeDecodeBenchmark {
+    private static final Pipeline P = Pipeline.INSTANCE;
+    private static final int HEADER_BITS = 64;
+
+    @Param({"1MP/1KB", "10MP/1MB", "100MP/50MB"})
+    public String scenario;
+
+    private BufferedImage carrier;
+    private BufferedImage stego;
+    private Object bits;
+    private File carrierFile;
+    private File stegoFile;
+    private File outputFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        String[] parts = scenario.split("/");
+        carrier = Workloads.carrier(Workloads.parseSize(parts[0]), BufferedImage.TYPE_INT_RGB, 7);
+        bits = P.toBits(Workloads.text((int) Workloads.parseSize(parts[1]), 42));
+
+        carrierFile = Workloads.writePng(carrier, "carrier");
+        stego = P.embed(Workloads.carrier(carrier.getWidth(), carrier.getHeight(), BufferedImage.TYPE_INT_RGB, 7), bits, HEADER_BITS);
+        stegoFile = Workloads.writePng(stego, "stego");
+        outputFile = File.createTempFile("out", ".png");
+        outputFile.deleteOnExit();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        carrierFile.delete();
+        stegoFile.delete();
+        outputFile.delete();
+    }
+
+    // Embedding rewrites the same LSBs each time, so the carrier can be reused
+    @Benchmark
+    public BufferedImage embed() {
+        return P.embed(carrier, bits, HEADER_BITS);
+    }
+
+    @Benchmark
+    public Object extract() {
+        return P.decodeBits(stego, HEADER_BITS);
+    }
+
+    @Benchmark
+    public File encode() throws Exception {
+        P.encode(carrierFile.getPath(), bits, outputFile.getPath(), HEADER_BITS);
+        return outputFile;
+    }
+
+    @Benchmark
+    public String decode() throws Exception {
+        return P.decode(stegoFile.getPath(), HEADER_BITS);
+    }
+}
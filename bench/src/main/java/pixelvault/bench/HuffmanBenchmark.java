@@ -0,0 +1,38 @@
+package pixelvault.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// HuffmanCoding.compress / decompressBytes: the canonical byte codec behind every container.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class HuffmanBenchmark {
+    private static final Pipeline P = Pipeline.INSTANCE;
+
+    @Param({"1KB", "1MB", "50MB"})
+    public String payload;
+
+    private byte[] data;
+    private Object compressed;
+
+    @Setup
+    public void setup() {
+        data = Workloads.text((int) Workloads.parseSize(payload), 42);
+        compressed = P.huffmanCompress(data);
+    }
+
+    @Benchmark
+    public Object compress() {
+        return P.huffmanCompress(data);
+    }
+
+    @Benchmark
+    public byte[] decompress() {
+        return P.huffmanDecompress(compressed);
+    }
+}
@@ -0,0 +1,39 @@
+package pixelvault.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// HuffmanCoding.compress(String) / decompress(String): the original '0'/'1' String codec, still
+// used to read legacy payloads. Capped at 1 MB; each payload bit costs a char here.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class LegacyHuffmanBenchmark {
+    private static final Pipeline P = Pipeline.INSTANCE;
+
+    @Param({"1KB", "1MB"})
+    public String payload;
+
+    private String text;
+    private String compressed;
+
+    @Setup
+    public void setup() {
+        text = Workloads.textString((int) Workloads.parseSize(payload), 42);
+        compressed = P.huffmanCompress(text);
+    }
+
+    @Benchmark
+    public String compress() {
+        return P.huffmanCompress(text);
+    }
+
+    @Benchmark
+    public String decompress() {
+        return P.huffmanDecompress(compressed);
+    }
+}
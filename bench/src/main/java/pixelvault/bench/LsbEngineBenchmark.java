@@ -0,0 +1,89 @@
+package pixelvault.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+// Raster-level LsbEngine against the getRGB/setRGB loop EncodeBinary/DecodeBinary used before it.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class LsbEngineBenchmark {
+    private static final Pipeline P = Pipeline.INSTANCE;
+
+    @Param({"1000x1000", "4000x3000", "11547x8661"})
+    public String size;
+
+    @Param({"TYPE_INT_RGB", "TYPE_3BYTE_BGR"})
+    public String imageType;
+
+    private BufferedImage image;
+    private Object bits;
+
+    @Setup
+    public void setup() {
+        String[] wh = size.split("x");
+        int w = Integer.parseInt(wh[0]);
+        int h = Integer.parseInt(wh[1]);
+        int type = imageType.equals("TYPE_INT_RGB") ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_3BYTE_BGR;
+        image = Workloads.carrier(w, h, type, 42);
+
+        // Fill half the capacity, the most the 1-LSB layout uses
+        bits = P.randomBits(P.capacity(image) / 2 / 64 * 64, 42);
+    }
+
+    @Benchmark
+    public BufferedImage embedRaster() {
+        P.embedRaster(image, bits, 0, P.length(bits));
+        return image;
+    }
+
+    @Benchmark
+    public BufferedImage embedPerPixel() {
+        long total = P.length(bits);
+        long i = 0;
+        outerLoop:
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                if (i >= total) break outerLoop;
+                int rgb = image.getRGB(x, y);
+                int r = (rgb >> 16) & 0xFF;
+                int g = (rgb >> 8) & 0xFF;
+                int b = rgb & 0xFF;
+                if (i < total) r = (r & 0xFE) | P.getBit(bits, i++);
+                if (i < total) g = (g & 0xFE) | P.getBit(bits, i++);
+                if (i < total) b = (b & 0xFE) | P.getBit(bits, i++);
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    @Benchmark
+    public Object extractRaster() {
+        Object out = P.newBits(P.length(bits));
+        P.extractRaster(image, 0, P.length(bits), out);
+        return out;
+    }
+
+    @Benchmark
+    public Object extractPerPixel() {
+        long total = P.length(bits);
+        Object out = P.newBits(total);
+        outerLoop:
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int rgb = image.getRGB(x, y);
+                if (P.length(out) < total) P.writeBit(out, rgb >> 16);
+                if (P.length(out) < total) P.writeBit(out, rgb >> 8);
+                if (P.length(out) < total) P.writeBit(out, rgb);
+                if (P.length(out) >= total) break outerLoop;
+            }
+        }
+        return out;
+    }
+}
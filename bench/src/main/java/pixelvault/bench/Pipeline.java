@@ -0,0 +1,51 @@
+package pixelvault.bench;
+
+import java.awt.image.BufferedImage;
+
+// The pixel-vault calls the benchmarks measure.
+//
+// The core classes live in the unnamed package, which a named package cannot reference, and JMH
+// refuses benchmarks in the unnamed package. PipelineBridge (unnamed package) implements this and
+// hands BitBuffers around as Object. Each call site only ever sees that one implementation, so
+// the JIT inlines straight through the interface.
+public interface Pipeline {
+    Pipeline INSTANCE = load();
+
+    // HuffmanCoding, canonical byte codec (BitBuffer in and out)
+    Object huffmanCompress(byte[] data);
+    byte[] huffmanDecompress(Object compressed);
+
+    // HuffmanCoding, original String API
+    String huffmanCompress(String text);
+    String huffmanDecompress(String compressed);
+
+    // TextToBinary / BinaryToText
+    String textToBinary(String text);
+    String binaryToText(String binary);
+    Object toBits(byte[] payload);
+    byte[] toBytes(Object bits);
+
+    // EncodeBinary / DecodeBinary
+    BufferedImage embed(BufferedImage carrier, Object bits, int headerBits);
+    Object decodeBits(BufferedImage image, int headerBits);
+    void encode(String carrierPath, Object bits, String outputPath, int headerBits) throws Exception;
+    String decode(String imagePath, int headerBits) throws Exception;
+
+    // LsbEngine and BitBuffer
+    long capacity(BufferedImage image);
+    void embedRaster(BufferedImage image, Object bits, long from, long to);
+    void extractRaster(BufferedImage image, long from, long to, Object out);
+    Object newBits(long capacity);
+    Object randomBits(long count, long seed);
+    long length(Object bits);
+    int getBit(Object bits, long index);
+    void writeBit(Object bits, int bit);
+
+    private static Pipeline load() {
+        try {
+            return (Pipeline) Class.forName("PipelineBridge").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("PipelineBridge is missing from the benchmark jar", e);
+        }
+    }
+}
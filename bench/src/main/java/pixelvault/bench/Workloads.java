@@ -0,0 +1,72 @@
+package pixelvault.bench;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+// Synthetic, seeded inputs so every run measures the same bytes.
+final class Workloads {
+    private static final String[] WORDS = (
+        "the quick brown fox jumps over lazy dog pixel vault hides secret message inside image " +
+        "carrier payload header length huffman code tree canonical bit buffer stripe raster " +
+        "channel red green blue alpha least significant encode decode compress stream of and to a in")
+        .split(" ");
+
+    private Workloads() {}
+
+    // "1KB", "50MB", "10MP" -> 1024, 50 * 2^20, 10_000_000
+    static long parseSize(String size) {
+        String s = size.trim().toUpperCase();
+        if (s.endsWith("MP")) return Long.parseLong(s.substring(0, s.length() - 2)) * 1_000_000L;
+        if (s.endsWith("KB")) return Long.parseLong(s.substring(0, s.length() - 2)) << 10;
+        if (s.endsWith("MB")) return Long.parseLong(s.substring(0, s.length() - 2)) << 20;
+        return Long.parseLong(s);
+    }
+
+    // English-like ASCII text, the kind of payload the Huffman stage is tuned for
+    static byte[] text(int bytes, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(bytes + 16);
+        while (sb.length() < bytes) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+            sb.append(random.nextInt(12) == 0 ? ".\n" : " ");
+        }
+        sb.setLength(bytes);
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static String textString(int bytes, long seed) {
+        return new String(text(bytes, seed), StandardCharsets.US_ASCII);
+    }
+
+    // Noise carrier of roughly the given pixel count with a 4:3 aspect ratio
+    static BufferedImage carrier(long pixels, int type, long seed) {
+        int width = (int) Math.round(Math.sqrt(pixels * 4 / 3.0));
+        int height = (int) ((pixels + width - 1) / width);
+        return carrier(width, height, type, seed);
+    }
+
+    static BufferedImage carrier(int width, int height, int type, long seed) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Random random = new Random(seed);
+        if (type == BufferedImage.TYPE_3BYTE_BGR) {
+            random.nextBytes(((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+        } else {
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            for (int i = 0; i < pixels.length; i++) pixels[i] = random.nextInt() | 0xFF000000;
+        }
+        return image;
+    }
+
+    static File writePng(BufferedImage image, String prefix) throws IOException {
+        File file = File.createTempFile(prefix, ".png");
+        file.deleteOnExit();
+        ImageIO.write(image, "png", file);
+        return file;
+    }
+}
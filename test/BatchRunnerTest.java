@@ -0,0 +1,94 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BatchRunnerTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void encodesEachCarrierInAFormatThatKeepsThePayload() throws Exception {
+        Path payload = dir.resolve("payload.txt");
+        byte[] secret = "batch payload ".repeat(10).getBytes(StandardCharsets.UTF_8);
+        Files.write(payload, secret);
+        Path png = write(carrier(BufferedImage.TYPE_INT_RGB), "png");
+        Path jpg = write(carrier(BufferedImage.TYPE_INT_RGB), "jpg");
+        Path bmp = write(carrier(BufferedImage.TYPE_INT_RGB), "bmp");
+
+        List<BatchRunner.Job> jobs = List.of(
+            job(0, png, payload, "png-out.png"),
+            job(1, jpg, payload, "jpg-out.jpg"),
+            job(2, bmp, payload, "bmp-out.bmp"),
+            job(3, jpg, payload, "jpg-out.png"));
+        StringWriter report = new StringWriter();
+        assertEquals(0, BatchRunner.run(jobs, true, 64, 2, 2, report), report.toString());
+
+        for (BatchRunner.Job job : jobs) {
+            assertArrayEquals(secret, BinaryToText.toBytes(DecodeBinary.decodeBits(job.output, 64)), job.output);
+        }
+    }
+
+    @Test
+    void refusesOutputsThatWouldLoseThePayload() throws Exception {
+        Path payload = dir.resolve("payload.txt");
+        Files.write(payload, "lost".getBytes(StandardCharsets.UTF_8));
+        Path png = write(carrier(BufferedImage.TYPE_INT_RGB), "png");
+
+        List<BatchRunner.Job> jobs = List.of(job(0, png, payload, "out.jpg"), job(1, png, payload, "out.gif"));
+        StringWriter report = new StringWriter();
+        assertEquals(2, BatchRunner.run(jobs, true, 64, 1, 1, report));
+        assertTrue(report.toString().contains("would not keep the payload"), report.toString());
+        assertFalse(Files.exists(dir.resolve("out.jpg")));
+        assertFalse(Files.exists(dir.resolve("out.gif")));
+    }
+
+    @Test
+    void encodeRefusesLossyOutputsForPixelCarriers() throws Exception {
+        BitBuffer bits = TextToBinary.toBits("lost".getBytes(StandardCharsets.UTF_8), Codecs.STORED);
+        for (String format : new String[] {"png", "bmp"}) {
+            Path carrier = write(carrier(BufferedImage.TYPE_INT_RGB), format);
+            for (String output : new String[] {"lossy.jpg", "palette.gif"}) {
+                Path file = dir.resolve(output);
+                IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                    () -> EncodeBinary.encode(carrier.toString(), bits, file.toString(), 64));
+                assertTrue(e.getMessage().contains("would not keep the payload"), e.getMessage());
+                assertFalse(Files.exists(file), format + " to " + output);
+            }
+        }
+    }
+
+    @Test
+    void writeImageThrowsWhenNoWriterTakesTheImage() {
+        BufferedImage argb = carrier(BufferedImage.TYPE_INT_ARGB);
+        Path output = dir.resolve("alpha.jpg");
+        assertThrows(IOException.class, () -> SteganographyHelper.writeImage(argb, "jpg", output.toString()));
+        assertThrows(IOException.class, () -> SteganographyHelper.writeImage(argb, "nosuchformat", dir.resolve("x.nosuchformat").toString()));
+    }
+
+    private BatchRunner.Job job(int id, Path carrier, Path payload, String output) {
+        return new BatchRunner.Job(id, carrier.toString(), payload.toString(), dir.resolve(output).toString());
+    }
+
+    private static BufferedImage carrier(int type) {
+        return TestImages.random(96, 80, type, 7);
+    }
+
+    private Path write(BufferedImage image, String format) throws IOException {
+        Path file = dir.resolve("carrier." + format);
+        assertTrue(ImageIO.write(image, format, file.toFile()));
+        return file;
+    }
+}
@@ -0,0 +1,109 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class BitBufferTest {
+
+    @Test
+    void getsBytesFromAnyBitWithoutMovingTheCursor() {
+        byte[] data = new byte[100];
+        new Random(1).nextBytes(data);
+        BitBuffer bits = BitBuffer.wrap(data);
+        bits.position(5);
+        for (int shift : new int[] {0, 3, 8, 61}) {
+            BitBuffer shifted = new BitBuffer();
+            shifted.writeBits(0, shift);
+            shifted.append(bits, 0, bits.length());
+            byte[] got = new byte[90];
+            shifted.getBytes(shift, got, 0, 90);
+            assertArrayEquals(Arrays.copyOf(data, 90), got, "shift " + shift);
+        }
+        assertArrayEquals(new byte[] {data[99]}, get(bits, 99 * 8, 1));
+        assertArrayEquals(new byte[] {(byte) (data[99] << 1)}, get(bits, 99 * 8 + 1, 1));
+        assertThrows(IndexOutOfBoundsException.class, () -> get(bits, 800, 1));
+        assertThrows(IndexOutOfBoundsException.class, () -> get(bits, -8, 1));
+        assertArrayEquals(new byte[0], get(bits, 800, 0));
+        assertArrayEquals(new byte[] {5, 6}, get(BitBuffer.wrap(new byte[] {4, 5, 6}), 8, 2));
+        assertEquals(5, bits.position());
+    }
+
+    @Test
+    void padsTheLastByteWithZeros() {
+        BitBuffer bits = new BitBuffer();
+        bits.writeBits(0x3FF, 10);
+        assertArrayEquals(new byte[] {(byte) 0xFF, (byte) 0xC0}, get(bits, 0, 2));
+        assertArrayEquals(bits.toByteArray(), get(bits, 0, 2));
+        assertThrows(IndexOutOfBoundsException.class, () -> get(bits, 0, 3));
+    }
+
+    @Test
+    void readsAndWritesAcrossOffHeapPages() {
+        // Four words (256 bits) per page, off the heap from the start
+        BitBuffer paged = new BitBuffer(64, 0, 2);
+        BitBuffer heap = new BitBuffer();
+        fill(new Random(2), 5000, paged, heap);
+        assertSame(heap, paged);
+
+        // Whole words, single bits and bytes that straddle page boundaries
+        for (long at : new long[] {250, 255, 256, 511, 1020, 3000}) {
+            paged.setBits(at, 0x1234_5678_9ABC_DEF0L, 64);
+            heap.setBits(at, 0x1234_5678_9ABC_DEF0L, 64);
+            paged.setBit(at + 70, 1 - paged.getBit(at + 70));
+            heap.setBit(at + 70, 1 - heap.getBit(at + 70));
+        }
+        assertSame(heap, paged);
+
+        byte[] expected = new byte[200];
+        byte[] actual = new byte[200];
+        heap.position(251);
+        heap.readBytes(expected, 0, expected.length);
+        paged.position(251);
+        paged.readBytes(actual, 0, actual.length);
+        assertArrayEquals(expected, actual);
+        assertArrayEquals(heap.slice(200, 4000).toByteArray(), paged.slice(200, 4000).toByteArray());
+    }
+
+    @Test
+    void movesOffTheHeapWithoutLosingBits() {
+        // On the heap up to 1024 bits, then in pages of 16 words
+        BitBuffer moving = new BitBuffer(64, 1024, 4);
+        BitBuffer heap = new BitBuffer();
+        Random random = new Random(3);
+        fill(random, 1000, moving, heap);
+        assertSame(heap, moving);
+        fill(random, 9000, moving, heap);
+        assertSame(heap, moving);
+    }
+
+    // The same random writes, of every width, to each buffer
+    private static void fill(Random random, long bits, BitBuffer... buffers) {
+        long end = buffers[0].length() + bits;
+        while (buffers[0].length() < end) {
+            int count = (int) Math.min(1 + random.nextInt(64), end - buffers[0].length());
+            long value = random.nextLong() >>> (64 - count);
+            if (random.nextInt(4) == 0) {
+                byte[] b = new byte[1 + random.nextInt(20)];
+                random.nextBytes(b);
+                for (BitBuffer buffer : buffers) buffer.writeBytes(b, 0, b.length);
+            } else {
+                for (BitBuffer buffer : buffers) buffer.writeBits(value, count);
+            }
+        }
+    }
+
+    private static void assertSame(BitBuffer expected, BitBuffer actual) {
+        assertEquals(expected.length(), actual.length());
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+        for (long i = 0; i + 64 <= expected.length(); i += 7) assertEquals(expected.getBits(i, 64), actual.getBits(i, 64), "bit " + i);
+    }
+
+    private static byte[] get(BitBuffer bits, long index, int len) {
+        byte[] out = new byte[len];
+        bits.getBytes(index, out, 0, len);
+        return out;
+    }
+}
@@ -0,0 +1,134 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CarrierCacheTest {
+    private static final byte[] SECRET = "cached payload ".repeat(8).getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void secondDecodeIsAHitAndReturnsAPrivateCopy() throws Exception {
+        Path carrier = encode(null, "carrier.png");
+        CarrierCache cache = new CarrierCache(1 << 20);
+
+        BitBuffer first = cache.decode(carrier.toString(), 64);
+        assertEquals(1, cache.misses());
+        assertEquals(0, cache.hits());
+        first.clear();
+
+        BitBuffer second = cache.decode(carrier.toString(), 64);
+        assertEquals(1, cache.hits());
+        assertArrayEquals(SECRET, BinaryToText.toBytes(second));
+    }
+
+    @Test
+    void sameContentUnderAnotherNameHitsAndAnEditedFileMisses() throws Exception {
+        Path carrier = encode(null, "carrier.png");
+        // A plain copy, with a new mtime
+        Path copy = Files.copy(carrier, dir.resolve("copy.png"));
+        Files.setLastModifiedTime(copy, FileTime.fromMillis(Files.getLastModifiedTime(carrier).toMillis() + 10_000));
+        CarrierCache cache = new CarrierCache(1 << 20);
+
+        cache.decode(carrier.toString(), 64);
+        cache.decode(copy.toString(), 64);
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.hits());
+
+        // Same name, new content
+        Files.copy(write(carrier(6), "other.png"), carrier, StandardCopyOption.REPLACE_EXISTING);
+        assertThrows(NoHiddenMessageException.class, () -> cache.decode(carrier.toString(), 64));
+        assertEquals(2, cache.misses());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedByWeight() throws Exception {
+        Path a = write(carrier(1), "a.png");
+        Path b = write(carrier(2), "b.png");
+        Path c = write(carrier(3), "c.png");
+        long raster = 96L * 80 * 4;
+        CarrierCache cache = new CarrierCache(raster * 2 + 1024);
+
+        cache.readImage(a.toString());
+        cache.readImage(b.toString());
+        cache.readImage(a.toString()); // a is now the most recently used
+        assertEquals(1, cache.hits());
+
+        cache.readImage(c.toString());
+        assertEquals(1, cache.evictions());
+        assertTrue(cache.bytes() <= raster * 2 + 1024);
+
+        cache.readImage(a.toString());
+        assertEquals(2, cache.hits());
+        cache.readImage(b.toString());
+        assertEquals(4, cache.misses());
+    }
+
+    @Test
+    void rejectionsAreCachedAndStillThrown() throws Exception {
+        Path clean = write(carrier(4), "clean.png");
+        CarrierCache cache = new CarrierCache(1 << 20);
+
+        NoHiddenMessageException first = assertThrows(NoHiddenMessageException.class, () -> cache.decode(clean.toString(), 64));
+        NoHiddenMessageException second = assertThrows(NoHiddenMessageException.class, () -> cache.decode(clean.toString(), 64));
+        assertEquals(first.getReason(), second.getReason());
+        assertEquals(1, cache.hits());
+    }
+
+    @Test
+    void keyedResultsAreNeverCached() throws Exception {
+        PayloadCipher.Passphrase passphrase = new PayloadCipher.Passphrase("pw".toCharArray(), PayloadCipher.MIN_ITERATIONS);
+        Path carrier = encode(passphrase, "keyed.png");
+        CarrierCache cache = new CarrierCache(1 << 20);
+
+        for (int i = 0; i < 2; i++) {
+            BitBuffer bits = cache.decode(carrier.toString(), 64, passphrase);
+            assertArrayEquals(SECRET, BinaryToText.toBytes(bits, passphrase));
+        }
+        // Only the unkeyed PASSWORD_REQUIRED rejection is held, never the payload
+        assertEquals(1, cache.hits());
+        assertTrue(cache.bytes() < SECRET.length, cache.toString());
+    }
+
+    @Test
+    void filesLargerThanTheCacheBypassIt() throws Exception {
+        Path carrier = encode(null, "carrier.png");
+        CarrierCache cache = new CarrierCache(Files.size(carrier) - 1);
+
+        assertArrayEquals(SECRET, BinaryToText.toBytes(cache.decode(carrier.toString(), 64)));
+        cache.readImage(carrier.toString());
+        assertEquals(0, cache.hits() + cache.misses());
+        assertEquals(0, cache.bytes());
+    }
+
+    private Path encode(PayloadCipher.Passphrase passphrase, String name) throws IOException {
+        BitBuffer bits = TextToBinary.toBits(SECRET, Codecs.STORED, passphrase);
+        BufferedImage image = passphrase == null
+            ? EncodeBinary.embed(carrier(5), bits, 64)
+            : EncodeBinary.embed(carrier(5), bits, 64, passphrase);
+        return write(image, name);
+    }
+
+    private static BufferedImage carrier(long seed) {
+        return TestImages.random(96, 80, BufferedImage.TYPE_INT_RGB, seed);
+    }
+
+    private Path write(BufferedImage image, String name) throws IOException {
+        Path file = dir.resolve(name);
+        assertTrue(ImageIO.write(image, "png", file.toFile()));
+        return file;
+    }
+}
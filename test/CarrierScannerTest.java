@@ -0,0 +1,109 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CarrierScannerTest {
+    private static final byte[] SECRET = "scanned payload ".repeat(20).getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void findsSealedCarriersInDecodedAndMappedImages() throws Exception {
+        BitBuffer bits = TextToBinary.toBits(SECRET, Codecs.STORED);
+        for (String format : new String[] {"png", "bmp"}) {
+            Path file = write(EncodeBinary.embed(carrier(1), bits, 64), "sealed." + format);
+            CarrierScanner.Result r = CarrierScanner.scan(file, 64);
+            assertEquals(CarrierScanner.Status.SEALED, r.status, format);
+            assertEquals(bits.length(), r.payloadBits, format);
+            assertNull(r.reason, format);
+        }
+    }
+
+    @Test
+    void reportsCleanImagesWithTheirReason() throws Exception {
+        for (String format : new String[] {"png", "bmp"}) {
+            CarrierScanner.Result r = CarrierScanner.scan(write(carrier(2), "clean." + format), 64);
+            assertEquals(CarrierScanner.Status.CLEAN, r.status, format);
+            assertEquals(0, r.payloadBits, format);
+            assertTrue(r.reason != null && r.reason != NoHiddenMessageException.Reason.UNREADABLE_IMAGE, format + ": " + r.reason);
+        }
+    }
+
+    @Test
+    void tellsPreSealCarriersFromPreSealLookalikes() throws Exception {
+        // Written the way carriers were before the seal: mode 0 header, then the payload
+        BitBuffer container = TextToBinary.toBits(SECRET, Codecs.STORED);
+        CarrierScanner.Result r = CarrierScanner.scan(unsealed(container, "old.png"), 64);
+        assertEquals(CarrierScanner.Status.UNSEALED, r.status);
+        assertEquals(container.length(), r.payloadBits);
+
+        // A plausible length over noise passes the header check but not the payload one
+        byte[] noise = new byte[SECRET.length];
+        new Random(3).nextBytes(noise);
+        r = CarrierScanner.scan(unsealed(BitBuffer.wrap(noise), "noise.png"), 64);
+        assertEquals(CarrierScanner.Status.CLEAN, r.status);
+        assertEquals(NoHiddenMessageException.Reason.NOT_TEXT, r.reason);
+    }
+
+    @Test
+    void reportsUnreadableFilesWithoutAbortingTheScan() throws Exception {
+        Path garbage = dir.resolve("garbage.png");
+        Files.write(garbage, "not an image at all".getBytes(StandardCharsets.US_ASCII));
+        // A BMP cut off inside its headers can be neither mapped nor decoded
+        Path bmp = write(carrier(4), "truncated.bmp");
+        byte[] full = Files.readAllBytes(bmp);
+        Files.write(bmp, Arrays.copyOf(full, 20));
+        Path missing = dir.resolve("missing.png");
+
+        for (Path file : new Path[] {garbage, bmp, missing}) {
+            CarrierScanner.Result r = CarrierScanner.scan(file, 64);
+            assertEquals(CarrierScanner.Status.UNREADABLE, r.status, file.toString());
+            assertEquals(NoHiddenMessageException.Reason.UNREADABLE_IMAGE, r.reason, file.toString());
+        }
+
+        Path sealed = write(EncodeBinary.embed(carrier(5), TextToBinary.toBits(SECRET, Codecs.STORED), 64), "sealed.png");
+        Path clean = write(carrier(6), "clean.png");
+        List<Path> files = List.of(garbage, sealed, bmp, clean, missing);
+        List<CarrierScanner.Result> results = CarrierScanner.scan(files, 64, 3);
+        assertEquals(files.size(), results.size());
+        CarrierScanner.Status[] expected = {CarrierScanner.Status.UNREADABLE, CarrierScanner.Status.SEALED,
+            CarrierScanner.Status.UNREADABLE, CarrierScanner.Status.CLEAN, CarrierScanner.Status.UNREADABLE};
+        for (int i = 0; i < files.size(); i++) {
+            assertEquals(files.get(i), results.get(i).file);
+            assertEquals(expected[i], results.get(i).status, files.get(i).toString());
+        }
+    }
+
+    // Mode 0 length header with no seal, then the payload, 1 LSB per channel from the first pixel
+    private Path unsealed(BitBuffer payload, String name) throws IOException {
+        BitBuffer bits = new BitBuffer();
+        EncodeBinary.writeHeader(bits, payload.length(), 64, CapacityPlanner.MODE_LEGACY);
+        bits.append(payload);
+        BufferedImage image = LsbEngine.normalize(carrier(7));
+        LsbEngine.embed(image, bits, 0, bits.length());
+        return write(image, name);
+    }
+
+    private static BufferedImage carrier(long seed) {
+        return TestImages.random(96, 80, BufferedImage.TYPE_INT_RGB, seed);
+    }
+
+    private Path write(BufferedImage image, String name) throws IOException {
+        Path file = dir.resolve(name);
+        assertTrue(ImageIO.write(image, name.substring(name.lastIndexOf('.') + 1), file.toFile()));
+        return file;
+    }
+}
@@ -0,0 +1,106 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ChunkedContainerTest {
+    private static final int BLOCK_SIZE = 4096;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsOneBlockWithoutDecodingTheRest() throws Exception {
+        byte[] data = payload();
+        BitBuffer bits = ChunkedContainer.pack(data, BLOCK_SIZE, Codecs.STORED);
+        ChunkedContainer.Index index = ChunkedContainer.readIndex(bits);
+        assertEquals(data.length / BLOCK_SIZE, index.blockCount());
+
+        // A flipped bit in block 3 breaks a full decode but not a read of block 1
+        BufferedImage image = EncodeBinary.embed(carrier(), bits, 64);
+        flipPayloadBit(image, index.blockStart(3) + 20);
+        Path file = write(image);
+
+        assertEquals(index.blockCount(), ChunkedContainer.readIndex(file.toString(), 64).blockCount());
+        assertArrayEquals(Arrays.copyOfRange(data, BLOCK_SIZE, 2 * BLOCK_SIZE), ChunkedContainer.readBlock(file.toString(), 64, 1));
+        assertThrows(NoHiddenMessageException.class, () -> BinaryToText.toBytes(DecodeBinary.decodeBits(file.toString(), 64)));
+        assertThrows(IndexOutOfBoundsException.class, () -> ChunkedContainer.readBlock(file.toString(), 64, index.blockCount()));
+    }
+
+    @Test
+    void verifyFindsTheBlockWithAFlippedBit() throws Exception {
+        BitBuffer bits = ChunkedContainer.pack(payload(), BLOCK_SIZE, Codecs.STORED);
+        ChunkedContainer.Index index = ChunkedContainer.readIndex(bits);
+        BufferedImage image = EncodeBinary.embed(carrier(), bits, 64);
+        Path intact = write(image);
+        assertEquals(List.of(), ChunkedContainer.verify(DecodeBinary.decodeBits(intact.toString(), 64), index));
+
+        long flipped = index.blockStart(5) + 8 * 100 + 3;
+        flipPayloadBit(image, flipped);
+        Path file = write(image);
+        BitBuffer decoded = DecodeBinary.decodeBits(file.toString(), 64);
+        assertEquals(bits.getBits(flipped, 1) ^ 1, decoded.getBits(flipped, 1));
+        assertEquals(List.of(5), ChunkedContainer.verify(decoded, ChunkedContainer.readIndex(decoded)));
+
+        NoHiddenMessageException e = assertThrows(NoHiddenMessageException.class, () -> ChunkedContainer.readBlock(file.toString(), 64, 5));
+        assertEquals(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, e.getReason());
+    }
+
+    @Test
+    void rejectsAnIndexWhoseChecksumDoesNotMatch() {
+        BitBuffer bits = ChunkedContainer.pack(payload(), BLOCK_SIZE, Codecs.DEFLATE);
+        long bit = ChunkedContainer.PREAMBLE_BITS + ChunkedContainer.ENTRY_BITS + 100; // raw length of block 1
+        bits.setBits(bit, bits.getBits(bit, 1) ^ 1, 1);
+
+        NoHiddenMessageException e = assertThrows(NoHiddenMessageException.class, () -> ChunkedContainer.readIndex(bits));
+        assertEquals(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, e.getReason());
+        assertTrue(e.getDetail().contains("checksum"), e.getDetail());
+    }
+
+    @Test
+    void refusesRandomAccessIntoEncryptedPayloads() throws Exception {
+        PayloadCipher.Passphrase passphrase = new PayloadCipher.Passphrase("pw".toCharArray(), PayloadCipher.MIN_ITERATIONS);
+        BitBuffer bits = PayloadCipher.encrypt(ChunkedContainer.pack(payload(), BLOCK_SIZE, Codecs.STORED), passphrase);
+        Path file = write(EncodeBinary.embed(carrier(), bits, 64));
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> ChunkedContainer.readBlock(file.toString(), 64, 0));
+        assertTrue(e.getMessage().contains("encrypted"), e.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> ChunkedContainer.readIndex(bits));
+    }
+
+    // Default layout: payload bit i is slot prefixBits + i, the LSB of channel (slot % 3) of pixel (slot / 3)
+    private static void flipPayloadBit(BufferedImage image, long bit) {
+        long slot = CapacityPlanner.prefixBits(64) + bit;
+        int pixel = (int) (slot / 3);
+        int x = pixel % image.getWidth();
+        int y = pixel / image.getWidth();
+        image.setRGB(x, y, image.getRGB(x, y) ^ (1 << (16 - 8 * (int) (slot % 3))));
+    }
+
+    private static BufferedImage carrier() {
+        return TestImages.random(512, 512, BufferedImage.TYPE_INT_RGB, 17);
+    }
+
+    private Path write(BufferedImage image) throws IOException {
+        Path file = dir.resolve("carrier.png");
+        assertTrue(ImageIO.write(image, "png", file.toFile()));
+        return file;
+    }
+
+    // Eight blocks of text, each line numbered so no two blocks are alike
+    private static byte[] payload() {
+        StringBuilder sb = new StringBuilder();
+        for (int line = 0; sb.length() < 8 * BLOCK_SIZE; line++) sb.append("line ").append(line).append(" of the indexed payload\n");
+        return Arrays.copyOf(sb.toString().getBytes(StandardCharsets.UTF_8), 8 * BLOCK_SIZE);
+    }
+}
@@ -0,0 +1,152 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class CodecsTest {
+    private static final List<PayloadCodec> CODECS = List.of(Codecs.STORED, Codecs.LZ, Codecs.DEFLATE, Codecs.HUFFMAN);
+
+    @Test
+    void roundTripsEmptyInput() {
+        for (PayloadCodec codec : CODECS) roundTrip(codec, new byte[0]);
+        assertEquals(Codecs.STORED, Codecs.choose(new byte[0]));
+    }
+
+    @Test
+    void roundTripsIncompressibleInput() {
+        byte[] data = random(100_000, 1);
+        for (PayloadCodec codec : CODECS) roundTrip(codec, data);
+        assertEquals(Codecs.STORED, Codecs.choose(data));
+    }
+
+    @Test
+    void roundTripsHighlyRepetitiveInput() {
+        byte[] data = "abcabcabd".repeat(50_000).getBytes(StandardCharsets.US_ASCII);
+        for (PayloadCodec codec : CODECS) roundTrip(codec, data);
+        assertTrue(size(Codecs.LZ, data) < data.length / 100);
+
+        PayloadCodec chosen = Codecs.choose(data);
+        for (PayloadCodec codec : CODECS) assertTrue(size(chosen, data) <= size(codec, data), chosen.name() + " over " + codec.name());
+        assertNotEquals(Codecs.STORED, chosen);
+    }
+
+    @Test
+    void roundTripsMatchesLongerThanTheWindow() {
+        // One run far longer than the 64 KiB window, whose length takes many extension bytes
+        byte[] run = new byte[300_000];
+        Arrays.fill(run, (byte) 'x');
+        roundTrip(Codecs.LZ, run);
+        assertTrue(size(Codecs.LZ, run) < 2_000);
+
+        // A repeat from further back than the window can reach, which must come out as literals
+        byte[] far = random(70_000, 2);
+        byte[] data = Arrays.copyOf(far, 90_000);
+        System.arraycopy(far, 0, data, 70_000, 20_000);
+        roundTrip(Codecs.LZ, data);
+        assertTrue(size(Codecs.LZ, data) > 90_000);
+    }
+
+    @Test
+    void rejectsTruncatedLzStreams() {
+        byte[] data = (new String(random(2_000, 3), StandardCharsets.ISO_8859_1) + "repeat ".repeat(500)).getBytes(StandardCharsets.ISO_8859_1);
+        BitBuffer stream = new BitBuffer();
+        Codecs.LZ.compress(data, 0, data.length, stream);
+        for (long cut : new long[] {0, 16, 40, 64, 72, stream.length() / 2, stream.length() - 8}) {
+            BitBuffer truncated = stream.slice(0, cut);
+            NoHiddenMessageException e = assertThrows(NoHiddenMessageException.class, () -> Codecs.LZ.decompress(truncated), "cut at " + cut);
+            assertEquals(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, e.getReason(), "cut at " + cut);
+        }
+    }
+
+    @Test
+    void rejectsOversizedLengthsBeforeAllocating() {
+        // A tiny container claiming a payload of almost 2 GiB
+        for (PayloadCodec codec : List.of(Codecs.STORED, Codecs.LZ, Codecs.DEFLATE)) {
+            BitBuffer container = StegoContainer.pack(new byte[] {1, 2, 3}, codec);
+            container.setBits(StegoContainer.HEADER_BITS, 0x7FFFFFF0L, 32);
+            NoHiddenMessageException e = assertThrows(NoHiddenMessageException.class, () -> StegoContainer.unpackBytes(container), codec.name());
+            assertEquals(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, e.getReason(), codec.name());
+        }
+
+        // Second length fields: more compressed bytes than the stream holds, or a raw length
+        // the compressed bytes could never expand to
+        for (PayloadCodec codec : List.of(Codecs.LZ, Codecs.DEFLATE)) {
+            byte[] data = "abcabcabd".repeat(1_000).getBytes(StandardCharsets.US_ASCII);
+            BitBuffer stream = new BitBuffer();
+            codec.compress(data, 0, data.length, stream);
+            long packed = stream.getBits(32, 32);
+
+            BitBuffer longPacked = stream.slice(0, stream.length());
+            longPacked.setBits(32, packed + 1, 32);
+            assertEquals(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD,
+                assertThrows(NoHiddenMessageException.class, () -> codec.decompress(longPacked), codec.name()).getReason());
+
+            BitBuffer longRaw = stream.slice(0, stream.length());
+            longRaw.setBits(0, packed * 1_100, 32);
+            assertEquals(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD,
+                assertThrows(NoHiddenMessageException.class, () -> codec.decompress(longRaw), codec.name()).getReason());
+        }
+    }
+
+    @Test
+    void rejectsRetiredContainerCodecs() {
+        for (int id : new int[] {StegoContainer.CODEC_HUFFMAN_TREE, StegoContainer.CODEC_HUFFMAN_CHARS, StegoContainer.CODEC_HUFFMAN_INDEXED}) {
+            BitBuffer container = StegoContainer.pack(new byte[] {1, 2, 3}, Codecs.STORED);
+            container.setBits(40, id, 8);
+            assertThrows(IllegalArgumentException.class, () -> StegoContainer.unpackBytes(container));
+            assertThrows(IllegalArgumentException.class, () -> Codecs.register(new Renumbered(id)));
+        }
+    }
+
+    private static void roundTrip(PayloadCodec codec, byte[] data) {
+        BitBuffer stream = new BitBuffer();
+        codec.compress(data, 0, data.length, stream);
+        stream.writeBits(0x5A, 8);
+        stream.rewind();
+        assertArrayEquals(data, codec.decompress(stream), codec.name());
+        // Streams are self-delimiting
+        assertEquals(0x5A, stream.readBits(8), codec.name());
+
+        assertArrayEquals(data, StegoContainer.unpackBytes(StegoContainer.pack(data, codec)), codec.name());
+    }
+
+    private static long size(PayloadCodec codec, byte[] data) {
+        BitBuffer stream = new BitBuffer();
+        codec.compress(data, 0, data.length, stream);
+        return stream.length() / 8;
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] b = new byte[length];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    // Stored under another id
+    private static final class Renumbered implements PayloadCodec {
+        private final int id;
+
+        Renumbered(int id) {
+            this.id = id;
+        }
+
+        public int id() { return id; }
+
+        public String name() { return "renumbered" + id; }
+
+        public void compress(byte[] data, int offset, int length, BitBuffer out) {
+            Codecs.STORED.compress(data, offset, length, out);
+        }
+
+        public byte[] decompress(BitBuffer in) {
+            return Codecs.STORED.decompress(in);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.awt.image.BufferedImage;
+import java.util.zip.CRC32C;
+import org.junit.jupiter.api.Test;
+
+class HeaderSealTest {
+    @Test
+    void acceptsTheSealWrittenForItsHeader() {
+        for (int headerBits : new int[] {64, 128}) {
+            BitBuffer bits = sealed(12_345, headerBits);
+            assertEquals(headerBits + HeaderSeal.BITS, bits.length());
+            assertNull(HeaderSeal.check(bits, headerBits), headerBits + "-bit header");
+        }
+    }
+
+    @Test
+    void rejectsAHeaderThatNoLongerMatchesItsChecksum() {
+        BitBuffer bits = sealed(12_345, 64);
+        bits.setBits(63, bits.getBits(63, 1) ^ 1, 1); // lowest bit of the length
+        assertEquals("header checksum mismatch", HeaderSeal.check(bits, 64));
+
+        bits = sealed(12_345, 64);
+        bits.setBits(64 + 32, bits.getBits(64 + 32, 1) ^ 1, 1); // first bit of the CRC itself
+        assertEquals("header checksum mismatch", HeaderSeal.check(bits, 64));
+    }
+
+    @Test
+    void rejectsABadMagic() {
+        BitBuffer bits = sealed(12_345, 128);
+        bits.setBits(128, 0x5057, 16);
+        assertEquals("bad magic", HeaderSeal.check(bits, 128));
+    }
+
+    @Test
+    void rejectsAnUnknownVersionEvenWithAValidChecksum() {
+        BitBuffer bits = new BitBuffer();
+        EncodeBinary.writeHeader(bits, 12_345, 64, CapacityPlanner.MODE_LEGACY | CapacityPlanner.MODE_SEALED);
+        bits.setBits(64 + 16, 2, 8);
+        assertEquals("header checksum mismatch", HeaderSeal.check(bits, 64));
+
+        // Resealed by hand over the new version, so only the version is wrong
+        CRC32C crc = new CRC32C();
+        crc.update(bits.slice(0, 64 + 32).toByteArray());
+        bits.setBits(64 + 32, crc.getValue(), 32);
+        assertEquals("unsupported seal version 2", HeaderSeal.check(bits, 64));
+    }
+
+    @Test
+    void readsAnAllOnesLengthWordAsAValueNotAsBadPadding() {
+        // Mode byte 0xFF is unknown; the padding is fine, there is none
+        BufferedImage image = TestImages.random(32, 32, BufferedImage.TYPE_INT_RGB, 5);
+        BitBuffer ones = new BitBuffer(64);
+        ones.writeBits(-1L, 64);
+        LsbEngine.embed(image, ones, 0, 64);
+        NoHiddenMessageException e = assertThrows(NoHiddenMessageException.class, () -> DecodeBinary.decodeBits(image, 64));
+        assertEquals(NoHiddenMessageException.Reason.UNKNOWN_MODE, e.getReason());
+        assertEquals(-1L, DecodeBinary.readLength(ones, 64));
+
+        BitBuffer bits = new BitBuffer(128);
+        bits.writeBits(1, 64);
+        bits.writeBits(12_345, 64);
+        e = assertThrows(NoHiddenMessageException.class, () -> DecodeBinary.readLength(bits, 128));
+        assertEquals(NoHiddenMessageException.Reason.HEADER_PADDING, e.getReason());
+    }
+
+    private static BitBuffer sealed(long length, int headerBits) {
+        BitBuffer bits = new BitBuffer();
+        EncodeBinary.writeHeader(bits, length, headerBits, CapacityPlanner.MODE_SEALED);
+        return bits;
+    }
+}
@@ -0,0 +1,127 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class HuffmanCodingTest {
+    @Test
+    void roundTripsNonLatinText() {
+        String text = "naïve café, Ελληνικά, русский, 日本語のテキスト, emoji 🎉🚀 and a lone \u0000 byte";
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(data, roundTrip(data));
+        assertEquals(text, StegoContainer.unpack(StegoContainer.pack(data, Codecs.HUFFMAN)));
+    }
+
+    @Test
+    void roundTripsBinaryInput() {
+        // Every byte value, skewed so the code lengths differ
+        byte[] data = new byte[50_000];
+        Random random = new Random(4);
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (random.nextInt(256) & random.nextInt(256));
+        assertArrayEquals(data, roundTrip(data));
+
+        byte[] uniform = new byte[256 * 16];
+        for (int i = 0; i < uniform.length; i++) uniform[i] = (byte) i;
+        assertArrayEquals(uniform, roundTrip(uniform));
+    }
+
+    @Test
+    void rejectsCountsTheStreamCannotHold() {
+        // Two one-bit codes, then far fewer bits than the count claims
+        BitBuffer stream = new BitBuffer();
+        stream.writeBits(0x7FFFFFF0L, 32);
+        stream.writeBit(0);
+        stream.writeBits(1, 8);
+        stream.writeBits('a', 8);
+        stream.writeBits(1, 5);
+        stream.writeBits('b', 8);
+        stream.writeBits(1, 5);
+        stream.writeBits(0b0110, 4);
+        stream.rewind();
+        NoHiddenMessageException e = assertThrows(NoHiddenMessageException.class, () -> HuffmanCoding.decompressBytes(stream));
+        assertEquals(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, e.getReason());
+
+        // The same table with a count that fits decodes
+        stream.setBits(0, 4, 32);
+        stream.rewind();
+        assertArrayEquals("abba".getBytes(StandardCharsets.US_ASCII), HuffmanCoding.decompressBytes(stream));
+    }
+
+    @Test
+    void roundTripsASingleSymbolAlphabet() {
+        byte[] data = new byte[1_000];
+        Arrays.fill(data, (byte) 'x');
+        assertArrayEquals(data, roundTrip(data));
+        assertArrayEquals(new byte[] {(byte) 0xFF}, roundTrip(new byte[] {(byte) 0xFF}));
+    }
+
+    @Test
+    void decodesCodesLongerThanTheLookupTable() {
+        // Fibonacci frequencies make the deepest possible tree, so most codes miss the table
+        int symbols = 22;
+        long[] freq = new long[symbols];
+        freq[0] = freq[1] = 1;
+        for (int i = 2; i < symbols; i++) freq[i] = freq[i - 1] + freq[i - 2];
+        int total = 0;
+        for (long f : freq) total += (int) f;
+        byte[] data = new byte[total];
+        for (int s = 0, at = 0; s < symbols; s++) {
+            for (long k = 0; k < freq[s]; k++) data[at++] = (byte) (s * 11);
+        }
+        shuffle(data, new Random(5));
+
+        int[] counts = new int[symbols];
+        for (int i = 0; i < symbols; i++) counts[i] = (int) freq[i];
+        int longest = 0;
+        for (int len : HuffmanCoding.codeLengths(counts)) longest = Math.max(longest, len);
+        assertTrue(longest > HuffmanCoding.TABLE_BITS, "longest code " + longest);
+        assertArrayEquals(data, roundTrip(data));
+    }
+
+    @Test
+    void decoderWalksEveryCodeLength() {
+        // One symbol at each length 1..23 and two at 24: a complete code using every length
+        int n = HuffmanCoding.MAX_CODE_LENGTH + 1;
+        int[] symbols = new int[n];
+        int[] lengths = new int[n];
+        for (int i = 0; i < n; i++) {
+            symbols[i] = i * 7;
+            lengths[i] = Math.min(i + 1, HuffmanCoding.MAX_CODE_LENGTH);
+        }
+        int[] codes = HuffmanCoding.canonicalCodes(lengths);
+        HuffmanCoding.CanonicalDecoder decoder = new HuffmanCoding.CanonicalDecoder(symbols, lengths);
+
+        BitBuffer stream = new BitBuffer();
+        for (int i = n - 1; i >= 0; i--) stream.writeBits(codes[i], lengths[i]);
+        stream.rewind();
+        for (int i = n - 1; i >= 0; i--) assertEquals(symbols[i], decoder.next(stream), "length " + lengths[i]);
+        assertEquals(0, stream.remaining());
+    }
+
+    @Test
+    void rejectsOverSubscribedCodeLengths() {
+        assertThrows(IllegalArgumentException.class,
+            () -> new HuffmanCoding.CanonicalDecoder(new int[] {1, 2, 3}, new int[] {1, 1, 1}));
+    }
+
+    static byte[] roundTrip(byte[] data) {
+        BitBuffer stream = new BitBuffer();
+        HuffmanCoding.compress(data, stream);
+        stream.rewind();
+        return HuffmanCoding.decompressBytes(stream);
+    }
+
+    private static void shuffle(byte[] b, Random random) {
+        for (int i = b.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            byte t = b[i];
+            b[i] = b[j];
+            b[j] = t;
+        }
+    }
+}
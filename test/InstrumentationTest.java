@@ -0,0 +1,136 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class InstrumentationTest {
+    private static final byte[] SECRET = "measured payload ".repeat(30).getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void uninstall() {
+        Instrumentation.install(null);
+    }
+
+    @Test
+    void timesEveryStageOfAnEncodeAndDecode() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        Instrumentation.install(registry);
+        long payloadBits = roundTrip();
+
+        for (Metrics.Stage stage : new Metrics.Stage[] {Metrics.Stage.COMPRESS, Metrics.Stage.BIT_EMBED, Metrics.Stage.IMAGE_WRITE,
+                Metrics.Stage.IMAGE_READ, Metrics.Stage.HEADER_READ, Metrics.Stage.BIT_EXTRACT, Metrics.Stage.DECOMPRESS}) {
+            MetricsRegistry.Histogram h = registry.histogram(stage);
+            assertTrue(h.count() >= 1, stage.name());
+            assertEquals(h.count(), h.cumulative(MetricsRegistry.BUCKETS.length), stage.name());
+            assertTrue(h.sumSeconds() > 0, stage.name());
+        }
+        assertEquals(0, registry.histogram(Metrics.Stage.ENCRYPT).count());
+        assertEquals(0, registry.histogram(Metrics.Stage.DECRYPT).count());
+
+        assertEquals(SECRET.length, registry.count(Metrics.Counter.PAYLOAD_BYTES_ENCODED));
+        assertEquals(SECRET.length, registry.count(Metrics.Counter.PAYLOAD_BYTES_DECODED));
+        assertEquals(1, registry.count(Metrics.Counter.IMAGES_WRITTEN));
+        assertTrue(registry.count(Metrics.Counter.IMAGES_READ) >= 2);
+        // Header and seal included
+        assertEquals(CapacityPlanner.prefixBits(64) + payloadBits, registry.count(Metrics.Counter.BITS_EMBEDDED));
+        assertTrue(registry.count(Metrics.Counter.BITS_EXTRACTED) >= payloadBits);
+        for (NoHiddenMessageException.Reason reason : NoHiddenMessageException.Reason.values()) {
+            assertEquals(0, registry.rejections(reason), reason.name());
+        }
+    }
+
+    @Test
+    void countsRejectionsByReason() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        Instrumentation.install(registry);
+        Path clean = write(carrier(), "clean.png");
+
+        NoHiddenMessageException e = assertThrows(NoHiddenMessageException.class, () -> DecodeBinary.decodeBits(clean.toString(), 64));
+        assertThrows(NoHiddenMessageException.class, () -> DecodeBinary.decodeBits(clean.toString(), 64));
+        for (NoHiddenMessageException.Reason reason : NoHiddenMessageException.Reason.values()) {
+            assertEquals(reason == e.getReason() ? 2 : 0, registry.rejections(reason), reason.name());
+        }
+    }
+
+    @Test
+    void rendersThePrometheusTextFormat() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.record(Metrics.Stage.COMPRESS, 2_000_000);       // 2 ms
+        registry.record(Metrics.Stage.COMPRESS, 50_000_000_000L); // 50 s, past every bound
+        registry.add(Metrics.Counter.IMAGES_READ, 3);
+        registry.rejected(NoHiddenMessageException.Reason.BAD_SEAL);
+
+        String text = PrometheusExporter.render(registry);
+        assertTrue(text.contains("# TYPE pixelvault_stage_seconds histogram\n"), text);
+        assertTrue(text.contains("pixelvault_stage_seconds_bucket{stage=\"compress\",le=\"0.001\"} 0\n"), text);
+        assertTrue(text.contains("pixelvault_stage_seconds_bucket{stage=\"compress\",le=\"0.005\"} 1\n"), text);
+        assertTrue(text.contains("pixelvault_stage_seconds_bucket{stage=\"compress\",le=\"30.0\"} 1\n"), text);
+        assertTrue(text.contains("pixelvault_stage_seconds_bucket{stage=\"compress\",le=\"+Inf\"} 2\n"), text);
+        assertTrue(text.contains("pixelvault_stage_seconds_sum{stage=\"compress\"} 50.002\n"), text);
+        assertTrue(text.contains("pixelvault_stage_seconds_count{stage=\"compress\"} 2\n"), text);
+        assertTrue(text.contains("pixelvault_stage_seconds_bucket{stage=\"decrypt\",le=\"+Inf\"} 0\n"), text);
+        assertTrue(text.contains("# TYPE pixelvault_images_read_total counter\npixelvault_images_read_total 3\n"), text);
+        assertTrue(text.contains("pixelvault_rejections_total{reason=\"bad_seal\"} 1\n"), text);
+        assertTrue(text.contains("pixelvault_rejections_total{reason=\"corrupt_payload\"} 0\n"), text);
+
+        // Every line is a comment or `name{labels} value`, with one bucket line per bound plus +Inf
+        long buckets = 0;
+        for (String line : text.split("\n")) {
+            if (line.startsWith("#")) continue;
+            assertTrue(line.matches("[a-z_]+(\\{[a-z_]+=\"[^\"]*\"(,[a-z_]+=\"[^\"]*\")*\\})? [0-9.E+-]+"), line);
+            if (line.startsWith("pixelvault_stage_seconds_bucket{stage=\"compress\"")) buckets++;
+        }
+        assertEquals(MetricsRegistry.BUCKETS.length + 1, buckets);
+    }
+
+    @Test
+    void recordsNothingWhenDisabled() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        Instrumentation.install(registry);
+        Instrumentation.install(null);
+        assertEquals(null, Instrumentation.installed());
+        assertEquals(0, Instrumentation.start());
+
+        roundTrip();
+        Path clean = write(carrier(), "clean.png");
+        assertThrows(NoHiddenMessageException.class, () -> DecodeBinary.decodeBits(clean.toString(), 64));
+
+        for (Metrics.Stage stage : Metrics.Stage.values()) assertEquals(0, registry.histogram(stage).count(), stage.name());
+        for (Metrics.Counter counter : Metrics.Counter.values()) assertEquals(0, registry.count(counter), counter.name());
+        for (NoHiddenMessageException.Reason reason : NoHiddenMessageException.Reason.values()) {
+            assertEquals(0, registry.rejections(reason), reason.name());
+        }
+    }
+
+    // Returns the payload bits embedded
+    private long roundTrip() throws Exception {
+        Path carrier = write(carrier(), "carrier.png");
+        Path output = dir.resolve("encoded.png");
+        BitBuffer bits = TextToBinary.toBits(SECRET, Codecs.DEFLATE);
+        EncodeBinary.encode(carrier.toString(), bits, output.toString(), 64);
+        assertArrayEquals(SECRET, BinaryToText.toBytes(DecodeBinary.decodeBits(output.toString(), 64)));
+        return bits.length();
+    }
+
+    private static BufferedImage carrier() {
+        return TestImages.random(80, 60, BufferedImage.TYPE_INT_RGB, 12);
+    }
+
+    private Path write(BufferedImage image, String name) throws IOException {
+        Path file = dir.resolve(name);
+        assertTrue(ImageIO.write(image, "png", file.toFile()));
+        return file;
+    }
+}
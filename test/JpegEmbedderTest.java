@@ -0,0 +1,139 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JpegEmbedderTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void roundTripsSubsampledJpegWithRestartIntervals() throws IOException {
+        // Odd size, so the last MCU row and column are partial
+        byte[] jpeg = jpeg(TestImages.random(203, 157, BufferedImage.TYPE_INT_RGB, 1), 3);
+        JpegCoefficients coefficients = JpegCoefficients.read(jpeg);
+        assertEquals(3, coefficients.components.size());
+        assertEquals(2, coefficients.components.get(0).h);
+        assertEquals(2, coefficients.components.get(0).v);
+        assertEquals(1, coefficients.components.get(1).h);
+        assertTrue(hasRestartInterval(jpeg));
+        assertArrayEquals(jpeg, coefficients.write());
+
+        roundTrip(jpeg);
+    }
+
+    @Test
+    void roundTripsGrayscaleJpeg() throws IOException {
+        byte[] jpeg = jpeg(TestImages.random(120, 97, BufferedImage.TYPE_BYTE_GRAY, 2), 0);
+        JpegCoefficients coefficients = JpegCoefficients.read(jpeg);
+        assertEquals(1, coefficients.components.size());
+        assertArrayEquals(jpeg, coefficients.write());
+
+        roundTrip(jpeg);
+    }
+
+    @Test
+    void encodesJpegCarriersToJpegs() throws Exception {
+        Path carrier = dir.resolve("carrier.jpg");
+        Path output = dir.resolve("output.jpg");
+        Files.write(carrier, jpeg(TestImages.random(160, 120, BufferedImage.TYPE_INT_RGB, 3), 5));
+        byte[] secret = secret(200, 1);
+
+        EncodeBinary.encode(carrier.toString(), TextToBinary.toBits(secret, Codecs.choose(secret), null), output.toString(), 64);
+        assertTrue(JpegCoefficients.isJpeg(output.toFile()));
+        assertArrayEquals(secret, StegoContainer.unpackBytes(DecodeBinary.decodeBits(output.toString(), 64, null), null));
+    }
+
+    @Test
+    void refusesPixelPlansForJpegOutput() throws IOException {
+        Path carrier = dir.resolve("planned.jpg");
+        Files.write(carrier, jpeg(TestImages.random(160, 120, BufferedImage.TYPE_INT_RGB, 4), 0));
+        BitBuffer data = TextToBinary.toBits(secret(50, 2), Codecs.STORED, null);
+        CapacityPlanner.Plan plan = CapacityPlanner.fixed(160, 120, false, data.length(), 64, 2, false);
+        String output = dir.resolve("planned-out.jpg").toString();
+        assertThrows(IllegalArgumentException.class, () -> EncodeBinary.encode(carrier.toString(), data, output, 64, plan));
+        assertFalse(Files.exists(Path.of(output)));
+    }
+
+    // Embeds in order and scattered with both header sizes, decodes, and checks that the
+    // result is still a JPEG that ImageIO reads at the same size
+    private static void roundTrip(byte[] jpeg) throws IOException {
+        BufferedImage original = ImageIO.read(new ByteArrayInputStream(jpeg));
+        for (int headerBits : new int[] {64, 128}) {
+            long capacity = JpegEmbedder.capacity(jpeg, headerBits);
+            assertTrue(capacity > 1000, "capacity " + capacity);
+            for (PayloadCipher.Passphrase passphrase : new PayloadCipher.Passphrase[] {null, new PayloadCipher.Passphrase("pw".toCharArray())}) {
+                byte[] secret = secret((int) Math.min(capacity / 16, 400), headerBits);
+                BitBuffer data = TextToBinary.toBits(secret, Codecs.choose(secret), passphrase);
+                byte[] out = JpegEmbedder.embed(jpeg, data, headerBits, passphrase);
+
+                BitBuffer decoded = JpegEmbedder.decodeBits(out, headerBits, passphrase);
+                assertArrayEquals(secret, StegoContainer.unpackBytes(decoded, passphrase));
+                BufferedImage read = ImageIO.read(new ByteArrayInputStream(out));
+                assertNotNull(read);
+                assertEquals(original.getWidth(), read.getWidth());
+                assertEquals(original.getHeight(), read.getHeight());
+            }
+        }
+    }
+
+    // Baseline JPEG from ImageIO, whose colour output is 4:2:0, with a DRI segment when
+    // restartInterval is above 0
+    private static byte[] jpeg(BufferedImage image, int restartInterval) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(0.9f);
+        IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), param);
+        if (restartInterval > 0) {
+            String format = "javax_imageio_jpeg_image_1.0";
+            IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+            IIOMetadataNode dri = new IIOMetadataNode("dri");
+            dri.setAttribute("interval", Integer.toString(restartInterval));
+            IIOMetadataNode markers = (IIOMetadataNode) root.getElementsByTagName("markerSequence").item(0);
+            markers.insertBefore(dri, markers.getFirstChild());
+            metadata.setFromTree(format, root);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, metadata), param);
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static boolean hasRestartInterval(byte[] jpeg) {
+        for (int i = 0; i + 1 < jpeg.length; i++) {
+            if ((jpeg[i] & 0xFF) == 0xFF && (jpeg[i + 1] & 0xFF) == 0xDD) return true;
+        }
+        return false;
+    }
+
+    private static byte[] secret(int length, long seed) {
+        byte[] secret = new byte[length];
+        new Random(seed).nextBytes(secret);
+        return secret;
+    }
+}
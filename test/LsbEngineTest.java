@@ -0,0 +1,74 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+
+class LsbEngineTest {
+    // More workers than the sandbox may have cores, so stripes really do run concurrently
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+    // Odd width: rows, and so stripes, never end on a 64-bit word of the payload
+    private static final int WIDTH = 1001;
+
+    @AfterAll
+    static void shutdown() {
+        POOL.shutdown();
+    }
+
+    @Test
+    void parallelMatchesSequentialForEveryRasterAndLayout() {
+        int[] types = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR};
+        for (int type : types) {
+            for (int k = 1; k <= 4; k++) {
+                for (boolean alpha : type == BufferedImage.TYPE_INT_ARGB ? new boolean[] {false, true} : new boolean[] {false}) {
+                    for (boolean scatter : new boolean[] {false, true}) {
+                        for (long firstPixel : new long[] {0, 2}) {
+                            check(type, new LsbEngine.Layout(k, alpha, firstPixel), scatter);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void check(int type, LsbEngine.Layout layout, boolean scatter) {
+        String name = "type " + type + ", k " + layout.bitsPerChannel + ", alpha " + layout.alpha
+            + ", first pixel " + layout.firstPixel + ", scatter " + scatter;
+        // Just enough rows that the range clears the parallel threshold with a few stripes
+        long slots = LsbEngine.PARALLEL_THRESHOLD_BITS + 100_000;
+        int height = (int) ((slots / layout.bitsPerPixel() + layout.firstPixel) / WIDTH + 2);
+        if (scatter) layout = layout.scattered((long) WIDTH * height, 42);
+
+        BufferedImage sequential = TestImages.random(WIDTH, height, type, height);
+        BufferedImage parallel = TestImages.random(WIDTH, height, type, height);
+        long capacity = LsbEngine.capacity(sequential, layout);
+        // Neither end on a pixel, stripe or word boundary
+        long from = 7;
+        long to = capacity - 5;
+        byte[] random = new byte[(int) (capacity / 8 + 1)];
+        new Random(capacity).nextBytes(random);
+        BitBuffer bits = BitBuffer.wrap(random);
+
+        LsbEngine.embed(sequential, layout, bits, from, to);
+        LsbEngine.embedParallel(parallel, layout, bits, from, to, POOL);
+        if (type == BufferedImage.TYPE_3BYTE_BGR) {
+            assertArrayEquals(LsbEngine.data(sequential), LsbEngine.data(parallel), name);
+        } else {
+            assertArrayEquals(LsbEngine.pixels(sequential), LsbEngine.pixels(parallel), name);
+        }
+
+        BitBuffer expected = new BitBuffer(to - from);
+        BitBuffer actual = new BitBuffer(to - from);
+        LsbEngine.extract(parallel, layout, from, to, expected);
+        LsbEngine.extractParallel(parallel, layout, from, to, actual, POOL);
+        assertEquals(to - from, actual.length(), name);
+        for (long i = 0; i < actual.length(); i += 64) {
+            int n = (int) Math.min(64, actual.length() - i);
+            assertEquals(bits.getBits(from + i, n), actual.getBits(i, n), name + ", bit " + i);
+            assertEquals(expected.getBits(i, n), actual.getBits(i, n), name + ", bit " + i);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MappedRasterTest {
+    private static final int WIDTH = 37;  // rows of 24-bit BMPs need padding
+    private static final int HEIGHT = 23;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsBottomUpAndTopDownBmpsTheSameWay() throws Exception {
+        int[] pixels = pixels(WIDTH, HEIGHT, false);
+        for (boolean topDown : new boolean[] {false, true}) {
+            Path file = dir.resolve(topDown ? "top.bmp" : "bottom.bmp");
+            Files.write(file, bmp(pixels, 24, topDown));
+            try (MappedRaster raster = MappedRaster.open(file, false)) {
+                assertEquals(WIDTH, raster.width);
+                assertEquals(HEIGHT, raster.height);
+                assertFalse(raster.alpha);
+                assertArrayEquals(pixels, rows(raster), topDown ? "top-down" : "bottom-up");
+            }
+            BufferedImage image = ImageIO.read(file.toFile());
+            assertArrayEquals(pixels, image.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH));
+
+            Path output = dir.resolve("out-" + file.getFileName());
+            roundTrip(file, output, null);
+            assertClose(pixels, ImageIO.read(output.toFile()), 1);
+            // Row padding is never written
+            byte[] before = Files.readAllBytes(file);
+            byte[] after = Files.readAllBytes(output);
+            int stride = (WIDTH * 3 + 3) & ~3;
+            for (int row = 0; row < HEIGHT; row++) {
+                for (int i = WIDTH * 3; i < stride; i++) assertEquals(before[54 + row * stride + i], after[54 + row * stride + i]);
+            }
+        }
+    }
+
+    @Test
+    void leavesThePaddingByteOf32BitBmpsAlone() throws Exception {
+        int[] pixels = pixels(WIDTH, HEIGHT, false);
+        Path file = dir.resolve("padded.bmp");
+        Files.write(file, bmp(pixels, 32, false));
+        try (MappedRaster raster = MappedRaster.open(file, false)) {
+            assertFalse(raster.alpha);
+            assertArrayEquals(pixels, rows(raster));
+        }
+
+        Path output = dir.resolve("padded-out.bmp");
+        roundTrip(file, output, new PayloadCipher.Passphrase("pw".toCharArray(), PayloadCipher.MIN_ITERATIONS));
+        byte[] after = Files.readAllBytes(output);
+        for (int p = 0; p < WIDTH * HEIGHT; p++) assertEquals((byte) 0xA5, after[54 + p * 4 + 3], "padding of pixel " + p);
+        try (MappedRaster raster = MappedRaster.open(output, false)) {
+            int[] read = rows(raster);
+            int changed = 0;
+            for (int p = 0; p < read.length; p++) {
+                assertEquals(0, (read[p] ^ pixels[p]) & 0xFFFEFEFE, "pixel " + p);
+                if (read[p] != pixels[p]) changed++;
+            }
+            assertTrue(changed > 0);
+        }
+    }
+
+    @Test
+    void embedsPlansIntoPamRgbAlpha() throws Exception {
+        int[] pixels = pixels(WIDTH, HEIGHT, true);
+        Path file = dir.resolve("carrier.pam");
+        Files.write(file, pam(pixels));
+        try (MappedRaster raster = MappedRaster.open(file, false)) {
+            assertTrue(raster.alpha);
+            assertArrayEquals(pixels, rows(raster));
+        }
+
+        byte[] secret = new byte[300];
+        new Random(4).nextBytes(secret);
+        BitBuffer bits = StegoContainer.pack(secret, Codecs.STORED);
+        CapacityPlanner.Plan plan = CapacityPlanner.fixed(WIDTH, HEIGHT, true, bits.length(), 64, 2, true);
+        Path output = dir.resolve("output.pam");
+        EncodeBinary.encode(file.toString(), bits, output.toString(), 64, plan);
+
+        assertEquals(Files.size(file), Files.size(output));
+        assertArrayEquals(secret, StegoContainer.unpackBytes(DecodeBinary.decodeBits(output.toString(), 64, null)));
+        try (MappedRaster raster = MappedRaster.open(output, false)) {
+            int[] read = rows(raster);
+            boolean alphaChanged = false;
+            for (int p = 0; p < read.length; p++) {
+                assertEquals(0, (read[p] ^ pixels[p]) & 0xFCFCFCFC, "pixel " + p);
+                alphaChanged |= (read[p] ^ pixels[p]) >>> 24 != 0;
+            }
+            assertTrue(alphaChanged);
+        }
+    }
+
+    @Test
+    void refusesPlansTheRasterCannotHold() throws IOException {
+        Path file = dir.resolve("small.bmp");
+        Files.write(file, bmp(pixels(WIDTH, HEIGHT, false), 24, false));
+        BitBuffer bits = BitBuffer.wrap(new byte[400]);
+        CapacityPlanner.Plan alpha = CapacityPlanner.fixed(WIDTH, HEIGHT, true, bits.length(), 64, 1, true);
+        CapacityPlanner.Plan tooSmall = CapacityPlanner.fixed(WIDTH * 4, HEIGHT, false, bits.length(), 64, 1, false);
+        try (MappedRaster raster = MappedRaster.open(file, true)) {
+            assertThrows(IllegalArgumentException.class, () -> EncodeBinary.embed(raster, bits, 64, alpha));
+            assertThrows(IllegalArgumentException.class, () -> EncodeBinary.embed(raster, bits, 64, tooSmall));
+        }
+    }
+
+    // Encodes a random payload in place, checks the carrier is untouched and decodes it back
+    private static void roundTrip(Path carrier, Path output, PayloadCipher.Passphrase passphrase) throws Exception {
+        byte[] original = Files.readAllBytes(carrier);
+        byte[] secret = new byte[100];
+        new Random(3).nextBytes(secret);
+        BitBuffer bits = TextToBinary.toBits(secret, Codecs.STORED, passphrase);
+        EncodeBinary.encodeInPlace(carrier.toString(), bits, output.toString(), 64, passphrase);
+        assertArrayEquals(original, Files.readAllBytes(carrier));
+        assertEquals(original.length, Files.size(output));
+        assertArrayEquals(secret, StegoContainer.unpackBytes(DecodeBinary.decodeBits(output.toString(), 64, passphrase), passphrase));
+    }
+
+    private static int[] rows(MappedRaster raster) {
+        int[] out = new int[raster.width * raster.height];
+        for (int y = 0; y < raster.height; y++) raster.readRow(y, out, y * raster.width);
+        return out;
+    }
+
+    private static void assertClose(int[] expected, BufferedImage image, int tolerance) {
+        assertNotNull(image);
+        int[] actual = image.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+        for (int p = 0; p < expected.length; p++) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                int d = Math.abs((expected[p] >> shift & 0xFF) - (actual[p] >> shift & 0xFF));
+                assertTrue(d <= tolerance, "pixel " + p);
+            }
+        }
+    }
+
+    private static int[] pixels(int width, int height, boolean alpha) {
+        Random random = new Random(width * 1000L + height);
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) pixels[i] = (alpha ? random.nextInt() : 0xFF000000 | random.nextInt(1 << 24));
+        return pixels;
+    }
+
+    // BI_RGB BMP; 32-bit pixels get 0xA5 in their unused fourth byte
+    private static byte[] bmp(int[] pixels, int bitCount, boolean topDown) {
+        int bytesPerPixel = bitCount / 8;
+        int stride = (WIDTH * bytesPerPixel + 3) & ~3;
+        ByteBuffer b = ByteBuffer.allocate(54 + stride * HEIGHT).order(ByteOrder.LITTLE_ENDIAN);
+        b.put((byte) 'B').put((byte) 'M').putInt(b.capacity()).putInt(0).putInt(54);
+        b.putInt(40).putInt(WIDTH).putInt(topDown ? -HEIGHT : HEIGHT).putShort((short) 1).putShort((short) bitCount);
+        b.putInt(0).putInt(stride * HEIGHT).putInt(2835).putInt(2835).putInt(0).putInt(0);
+        for (int row = 0; row < HEIGHT; row++) {
+            int y = topDown ? row : HEIGHT - 1 - row;
+            b.position(54 + row * stride);
+            for (int x = 0; x < WIDTH; x++) {
+                int p = pixels[y * WIDTH + x];
+                b.put((byte) p).put((byte) (p >> 8)).put((byte) (p >> 16));
+                if (bytesPerPixel == 4) b.put((byte) 0xA5);
+            }
+        }
+        return b.array();
+    }
+
+    private static byte[] pam(int[] pixels) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        String header = "P7\nWIDTH " + WIDTH + "\nHEIGHT " + HEIGHT + "\nDEPTH 4\nMAXVAL 255\nTUPLTYPE RGB_ALPHA\nENDHDR\n";
+        out.writeBytes(header.getBytes(StandardCharsets.US_ASCII));
+        for (int p : pixels) {
+            out.write(p >> 16);
+            out.write(p >> 8);
+            out.write(p);
+            out.write(p >>> 24);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,64 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class PayloadCipherTest {
+    private static final PayloadCipher.Passphrase PASSPHRASE =
+        new PayloadCipher.Passphrase("correct horse".toCharArray(), PayloadCipher.MIN_ITERATIONS);
+
+    @Test
+    void roundTripsContainersAcrossChunkBoundaries() {
+        for (int size : new int[] {0, 1, 65_535, 65_536, 3 * 65_536 + 5}) {
+            byte[] plain = new byte[size];
+            new Random(size).nextBytes(plain);
+            for (PayloadCipher.Algorithm algorithm : PayloadCipher.Algorithm.values()) {
+                BitBuffer envelope = PayloadCipher.encrypt(BitBuffer.wrap(plain), PASSPHRASE, algorithm);
+                assertEquals(PayloadCipher.envelopeBits(size), envelope.length(), algorithm + " " + size);
+                assertArrayEquals(plain, PayloadCipher.decrypt(envelope, PASSPHRASE).toByteArray(), algorithm + " " + size);
+            }
+        }
+    }
+
+    @Test
+    void padsContainersThatEndMidByte() {
+        BitBuffer container = new BitBuffer();
+        container.writeBits(0x1FFF, 13);
+        BitBuffer envelope = PayloadCipher.encrypt(container, PASSPHRASE);
+        assertArrayEquals(new byte[] {(byte) 0xFF, (byte) 0xF8}, PayloadCipher.decrypt(envelope, PASSPHRASE).toByteArray());
+    }
+
+    @Test
+    void rejectsWrongPassword() {
+        BitBuffer envelope = PayloadCipher.encrypt(BitBuffer.wrap(new byte[100]), PASSPHRASE);
+        NoHiddenMessageException e = assertThrows(NoHiddenMessageException.class,
+            () -> PayloadCipher.decrypt(envelope, new PayloadCipher.Passphrase("wrong".toCharArray(), PayloadCipher.MIN_ITERATIONS)));
+        assertEquals(NoHiddenMessageException.Reason.BAD_PASSWORD, e.getReason());
+    }
+
+    @Test
+    void refusesContainersTooLargeToDecryptAgain() {
+        // Past 2 GiB, so off the heap: needs -XX:MaxDirectMemorySize above that
+        BitBuffer huge = BitBuffer.zeros(PayloadCipher.ENVELOPE_BITS + (PayloadCipher.MAX_CIPHERTEXT_BYTES + 1) * 8);
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> PayloadCipher.encrypt(huge, PASSPHRASE));
+        assertTrue(e.getMessage().contains("too large"), e.getMessage());
+        long limit = PayloadCipher.MAX_CIPHERTEXT_BYTES - PayloadCipher.TAG_BYTES;
+        assertThrows(IllegalArgumentException.class,
+            () -> PayloadCipher.encrypt(new ByteArrayInputStream(new byte[0]), limit + 1, PASSPHRASE));
+
+        // An envelope that claims that much ciphertext is turned away before anything is allocated
+        huge.setBits(0, StegoContainer.MAGIC, 32);
+        huge.setBits(32, StegoContainer.VERSION, 8);
+        huge.setBits(40, StegoContainer.CODEC_ENCRYPTED, 8);
+        huge.setBits(48, PayloadCipher.DEFAULT_ALGORITHM.id, 8);
+        huge.setBits(56, PayloadCipher.MIN_ITERATIONS, 32);
+        huge.setBits(PayloadCipher.ENVELOPE_BITS - 32, PayloadCipher.MAX_CIPHERTEXT_BYTES + 1, 32);
+        NoHiddenMessageException rejected = assertThrows(NoHiddenMessageException.class, () -> PayloadCipher.decrypt(huge, PASSPHRASE));
+        assertEquals(NoHiddenMessageException.Reason.CORRUPT_PAYLOAD, rejected.getReason());
+        assertTrue(rejected.getDetail().contains("too large"), rejected.getDetail());
+    }
+}
@@ -0,0 +1,57 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class PixelPermutationTest {
+
+    @Test
+    void isABijectionOnAnySize() {
+        for (long size : new long[] {1, 2, 3, 5, 7, 17, 100, 1000, 4095, 4097, 65_537, 1_000_003}) {
+            for (long seed : new long[] {0, 1, -7}) {
+                PixelPermutation p = new PixelPermutation(size, seed);
+                boolean[] hit = new boolean[(int) size];
+                for (long i = 0; i < size; i++) {
+                    long j = p.map(i);
+                    assertTrue(j >= 0 && j < size, "size " + size + ": " + i + " -> " + j);
+                    assertFalse(hit[(int) j], "size " + size + ": " + j + " hit twice");
+                    hit[(int) j] = true;
+                    assertEquals(i, p.unmap(j), "size " + size);
+                }
+            }
+        }
+    }
+
+    @Test
+    void dependsOnTheSeed() {
+        long size = 10_007;
+        long[] a = order(new PixelPermutation(size, 42));
+        long[] same = order(new PixelPermutation(size, 42));
+        long[] other = order(new PixelPermutation(size, 43));
+        assertArrayEquals(a, same);
+        int moved = 0;
+        for (int i = 0; i < size; i++) if (a[i] != other[i]) moved++;
+        assertTrue(moved > size * 9 / 10, moved + " of " + size + " moved");
+
+        // Small sizes still have more than one order
+        boolean differs = false;
+        for (long seed = 0; seed < 20 && !differs; seed++) {
+            differs = new PixelPermutation(2, seed).map(0) != new PixelPermutation(2, seed + 1).map(0);
+        }
+        assertTrue(differs);
+    }
+
+    @Test
+    void rejectsEmptyDomains() {
+        assertThrows(IllegalArgumentException.class, () -> new PixelPermutation(0, 1));
+    }
+
+    private static long[] order(PixelPermutation p) {
+        long[] out = new long[(int) p.size()];
+        for (int i = 0; i < out.length; i++) out[i] = p.map(i);
+        return out;
+    }
+}
@@ -0,0 +1,179 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PngRowWriterTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void writesMultiBlockImagesAtEveryLevelAndFilter() throws Exception {
+        // Over three deflate blocks each
+        BufferedImage rgb = TestImages.random(700, 1600, BufferedImage.TYPE_INT_RGB, 1);
+        BufferedImage rgba = TestImages.random(600, 1500, BufferedImage.TYPE_INT_ARGB, 2);
+        Object[][] settings = {
+            {0, PngRowWriter.Filter.NONE, 4},
+            {1, PngRowWriter.Filter.SUB, 3},
+            {3, PngRowWriter.Filter.UP, 1},
+            {3, PngRowWriter.Filter.PAETH, 4},
+            {6, PngRowWriter.Filter.AVERAGE, 2},
+            {9, PngRowWriter.Filter.ADAPTIVE, 4},
+        };
+        for (Object[] s : settings) {
+            for (BufferedImage image : new BufferedImage[] {rgb, rgba}) {
+                int level = (Integer) s[0];
+                PngRowWriter.Filter filter = (PngRowWriter.Filter) s[1];
+                int threads = (Integer) s[2];
+                String what = "level " + level + " " + filter + " threads " + threads + (image == rgba ? " alpha" : "");
+                File file = dir.resolve("out.png").toFile();
+                PngRowWriter.write(image, file, level, filter, threads);
+
+                assertTrue(idatChunks(file) > 3, what);
+                inflateAll(file, (long) image.getHeight() * (image.getWidth() * (image == rgba ? 4 : 3) + 1), what);
+                assertSame(image, ImageIO.read(file), what);
+                assertSame(image, readRows(file), what);
+            }
+        }
+    }
+
+    @Test
+    void readsTruecolourPngsWithASuggestedPalette() throws Exception {
+        for (boolean alpha : new boolean[] {false, true}) {
+            BufferedImage image = TestImages.random(90, 40, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB, 3);
+            File file = dir.resolve("palette.png").toFile();
+            PngRowWriter.write(image, file, 6, PngRowWriter.Filter.ADAPTIVE, 2);
+
+            // A two-entry PLTE straight after IHDR, which the spec allows before IDAT
+            byte[] png = Files.readAllBytes(file.toPath());
+            byte[] palette = {0, 0, 0, (byte) 255, (byte) 255, (byte) 255};
+            CRC32 crc = new CRC32();
+            crc.update("PLTE".getBytes(StandardCharsets.US_ASCII));
+            crc.update(palette);
+            ByteBuffer chunk = ByteBuffer.allocate(12 + palette.length)
+                .putInt(palette.length).put("PLTE".getBytes(StandardCharsets.US_ASCII)).put(palette).putInt((int) crc.getValue());
+            int afterIhdr = 8 + 12 + 13;
+            ByteBuffer spliced = ByteBuffer.allocate(png.length + chunk.capacity())
+                .put(png, 0, afterIhdr).put(chunk.array()).put(png, afterIhdr, png.length - afterIhdr);
+            Files.write(file.toPath(), spliced.array());
+
+            assertTrue(PngRowReader.isSupported(file), "alpha " + alpha);
+            assertSame(image, readRows(file), "alpha " + alpha);
+        }
+    }
+
+    @Test
+    void combinesAdlerChecksums() {
+        byte[] data = new byte[200_000];
+        new Random(1).nextBytes(data);
+        for (int split : new int[] {0, 1, 5552, 65521, 131042, 199_999, 200_000}) {
+            Adler32 whole = new Adler32();
+            whole.update(data);
+            Adler32 a = new Adler32();
+            a.update(data, 0, split);
+            Adler32 b = new Adler32();
+            b.update(data, split, data.length - split);
+            assertEquals(whole.getValue(), PngRowWriter.adlerCombine(a.getValue(), b.getValue(), data.length - split), "split " + split);
+        }
+    }
+
+    private static void assertSame(BufferedImage expected, BufferedImage actual, String what) {
+        assertNotNull(actual, what);
+        assertEquals(expected.getWidth(), actual.getWidth(), what);
+        assertEquals(expected.getHeight(), actual.getHeight(), what);
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                if (expected.getRGB(x, y) != actual.getRGB(x, y)) {
+                    assertEquals(Integer.toHexString(expected.getRGB(x, y)), Integer.toHexString(actual.getRGB(x, y)), what + " at " + x + "," + y);
+                }
+            }
+        }
+    }
+
+    private static BufferedImage readRows(File file) throws IOException {
+        try (PngRowReader reader = new PngRowReader(file)) {
+            BufferedImage image = new BufferedImage(reader.getWidth(), reader.getHeight(),
+                reader.hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            int[] row = new int[reader.getWidth()];
+            for (int y = 0; y < reader.getHeight(); y++) {
+                reader.readRow(row, 0);
+                image.setRGB(0, y, row.length, 1, row, 0, row.length);
+            }
+            return image;
+        }
+    }
+
+    private static int idatChunks(File file) throws IOException {
+        int[] count = new int[1];
+        chunks(file, (type, data) -> {
+            if (type.equals("IDAT")) count[0]++;
+        });
+        return count[0];
+    }
+
+    // Inflates the joined IDAT data to its end, which checks the zlib header and the combined Adler-32
+    private static void inflateAll(File file, long rawLength, String what) throws IOException, DataFormatException {
+        Inflater inflater = new Inflater();
+        byte[] out = new byte[1 << 16];
+        long[] total = new long[1];
+        try {
+            chunks(file, (type, data) -> {
+                if (!type.equals("IDAT")) return;
+                inflater.setInput(data);
+                while (!inflater.needsInput() && !inflater.finished()) total[0] += inflater.inflate(out);
+            });
+            assertTrue(inflater.finished(), what);
+            assertEquals(rawLength, total[0], what);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private interface ChunkVisitor {
+        void visit(String type, byte[] data) throws DataFormatException;
+    }
+
+    private static void chunks(File file, ChunkVisitor visitor) throws IOException {
+        try (InputStream stream = Files.newInputStream(file.toPath()); DataInputStream in = new DataInputStream(stream)) {
+            in.skipNBytes(8);
+            while (true) {
+                byte[] data = new byte[in.readInt()];
+                byte[] type = new byte[4];
+                in.readFully(type);
+                in.readFully(data);
+                in.readInt();
+                String name = new String(type, StandardCharsets.US_ASCII);
+                visitor.visit(name, data);
+                if (name.equals("IEND")) return;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Test
+    void badFilterPropertiesFallBackToPaeth() {
+        assertEquals(PngRowWriter.Filter.PAETH, PngRowWriter.filterOrPaeth(null));
+        assertEquals(PngRowWriter.Filter.PAETH, PngRowWriter.filterOrPaeth("zigzag"));
+        assertEquals(PngRowWriter.Filter.PAETH, PngRowWriter.filterOrPaeth(""));
+        assertEquals(PngRowWriter.Filter.ADAPTIVE, PngRowWriter.filterOrPaeth(" adaptive "));
+        assertEquals(PngRowWriter.Filter.SUB, PngRowWriter.filterOrPaeth("SUB"));
+    }
+}
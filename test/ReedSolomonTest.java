@@ -0,0 +1,80 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class ReedSolomonTest {
+
+    @Test
+    void rebuildsFromEveryMixOfUpToParityLostShards() {
+        check(1, 0);
+        check(1, 3);
+        check(4, 2);
+        check(5, 4);
+        check(10, 3);
+    }
+
+    @Test
+    void rebuildsAcrossSlices() {
+        // Longer than one coding slice, so slices run in parallel
+        ReedSolomon rs = new ReedSolomon(3, 2);
+        byte[][] shards = shards(rs, 200_000, 7);
+        byte[][] damaged = copy(shards);
+        boolean[] present = {false, true, false, true, true};
+        damaged[0] = null;
+        damaged[2] = null;
+        rs.reconstruct(damaged, present, 200_000);
+        for (int i = 0; i < shards.length; i++) assertArrayEquals(shards[i], damaged[i]);
+    }
+
+    @Test
+    void rejectsTooFewShards() {
+        ReedSolomon rs = new ReedSolomon(4, 2);
+        byte[][] shards = shards(rs, 16, 1);
+        boolean[] present = {true, false, true, false, true, false};
+        assertThrows(IllegalArgumentException.class, () -> rs.reconstruct(shards, present, 16));
+    }
+
+    @Test
+    void rejectsShardCountsHeadersCannotHold() {
+        new ReedSolomon(ReedSolomon.MAX_DATA_SHARDS, 1);
+        new ReedSolomon(1, ReedSolomon.MAX_SHARDS - 1);
+        assertThrows(IllegalArgumentException.class, () -> new ReedSolomon(256, 0));
+        assertThrows(IllegalArgumentException.class, () -> new ReedSolomon(0, 2));
+        assertThrows(IllegalArgumentException.class, () -> new ReedSolomon(2, -1));
+        assertThrows(IllegalArgumentException.class, () -> new ReedSolomon(200, 57));
+    }
+
+    // Drops every subset of at most parityShards shards and rebuilds
+    private static void check(int dataShards, int parityShards) {
+        ReedSolomon rs = new ReedSolomon(dataShards, parityShards);
+        int n = dataShards + parityShards;
+        byte[][] shards = shards(rs, 37, n);
+        for (int lost = 0; lost < 1 << n; lost++) {
+            if (Integer.bitCount(lost) > parityShards) continue;
+            byte[][] damaged = copy(shards);
+            boolean[] present = new boolean[n];
+            for (int i = 0; i < n; i++) {
+                present[i] = (lost & 1 << i) == 0;
+                if (!present[i]) damaged[i] = i % 2 == 0 ? null : new byte[37];
+            }
+            rs.reconstruct(damaged, present, 37);
+            for (int i = 0; i < n; i++) assertArrayEquals(shards[i], damaged[i], "shard " + i + " of lost set " + lost);
+        }
+    }
+
+    private static byte[][] shards(ReedSolomon rs, int length, long seed) {
+        Random random = new Random(seed);
+        byte[][] shards = new byte[rs.dataShards() + rs.parityShards()][length];
+        for (int i = 0; i < rs.dataShards(); i++) random.nextBytes(shards[i]);
+        rs.encodeParity(shards, length);
+        return shards;
+    }
+
+    private static byte[][] copy(byte[][] shards) {
+        byte[][] out = new byte[shards.length][];
+        for (int i = 0; i < shards.length; i++) out[i] = shards[i].clone();
+        return out;
+    }
+}
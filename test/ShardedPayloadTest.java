@@ -0,0 +1,148 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ShardedPayloadTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void joinsFromEveryMixOfUpToParityLostShards() {
+        byte[] container = bytes(1001, 1);
+        List<BitBuffer> shards = ShardedPayload.split(BitBuffer.wrap(container), 4, 3);
+        assertEquals(7, shards.size());
+        for (int lost = 0; lost < 1 << 7; lost++) {
+            if (Integer.bitCount(lost) > 3) continue;
+            List<BitBuffer> kept = new ArrayList<>();
+            for (int i = 0; i < 7; i++) if ((lost & 1 << i) == 0) kept.add(shards.get(i));
+            assertArrayEquals(container, ShardedPayload.join(kept).toByteArray(), "lost set " + lost);
+        }
+    }
+
+    @Test
+    void joinsShardsInAnyOrderWithGaps() {
+        byte[] container = bytes(10, 2);
+        List<BitBuffer> shards = ShardedPayload.split(BitBuffer.wrap(container), 3, 1);
+        List<BitBuffer> payloads = new ArrayList<>();
+        payloads.add(null);
+        payloads.add(shards.get(3));
+        payloads.add(shards.get(1));
+        payloads.add(shards.get(0));
+        assertArrayEquals(container, ShardedPayload.join(payloads).toByteArray());
+    }
+
+    @Test
+    void ignoresShardsWhoseCrcDoesNotMatch() {
+        byte[] container = bytes(500, 3);
+        List<BitBuffer> shards = ShardedPayload.split(BitBuffer.wrap(container), 3, 1);
+        BitBuffer bad = shards.get(2);
+        long at = ShardedPayload.SHARD_HEADER_BITS + 17;
+        bad.setBit(at, 1 - bad.getBit(at));
+        assertNull(ShardedPayload.read(bad));
+
+        assertArrayEquals(container, ShardedPayload.join(shards).toByteArray());
+        NoHiddenMessageException e = assertThrows(NoHiddenMessageException.class,
+            () -> ShardedPayload.join(List.of(shards.get(0), shards.get(1), bad)));
+        assertEquals(NoHiddenMessageException.Reason.TOO_FEW_SHARDS, e.getReason());
+    }
+
+    @Test
+    void ignoresShardsWhoseHeaderCrcDoesNotMatch() {
+        List<BitBuffer> shards = ShardedPayload.split(BitBuffer.wrap(bytes(64, 4)), 2, 1);
+        BitBuffer bad = shards.get(0);
+        // The index byte
+        long at = StegoContainer.HEADER_BITS + 64 + 7;
+        bad.setBit(at, 1 - bad.getBit(at));
+        assertNull(ShardedPayload.read(bad));
+    }
+
+    @Test
+    void keepsTheLargestSetAndRejectsMixedSetsTooSmallToRebuild() {
+        byte[] first = bytes(300, 5);
+        byte[] second = bytes(300, 6);
+        List<BitBuffer> a = ShardedPayload.split(BitBuffer.wrap(first), 2, 1);
+        List<BitBuffer> b = ShardedPayload.split(BitBuffer.wrap(second), 2, 1);
+
+        assertArrayEquals(first, ShardedPayload.join(List.of(a.get(0), b.get(1), a.get(2))).toByteArray());
+        assertArrayEquals(second, ShardedPayload.join(List.of(b.get(2), a.get(1), b.get(0))).toByteArray());
+
+        // One shard of each set: neither can be rebuilt, and shards of the other never fill in
+        NoHiddenMessageException e = assertThrows(NoHiddenMessageException.class,
+            () -> ShardedPayload.join(List.of(a.get(0), b.get(1))));
+        assertEquals(NoHiddenMessageException.Reason.TOO_FEW_SHARDS, e.getReason());
+    }
+
+    @Test
+    void encodesEachShardInAFormatThatKeepsIt() throws IOException {
+        // JPEG to JPEG and BMP to BMP keep their formats; the JPEG written as a PNG is re-embedded
+        List<String> carriers = List.of(carrier("a", "png"), carrier("b", "jpg"), carrier("c", "bmp"), carrier("d", "jpg"));
+        List<String> outputs = List.of(out("a.png"), out("b.jpg"), out("c.bmp"), out("d.png"));
+        byte[] payload = bytes(600, 7);
+        ShardedPayload.encode(payload, carriers, outputs, 1, 64, Codecs.STORED, null);
+
+        assertArrayEquals(payload, ShardedPayload.decode(outputs, 64, null));
+        for (int lost = 0; lost < outputs.size(); lost++) {
+            List<String> kept = new ArrayList<>(outputs);
+            kept.remove(lost);
+            assertArrayEquals(payload, ShardedPayload.decode(kept, 64, null), "lost " + outputs.get(lost));
+        }
+    }
+
+    @Test
+    void refusesLossyOutputsBeforeWritingAnyShard() throws IOException {
+        List<String> carriers = List.of(carrier("a", "png"), carrier("b", "png"));
+        List<String> outputs = List.of(out("a.png"), out("b.jpg"));
+        assertThrows(IllegalArgumentException.class, () -> ShardedPayload.encode(bytes(100, 8), carriers, outputs, 1, 64, Codecs.STORED, null));
+        for (String output : outputs) assertFalse(Files.exists(Path.of(output)), output);
+    }
+
+    @Test
+    void rejectsTooFewShards() {
+        List<BitBuffer> shards = ShardedPayload.split(BitBuffer.wrap(bytes(100, 7)), 3, 2);
+        NoHiddenMessageException e = assertThrows(NoHiddenMessageException.class,
+            () -> ShardedPayload.join(List.of(shards.get(4), shards.get(1))));
+        assertEquals(NoHiddenMessageException.Reason.TOO_FEW_SHARDS, e.getReason());
+
+        e = assertThrows(NoHiddenMessageException.class, () -> ShardedPayload.join(List.of(BitBuffer.wrap(bytes(100, 8)))));
+        assertEquals(NoHiddenMessageException.Reason.TOO_FEW_SHARDS, e.getReason());
+    }
+
+    @Test
+    void splitsIntoAsManyDataShardsAsTheHeaderHolds() {
+        byte[] container = bytes(1000, 9);
+        List<BitBuffer> shards = ShardedPayload.split(BitBuffer.wrap(container), ReedSolomon.MAX_DATA_SHARDS, 1);
+        assertEquals(ReedSolomon.MAX_DATA_SHARDS, ShardedPayload.read(shards.get(0)).dataShards);
+        assertArrayEquals(container, ShardedPayload.join(shards.subList(1, shards.size())).toByteArray());
+        assertThrows(IllegalArgumentException.class, () -> ShardedPayload.split(BitBuffer.wrap(container), 256, 0));
+    }
+
+    private String carrier(String name, String format) throws IOException {
+        BufferedImage image = TestImages.random(120, 90, BufferedImage.TYPE_INT_RGB, name.hashCode());
+        Path file = dir.resolve("carrier-" + name + "." + format);
+        ImageIO.write(image, format, file.toFile());
+        return file.toString();
+    }
+
+    private String out(String name) {
+        return dir.resolve(name).toString();
+    }
+
+    private static byte[] bytes(int length, long seed) {
+        byte[] b = new byte[length];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+}
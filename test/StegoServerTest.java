@@ -0,0 +1,198 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class StegoServerTest {
+    private static final long MAX_PAYLOAD = 4096;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private StegoServer server;
+
+    @BeforeEach
+    void start() throws IOException {
+        server = new StegoServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1, 1_000_000, MAX_PAYLOAD, null);
+        server.start();
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop();
+    }
+
+    @Test
+    void encodesAndDecodes() throws Exception {
+        byte[] payload = "héllo from the server ".repeat(20).getBytes(StandardCharsets.UTF_8);
+        HttpResponse<byte[]> encoded = post("/api/encode?payloadLength=" + payload.length, concat(payload, png(carrier())), null);
+        assertEquals(200, encoded.statusCode());
+        assertEquals("image/png", encoded.headers().firstValue("Content-Type").orElse(""));
+
+        HttpResponse<byte[]> decoded = post("/api/decode", encoded.body(), null);
+        assertEquals(200, decoded.statusCode());
+        assertArrayEquals(payload, decoded.body());
+    }
+
+    @Test
+    void encryptsWithThePasswordHeader() throws Exception {
+        byte[] payload = "secret".getBytes(StandardCharsets.UTF_8);
+        HttpResponse<byte[]> encoded = post("/api/encode?codec=stored&payloadLength=" + payload.length, concat(payload, png(carrier())), "pw");
+        assertEquals(200, encoded.statusCode());
+
+        assertError(post("/api/decode", encoded.body(), null), 422, "PASSWORD_REQUIRED");
+        assertError(post("/api/decode", encoded.body(), "wrong"), 422, "BAD_PASSWORD");
+        assertArrayEquals(payload, post("/api/decode", encoded.body(), "pw").body());
+    }
+
+    @Test
+    void rejectsBadRequests() throws Exception {
+        assertEquals(413, post("/api/encode?payloadLength=" + (MAX_PAYLOAD + 1), new byte[16], null).statusCode());
+        assertEquals(413, post("/api/encode?payloadLength=2147483000", new byte[16], null).statusCode());
+        assertEquals(400, post("/api/encode?payloadLength=-1", new byte[16], null).statusCode());
+        assertEquals(400, post("/api/encode?payloadLength=100", new byte[16], null).statusCode());
+        assertEquals(400, post("/api/decode?header=32", png(carrier()), null).statusCode());
+        assertEquals(400, post("/api/encode?codec=zip&payloadLength=1", new byte[16], null).statusCode());
+        // Past 4 bytes per allowed pixel plus headers, so it is never spooled whole
+        assertEquals(413, post("/api/decode", new byte[4_000_000 + (1 << 20) + 1], null).statusCode());
+
+        HttpResponse<byte[]> get = client.send(HttpRequest.newBuilder(uri("/api/encode")).GET().build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(405, get.statusCode());
+        assertEquals("POST", get.headers().firstValue("Allow").orElse(""));
+        assertEquals(404, client.send(HttpRequest.newBuilder(uri("/index.html")).GET().build(), HttpResponse.BodyHandlers.ofByteArray()).statusCode());
+    }
+
+    @Test
+    void rejectsCarriersWithoutOrWithCorruptPayloads() throws Exception {
+        HttpResponse<byte[]> clean = post("/api/decode", png(carrier()), null);
+        assertEquals(422, clean.statusCode());
+
+        // A stored payload whose length field claims almost 2 GiB
+        BitBuffer bits = StegoContainer.pack(new byte[] {1, 2, 3}, Codecs.STORED);
+        bits.setBits(StegoContainer.HEADER_BITS, 0x7FFFFFF0L, 32);
+        BufferedImage image = EncodeBinary.embed(carrier(), bits, 64);
+        assertError(post("/api/decode", png(image), null), 422, "CORRUPT_PAYLOAD");
+    }
+
+    @Test
+    void rejectsDecodedPayloadsOverTheLimitBeforeInflatingThem() throws Exception {
+        // A few hundred embedded bytes that declare far more than --max-payload once inflated
+        byte[] zeros = new byte[(int) MAX_PAYLOAD * 100];
+        for (BitBuffer bits : new BitBuffer[] {StegoContainer.pack(zeros, Codecs.DEFLATE), ChunkedContainer.pack(zeros, 4096, Codecs.DEFLATE)}) {
+            BufferedImage image = EncodeBinary.embed(carrier(), bits, 64);
+            assertError(post("/api/decode", png(image), null), 413, "PAYLOAD_TOO_LARGE");
+        }
+
+        byte[] limit = new byte[(int) MAX_PAYLOAD];
+        HttpResponse<byte[]> atLimit = post("/api/decode", png(EncodeBinary.embed(carrier(), StegoContainer.pack(limit, Codecs.DEFLATE), 64)), null);
+        assertEquals(200, atLimit.statusCode());
+        assertArrayEquals(limit, atLimit.body());
+    }
+
+    @Test
+    void dropsTheConnectionWhenADecodeFailsAfterItsStatusWentOut() throws Exception {
+        // The first batch of blocks is written before the corrupt last one is decoded
+        int blocks = ForkJoinPool.getCommonPoolParallelism() * 4 + 1;
+        BitBuffer bits = ChunkedContainer.pack(new byte[blocks * 8], 8, Codecs.STORED);
+        long bit = ChunkedContainer.readIndex(bits).blockStart(blocks - 1) + 20;
+        bits.setBits(bit, bits.getBits(bit, 1) ^ 1, 1);
+        byte[] image = png(EncodeBinary.embed(carrier(256), bits, 64));
+
+        assertThrows(IOException.class, () -> post("/api/decode", image, null));
+        assertEquals(200, client.send(HttpRequest.newBuilder(uri("/api/health")).GET().build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+    }
+
+    @Test
+    void answersBusyWhenEveryJobPermitIsTaken() throws Exception {
+        server.jobs.acquire();
+        try {
+            HttpResponse<byte[]> busy = post("/api/decode", png(carrier()), null);
+            assertEquals(503, busy.statusCode());
+            assertEquals("1", busy.headers().firstValue("Retry-After").orElse(""));
+            assertEquals(200, client.send(HttpRequest.newBuilder(uri("/api/health")).GET().build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+        } finally {
+            server.jobs.release();
+        }
+    }
+
+    @Test
+    void slowUploadsHoldNoJobPermit() throws Exception {
+        // An encode whose body never finishes, on a server with a single permit
+        try (Socket stalled = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+            OutputStream out = stalled.getOutputStream();
+            out.write(("POST /api/encode?payloadLength=1000 HTTP/1.1\r\nHost: localhost\r\nContent-Length: 20000\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+            out.write(new byte[1500]);
+            out.flush();
+            Thread.sleep(300);
+
+            assertEquals(1, server.jobs.availablePermits());
+            // A clean carrier, so no payload: not 503
+            assertEquals(422, post("/api/decode", png(carrier()), null).statusCode());
+        }
+    }
+
+    @Test
+    void reportsCapacityAndMetrics() throws Exception {
+        HttpResponse<byte[]> capacity = post("/api/capacity", png(carrier()), null);
+        assertEquals(200, capacity.statusCode());
+        String json = new String(capacity.body(), StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"width\":64") && json.contains("\"capacityBits\":12288"), json);
+
+        HttpResponse<String> metrics = client.send(HttpRequest.newBuilder(uri("/metrics")).GET().build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, metrics.statusCode());
+    }
+
+    private HttpResponse<byte[]> post(String path, byte[] body, String password) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri(path)).POST(HttpRequest.BodyPublishers.ofByteArray(body));
+        if (password != null) request.header("X-PixelVault-Password", password);
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://127.0.0.1:" + server.port() + path);
+    }
+
+    private static void assertError(HttpResponse<byte[]> response, int status, String reason) {
+        String body = new String(response.body(), StandardCharsets.UTF_8);
+        assertEquals(status, response.statusCode(), body);
+        assertTrue(body.contains("\"reason\":\"" + reason + "\""), body);
+    }
+
+    private static BufferedImage carrier() {
+        return carrier(64);
+    }
+
+    private static BufferedImage carrier(int size) {
+        return TestImages.random(size, size, BufferedImage.TYPE_INT_RGB, 6);
+    }
+
+    private static byte[] png(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] c = new byte[a.length + b.length];
+        System.arraycopy(a, 0, c, 0, a.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+}
@@ -0,0 +1,82 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StreamingEncoderTest {
+    private static final PayloadCipher.Passphrase PASSPHRASE =
+        new PayloadCipher.Passphrase("streamed".toCharArray(), PayloadCipher.MIN_ITERATIONS);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void roundTripsThroughDecodeBinary() throws Exception {
+        byte[] secret = "streamed through row stripes ".repeat(200).getBytes(StandardCharsets.UTF_8);
+        for (int type : new int[] {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB}) {
+            Path carrier = write(TestImages.random(300, 200, type, 1), "carrier-" + type + ".png");
+            for (int headerBits : new int[] {64, 128}) {
+                for (PayloadCipher.Passphrase passphrase : new PayloadCipher.Passphrase[] {null, PASSPHRASE}) {
+                    roundTrip(secret, carrier, headerBits, passphrase);
+                }
+            }
+        }
+    }
+
+    @Test
+    void roundTripsPayloadsLargerThanAStripe() throws Exception {
+        // Incompressible, so the embedded stream spans several 4 Mbit stripes at the planned depth
+        byte[] secret = new byte[700_000];
+        new Random(9).nextBytes(secret);
+        Path carrier = write(TestImages.random(1000, 600, BufferedImage.TYPE_INT_RGB, 2), "large.png");
+        roundTrip(secret, carrier, 64, null);
+        roundTrip(secret, carrier, 128, PASSPHRASE);
+    }
+
+    @Test
+    void packPicksTheCodecFromTheFirstBlock() throws IOException {
+        byte[] text = "very repetitive text ".repeat(10_000).getBytes(StandardCharsets.UTF_8);
+        byte[] noise = new byte[200_000];
+        new Random(4).nextBytes(noise);
+
+        for (byte[] data : new byte[][] {text, noise}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long bits = StegoContainer.pack(new ByteArrayInputStream(data), out);
+            byte[] container = out.toByteArray();
+            assertEquals(container.length * 8L, bits);
+            assertEquals(StegoContainer.CODEC_BLOCKS, container[5] & 0xFF);
+            assertEquals(Codecs.choose(data).id(), container[6] & 0xFF);
+            assertArrayEquals(data, StegoContainer.unpackBytes(BitBuffer.wrap(container)));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StegoContainer.pack(new ByteArrayInputStream(text), out, Codecs.LZ);
+        assertEquals(Codecs.LZ.id(), out.toByteArray()[6] & 0xFF);
+        assertTrue(out.size() < text.length / 10);
+        assertArrayEquals(text, StegoContainer.unpackBytes(BitBuffer.wrap(out.toByteArray())));
+    }
+
+    private void roundTrip(byte[] secret, Path carrier, int headerBits, PayloadCipher.Passphrase passphrase) throws Exception {
+        String name = carrier.getFileName() + ", " + headerBits + "-bit header, passphrase " + (passphrase != null);
+        Path output = dir.resolve("out.png");
+        StreamingEncoder.encode(new ByteArrayInputStream(secret), carrier.toString(), output.toString(), headerBits, passphrase);
+        BitBuffer bits = DecodeBinary.decodeBits(output.toString(), headerBits, passphrase);
+        assertArrayEquals(secret, BinaryToText.toBytes(bits, passphrase), name);
+    }
+
+    private Path write(BufferedImage image, String name) throws IOException {
+        Path file = dir.resolve(name);
+        assertTrue(ImageIO.write(image, "png", file.toFile()));
+        return file;
+    }
+}
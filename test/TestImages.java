@@ -0,0 +1,30 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+
+// Carriers for tests: uniformly random pixels, the same for the same arguments
+final class TestImages {
+    private TestImages() {
+    }
+
+    // Alpha is random too for types that have it
+    static BufferedImage random(int width, int height, int type, long seed) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Random random = new Random(seed);
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        if (buffer instanceof DataBufferByte) {
+            random.nextBytes(((DataBufferByte) buffer).getData());
+        } else if (buffer instanceof DataBufferInt) {
+            int mask = image.getColorModel().hasAlpha() ? -1 : 0xFFFFFF;
+            int[] pixels = ((DataBufferInt) buffer).getData();
+            for (int i = 0; i < pixels.length; i++) pixels[i] = random.nextInt() & mask;
+        } else {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+}